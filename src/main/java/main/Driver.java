@@ -58,6 +58,9 @@ public class Driver {
         String version = Version.getInstance().getVersion();
         LOG.info("Watson Assistant Solutions - Audio Client Driver (main) starting...");
         LOG.info("Version: " + version);
+
+        // Decode the local prompts now, so they play without a delay when needed
+        LocalAudio.preloadPrompts();
         
         Client client = null;
         Properties properties = readProps();
@@ -29,7 +29,8 @@ public class AudioConstants {
 
   public static final String PlaybackFormat = "audio/l16";
 
-  public static final float PlaybackSampleRate = 16000; // Jabra speaker-phone needs 48000 to play normally.
+  // The speaker's format is negotiated (a Jabra speaker-phone needs 48000) and the audio is resampled if needed.
+  public static final float PlaybackSampleRate = 16000;
 
   public static final int PlaybackChannels = 1;
 
@@ -0,0 +1,437 @@
+/**
+ * Copyright 2018 IBM Corporation. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package wa.audio;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.DataLine;
+import javax.sound.sampled.Line;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.Mixer;
+import javax.sound.sampled.SourceDataLine;
+import javax.sound.sampled.TargetDataLine;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Manages the audio lines (speaker and microphone).
+ *
+ * Each line is opened once and kept open ('warm') between uses. The users (audio output,
+ * local prompts, audio capture) lease a line for the time they use it. A line is only one
+ * user's at a time - the next user waits for the lease to be released. A line is only
+ * reopened if a lease asks for a different format or the line was invalidated (after an
+ * error). The mixer selection is done once.
+ *
+ * The time taken to get each line is logged, so the cost of opening a line (cold) can be
+ * compared with reusing it (warm).
+ *
+ * The manager also negotiates the playback format: when the speaker doesn't support the format
+ * of some audio, it picks a format the speaker does support (the audio is then converted with
+ * a Resampler).
+ */
+public class AudioDeviceManager {
+    // Initialize our logger
+    private static final Logger LOG = LogManager.getLogger(AudioDeviceManager.class);
+
+    private static AudioDeviceManager sharedInstance;
+
+    private final PooledLine<SourceDataLine> playback = new PooledLine<>(SourceDataLine.class, "Playback");
+    private final PooledLine<TargetDataLine> capture = new PooledLine<>(TargetDataLine.class, "Capture");
+
+    private boolean useDefaultAudio = true;
+    private Mixer.Info playbackMixerInfo = null;
+    private boolean playbackMixerSelected = false;
+    private final Map<String, AudioFormat> playbackFormats = new HashMap<>(); // requested -> supported
+
+    // Sample rates to try (in order of preference above and below the requested rate)
+    private static final float[] PLAYBACK_RATES = { 8000, 11025, 16000, 22050, 24000, 32000, 44100, 48000 };
+
+    private AudioDeviceManager() {
+    }
+
+    public static synchronized AudioDeviceManager getInstance() {
+        if (sharedInstance == null) {
+            sharedInstance = new AudioDeviceManager();
+        }
+        return sharedInstance;
+    }
+
+    /**
+     * @param value - true to use the default audio output, false to look for a USB audio output
+     */
+    public void setUseDefaultAudio(boolean value) {
+        synchronized (this) {
+            if (useDefaultAudio == value) {
+                return;
+            }
+            useDefaultAudio = value;
+            playbackMixerSelected = false;
+            playbackFormats.clear();
+        }
+        // Outside of the lock - opening a line takes the line's lock then this one. The line
+        // isn't closed under a user (output, prompt) - it is closed when the lease is released.
+        playback.invalidateWhenReleased();
+    }
+
+    /**
+     * Open the lines (in the playback and record formats) ahead of their first use.
+     */
+    public void warmUp() {
+        warmUp(new AudioFormat(AudioConstants.PlaybackSampleRate, AudioConstants.PlaybackSampleSizeInBits,
+                AudioConstants.PlaybackChannels, AudioConstants.isSigned, AudioConstants.isBigEndian),
+                new AudioFormat(AudioConstants.RecordSampleRate, AudioConstants.RecordSampleSizeInBits,
+                        AudioConstants.RecordChannels, AudioConstants.isSigned, AudioConstants.isBigEndian));
+    }
+
+    /**
+     * Open the lines ahead of their first use (at startup). Failures are logged - the lines
+     * will be opened when first leased.
+     *
+     * @param playbackFormat - format for the speaker
+     * @param captureFormat - format for the microphone
+     */
+    public void warmUp(AudioFormat playbackFormat, AudioFormat captureFormat) {
+        long start = System.currentTimeMillis();
+        try {
+            // Just opening it
+            acquirePlayback(getPlaybackFormat(playbackFormat), 0).close();
+        } catch (LineUnavailableException | RuntimeException e) {
+            LOG.warn("Unable to open the speaker at startup: " + e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        try {
+            // Just opening it
+            acquireCapture(captureFormat, 0).close();
+        } catch (LineUnavailableException | RuntimeException e) {
+            LOG.warn("Unable to open the microphone at startup: " + e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        LOG.info(String.format("Audio lines opened in %dms", System.currentTimeMillis() - start));
+    }
+
+    /**
+     * Lease the speaker line. The line is open and started.
+     *
+     * @param format - format of the audio to play
+     * @param timeoutMillis - maximum time to wait for another user to release the line
+     * @return the lease (release it with `close`)
+     * @throws LineUnavailableException if the line can't be opened or is in use past the timeout
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public LineLease<SourceDataLine> acquirePlayback(AudioFormat format, long timeoutMillis) throws LineUnavailableException, InterruptedException {
+        return playback.acquire(format, timeoutMillis);
+    }
+
+    /**
+     * Lease the microphone line. The line is open and started (with old audio discarded).
+     *
+     * @param format - format of the audio to capture
+     * @param timeoutMillis - maximum time to wait for another user to release the line
+     * @return the lease (release it with `close`)
+     * @throws LineUnavailableException if the line can't be opened or is in use past the timeout
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public LineLease<TargetDataLine> acquireCapture(AudioFormat format, long timeoutMillis) throws LineUnavailableException, InterruptedException {
+        return capture.acquire(format, timeoutMillis);
+    }
+
+    /**
+     * The format to play audio in. This is the requested format if the speaker supports it, otherwise
+     * a 16 bit PCM format the speaker does support - the nearest sample rate at or above the
+     * requested rate (so no quality is lost) or else the highest below it, with the requested
+     * channels if possible. If the speaker supports nothing (or there is no speaker) the
+     * requested format is returned.
+     *
+     * @param requested - format of the audio
+     * @return the format for the speaker
+     */
+    public synchronized AudioFormat getPlaybackFormat(AudioFormat requested) {
+        String key = requested.toString();
+        AudioFormat format = playbackFormats.get(key);
+        if (null == format) {
+            format = negotiatePlaybackFormat(requested);
+            playbackFormats.put(key, format);
+            if (format != requested) {
+                LOG.info(String.format("Speaker does not support %s - playing as %s", requested, format));
+            }
+        }
+        return format;
+    }
+
+    private AudioFormat negotiatePlaybackFormat(AudioFormat requested) {
+        Mixer mixer = getPlaybackMixer();
+        if (isPlaybackSupported(mixer, requested)) {
+            return requested;
+        }
+        for (AudioFormat candidate : getPlaybackCandidates(mixer, requested)) {
+            if (isPlaybackSupported(mixer, candidate)) {
+                return candidate;
+            }
+        }
+        return requested;
+    }
+
+    /**
+     * The formats to try, in order of preference.
+     */
+    private List<AudioFormat> getPlaybackCandidates(Mixer mixer, AudioFormat requested) {
+        // The rates the line reports (most report 'not specified' - any rate) and the common rates
+        List<Float> rates = new ArrayList<>();
+        Line.Info[] lineInfos = (null == mixer ? AudioSystem.getSourceLineInfo(new Line.Info(SourceDataLine.class))
+                : mixer.getSourceLineInfo(new Line.Info(SourceDataLine.class)));
+        for (Line.Info lineInfo : lineInfos) {
+            if (lineInfo instanceof DataLine.Info) {
+                for (AudioFormat format : ((DataLine.Info) lineInfo).getFormats()) {
+                    float rate = format.getSampleRate();
+                    if (rate > 0 && !rates.contains(rate)) {
+                        rates.add(rate);
+                    }
+                }
+            }
+        }
+        for (float rate : PLAYBACK_RATES) {
+            if (!rates.contains(rate)) {
+                rates.add(rate);
+            }
+        }
+        float requestedRate = requested.getSampleRate();
+        rates.sort((a, b) -> {
+            boolean aAbove = a >= requestedRate;
+            boolean bAbove = b >= requestedRate;
+            if (aAbove != bAbove) {
+                return (aAbove ? -1 : 1);
+            }
+            return (aAbove ? Float.compare(a, b) : Float.compare(b, a));
+        });
+
+        int channels = requested.getChannels();
+        int[] channelChoices = { channels, (channels == 1 ? 2 : 1) };
+        List<AudioFormat> candidates = new ArrayList<>();
+        for (float rate : rates) {
+            for (int choice : channelChoices) {
+                candidates.add(new AudioFormat(rate, 16, choice, true, false));
+            }
+        }
+        return candidates;
+    }
+
+    private static boolean isPlaybackSupported(Mixer mixer, AudioFormat format) {
+        DataLine.Info info = new DataLine.Info(SourceDataLine.class, format);
+        return (null == mixer ? AudioSystem.isLineSupported(info) : mixer.isLineSupported(info));
+    }
+
+    /**
+     * Close the lines (they are reopened if leased again).
+     */
+    public void shutdown() {
+        playback.invalidate();
+        capture.invalidate();
+    }
+
+    /**
+     * The mixer for the speaker - the USB audio output when not using the default audio (and
+     * one exists). The mixers are only listed once.
+     *
+     * @return the mixer or null to use the default audio output
+     */
+    private synchronized Mixer getPlaybackMixer() {
+        if (!playbackMixerSelected) {
+            playbackMixerInfo = null;
+            if (!useDefaultAudio) {
+                for (Mixer.Info aMixerInfo : AudioSystem.getMixerInfo()) {
+                    LOG.info(String.format("Mixer Name:\"%s\" Description:\"%s\"", aMixerInfo.getName(), aMixerInfo.getDescription()));
+                    if (aMixerInfo.getDescription().contains("USB") && !aMixerInfo.getName().contains("Port")) {
+                        playbackMixerInfo = aMixerInfo;
+                    }
+                }
+            }
+            if (null != playbackMixerInfo) {
+                LOG.info(String.format("Using audio output: %s", playbackMixerInfo.getDescription()));
+            } else {
+                LOG.info("Using default audio output");
+            }
+            playbackMixerSelected = true;
+        }
+        return (null == playbackMixerInfo ? null : AudioSystem.getMixer(playbackMixerInfo));
+    }
+
+    /**
+     * A lease of a line. Release the lease (`close`) when done with the line - the line is
+     * kept open for the next user.
+     */
+    public static final class LineLease<L extends DataLine> implements AutoCloseable {
+        private final PooledLine<L> pool;
+        private final L line;
+        private final long acquireMillis;
+        private final boolean warm;
+        private boolean released = false;
+
+        LineLease(PooledLine<L> pool, L line, long acquireMillis, boolean warm) {
+            this.pool = pool;
+            this.line = line;
+            this.acquireMillis = acquireMillis;
+            this.warm = warm;
+        }
+
+        /**
+         * @return the (open) line
+         */
+        public L getLine() {
+            return line;
+        }
+
+        /**
+         * @return the time (mS) it took to get the line
+         */
+        public long getAcquireMillis() {
+            return acquireMillis;
+        }
+
+        /**
+         * @return true if the line was already open, false if it had to be opened
+         */
+        public boolean isWarm() {
+            return warm;
+        }
+
+        /**
+         * Close the line (after an error) so it is reopened for the next user.
+         */
+        public void invalidate() {
+            pool.invalidate();
+        }
+
+        /**
+         * Release the lease.
+         */
+        @Override
+        public synchronized void close() {
+            if (!released) {
+                released = true;
+                pool.release(line);
+            }
+        }
+    }
+
+    /**
+     * A line that is opened once and leased to one user at a time.
+     */
+    private class PooledLine<L extends DataLine> {
+        private final Class<L> lineClass;
+        private final String name;
+        private final Semaphore available = new Semaphore(1, true);
+        private L line = null;
+        private boolean inUse = false;
+        // Close the line when the lease is released (it was invalidated while it was leased)
+        private boolean invalidateOnRelease = false;
+
+        PooledLine(Class<L> lineClass, String name) {
+            this.lineClass = lineClass;
+            this.name = name;
+        }
+
+        LineLease<L> acquire(AudioFormat format, long timeoutMillis) throws LineUnavailableException, InterruptedException {
+            long start = System.currentTimeMillis();
+            if (!available.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                throw new LineUnavailableException(name + " line is in use");
+            }
+            boolean warm;
+            L leased;
+            try {
+                synchronized (this) {
+                    warm = (null != line && line.isOpen() && line.getFormat().matches(format));
+                    if (!warm) {
+                        closeLine();
+                        line = open(format);
+                    }
+                    line.flush();
+                    line.start();
+                    leased = line;
+                    inUse = true;
+                }
+            } catch (LineUnavailableException | RuntimeException e) {
+                available.release();
+                throw e;
+            }
+            long acquireMillis = System.currentTimeMillis() - start;
+            LOG.debug(String.format("%s line acquired in %dms (%s)", name, acquireMillis, (warm ? "warm" : "opened")));
+            return new LineLease<>(this, leased, acquireMillis, warm);
+        }
+
+        void release(L leased) {
+            synchronized (this) {
+                inUse = false;
+                if (invalidateOnRelease) {
+                    invalidateOnRelease = false;
+                    closeLine();
+                } else if (leased == line && line.isOpen()) {
+                    line.stop();
+                    if (line instanceof TargetDataLine) {
+                        line.flush(); // don't keep old audio for the next capture
+                    }
+                }
+            }
+            available.release();
+        }
+
+        synchronized void invalidate() {
+            closeLine();
+        }
+
+        /**
+         * Close the line now if it isn't leased, otherwise when the lease is released (the
+         * user isn't cut off mid-write).
+         */
+        synchronized void invalidateWhenReleased() {
+            if (inUse) {
+                invalidateOnRelease = true;
+            } else {
+                closeLine();
+            }
+        }
+
+        private L open(AudioFormat format) throws LineUnavailableException {
+            DataLine.Info info = new DataLine.Info(lineClass, format);
+            Mixer mixer = (SourceDataLine.class == lineClass ? getPlaybackMixer() : null);
+            L newLine = lineClass.cast(null == mixer ? AudioSystem.getLine(info) : mixer.getLine(info));
+            if (newLine instanceof SourceDataLine) {
+                ((SourceDataLine) newLine).open(format);
+            } else {
+                ((TargetDataLine) newLine).open(format);
+            }
+            return newLine;
+        }
+
+        private void closeLine() {
+            if (null != line) {
+                line.close();
+                line = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/**
+ * Copyright 2018 IBM Corporation. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package wa.audio;
+
+/**
+ * Encoder stage for the captured (upstream) audio.
+ *
+ * The captured audio (16 bit signed little-endian PCM - see AudioConstants) is passed to
+ * `encode` as it is read. The encoded data is passed to the Output as it becomes available,
+ * so the audio is sent to the server as a stream rather than after the capture ends.
+ *
+ * A new stream is started (`start`) for each capture and ended with `finish`.
+ */
+public interface AudioEncoder {
+
+    /**
+     * Receives the encoded data.
+     */
+    interface Output {
+        /**
+         * @param data - array containing the encoded data (only valid during the call)
+         * @param offset - offset of the data in the array
+         * @param length - number of bytes
+         */
+        void write(byte[] data, int offset, int length);
+    }
+
+    /**
+     * @return the content type of the encoded audio (for the STT options)
+     */
+    String getContentType();
+
+    /**
+     * Start a new stream.
+     *
+     * @param output - receives the encoded data for the stream
+     */
+    void start(Output output);
+
+    /**
+     * Encode captured audio.
+     *
+     * @param pcm - array containing the PCM audio
+     * @param offset - offset of the audio in the array
+     * @param length - number of bytes
+     */
+    void encode(byte[] pcm, int offset, int length);
+
+    /**
+     * End the stream - any audio held by the encoder is encoded and output.
+     */
+    void finish();
+}
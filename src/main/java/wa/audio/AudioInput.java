@@ -16,8 +16,6 @@
 package wa.audio;
 
 import javax.sound.sampled.AudioFormat;
-import javax.sound.sampled.AudioSystem;
-import javax.sound.sampled.DataLine;
 import javax.sound.sampled.LineUnavailableException;
 import javax.sound.sampled.TargetDataLine;
 
@@ -25,9 +23,12 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.json.JSONObject;
 
-import okio.ByteString;
 import wa.client.Client;
 import wa.client.ClientHelpers;
+import wa.commonLogging.CommonLogging;
+import wa.commonLogging.PerfRecord;
+import wa.util.ActivityCounters;
+import wa.util.ActivityCounters.Activity;
 
 public class AudioInput {
     // Initialize our logger
@@ -51,6 +52,13 @@ public class AudioInput {
     // Thread to capture audio until cancelled or timed out
     private CaptureThread captureThread = null;
 
+    // Always open microphone (with pre-roll) - null if the microphone is opened for each capture
+    private MicrophoneMonitor microphoneMonitor = null;
+
+    // Voice activity performance log record (preallocated - filled in each time it is logged)
+    private final PerfRecord capturePerfRecord = new PerfRecord("CAPTURE",
+            new String[] { "SpeechStart: ", "SpeechEnd: ", "Trimmed: ", "EndedEarly: ", "Saved: " }, null);
+
 
     public AudioInput(String name, Client client, AudioSocket audioSocket) {
         this.client = client;
@@ -73,6 +81,73 @@ public class AudioInput {
         this.inputSource = inputSource;
     }
 
+    /**
+     * Keep the microphone open, with the audio from just before a capture starts (the pre-roll)
+     * included in the capture. If the microphone can't be opened it is opened for each
+     * capture (as when not monitoring).
+     *
+     * @param preRollMillis - amount of audio (mS) before the start of a capture to include
+     * @return true if the microphone is being monitored
+     */
+    public synchronized boolean startMicrophoneMonitor(int preRollMillis) {
+        return startMicrophoneMonitor(preRollMillis, null);
+    }
+
+    /**
+     * Keep the microphone open (see `startMicrophoneMonitor(int)`), removing the speaker's
+     * echo from the microphone audio (full-duplex).
+     *
+     * @param preRollMillis - amount of audio (mS) before the start of a capture to include
+     * @param echoCanceller - removes the speaker's echo (null for none)
+     * @return true if the microphone is being monitored
+     */
+    public synchronized boolean startMicrophoneMonitor(int preRollMillis, EchoCanceller echoCanceller) {
+        stopMicrophoneMonitor();
+        MicrophoneMonitor monitor = new MicrophoneMonitor(preRollMillis, echoCanceller);
+        try {
+            monitor.start();
+            this.microphoneMonitor = monitor;
+            return true;
+        } catch (LineUnavailableException | IllegalArgumentException e) {
+            LOG.error("Unable to keep the microphone open - it will be opened for each capture: " + e);
+            return false;
+        }
+    }
+
+    public synchronized void stopMicrophoneMonitor() {
+        if (null != this.microphoneMonitor) {
+            this.microphoneMonitor.stop();
+            this.microphoneMonitor = null;
+        }
+    }
+
+    /**
+     * Listen to the (always open) microphone's audio.
+     *
+     * @param listener - given all of the audio read from the microphone
+     * @return false if the microphone isn't being monitored (there is no audio to listen to)
+     */
+    public synchronized boolean addMicrophoneListener(MicrophoneMonitor.Listener listener) {
+        if (null == this.microphoneMonitor) {
+            return false;
+        }
+        this.microphoneMonitor.addListener(listener);
+        return true;
+    }
+
+    /**
+     * @param listener - a listener that was added
+     */
+    public synchronized void removeMicrophoneListener(MicrophoneMonitor.Listener listener) {
+        if (null != this.microphoneMonitor) {
+            this.microphoneMonitor.removeListener(listener);
+        }
+    }
+
+    private synchronized MicrophoneMonitor getMicrophoneMonitor() {
+        return this.microphoneMonitor;
+    }
+
     private synchronized JSONObject getSttOptions() {
         return this.sttOptions;
     }
@@ -81,15 +156,22 @@ public class AudioInput {
     }
 
     private class CaptureThread extends Thread {
+        // The capture thread this one replaces (null if none)
+        private final Thread previous;
 
-        public CaptureThread() {
+        public CaptureThread(Thread previous) {
             super("Audio Capture");
             this.setDaemon(true);
+            this.previous = previous;
         }
         
         @Override
         public void run() {
             try {
+                if (null != previous) {
+                    // Let the previous capture finish first (here rather than in the caller's thread)
+                    previous.join(3000);
+                }
                 AudioInput.this.captureInternal();
             } catch (InterruptedException e) {
                 Thread.currentThread().interrupt();
@@ -109,13 +191,9 @@ public class AudioInput {
     public synchronized void capture() {
          if (null != captureThread) {
              captureThread.interrupt();
-             try {
-                captureThread.join(3000);
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-            }
          }
-         captureThread = new CaptureThread();
+         // The new thread waits for the previous one to end - this doesn't
+         captureThread = new CaptureThread(captureThread);
          captureThread.start();
     }
     
@@ -124,10 +202,18 @@ public class AudioInput {
         byte[] audioDataBuffer;
         int bufferSize;
         AudioInputDevice audioInputDevice = null;
+        AudioEncoder audioEncoder = null;
+        VoiceActivityDetector vad = client.createVoiceActivityDetector();
         
         try {
+            MicrophoneMonitor monitor = getMicrophoneMonitor();
             switch (getInputSource()) {
             case MICROPHONE:
+                if (null != monitor && monitor.isRunning()) {
+                    audioInputDevice = new MonitoredMicrophoneInputDevice(monitor);
+                    LOG.debug("Audio source is microphone (always open)");
+                    break;
+                }
                 audioInputDevice = new MicrophoneInputDevice();
                 LOG.debug("Audio source is microphone");
                 break;
@@ -149,6 +235,8 @@ public class AudioInput {
             
             this.client.writeToServer(ClientHelpers.getClientStartAudioAction(getSttOptions()).toString());
             writingToServer = true;
+            audioEncoder = client.createAudioEncoder();
+            audioEncoder.start(this.client::writeAudioToServer);
             this.setSttOptions(null);
             this.client.getIndicator().on();
             this.client.clearServerWriteLogging(); // Clears out the log data so we can get a correct summary at the end
@@ -161,16 +249,40 @@ public class AudioInput {
             long now = System.currentTimeMillis();
             long start = now;
             int consecutiveZeroBytesRead = 0;
+            // Audio held before the speech starts (when trimming the leading silence)
+            byte[] leadIn = (null != vad && vad.isTrimLeadingSilence() ? new byte[vad.getLeadInBytes()] : null);
+            int leadInLength = 0;
+            int bytesSent = 0;
+            boolean endOfSpeech = false;
             while (micIsOpen() && this.client.isServerConnectionReady() && bytesRead < captureWindowSize && consecutiveZeroBytesRead < 200 && now < (start + ((AudioConstants.RecordWindowSizeInSeconds + 2) * 1000))) {
                 bytesReturned = audioInputDevice.read(audioDataBuffer, 0, bufferSize, 300);
                 if (bytesReturned > 0) {
                     consecutiveZeroBytesRead = 0;
                     bytesRead += bytesReturned;
-                    this.client.writeToServer(ClientHelpers.getClientAudioDataAction(ByteString.of(audioDataBuffer, 0, bytesReturned)).toString());
+                    if (null != vad) {
+                        endOfSpeech = vad.process(audioDataBuffer, 0, bytesReturned);
+                    }
+                    if (null != leadIn && !vad.isSpeechDetected()) {
+                        leadInLength = holdLeadIn(leadIn, leadInLength, audioDataBuffer, bytesReturned);
+                    } else {
+                        if (leadInLength > 0) {
+                            audioEncoder.encode(leadIn, 0, leadInLength);
+                            bytesSent += leadInLength;
+                            leadInLength = 0;
+                        }
+                        audioEncoder.encode(audioDataBuffer, 0, bytesReturned);
+                        bytesSent += bytesReturned;
+                    }
+                    if (endOfSpeech) {
+                        // Stop now (audio_end is sent below) rather than waiting for the server to close the mic
+                        LOG.info("End of speech detected.");
+                        micClose();
+                        break;
+                    }
                 }
                 else {
                     consecutiveZeroBytesRead++;
-                    System.out.print('~');
+                    ActivityCounters.increment(Activity.MIC_IDLE);
                     Thread.sleep(100);
                 }
                 now = System.currentTimeMillis();
@@ -178,6 +290,9 @@ public class AudioInput {
             if (bytesRead == 0) {
                 LOG.error("No audio input received");
             }
+            if (null != vad) {
+                logVoiceActivity(vad, bytesRead, bytesSent, (endOfSpeech ? captureWindowSize - bytesRead : 0));
+            }
         } catch (AudioInput.AudioInputDevice.SourceNotAvailableException e) {
             LOG.error("Source not available: " + e);
             e.printStackTrace();
@@ -185,6 +300,9 @@ public class AudioInput {
             client.getIndicator().off();
             client.logFinalServerWriteStatus();            
             if (this.client.isServerConnectionReady() && writingToServer) {
+                if (null != audioEncoder) {
+                    audioEncoder.finish();
+                }
                 this.client.writeToServer(ClientHelpers.getClientEndAudioAction().toString());
             }
             if (null != audioInputDevice) {
@@ -193,11 +311,49 @@ public class AudioInput {
                 audioInputDevice = null;
             }
             
-            client.wakeupTriggerIsAllowed();
+            // The client allows a trigger again (and waits for the response)
+            client.onCaptureEnded();
+        }
+    }
+
+    /**
+     * Keep the last (lead-in buffer size) bytes of the audio.
+     *
+     * @return the number of bytes held
+     */
+    private static int holdLeadIn(byte[] leadIn, int leadInLength, byte[] audio, int length) {
+        if (length >= leadIn.length) {
+            System.arraycopy(audio, length - leadIn.length, leadIn, 0, leadIn.length);
+            return leadIn.length;
+        }
+        int keep = Math.min(leadInLength, leadIn.length - length);
+        System.arraycopy(leadIn, leadInLength - keep, leadIn, 0, keep);
+        System.arraycopy(audio, 0, leadIn, keep, length);
+        return keep + length;
+    }
 
-            // TODO is this still needed?
-            // Enable a client 'trigger wake up safety' in case we never get a response
-            client.scheduleWakeupTriggerEnable();
+    /**
+     * Log the voice activity of a capture and the capture time saved.
+     *
+     * @param bytesRead - audio captured
+     * @param bytesSent - audio sent to the server
+     * @param bytesNotCaptured - audio not captured (of the capture window) because the end of speech was detected
+     */
+    private void logVoiceActivity(VoiceActivityDetector vad, int bytesRead, int bytesSent, int bytesNotCaptured) {
+        long speechStart = (vad.isSpeechDetected() ? vad.toMillis(vad.getSpeechStartPosition()) : -1);
+        long speechEnd = (vad.isEndOfSpeech() ? vad.toMillis(vad.getSpeechEndPosition()) : -1);
+        long trimmed = vad.toMillis(bytesRead - bytesSent);
+        long notCaptured = vad.toMillis(bytesNotCaptured);
+        LOG.info(String.format("Voice activity. Speech: %dmS - %dmS Leading silence trimmed: %dmS Capture ended early by: %dmS Saved: %dmS",
+                speechStart, speechEnd, trimmed, notCaptured, trimmed + notCaptured));
+
+        synchronized (capturePerfRecord) {
+            capturePerfRecord.set(0, speechStart);
+            capturePerfRecord.set(1, speechEnd);
+            capturePerfRecord.set(2, trimmed);
+            capturePerfRecord.set(3, notCaptured);
+            capturePerfRecord.set(4, trimmed + notCaptured);
+            CommonLogging.logPerformanceRecord(capturePerfRecord);
         }
     }
 
@@ -279,7 +435,7 @@ public class AudioInput {
                 throw new SourceNotAvailableException();
             }
             if (bytesRead > 0) {
-                System.out.print('<');
+                ActivityCounters.increment(Activity.SOCKET_READ);
             }
             return bytesRead;
         }
@@ -296,6 +452,60 @@ public class AudioInput {
         
     }
     
+    /**
+     * Microphone that is kept open by a MicrophoneMonitor. The capture starts with the
+     * pre-roll audio.
+     */
+    private static class MonitoredMicrophoneInputDevice implements AudioInputDevice {
+
+        private MicrophoneMonitor monitor;
+
+        MonitoredMicrophoneInputDevice(MicrophoneMonitor monitor) {
+            this.monitor = monitor;
+            int preRoll = monitor.startCapture();
+            LOG.debug(String.format("Capture pre-roll: %d bytes", preRoll));
+        }
+
+        @Override
+        public int getBufferSize() {
+            return monitor.getBufferSize();
+        }
+
+        @Override
+        public int getDataRate() {
+            return monitor.getDataRate();
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int len, int timeout) throws SourceNotAvailableException {
+            if (!monitor.isRunning()) {
+                throw new SourceNotAvailableException("Microphone monitor is not running");
+            }
+            int bytesRead;
+            try {
+                // Send at least 100mS at a time (the pre-roll is available immediately)
+                bytesRead = monitor.read(buffer, offset, len, monitor.getDataRate() / 10, timeout);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return 0;
+            }
+            if (bytesRead > 0) {
+                ActivityCounters.increment(Activity.MIC_READ);
+            }
+            return bytesRead;
+        }
+
+        @Override
+        public void drainInput() {
+            // Nothing to do - the monitor keeps the pre-roll for the next capture
+        }
+
+        @Override
+        public void release() {
+            monitor.endCapture();
+        }
+    }
+
     private static class MicrophoneInputDevice implements AudioInputDevice {
 
         @SuppressWarnings("unused")
@@ -319,6 +529,10 @@ public class AudioInput {
             }
         }
 
+        // How long to wait for the microphone to be released by its last user
+        private static final long MICROPHONE_ACQUIRE_TIMEOUT_MS = 2000;
+
+        private AudioDeviceManager.LineLease<TargetDataLine> microphoneLease;
         private TargetDataLine microphone;
         private AudioFormat micFormat = new AudioFormat(AudioConstants.RecordSampleRate, AudioConstants.RecordSampleSizeInBits,
                 AudioConstants.RecordChannels, AudioConstants.isSigned, AudioConstants.isBigEndian);
@@ -326,18 +540,22 @@ public class AudioInput {
 
         MicrophoneInputDevice() throws SourceNotAvailableException {
             // Microphone format is 1 channel, 2 bytes, 16000 samples/sec, little endian
+            // The microphone line is kept open between captures (it is leased for this capture)
             try {
-                this.microphone = AudioSystem.getTargetDataLine(micFormat);
-                DataLine.Info info = new DataLine.Info(TargetDataLine.class, micFormat);
-                this.microphone = (TargetDataLine) AudioSystem.getLine(info);
-                this.microphone.open(micFormat);
+                this.microphoneLease = AudioDeviceManager.getInstance().acquireCapture(micFormat, MICROPHONE_ACQUIRE_TIMEOUT_MS);
+                this.microphone = microphoneLease.getLine();
                 if (!this.microphone.isOpen()) {
+                    release();
                     throw new SourceNotAvailableException(new MicrophoneStateException("Microphone is not open for capture"));
                 }
             } catch (LineUnavailableException e) {
                 throw new SourceNotAvailableException(e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SourceNotAvailableException(e);
             }
-            this.microphone.start();
+            LOG.debug(String.format("Microphone line acquired in %dms (%s)", microphoneLease.getAcquireMillis(),
+                    (microphoneLease.isWarm() ? "warm" : "opened")));
         }
         
         @Override
@@ -354,7 +572,7 @@ public class AudioInput {
         public int read(byte[] buffer, int offset, int len, int timeout) {
             int bytesRead = microphone.read(buffer, offset, len);
             if (bytesRead > 0) {
-                System.out.print('%');
+                ActivityCounters.increment(Activity.MIC_READ);
             }
             return bytesRead;
         }
@@ -366,8 +584,9 @@ public class AudioInput {
  
         @Override
         public void release() {
-            if (null != this.microphone) {
-                this.microphone.close();
+            if (null != this.microphoneLease) {
+                this.microphoneLease.close();
+                this.microphoneLease = null;
                 this.microphone = null;
             }
         }
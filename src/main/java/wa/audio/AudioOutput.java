@@ -18,12 +18,11 @@ package wa.audio;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.sound.sampled.AudioFormat;
-import javax.sound.sampled.AudioSystem;
-import javax.sound.sampled.DataLine;
 import javax.sound.sampled.LineUnavailableException;
-import javax.sound.sampled.Mixer;
 import javax.sound.sampled.SourceDataLine;
 
 import org.apache.logging.log4j.LogManager;
@@ -31,6 +30,8 @@ import org.apache.logging.log4j.Logger;
 
 import wa.audio.AudioSocket.SocketNotAvailable;
 import wa.client.Client;
+import wa.util.ActivityCounters;
+import wa.util.ActivityCounters.Activity;
 
 public class AudioOutput {
     // Initialize our logger
@@ -44,30 +45,49 @@ public class AudioOutput {
     }
     private final StateLock stateLock = new StateLock();
     
-    private byte[] buffer;
-    private SourceDataLine speaker;
+    // Playback buffer - about 30 seconds of audio. The producer (server receive thread) blocks
+    // for a while when it is full rather than growing the buffer.
+    private static final int PLAYBACK_BUFFER_SIZE = 1024 * 1024;
+    private static final long PLAYBACK_BUFFER_BLOCK_TIMEOUT_MS = 5000;
+    private static final int AUDIO_SOCKET_CHUNK_SIZE = 16 * 1024;
+    // How long the output thread waits for data before checking again (it is woken when data arrives)
+    private static final long AUDIO_DATA_WAIT_MS = 1000;
+    // How long the output thread waits for another user (local prompt) to release the speaker
+    private static final long SPEAKER_ACQUIRE_TIMEOUT_MS = 5000;
+
+    private final AudioRingBuffer buffer = new AudioRingBuffer(PLAYBACK_BUFFER_SIZE, AudioRingBuffer.OverflowPolicy.BLOCK,
+            PLAYBACK_BUFFER_BLOCK_TIMEOUT_MS);
+    private SourceDataLine speaker; // the leased speaker line while output is playing (guarded by stateLock)
+    private AudioDeviceManager.LineLease<SourceDataLine> speakerLease; // only accessed by audioOutputThread
     private AudioSocket audioSocket;
 
-    private Thread speakerThread;
+    private volatile Thread speakerThread;
+    // Set (for the current output thread) when the output is cancelled - the thread then discards what is left
+    private volatile AtomicBoolean speakerCancelled = new AtomicBoolean(false);
+    // Set (for the current output thread) when all of the audio has been received - the thread then plays out what is left
+    private volatile AtomicBoolean speakerEndOfData = new AtomicBoolean(false);
     
     private Client client;
     
     private volatile boolean audioDataComplete = false;
     private volatile boolean outputDisabled = false;
     private volatile boolean outputToAudioSocket = false;
-    private volatile boolean useDefaultAudio = true;
+
+    // Time-to-first-audio (system time stamps - 0 when not set)
+    private volatile long outputStartedTS = 0;
+    private volatile long firstAudioWrittenTS = 0;
+
+    // Given the audio played, to remove its echo from the microphone (full-duplex) - null if not
+    private volatile EchoCanceller echoCanceller = null;
 
     private AudioFormat format = new AudioFormat(AudioConstants.PlaybackSampleRate,
             AudioConstants.PlaybackSampleSizeInBits, AudioConstants.PlaybackChannels, AudioConstants.isSigned,
             AudioConstants.isBigEndian);
 
-
-    private boolean audioDevicesListed = false; // only accessed by audioOutputThread
-
     private static AudioOutput sharedInstance;
 
     public void setUseDefaultAudio(boolean value) {
-        useDefaultAudio = value; // volatile
+        AudioDeviceManager.getInstance().setUseDefaultAudio(value);
     }
 
     public boolean isOutputToAudioSocket() {
@@ -78,6 +98,13 @@ public class AudioOutput {
         outputToAudioSocket = value; // volatile
     }
 
+    /**
+     * @param echoCanceller - echo canceller to give the audio played to (null for none)
+     */
+    public void setEchoCanceller(EchoCanceller echoCanceller) {
+        this.echoCanceller = echoCanceller;
+    }
+
     public void setAudioSocket(AudioSocket audioSocket) {
         synchronized (stateLock) {
             this.audioSocket = audioSocket;
@@ -85,6 +112,17 @@ public class AudioOutput {
     }
 
     public void writeNativeBytes(byte[] bytes) {
+        writeNativeBytes(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Add audio to the output. The bytes are copied so the caller can reuse the array.
+     *
+     * @param bytes - array containing the audio
+     * @param offset - offset of the audio in the array
+     * @param byteSize - number of bytes of audio
+     */
+    public void writeNativeBytes(byte[] bytes, int offset, int byteSize) {
         if (outputDisabled) {
             LOG.debug(">>> Output disabled...");
             return;
@@ -92,21 +130,38 @@ public class AudioOutput {
         LOG.debug(">>>> AudioOutput.writeNativeBytes adding incoming audio data...");
         
         // Add incoming bytes to the buffer
-        synchronized (stateLock) {
-            int byteSize = bytes.length;
-
-            if (this.buffer == null) {
-                // create a new buffer
-                this.buffer = new byte[byteSize];
-                System.arraycopy(bytes, 0, this.buffer, 0, byteSize);
-            } else {
-                // add to existing buffer
-                int oldLength = this.buffer.length;
-                byte[] newSpeakerBuffer = new byte[oldLength + byteSize];
-                System.arraycopy(this.buffer, 0, newSpeakerBuffer, 0, oldLength);
-                System.arraycopy(bytes, 0, newSpeakerBuffer, oldLength, byteSize);
-                this.buffer = newSpeakerBuffer;
+        try {
+            int written = buffer.write(bytes, offset, byteSize);
+            if (written < byteSize) {
+                LOG.warn(String.format("Audio output buffer overflow - %d bytes dropped", byteSize - written));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Add audio to the output. The remaining bytes of the buffer are copied directly into
+     * the playback buffer (there is no intermediate array).
+     *
+     * @param audio - buffer positioned at the audio (the position is advanced)
+     */
+    public void writeNativeBytes(ByteBuffer audio) {
+        if (outputDisabled) {
+            LOG.debug(">>> Output disabled...");
+            return;
+        }
+        LOG.debug(">>>> AudioOutput.writeNativeBytes adding incoming audio data...");
+
+        // Add incoming bytes to the buffer
+        try {
+            int byteSize = audio.remaining();
+            int written = buffer.write(audio);
+            if (written < byteSize) {
+                LOG.warn(String.format("Audio output buffer overflow - %d bytes dropped", byteSize - written));
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 
@@ -125,126 +180,171 @@ public class AudioOutput {
     public synchronized void startAudioOutput(Client client) {
     	this.client = client;
         if (speakerThread != null) {
+            // Only one thread can consume the buffer - discard what is left and stop it (without
+            // it reporting the output as finished).
+            speakerCancelled.set(true);
+            clearBuffer();
             speakerThread.interrupt();
+            try {
+                speakerThread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
         }
+        buffer.resetMetrics();
+        speakerCancelled = new AtomicBoolean(false);
+        speakerEndOfData = new AtomicBoolean(false);
+        outputStartedTS = System.currentTimeMillis();
+        firstAudioWrittenTS = 0;
         // Start the output thread, data will be written
         // to internal buffer with 'writeNativeBytes' method
         speakerThread = audioOutputThread();
         speakerThread.start();
     }
 
+    /**
+     * All of the audio has been received - play out what is buffered. Returns at once: the
+     * output thread reports the output as finished (`Client.finishedPlayingOutput`) when it has
+     * played the rest of the audio.
+     */
     public void finish() {
         LOG.debug("AudioOutput.finish()");
-        off();
+        speakerEndOfData.set(true); // Do this first - the output thread checks it when it wakes up
+        // Wake it up if it is waiting for data. It isn't interrupted - that would also end a wait
+        // for the speaker, and the output would never be played (or reported as finished).
+        buffer.wakeConsumer();
     }
     
-    public void cancel() { // ZZZ - how to correctly synchronize?
+    /**
+     * Stop the output now (barge in). The buffered audio is discarded - the speaker line is
+     * stopped and flushed rather than played out - and the output thread ends (releasing the
+     * speaker) without reporting the output as finished (the caller decides what happens next).
+     *
+     * @return the time (nS) it took to silence the speaker
+     */
+    public long cancel() {
+        long start = System.nanoTime();
         LOG.debug("AudioOutput.cancel()");
+        speakerCancelled.set(true); // Do this first - the output thread checks it when interrupted
         clearBuffer();
-        if (null != speakerThread) {
-            speakerThread.interrupt();
+        EchoCanceller canceller = echoCanceller;
+        if (null != canceller) {
+            canceller.clearReference();
+        }
+        Thread thread = speakerThread; // volatile
+        if (null != thread) {
+            thread.interrupt();
         }
+        synchronized (stateLock) {
+            if (null != speaker) {
+                // Stopping the line silences it now - flushing discards what it has buffered
+                // (and releases a write that is waiting for room)
+                speaker.stop();
+                speaker.flush();
+            }
+        }
+        return System.nanoTime() - start;
     }
     
     private void clearBuffer() {
-        synchronized (stateLock) {
-            buffer = null;
-        }
+        buffer.clear();
     }
         
-    private synchronized void off() {
-        LOG.debug("AudioOutput.off()");
-        if (speakerThread == null) {
-            return;
+    /**
+     * Discard the rest of a cancelled output and release the speaker. Output thread only.
+     */
+    private void discardOutput(SourceDataLine speaker, int writeCount, int byteCount) {
+        synchronized (stateLock) {
+            clearBuffer();
+            speaker.flush();
+            logOutputSummary(writeCount, byteCount);
+            releaseSpeaker();
         }
+    }
 
-        // Calling an interrupt(), join() will cause the speaker
-        // thread to write out its remaining buffer and wait for
-        // the thread to finish running
-        try {
-            speakerThread.interrupt();
-            speakerThread.join();
-        } catch (InterruptedException e) {
-            // Restore the interrupted state
-            Thread.currentThread().interrupt();
-        } finally {
-            speakerThread = null;
-            clearBuffer();
+    /**
+     * Stop using the speaker line and release it for the next user. Output thread only.
+     */
+    private void releaseSpeaker() {
+        synchronized (stateLock) {
+            speaker = null;
+        }
+        if (null != speakerLease) {
+            speakerLease.close();
         }
     }
 
+    /**
+     * The output thread. It plays the audio until the output is cancelled (it then ends without
+     * reporting anything) or it has played all of it - or it can't play it (no speaker, ...).
+     * In those cases it reports the output as finished, so the interaction doesn't wait for it.
+     */
     private Thread audioOutputThread() {
+        // This output's flags (a later output gets new ones)
+        AtomicBoolean cancelled = speakerCancelled;
+        AtomicBoolean endOfData = speakerEndOfData;
         return new Thread(() -> {
             Thread.currentThread().setName("Audio Output - " + System.currentTimeMillis());
             int writeCount = 0;
             int byteCount = 0;
+            speakerLease = null;
             try {
                 if (!outputToAudioSocket) { // volatile
-                    // added these lines to get Mixer to support DSP board.
-                    Mixer.Info[] mixerInfo = AudioSystem.getMixerInfo();
-                    Mixer.Info finalMixerInfo = null;
-                    DataLine.Info dataLineInfo = new DataLine.Info(SourceDataLine.class, this.format);
-
-                    if (!useDefaultAudio) { // volatile
-                        for (Mixer.Info aMixerInfo : mixerInfo) {
-                            if (!audioDevicesListed) {
-                                LOG.info(String.format("Mixer Name:\"%s\" Description:\"%s\"", aMixerInfo.getName(), aMixerInfo.getDescription()));
-                            }
-                            if (aMixerInfo.getDescription().contains("USB") && !aMixerInfo.getName().contains("Port")) {
-                                finalMixerInfo = aMixerInfo;
-                            }
-                        }
-                        audioDevicesListed = true;
-                        if (finalMixerInfo != null) {
-                            LOG.info(String.format("Using audio output: %s", finalMixerInfo.getDescription()));
-                            Mixer mixer = AudioSystem.getMixer(finalMixerInfo);
-                            this.speaker = (SourceDataLine) mixer.getLine(dataLineInfo);
-                        }
+                    // Play in a format the speaker supports (converting if it doesn't support ours)
+                    AudioDeviceManager deviceManager = AudioDeviceManager.getInstance();
+                    AudioFormat speakerFormat = deviceManager.getPlaybackFormat(format);
+                    Resampler resampler = new Resampler(format, speakerFormat);
+                    // Lease the (already open) speaker line - it is kept open for the next output
+                    speakerLease = deviceManager.acquirePlayback(speakerFormat, SPEAKER_ACQUIRE_TIMEOUT_MS);
+                    SourceDataLine speaker = speakerLease.getLine();
+                    synchronized (stateLock) {
+                        this.speaker = speaker;
                     }
-                    if (null == finalMixerInfo) {
-                        // Get the default audio output
-                        LOG.info("Using default audio output");
-                        this.speaker = (SourceDataLine) AudioSystem.getLine(dataLineInfo);
+                    int frameSize = format.getFrameSize();
+                    // Write in whole frames, at most a line buffer at a time
+                    int lineBufferFrames = speaker.getBufferSize() / speakerFormat.getFrameSize();
+                    byte[] chunk = new byte[Math.max(1, (int) (lineBufferFrames * format.getFrameRate() / speakerFormat.getFrameRate())) * frameSize];
+                    byte[] converted = (resampler.isPassThrough() ? chunk : new byte[resampler.getMaxOutputLength(chunk.length)]);
+                    EchoCanceller canceller = echoCanceller;
+                    if (null != canceller) {
+                        canceller.startReference(format);
                     }
-                    speaker.open(format);
-                    speaker.start();
                     while (true) {
+                        if (cancelled.get()) {
+                            // Checked here rather than only when interrupted - audio that arrives after the
+                            // cancel would otherwise keep this thread from waiting (and seeing the interrupt)
+                            LOG.debug(" AudioOutput - Cancelled... Discard audio output to speaker and stop.");
+                            discardOutput(speaker, writeCount, byteCount);
+                            break;
+                        }
                         try {
-                            synchronized (stateLock) {
-                                int writeOutSize = this.speaker.available();
-
-                                // Push as much as possible to the speaker without blocking and remove data from buffer
-                                if (buffer != null && buffer.length > 0 && writeOutSize > 0) {
-                                    if (writeOutSize > buffer.length) writeOutSize = buffer.length;
-                                    writeOutSize &= ~3; // round down to frame boundary
-                                    int currentBufferOffset = buffer.length - writeOutSize;
-                                    writeCount++;
-                                    byteCount += writeOutSize;
-                                    System.out.print('@');
-                                    this.speaker.write(this.buffer, 0, writeOutSize);
-                                    byte[] newSpeakerBuffer = new byte[currentBufferOffset];
-                                    System.arraycopy(buffer, writeOutSize, newSpeakerBuffer, 0, currentBufferOffset);
-                                    this.buffer = newSpeakerBuffer;
-                                }
+                            // Wait for (at least a frame of) data and write it. The write blocks while the
+                            // line's buffer is full, which paces this thread to the playback rate.
+                            int writeOutSize = Math.min(buffer.awaitData(frameSize, AUDIO_DATA_WAIT_MS), chunk.length);
+                            writeOutSize -= writeOutSize % frameSize;
+                            if (writeOutSize > 0 && !cancelled.get()) {
+                                writeOutSize = buffer.read(chunk, 0, writeOutSize);
+                                writeCount++;
+                                byteCount += writeOutSize;
+                                ActivityCounters.increment(Activity.SPEAKER_WRITE);
+                                writeToSpeaker(speaker, resampler, canceller, chunk, writeOutSize, converted);
+                                markFirstAudioWritten();
+                                continue;
                             }
-
-                            Thread.sleep(80);
                         } catch (InterruptedException e) {
-                            LOG.debug(" AudioOutput - Interrupted... Finish audio output to speaker and stop.");
+                            // Only a cancel interrupts this thread - it is handled at the top of the loop
+                            continue;
+                        }
+                        // The rest of the audio is played out by the writes above (so they are all counted),
+                        // until less than a frame is left. Writes need to be whole frames - it should not
+                        // make an audible difference to clip a partial frame from the end.
+                        if (endOfData.get() && buffer.available() < frameSize && !cancelled.get()) {
+                            LOG.debug(" AudioOutput - End of data... Finish audio output to speaker and stop.");
                             synchronized (stateLock) {
-                                if (buffer != null) {
-                                    // Frame size is 4, so the framing needs to be a multiple of 4
-                                    // Should not make an audible difference to clip 1-3 bytes from the end
-                                    // of the speaker byte array
-                                    int length = buffer.length - (buffer.length % 4);
-                                    speaker.write(buffer, 0, length);
-                                }
-                                int average = (writeCount > 0 ? byteCount/writeCount : 0);
-                                LOG.info(String.format("\nAudio output. Times: %d Total Bytes: %d Avg: %d", writeCount, byteCount, average));
+                                logOutputSummary(writeCount, byteCount);
                                 //speaker.drain();
                                 speaker.flush();
-                                speaker.close();
-                                client.finishedPlayingOutput();
+                                releaseSpeaker();
                             }
                             break;
                         }
@@ -257,53 +357,52 @@ public class AudioOutput {
                             socket = audioSocket.getSocket();
                         }
                         boolean socketAvailable = !socket.isClosed() && socket.isConnected();
+                        byte[] chunk = new byte[AUDIO_SOCKET_CHUNK_SIZE];
                         while (true) {
+                            if (cancelled.get()) {
+                                LOG.debug(" AudioOutput - Cancelled... Discard audio socket output and stop.");
+                                clearBuffer();
+                                logOutputSummary(writeCount, byteCount);
+                                break;
+                            }
                             try {
+                                // Wait for data to arrive
+                                int available = buffer.awaitData(1, AUDIO_DATA_WAIT_MS);
                                 synchronized (stateLock) {
                                     // Open the output stream on the socket
                                     OutputStream audioOut = socket.getOutputStream();
 
                                     // Output to the audio socket and remove data from buffer
-                                    if (buffer != null && buffer.length > 0) {
+                                    if (available > 0) {
                                         if (!socketAvailable) {
                                             LOG.info("Discarding response. Output set to Audio Socket, but the socket is closed or not connected.");
+                                            clearBuffer();
                                         }
                                         else {
-                                            int startingBufferLength = buffer.length;
-                                            writeCount++;
-                                            byteCount += startingBufferLength;
-                                            System.out.print('>');
-                                            audioOut.write(this.buffer, 0, startingBufferLength);
+                                            int length;
+                                            while ((length = buffer.read(chunk, 0, chunk.length)) > 0) {
+                                                writeCount++;
+                                                byteCount += length;
+                                                ActivityCounters.increment(Activity.SOCKET_WRITE);
+                                                audioOut.write(chunk, 0, length);
+                                            }
+                                            markFirstAudioWritten();
                                         }
-                                        this.buffer = null;
                                     }
                                     audioOut.flush();
                                 }
-
-                                Thread.sleep(80);
                             } catch (IOException e) {
                                 System.err.println("Error sending audio data to the audio socket: " + e);
                                 e.printStackTrace();
                                 socketAvailable = false;
                             } catch (InterruptedException e) {
-                                LOG.debug(" AudioOutput - Interrupted... Finish audio socket output and stop.");
-                                synchronized (stateLock) {
-                                    if (buffer != null && buffer.length > 0) {
-                                        if (socketAvailable) {
-                                            OutputStream audioOut;
-                                            try {
-                                                audioOut = audioSocket.getSocket().getOutputStream();
-                                                audioOut.write(buffer, 0, buffer.length);
-                                                audioOut.flush();
-                                            } catch (IOException | AudioSocket.SocketNotAvailable e1) {
-                                                System.err.println("Error sending audio data to the audio socket: " + e);
-                                                e1.printStackTrace();
-                                            }
-                                        }
-                                    }
-                                }
-                                int average = (writeCount > 0 ? byteCount/writeCount : 0);
-                                LOG.info(String.format("\nAudio output. Times: %d Total Bytes: %d Avg: %d", writeCount, byteCount, average));
+                                // Only a cancel interrupts this thread - it is handled at the top of the loop
+                                continue;
+                            }
+                            if (endOfData.get() && 0 == buffer.available()) {
+                                // Everything received has been sent
+                                LOG.debug(" AudioOutput - End of data... Finish audio socket output and stop.");
+                                logOutputSummary(writeCount, byteCount);
                                 break;
                             }
                         }
@@ -315,33 +414,83 @@ public class AudioOutput {
                 }
             } catch (LineUnavailableException e) {
                 LOG.error("Unable to create data line to speaker.");
+            } catch (InterruptedException e) {
+                LOG.debug(" AudioOutput - Interrupted waiting for the speaker.");
             } catch (RuntimeException re) {
                 re.printStackTrace();
+                if (null != speakerLease) {
+                    speakerLease.invalidate(); // reopen it for the next output
+                }
             } finally {
-                // Anything need to be done here?
+                releaseSpeaker();
+                if (!cancelled.get()) {
+                    // Played - or it couldn't be, either way the interaction shouldn't wait for it
+                    client.finishedPlayingOutput();
+                }
             }
         });
     }
 
+    /**
+     * Write audio to the speaker, converting it to the speaker's format if needed. The echo
+     * canceller (if any) is given the audio first, so its reference is never behind the speaker.
+     */
+    private static void writeToSpeaker(SourceDataLine speaker, Resampler resampler, EchoCanceller canceller, byte[] chunk, int length,
+            byte[] converted) {
+        if (null != canceller) {
+            canceller.addReference(chunk, 0, length);
+        }
+        if (resampler.isPassThrough()) {
+            speaker.write(chunk, 0, length);
+        } else {
+            speaker.write(converted, 0, resampler.convert(chunk, 0, length, converted, 0));
+        }
+    }
+
+    private void markFirstAudioWritten() {
+        if (0 == firstAudioWrittenTS) {
+            firstAudioWrittenTS = System.currentTimeMillis();
+            LOG.debug(String.format("Time to first audio: %dms", firstAudioWrittenTS - outputStartedTS));
+        }
+    }
+
+    /**
+     * The time the first audio of the current (or last) output was written to the speaker
+     * (or audio socket).
+     *
+     * @return system time stamp or 0 if no audio has been written yet
+     */
+    public long getFirstAudioWrittenTS() {
+        return firstAudioWrittenTS;
+    }
+
+    /**
+     * Log the summary of an audio output (including the playback buffer metrics).
+     */
+    private void logOutputSummary(int writeCount, int byteCount) {
+        int average = (writeCount > 0 ? byteCount/writeCount : 0);
+        long firstAudio = firstAudioWrittenTS; // volatile
+        long timeToFirstAudio = (0 == firstAudio ? -1 : firstAudio - outputStartedTS);
+        String line = (null == speakerLease ? "n/a"
+                : String.format("%dms (%s)", speakerLease.getAcquireMillis(), (speakerLease.isWarm() ? "warm" : "opened")));
+        LOG.info(String.format("\nAudio output. Times: %d Total Bytes: %d Avg: %d Time-To-First-Audio: %dms Speaker-Line: %s Buffer High-Water: %d Dropped: %d Producer-Blocked: %dms",
+                writeCount, byteCount, average, timeToFirstAudio, line, buffer.getHighWaterMark(), buffer.getDroppedBytes(), buffer.getBlockedMillis()));
+    }
+
     public void enable() {
         LOG.debug(">>> ENABLE Audio Output...");
         outputDisabled = false;
     }
     /**
-     * Stop output and don't allow more output until re-enabled.
+     * Stop output and don't allow more output until re-enabled. The output thread ends (and
+     * releases the speaker) as it does for a cancel - this doesn't wait for the speaker.
      */
     public void stop() {
         LOG.debug(">>> STOP Audio Output...");
+        outputDisabled = true; // Do this first!
         // Stop play back
+        cancel();
         synchronized (stateLock) {
-            outputDisabled = true; // Do this first!
-            clearBuffer();
-    
-            if (null != speaker) {
-                speaker.drain();
-                speaker.flush();
-                speaker.close();
-            }
             if (null != audioSocket) {
                 audioSocket.clearInput();
                 try {
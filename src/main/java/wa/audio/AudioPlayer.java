@@ -1,6 +1,10 @@
 /**
  * The <code>AudioPlayer</code> thread class will simply download and play
  * OGG media. All you need to do is supply a valid URL as the first argument.
+ *
+ * The media is requested (on the player thread) with the shared HTTP client and
+ * read ahead into a buffer. Playback starts as soon as the Vorbis headers have
+ * been decoded. The time to the first sample is logged for each URL.
  */
 package wa.audio;
 import com.jcraft.jogg.*;
@@ -8,15 +12,10 @@ import com.jcraft.jorbis.*;
 
 import wa.util.NotifyingThread;
 
-import java.io.InputStream;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.net.URLConnection;
-import java.net.UnknownServiceException;
 import javax.sound.sampled.AudioFormat;
-import javax.sound.sampled.AudioSystem;
-import javax.sound.sampled.DataLine;
 import javax.sound.sampled.LineUnavailableException;
 import javax.sound.sampled.SourceDataLine;
 
@@ -27,12 +26,23 @@ public class AudioPlayer extends NotifyingThread {
     // Initialize our logger
     private static final Logger LOG = LogManager.getLogger(AudioPlayer.class);
 
+	// Audio read ahead of the decoder (about 4 seconds of speech at 64 kbit/s)
+	private static final int READ_AHEAD_BYTES = 32 * 1024;
+
+	// How long to wait for another user to release the speaker
+	private static final long SPEAKER_ACQUIRE_TIMEOUT_MS = 5000;
+
+	// Decoded audio queued for the line writer (the decoder waits when it is full)
+	private static final int PCM_QUEUE_MILLIS = 500;
+	private static final long PCM_QUEUE_BLOCK_MS = 5000;
+	// How long the line writer waits for audio before checking for the end of decoding
+	private static final long PCM_WAIT_MS = 20;
+
 	/*
-	 * URLConnection and InputStream objects so that we can open a connection to
-	 * the media file.
+	 * The URL of the media file and the (read ahead) stream of it.
 	 */
-	private URLConnection urlConnection = null;
-	private InputStream inputStream = null;
+	private final String url;
+	private volatile UrlAudioStream inputStream = null;
 
 	/*
 	 * We need a buffer, it's size, a count to know how many bytes we have read
@@ -40,7 +50,7 @@ public class AudioPlayer extends NotifyingThread {
 	 * stuff used with read().
 	 */
 	byte[] buffer = null;
-	int bufferSize = 2048;
+	int bufferSize = 4096;
 	int count = 0;
 	int index = 0;
 
@@ -52,8 +62,22 @@ public class AudioPlayer extends NotifyingThread {
 	byte[] convertedBuffer;
 	int convertedBufferSize;
 
-	// The source data line onto which data can be written.
-	private SourceDataLine outputLine = null;
+	// The source data line onto which data can be written (leased from the device manager).
+	private AudioDeviceManager.LineLease<SourceDataLine> outputLease = null;
+	private volatile SourceDataLine outputLine = null;
+
+	// Decoded audio waiting to be written to the line, and the thread that writes it.
+	private volatile AudioRingBuffer pcmQueue = null;
+	private Thread lineWriterThread = null;
+	private volatile boolean decodingComplete = false;
+
+	// Set when the playback is cancelled (barge in) - the rest of the audio is discarded.
+	private volatile boolean cancelled = false;
+
+	// Time stamps (system time) for the time to first sample.
+	private long startTS = 0;
+	private long headerTS = 0;
+	private volatile long firstSampleTS = 0;
 
 	// A three-dimensional an array with PCM information.
 	private float[][][] pcmInfo;
@@ -104,13 +128,14 @@ public class AudioPlayer extends NotifyingThread {
 	}
 
 	/**
-	 * The constructor; will configure the <code>InputStream</code>.
+	 * The constructor; the URL is opened when the thread runs (not on the
+	 * caller's thread).
 	 *
 	 * @param pUrl the URL to be opened
 	 */
 	public AudioPlayer(String pUrl)
 	{
-		configureInputStream(getUrl(pUrl));
+		url = pUrl;
 	}
 
 	/**
@@ -136,42 +161,16 @@ public class AudioPlayer extends NotifyingThread {
 	}
 
 	/**
-	 * Sets the <code>inputStream</code> object by taking an URL, opens a
-	 * connection to it and get the <code>InputStream</code>.
+	 * Sets the <code>inputStream</code> object - requests the URL and starts
+	 * reading it ahead.
 	 *
 	 * @param pUrl the url to the media file
 	 */
 	private void configureInputStream(URL pUrl)
 	{
-		// Try to open a connection to the URL.
-		try
+		if(pUrl != null)
 		{
-			urlConnection = pUrl.openConnection();
-		}
-		catch(UnknownServiceException exception)
-		{
-			System.err.println("The protocol does not support input.");
-		}
-		catch(IOException exception)
-		{
-			System.err.println("An I/O error occoured while trying create the "
-				+ "URL connection.");
-		}
-
-		// If we have a connection, try to create an input stream.
-		if(urlConnection != null)
-		{
-			try
-			{
-				inputStream = urlConnection.getInputStream();
-			}
-			catch(IOException exception)
-			{
-				System.err
-					.println("An I/O error occoured while trying to get an "
-						+ "input stream from the URL.");
-				System.err.println(exception);
-			}
+			inputStream = new UrlAudioStream(pUrl.toString(), READ_AHEAD_BYTES);
 		}
 	}
 
@@ -183,6 +182,13 @@ public class AudioPlayer extends NotifyingThread {
 	 */
 	public void doRun()
 	{
+		startTS = System.currentTimeMillis();
+		configureInputStream(getUrl(url));
+		if(cancelled && inputStream != null)
+		{
+			inputStream.close();
+		}
+
 		// Check that we got an InputStream.
 		if(inputStream == null)
 		{
@@ -276,7 +282,8 @@ public class AudioPlayer extends NotifyingThread {
 				System.err.println(exception);
 			}
 
-			// We let SyncState know how many bytes we read.
+			// We let SyncState know how many bytes we read (-1 is the end of the stream).
+			if(count < 0) count = 0;
 			joggSyncState.wrote(count);
 
 			/*
@@ -473,6 +480,7 @@ public class AudioPlayer extends NotifyingThread {
 			}
 		}
 
+		headerTS = System.currentTimeMillis();
 		debugOutput("Finished reading the header.");
 
 		return true;
@@ -505,27 +513,38 @@ public class AudioPlayer extends NotifyingThread {
 		int channels = jorbisInfo.channels;
 		int rate = jorbisInfo.rate;
 
-		// Creates an AudioFormat object and a DataLine.Info object.
+		// Creates an AudioFormat object.
 		AudioFormat audioFormat = new AudioFormat((float) rate, 16, channels,
 			true, false);
-		DataLine.Info datalineInfo = new DataLine.Info(SourceDataLine.class,
-			audioFormat, AudioSystem.NOT_SPECIFIED);
-
-		// Check if the line is supported.
-		if(!AudioSystem.isLineSupported(datalineInfo))
-		{
-			System.err.println("Audio output line is not supported.");
-			return false;
-		}
 
 		/*
-		 * Everything seems to be alright. Let's try to open a line with the
-		 * specified format and start the source data line.
+		 * Everything seems to be alright. Let's lease the (open, started)
+		 * speaker line in the specified format, or in a format the speaker
+		 * supports (the audio is converted by the line writer).
 		 */
+		AudioDeviceManager deviceManager = AudioDeviceManager.getInstance();
+		AudioFormat speakerFormat = deviceManager.getPlaybackFormat(audioFormat);
+		final Resampler resampler;
 		try
 		{
-			outputLine = (SourceDataLine) AudioSystem.getLine(datalineInfo);
-			outputLine.open(audioFormat);
+			resampler = new Resampler(audioFormat, speakerFormat);
+			outputLease = deviceManager.acquirePlayback(speakerFormat,
+				SPEAKER_ACQUIRE_TIMEOUT_MS);
+			outputLine = outputLease.getLine();
+			if(cancelled)
+			{
+				return false;
+			}
+		}
+		catch(IllegalArgumentException exception)
+		{
+			LOG.error("Audio output line is not supported.", exception);
+			return false;
+		}
+		catch(InterruptedException exception)
+		{
+			Thread.currentThread().interrupt();
+			return false;
 		}
 		catch(LineUnavailableException exception)
 		{
@@ -543,9 +562,6 @@ public class AudioPlayer extends NotifyingThread {
 			return false;
 		}
 
-		// Start it.
-		outputLine.start();
-
 		/*
 		 * We create the PCM variables. The index is an array with the same
 		 * length as the number of audio channels.
@@ -553,6 +569,19 @@ public class AudioPlayer extends NotifyingThread {
 		pcmInfo = new float[1][][];
 		pcmIndex = new int[jorbisInfo.channels];
 
+		/*
+		 * The decoded audio is written to the line by its own thread, so the
+		 * decoder is not held up while the line's buffer is full.
+		 */
+		int frameSize = 2 * channels;
+		pcmQueue = new AudioRingBuffer(rate * frameSize * PCM_QUEUE_MILLIS / 1000,
+			AudioRingBuffer.OverflowPolicy.BLOCK, PCM_QUEUE_BLOCK_MS);
+		decodingComplete = false;
+		final SourceDataLine line = outputLine;
+		lineWriterThread = new Thread(() -> writeLine(line, resampler,
+			frameSize), "URL Audio Line Writer");
+		lineWriterThread.start();
+
 		debugOutput("Done initializing the sound system.");
 
 		return true;
@@ -659,7 +688,8 @@ public class AudioPlayer extends NotifyingThread {
 					return;
 				}
 
-				// We let SyncState know how many bytes we read.
+				// We let SyncState know how many bytes we read (-1 is the end of the stream).
+				if(count < 0) count = 0;
 				joggSyncState.wrote(count);
 
 				// There's no more data in the stream.
@@ -684,20 +714,50 @@ public class AudioPlayer extends NotifyingThread {
 		jorbisInfo.clear();
 		joggSyncState.clear();
 
-		// Closes the stream.
-		try
+		// Let the line writer finish writing the decoded audio.
+		if(lineWriterThread != null)
+		{
+			decodingComplete = true;
+			try
+			{
+				lineWriterThread.join();
+			}
+			catch(InterruptedException e)
+			{
+				lineWriterThread.interrupt();
+				Thread.currentThread().interrupt();
+			}
+			lineWriterThread = null;
+		}
+
+		// Let the audio finish playing (or discard it if cancelled) and release the line.
+		if(outputLease != null)
 		{
-			if(inputStream != null) inputStream.close();
+			if(cancelled)
+			{
+				outputLine.flush();
+			}
+			else
+			{
+				outputLine.drain();
+			}
+			outputLease.close();
+			outputLease = null;
+			outputLine = null;
 		}
-		catch(Exception e)
+
+		// Closes the stream.
+		if(inputStream != null)
 		{
+			inputStream.close();
+			logSummary();
 		}
 
 		debugOutput("Done cleaning up.");
 	}
 
 	/**
-	 *  Decodes the current packet and sends it to the audio output line.
+	 *  Decodes the current packet and queues the audio for the output line.
 	 */
 	private void decodeCurrentPacket()
 	{
@@ -712,6 +772,10 @@ public class AudioPlayer extends NotifyingThread {
 
 		// We need to know how many samples to process.
 		int range;
+		int channels = jorbisInfo.channels;
+
+		// As many samples as fit in the converted buffer.
+		int maximumRange = convertedBufferSize / (2 * channels);
 
 		/*
 		 * Get the PCM information and count the samples. And while these
@@ -720,71 +784,124 @@ public class AudioPlayer extends NotifyingThread {
 		while((samples = jorbisDspState.synthesis_pcmout(pcmInfo, pcmIndex))
 			> 0)
 		{
-			// We need to know for how many samples we are going to process.
-			if(samples < convertedBufferSize)
+			range = Math.min(samples, maximumRange);
+
+			// Convert (and interleave) the samples to 16 bit little-endian.
+			int length = PcmConverter.floatToPcm16LE(pcmInfo[0], pcmIndex,
+				channels, range, convertedBuffer, 0);
+
+			// Queue the audio for the line writer (waits while the queue is full).
+			try
 			{
-				range = samples;
+				pcmQueue.write(convertedBuffer, 0, length);
 			}
-			else
+			catch(InterruptedException e)
 			{
-				range = convertedBufferSize;
+				Thread.currentThread().interrupt();
+				return;
 			}
 
-			// For each channel...
-			for(int i = 0; i < jorbisInfo.channels; i++)
-			{
-				int sampleIndex = i * 2;
+			// Update the DspState object.
+			jorbisDspState.synthesis_read(range);
+		}
+	}
 
-				// For every sample in our range...
-				for(int j = 0; j < range; j++)
+	/**
+	 * The line writer. Writes the queued audio to the output line until the
+	 * decoding is complete and the queue is empty.
+	 *
+	 * @param line the output line
+	 * @param resampler converter to the line's format
+	 * @param frameSize the size of a (decoded) audio frame (bytes)
+	 */
+	private void writeLine(SourceDataLine line, Resampler resampler, int frameSize)
+	{
+		byte[] chunk = new byte[convertedBufferSize - (convertedBufferSize % frameSize)];
+		byte[] converted = (resampler.isPassThrough() ? chunk
+			: new byte[resampler.getMaxOutputLength(chunk.length)]);
+		try
+		{
+			while(!cancelled)
+			{
+				int length = Math.min(pcmQueue.awaitData(frameSize, PCM_WAIT_MS), chunk.length);
+				length -= length % frameSize;
+				if(length > 0)
 				{
-					/*
-					 * Get the PCM value for the channel at the correct
-					 * position.
-					 */
-					int value = (int) (pcmInfo[0][i][pcmIndex[i] + j] * 32767);
-
-					/*
-					 * We make sure our value doesn't exceed or falls below
-					 * +-32767.
-					 */
-					if(value > 32767)
+					length = pcmQueue.read(chunk, 0, length);
+					if(resampler.isPassThrough())
 					{
-						value = 32767;
+						line.write(chunk, 0, length);
 					}
-					if(value < -32768)
+					else
 					{
-						value = -32768;
+						line.write(converted, 0,
+							resampler.convert(chunk, 0, length, converted, 0));
 					}
-
-					/*
-					 * It the value is less than zero, we bitwise-or it with
-					 * 32768 (which is 1000000000000000 = 10^15).
-					 */
-					if(value < 0) value = value | 32768;
-
-					/*
-					 * Take our value and split it into two, one with the last
-					 * byte and one with the first byte.
-					 */
-					convertedBuffer[sampleIndex] = (byte) (value);
-					convertedBuffer[sampleIndex + 1] = (byte) (value >>> 8);
-
-					/*
-					 * Move the sample index forward by two (since that's how
-					 * many values we get at once) times the number of channels.
-					 */
-					sampleIndex += 2 * (jorbisInfo.channels);
+					if(firstSampleTS == 0)
+					{
+						firstSampleTS = System.currentTimeMillis();
+					}
+				}
+				else if(decodingComplete && pcmQueue.available() < frameSize)
+				{
+					break;
 				}
 			}
+		}
+		catch(InterruptedException e)
+		{
+			debugOutput("Line writer interrupted.");
+		}
+	}
 
-			// Write the buffer to the audio output line.
-			outputLine.write(convertedBuffer, 0, 2 * jorbisInfo.channels
-				* range);
-
-			// Update the DspState object.
-			jorbisDspState.synthesis_read(range);
+	/**
+	 * Stop playing now (barge in). The line is stopped and flushed, the
+	 * decoded audio that is queued is discarded, and the download is
+	 * cancelled. Can be called from any thread.
+	 */
+	public void cancel()
+	{
+		cancelled = true;
+		SourceDataLine line = outputLine;
+		if(line != null)
+		{
+			line.stop();
+			line.flush();
+		}
+		UrlAudioStream stream = inputStream;
+		if(stream != null)
+		{
+			stream.close();
+		}
+		AudioRingBuffer queue = pcmQueue;
+		if(queue != null)
+		{
+			queue.clear();
 		}
+		interrupt();
+	}
+
+	/**
+	 * Log the timing of the URL audio: connection (response headers), the
+	 * Vorbis headers decoded, and the first sample written to the speaker.
+	 */
+	private void logSummary()
+	{
+		long headers = (headerTS == 0 ? -1 : headerTS - startTS);
+		long firstSample = (firstSampleTS == 0 ? -1 : firstSampleTS - startTS);
+		int queueHighWater = (pcmQueue == null ? 0 : pcmQueue.getHighWaterMark());
+		LOG.info(String.format("URL audio. Connect: %dms Headers: %dms Time-To-First-Sample: %dms Bytes: %d Read-Ahead High-Water: %d PCM-Queue High-Water: %d Resumes: %d",
+			inputStream.getConnectMillis(), headers, firstSample, inputStream.getBytesReceived(),
+			inputStream.getReadAheadHighWaterMark(), queueHighWater, inputStream.getResumes()));
+	}
+
+	/**
+	 * @return the time (mS) from the start of the player to the first sample
+	 *         written to the speaker, or -1 if no audio has been played
+	 */
+	public long getTimeToFirstSample()
+	{
+		return (firstSampleTS == 0 ? -1 : firstSampleTS - startTS);
 	}
 
 	/**
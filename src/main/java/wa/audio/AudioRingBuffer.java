@@ -0,0 +1,372 @@
+/**
+ * Copyright 2018 IBM Corporation. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package wa.audio;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded, preallocated, single-producer/single-consumer byte ring buffer for audio.
+ *
+ * One thread writes (the producer) and one thread reads (the consumer). The data is
+ * copied in and out without locking. The producer only waits (on the buffer's monitor)
+ * when the buffer is full and the overflow policy is BLOCK. The consumer can wait for
+ * data to arrive with `awaitData` rather than polling.
+ *
+ * `clear` and `retain` can be called from any thread. They discard the data that is currently
+ * buffered (all of it, or all but the most recent).
+ *
+ * The buffer keeps simple metrics (high-water mark, dropped bytes, time the producer was
+ * blocked) that can be reset at the start of each use.
+ */
+public class AudioRingBuffer {
+
+    /**
+     * What the producer does when the buffer is full.
+     */
+    public enum OverflowPolicy {
+        /** Wait (up to the block timeout) for space, then drop what doesn't fit */
+        BLOCK,
+        /** Drop the bytes that don't fit */
+        DROP_NEWEST
+    }
+
+    private final byte[] data;
+    private final int capacity;
+    private final int mask;
+    private final OverflowPolicy overflowPolicy;
+    private final long blockTimeoutNanos;
+
+    // Total bytes written/read since creation. Only the producer sets writePosition.
+    // The consumer (and clear) advance readPosition.
+    private volatile long writePosition = 0;
+    private final AtomicLong readPosition = new AtomicLong(0);
+
+    private volatile boolean producerWaiting = false;
+    private volatile boolean consumerWaiting = false;
+    // Set by wakeConsumer - ends the consumer's (next) wait for data early
+    private boolean consumerWakeup = false;
+
+    // Metrics
+    private volatile int highWaterMark = 0;
+    private final AtomicLong droppedBytes = new AtomicLong(0);
+    private volatile long blockedNanos = 0;
+
+    /**
+     * Create a ring buffer.
+     *
+     * @param minimumCapacity - capacity in bytes (rounded up to a power of 2)
+     * @param overflowPolicy - what to do when a write doesn't fit
+     * @param blockTimeoutMillis - maximum time a write will wait for space (BLOCK policy)
+     */
+    public AudioRingBuffer(int minimumCapacity, OverflowPolicy overflowPolicy, long blockTimeoutMillis) {
+        if (minimumCapacity <= 0 || minimumCapacity > (1 << 30)) {
+            throw new IllegalArgumentException("Invalid ring buffer capacity: " + minimumCapacity);
+        }
+        int size = Integer.highestOneBit(minimumCapacity);
+        if (size < minimumCapacity) {
+            size <<= 1;
+        }
+        this.capacity = size;
+        this.mask = size - 1;
+        this.data = new byte[size];
+        this.overflowPolicy = overflowPolicy;
+        this.blockTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(blockTimeoutMillis);
+    }
+
+    /**
+     * @return the capacity in bytes
+     */
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the number of bytes that can be read
+     */
+    public int available() {
+        return (int) (writePosition - readPosition.get());
+    }
+
+    /**
+     * @return the number of bytes that can be written without overflowing
+     */
+    public int remainingCapacity() {
+        return capacity - available();
+    }
+
+    /**
+     * Write (copy) bytes into the buffer. Producer thread only.
+     *
+     * @param src - source array
+     * @param offset - offset into the source
+     * @param length - number of bytes to write
+     * @return the number of bytes written (less than length if bytes were dropped)
+     * @throws InterruptedException if interrupted while waiting for space
+     */
+    public int write(byte[] src, int offset, int length) throws InterruptedException {
+        return write(src, offset, null, length);
+    }
+
+    /**
+     * Write (copy) the remaining bytes of a buffer into the ring buffer. Producer thread only.
+     * The source's position is advanced by the number of bytes written.
+     *
+     * @param src - source buffer (can be read only or direct)
+     * @return the number of bytes written (less than the remaining if bytes were dropped)
+     * @throws InterruptedException if interrupted while waiting for space
+     */
+    public int write(ByteBuffer src) throws InterruptedException {
+        return write(null, 0, src, src.remaining());
+    }
+
+    private int write(byte[] srcArray, int offset, ByteBuffer srcBuffer, int length) throws InterruptedException {
+        int written = 0;
+        long deadline = 0;
+        while (written < length) {
+            long w = writePosition;
+            int free = capacity - (int) (w - readPosition.get());
+            if (free == 0) {
+                if (overflowPolicy != OverflowPolicy.BLOCK) {
+                    break;
+                }
+                long now = System.nanoTime();
+                if (deadline == 0) {
+                    deadline = now + blockTimeoutNanos;
+                }
+                if (now >= deadline || !waitForSpace(deadline - now)) {
+                    break;
+                }
+                continue;
+            }
+            int count = Math.min(free, length - written);
+            if (null != srcBuffer) {
+                copyIn(w, srcBuffer, count);
+            } else {
+                copyIn(w, srcArray, offset + written, count);
+            }
+            writePosition = w + count;
+            written += count;
+            updateHighWaterMark();
+            signalConsumer();
+        }
+        if (written < length) {
+            droppedBytes.addAndGet(length - written);
+        }
+        return written;
+    }
+
+    /**
+     * Read (copy) up to `length` bytes out of the buffer without waiting. Consumer thread only.
+     *
+     * @param dst - destination array
+     * @param offset - offset into the destination
+     * @param length - maximum number of bytes to read
+     * @return the number of bytes read (0 if none are available)
+     */
+    public int read(byte[] dst, int offset, int length) {
+        long r = readPosition.get();
+        int count = Math.min((int) (writePosition - r), length);
+        if (count <= 0) {
+            return 0;
+        }
+        copyOut(r, dst, offset, count);
+        if (!readPosition.compareAndSet(r, r + count)) {
+            // The buffer was cleared while copying - the data read was discarded.
+            return 0;
+        }
+        signalProducer();
+        return count;
+    }
+
+    /**
+     * Wait until at least `minimum` bytes are available to read. Consumer thread only.
+     *
+     * @param minimum - the number of bytes to wait for
+     * @param timeoutMillis - maximum time to wait
+     * @return the number of bytes available (can be less than minimum if the wait timed out or
+     *         the consumer was woken)
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public int awaitData(int minimum, long timeoutMillis) throws InterruptedException {
+        int available = available();
+        if (available >= minimum) {
+            return available;
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        synchronized (this) {
+            consumerWaiting = true;
+            try {
+                while ((available = available()) < minimum) {
+                    if (consumerWakeup) {
+                        consumerWakeup = false;
+                        break;
+                    }
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        break;
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                }
+            } finally {
+                consumerWaiting = false;
+            }
+        }
+        return available;
+    }
+
+    /**
+     * Wake the consumer if it is waiting for data (or end its next wait at once) - for when
+     * something other than the data has changed (the producer has finished, ...). Can be
+     * called from any thread.
+     */
+    public void wakeConsumer() {
+        synchronized (this) {
+            consumerWakeup = true;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Discard all of the currently buffered data. Can be called from any thread.
+     */
+    public void clear() {
+        long r;
+        do {
+            r = readPosition.get();
+        } while (!readPosition.compareAndSet(r, Math.max(r, writePosition)));
+        signalProducer();
+    }
+
+    /**
+     * Discard the oldest data so that no more than `maximum` bytes remain. Can be called
+     * from any thread.
+     *
+     * @param maximum - the number of (most recent) bytes to keep
+     */
+    public void retain(int maximum) {
+        long r;
+        long target;
+        do {
+            r = readPosition.get();
+            target = writePosition - maximum;
+            if (target <= r) {
+                return;
+            }
+        } while (!readPosition.compareAndSet(r, target));
+        signalProducer();
+    }
+
+    /**
+     * @return the largest number of bytes held in the buffer since the last reset
+     */
+    public int getHighWaterMark() {
+        return highWaterMark;
+    }
+
+    /**
+     * @return the number of bytes that could not be written (overflow) since the last reset
+     */
+    public long getDroppedBytes() {
+        return droppedBytes.get();
+    }
+
+    /**
+     * @return the time (mS) the producer was blocked waiting for space since the last reset
+     */
+    public long getBlockedMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(blockedNanos);
+    }
+
+    /**
+     * Reset the metrics (high-water mark, dropped bytes and blocked time).
+     */
+    public void resetMetrics() {
+        highWaterMark = available();
+        droppedBytes.set(0);
+        blockedNanos = 0;
+    }
+
+    private void copyIn(long position, byte[] src, int offset, int count) {
+        int index = (int) (position & mask);
+        int first = Math.min(count, capacity - index);
+        System.arraycopy(src, offset, data, index, first);
+        if (first < count) {
+            System.arraycopy(src, offset + first, data, 0, count - first);
+        }
+    }
+
+    private void copyIn(long position, ByteBuffer src, int count) {
+        int index = (int) (position & mask);
+        int first = Math.min(count, capacity - index);
+        src.get(data, index, first);
+        if (first < count) {
+            src.get(data, 0, count - first);
+        }
+    }
+
+    private void copyOut(long position, byte[] dst, int offset, int count) {
+        int index = (int) (position & mask);
+        int first = Math.min(count, capacity - index);
+        System.arraycopy(data, index, dst, offset, first);
+        if (first < count) {
+            System.arraycopy(data, 0, dst, offset + first, count - first);
+        }
+    }
+
+    private void updateHighWaterMark() {
+        int level = available();
+        if (level > highWaterMark) {
+            highWaterMark = level; // only the producer updates this
+        }
+    }
+
+    private boolean waitForSpace(long timeoutNanos) throws InterruptedException {
+        long start = System.nanoTime();
+        try {
+            synchronized (this) {
+                producerWaiting = true;
+                try {
+                    if (remainingCapacity() == 0) {
+                        TimeUnit.NANOSECONDS.timedWait(this, timeoutNanos);
+                    }
+                } finally {
+                    producerWaiting = false;
+                }
+            }
+        } finally {
+            blockedNanos += System.nanoTime() - start;
+        }
+        return remainingCapacity() > 0;
+    }
+
+    private void signalConsumer() {
+        if (consumerWaiting) {
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+    }
+
+    private void signalProducer() {
+        if (producerWaiting) {
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+    }
+}
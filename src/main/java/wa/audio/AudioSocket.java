@@ -26,6 +26,9 @@ import java.util.concurrent.CountDownLatch;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import wa.util.ActivityCounters;
+import wa.util.ActivityCounters.Activity;
+
 import java.io.*;
 
 public class AudioSocket extends Thread {
@@ -145,7 +148,7 @@ public class AudioSocket extends Thread {
             byte[] buffer = new byte[bufLen];
             int bytesRead = 0;
             while (in.available() > 0 && (bytesRead = in.read(buffer, 0, bufLen)) > 0) {
-                System.out.print('#');
+                ActivityCounters.increment(Activity.SOCKET_DISCARD);
             }
             if (bytesRead > 0) {
                 LOG.debug(" cleared");
@@ -0,0 +1,311 @@
+/**
+ * Copyright 2018 IBM Corporation. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package wa.audio;
+
+import java.util.Arrays;
+
+import javax.sound.sampled.AudioFormat;
+
+/**
+ * Acoustic echo canceller (NLMS adaptive filter) for full-duplex operation.
+ *
+ * While the speaker plays, the microphone hears it (the echo). The audio written to the
+ * speaker (the reference) is passed to the canceller by the output thread, and the microphone
+ * audio is processed by the capture (monitor) thread: an adaptive FIR filter models the echo
+ * path from the reference to the microphone and its estimate of the echo is subtracted from
+ * the microphone audio. The filter adapts (normalized least mean squares) while only the
+ * speaker is heard. Adaptation is held while the near end talks (Geigel double talk
+ * detection - the microphone is louder than the echo of the recent reference can be).
+ *
+ * The reference and the microphone are aligned by sample count: a reference sample is used
+ * for each microphone sample from the time the reference starts. The reference is delayed
+ * (the configured delay) so that the echo, which the microphone delivers late, stays within
+ * the filter. The echo has to arrive within `filterMillis` of the delayed reference.
+ *
+ * When there has been no reference for the length of the filter (nothing playing) the
+ * microphone audio is passed through unchanged without filtering.
+ *
+ * Audio is 16 bit signed little-endian mono PCM. One thread provides the reference and one
+ * thread processes the microphone audio.
+ */
+public class EchoCanceller {
+
+    // Reference buffered ahead of the microphone (the output writes up to a line buffer ahead)
+    private static final int REFERENCE_BUFFER_SECONDS = 2;
+    // Double talk when the microphone is louder than this fraction of the recent reference peak
+    private static final float DOUBLE_TALK_THRESHOLD = 0.5f;
+    // Adaptation is held for this long after double talk is detected
+    private static final int DOUBLE_TALK_HOLD_MILLIS = 30;
+    // Added to the reference energy in the step normalization (-60dBFS per sample)
+    private static final float REGULARIZATION_PER_TAP = 1e-6f;
+
+    private final AudioFormat format;
+    private final int filterLength;
+    private final float stepSize;
+    private final int delayBytes;
+    private final int doubleTalkHoldSamples;
+    private final float peakDecay;
+
+    // Filter state (processing thread only)
+    private final float[] weights;
+    // Reference history, newest first from `position`. Each sample is stored twice so that the
+    // window (history[position] to history[position + filterLength - 1]) is contiguous.
+    private final float[] history;
+    private int position = 0;
+    private double referenceEnergy = 0;
+    private float referencePeak = 0;
+    private int silentSamples;
+    private int doubleTalkHold = 0;
+    private byte[] referenceChunk = new byte[0];
+
+    // Reference from the output thread
+    private final AudioRingBuffer reference;
+    private Resampler referenceResampler = null; // output thread only
+    private byte[] referenceConverted = new byte[0];
+
+    // Statistics (written by the processing thread)
+    private volatile double microphoneEnergy = 0;
+    private volatile double residualEnergy = 0;
+    private volatile long processedSamples = 0;
+    private volatile long processingNanos = 0;
+
+    /**
+     * Create an echo canceller for the recording format.
+     *
+     * @param filterMillis - length of the echo path modelled by the filter (mS)
+     * @param delayMillis - delay of the reference (mS), to cover the microphone's latency
+     * @param stepSize - adaptation step size (0 to 1, smaller is slower but more stable)
+     */
+    public EchoCanceller(int filterMillis, int delayMillis, float stepSize) {
+        this((int) AudioConstants.RecordSampleRate, filterMillis, delayMillis, stepSize);
+    }
+
+    /**
+     * Create an echo canceller.
+     *
+     * @param sampleRate - sample rate of the microphone audio
+     * @param filterMillis - length of the echo path modelled by the filter (mS)
+     * @param delayMillis - delay of the reference (mS), to cover the microphone's latency
+     * @param stepSize - adaptation step size (0 to 1, smaller is slower but more stable)
+     */
+    public EchoCanceller(int sampleRate, int filterMillis, int delayMillis, float stepSize) {
+        if (filterMillis <= 0 || delayMillis < 0 || stepSize <= 0 || stepSize > 1) {
+            throw new IllegalArgumentException(String.format("Invalid echo canceller settings: filter %dmS, delay %dmS, step size %f",
+                    filterMillis, delayMillis, stepSize));
+        }
+        this.format = new AudioFormat(sampleRate, 16, 1, true, false);
+        this.filterLength = Math.max(1, (int) ((long) sampleRate * filterMillis / 1000));
+        this.stepSize = stepSize;
+        this.delayBytes = (int) ((long) sampleRate * delayMillis / 1000) * 2;
+        this.doubleTalkHoldSamples = sampleRate * DOUBLE_TALK_HOLD_MILLIS / 1000;
+        // The peak falls to a tenth over the length of the filter
+        this.peakDecay = (float) Math.pow(0.1, 1.0 / filterLength);
+        this.weights = new float[filterLength];
+        this.history = new float[2 * filterLength];
+        this.silentSamples = filterLength;
+        this.reference = new AudioRingBuffer(delayBytes + REFERENCE_BUFFER_SECONDS * sampleRate * 2,
+                AudioRingBuffer.OverflowPolicy.DROP_NEWEST, 0);
+    }
+
+    /**
+     * @return the format of the microphone audio
+     */
+    public AudioFormat getFormat() {
+        return format;
+    }
+
+    /**
+     * @return the number of filter taps
+     */
+    public int getFilterLength() {
+        return filterLength;
+    }
+
+    /**
+     * Start of the output. Discards any reference left from a previous output and starts the
+     * reference with the delay. Reference (output) thread only.
+     *
+     * @param referenceFormat - format of the audio that will be played (16 bit PCM)
+     */
+    public void startReference(AudioFormat referenceFormat) {
+        reference.clear();
+        referenceResampler = new Resampler(referenceFormat, format);
+        writeReference(new byte[delayBytes], delayBytes);
+    }
+
+    /**
+     * Add audio that is being played. Reference (output) thread only, after `startReference`.
+     *
+     * @param pcm - the audio (in the format given to `startReference`)
+     * @param offset - offset of the audio
+     * @param length - number of bytes (whole frames)
+     */
+    public void addReference(byte[] pcm, int offset, int length) {
+        Resampler resampler = referenceResampler;
+        if (null == resampler) {
+            return;
+        }
+        if (resampler.isPassThrough()) {
+            writeReference(pcm, offset, length);
+            return;
+        }
+        int maxLength = resampler.getMaxOutputLength(length);
+        if (referenceConverted.length < maxLength) {
+            referenceConverted = new byte[maxLength];
+        }
+        writeReference(referenceConverted, resampler.convert(pcm, offset, length, referenceConverted, 0));
+    }
+
+    /**
+     * Discard the reference that has not been used (the output was cancelled). Can be called
+     * from any thread.
+     */
+    public void clearReference() {
+        reference.clear();
+    }
+
+    /**
+     * Remove the echo from microphone audio (in place). Processing thread only.
+     *
+     * @param pcm - the microphone audio
+     * @param offset - offset of the audio
+     * @param length - number of bytes (whole frames)
+     */
+    public void process(byte[] pcm, int offset, int length) {
+        long start = System.nanoTime();
+        int samples = length / 2;
+        if (referenceChunk.length < samples * 2) {
+            referenceChunk = new byte[samples * 2];
+        }
+        int referenceSamples = reference.read(referenceChunk, 0, samples * 2) / 2;
+        double micEnergy = 0;
+        double errorEnergy = 0;
+        float regularization = REGULARIZATION_PER_TAP * filterLength;
+        for (int i = 0; i < samples; i++) {
+            push(i < referenceSamples ? toSample(referenceChunk, 2 * i) : 0f);
+            if (silentSamples >= filterLength) {
+                continue; // Nothing playing - the audio is unchanged
+            }
+            int p = offset + 2 * i;
+            float d = toSample(pcm, p);
+            float y = 0;
+            for (int k = 0, h = position; k < filterLength; k++, h++) {
+                y += weights[k] * history[h];
+            }
+            float e = d - y;
+            if (Math.abs(d) > DOUBLE_TALK_THRESHOLD * referencePeak) {
+                doubleTalkHold = doubleTalkHoldSamples;
+            }
+            if (doubleTalkHold > 0) {
+                doubleTalkHold--;
+            } else {
+                float g = stepSize * e / (regularization + (float) referenceEnergy);
+                for (int k = 0, h = position; k < filterLength; k++, h++) {
+                    weights[k] += g * history[h];
+                }
+            }
+            micEnergy += d * d;
+            errorEnergy += e * e;
+            fromSample(e, pcm, p);
+        }
+        if (referenceSamples > 0) {
+            // Avoid the running sum drifting
+            double energy = 0;
+            for (int k = 0, h = position; k < filterLength; k++, h++) {
+                energy += history[h] * history[h];
+            }
+            referenceEnergy = energy;
+        }
+        microphoneEnergy += micEnergy;
+        residualEnergy += errorEnergy;
+        processedSamples += samples;
+        processingNanos += System.nanoTime() - start;
+    }
+
+    /**
+     * Forget the echo path (the filter starts again) and the reference. Processing thread only.
+     */
+    public void reset() {
+        Arrays.fill(weights, 0f);
+        Arrays.fill(history, 0f);
+        referenceEnergy = 0;
+        referencePeak = 0;
+        silentSamples = filterLength;
+        doubleTalkHold = 0;
+        reference.clear();
+    }
+
+    /**
+     * @return the echo return loss enhancement (dB) - the reduction of the microphone audio
+     *         while the reference was playing - since the statistics were reset
+     */
+    public double getEchoReturnLossEnhancementDb() {
+        double residual = residualEnergy;
+        return (residual <= 0 ? 0 : 10 * Math.log10(microphoneEnergy / residual));
+    }
+
+    /**
+     * @return the processing time as a fraction of the duration of the audio processed
+     */
+    public double getRealTimeFactor() {
+        long samples = processedSamples;
+        return (samples == 0 ? 0 : (processingNanos / 1e9) / ((double) samples / format.getSampleRate()));
+    }
+
+    /**
+     * Reset the statistics.
+     */
+    public void resetStatistics() {
+        microphoneEnergy = 0;
+        residualEnergy = 0;
+        processedSamples = 0;
+        processingNanos = 0;
+    }
+
+    private void push(float x) {
+        position = (position == 0 ? filterLength : position) - 1;
+        float oldest = history[position];
+        history[position] = x;
+        history[position + filterLength] = x;
+        referenceEnergy = Math.max(0, referenceEnergy + x * x - oldest * oldest);
+        referencePeak = Math.max(Math.abs(x), referencePeak * peakDecay);
+        silentSamples = (x == 0f ? Math.min(silentSamples + 1, filterLength) : 0);
+    }
+
+    private void writeReference(byte[] pcm, int length) {
+        writeReference(pcm, 0, length);
+    }
+
+    private void writeReference(byte[] pcm, int offset, int length) {
+        try {
+            reference.write(pcm, offset, length - (length % 2));
+        } catch (InterruptedException e) {
+            // Not waiting (the reference is dropped if the microphone isn't keeping up)
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static float toSample(byte[] pcm, int offset) {
+        return (short) ((pcm[offset] & 0xff) | (pcm[offset + 1] << 8)) / 32768f;
+    }
+
+    private static void fromSample(float sample, byte[] pcm, int offset) {
+        int value = Math.round(sample * 32768f);
+        value = Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, value));
+        pcm[offset] = (byte) value;
+        pcm[offset + 1] = (byte) (value >> 8);
+    }
+}
@@ -0,0 +1,476 @@
+/**
+ * Copyright 2018 IBM Corporation. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package wa.audio;
+
+/**
+ * Streaming FLAC encoder (audio/flac) for the captured audio.
+ *
+ * Encodes 16 bit, mono, little-endian PCM. Each block of samples is written as a FLAC frame
+ * as soon as it is complete, using the best of the FLAC 'fixed' predictors (order 0-4) with
+ * Rice coded residuals (or a constant/verbatim subframe when that is smaller). This is
+ * lossless and typically halves the size of speech audio for little CPU.
+ *
+ * Since the length of the stream is not known when it starts, the STREAMINFO total
+ * samples, frame sizes and MD5 are left as 'unknown' (allowed by the FLAC format for
+ * streams).
+ *
+ * This object is not thread safe. It is intended to be used by the capture thread.
+ */
+public class FlacAudioEncoder implements AudioEncoder {
+
+    public static final String CONTENT_TYPE = "audio/flac";
+    /** 256mS at 16kHz */
+    public static final int DEFAULT_BLOCK_SIZE = 4096;
+
+    private static final int BITS_PER_SAMPLE = 16;
+    private static final int MAX_FIXED_ORDER = 4;
+    private static final int MAX_PARTITION_ORDER = 6;
+    private static final int MAX_RICE_PARAMETER = 30;
+
+    private final int sampleRate;
+    private final int blockSize;
+    private final int sampleRateCode;
+
+    private final int[] samples;
+    private final int[][] residuals = new int[MAX_FIXED_ORDER + 1][];
+    private final int[] riceParameters = new int[1 << MAX_PARTITION_ORDER];
+    private final BitWriter bits = new BitWriter();
+
+    private Output output = null;
+    private int sampleCount = 0;
+    private int pendingByte = -1;
+    private long frameNumber = 0;
+
+    /**
+     * @param sampleRate - sample rate of the audio (Hz)
+     */
+    public FlacAudioEncoder(int sampleRate) {
+        this(sampleRate, DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * @param sampleRate - sample rate of the audio (Hz)
+     * @param blockSize - number of samples in each frame (16 to 65535)
+     */
+    public FlacAudioEncoder(int sampleRate, int blockSize) {
+        if (blockSize < 16 || blockSize > 65535) {
+            throw new IllegalArgumentException("Invalid FLAC block size: " + blockSize);
+        }
+        this.sampleRate = sampleRate;
+        this.blockSize = blockSize;
+        this.sampleRateCode = sampleRateCode(sampleRate);
+        this.samples = new int[blockSize];
+        for (int order = 0; order <= MAX_FIXED_ORDER; order++) {
+            residuals[order] = new int[blockSize];
+        }
+    }
+
+    @Override
+    public String getContentType() {
+        return CONTENT_TYPE;
+    }
+
+    @Override
+    public void start(Output output) {
+        this.output = output;
+        this.sampleCount = 0;
+        this.pendingByte = -1;
+        this.frameNumber = 0;
+
+        // Stream marker and STREAMINFO (the only and last metadata block)
+        bits.reset();
+        bits.write(0x664C6143, 32); // "fLaC"
+        bits.write(1, 1);
+        bits.write(0, 7);
+        bits.write(34, 24);
+        bits.write(blockSize, 16); // min block size (the last block can be smaller)
+        bits.write(blockSize, 16); // max block size
+        bits.write(0, 24); // min frame size (unknown)
+        bits.write(0, 24); // max frame size (unknown)
+        bits.write(sampleRate, 20);
+        bits.write(0, 3); // channels - 1
+        bits.write(BITS_PER_SAMPLE - 1, 5);
+        bits.write(0, 4); // total samples (unknown) - 36 bits
+        bits.write(0, 32);
+        for (int i = 0; i < 4; i++) {
+            bits.write(0, 32); // MD5 (unknown)
+        }
+        output.write(bits.buffer(), 0, bits.length());
+    }
+
+    @Override
+    public void encode(byte[] pcm, int offset, int length) {
+        int i = offset;
+        int end = offset + length;
+        if (pendingByte >= 0 && i < end) {
+            // Complete the sample split across the previous call
+            addSample((short) ((pcm[i++] << 8) | pendingByte));
+            pendingByte = -1;
+        }
+        while (i + 1 < end) {
+            addSample((short) ((pcm[i + 1] << 8) | (pcm[i] & 0xff)));
+            i += 2;
+        }
+        if (i < end) {
+            pendingByte = pcm[i] & 0xff;
+        }
+    }
+
+    @Override
+    public void finish() {
+        if (sampleCount > 0) {
+            writeFrame(sampleCount);
+            sampleCount = 0;
+        }
+        pendingByte = -1;
+    }
+
+    private void addSample(int sample) {
+        samples[sampleCount++] = sample;
+        if (sampleCount == blockSize) {
+            writeFrame(blockSize);
+            sampleCount = 0;
+        }
+    }
+
+    /*
+     * Frames
+     */
+
+    private void writeFrame(int count) {
+        bits.reset();
+
+        // Header
+        bits.write(0x3FFE, 14); // sync code
+        bits.write(0, 1);
+        bits.write(0, 1); // fixed block size stream
+        int blockSizeCode = blockSizeCode(count);
+        bits.write(blockSizeCode, 4);
+        bits.write(sampleRateCode, 4);
+        bits.write(0, 4); // mono
+        bits.write(4, 3); // 16 bits per sample
+        bits.write(0, 1);
+        writeUtf8Number(frameNumber++);
+        if (blockSizeCode == 6) {
+            bits.write(count - 1, 8);
+        } else if (blockSizeCode == 7) {
+            bits.write(count - 1, 16);
+        }
+        if (sampleRateCode == 12) {
+            bits.write(sampleRate / 1000, 8);
+        }
+        bits.write(crc8(bits.buffer(), bits.length()), 8);
+
+        writeSubframe(count);
+
+        // Footer
+        bits.padToByte();
+        bits.write(crc16(bits.buffer(), bits.length()), 16);
+
+        output.write(bits.buffer(), 0, bits.length());
+    }
+
+    private void writeSubframe(int count) {
+        int[] x = samples;
+
+        // CONSTANT (silence)
+        boolean constant = true;
+        for (int i = 1; i < count && constant; i++) {
+            constant = (x[i] == x[0]);
+        }
+        if (constant) {
+            bits.write(0, 8); // padding, CONSTANT, no wasted bits
+            bits.write(x[0], BITS_PER_SAMPLE);
+            return;
+        }
+
+        // Residuals of the fixed predictors - each order is the difference of the previous
+        int maxOrder = Math.min(MAX_FIXED_ORDER, count - 1);
+        System.arraycopy(x, 0, residuals[0], 0, count);
+        for (int order = 1; order <= maxOrder; order++) {
+            int[] previous = residuals[order - 1];
+            int[] residual = residuals[order];
+            for (int i = order; i < count; i++) {
+                residual[i] = previous[i] - previous[i - 1];
+            }
+        }
+        int bestOrder = 0;
+        long bestSum = Long.MAX_VALUE;
+        for (int order = 0; order <= maxOrder; order++) {
+            long sum = 0;
+            int[] residual = residuals[order];
+            for (int i = maxOrder; i < count; i++) {
+                sum += Math.abs(residual[i]);
+            }
+            if (sum < bestSum) {
+                bestSum = sum;
+                bestOrder = order;
+            }
+        }
+
+        int partitionOrder = chooseRicePartitions(residuals[bestOrder], bestOrder, count);
+        int partitions = 1 << partitionOrder;
+        boolean useRice2 = false;
+        for (int p = 0; p < partitions; p++) {
+            useRice2 |= (riceParameters[p] > 14);
+        }
+        long residualBits = estimateResidualBits(residuals[bestOrder], bestOrder, count, partitionOrder, useRice2);
+        long fixedBits = (long) bestOrder * BITS_PER_SAMPLE + residualBits;
+
+        if (fixedBits >= (long) count * BITS_PER_SAMPLE) {
+            // VERBATIM
+            bits.write(0x02, 8); // padding, VERBATIM, no wasted bits
+            for (int i = 0; i < count; i++) {
+                bits.write(x[i], BITS_PER_SAMPLE);
+            }
+            return;
+        }
+
+        // FIXED
+        bits.write((0x08 | bestOrder) << 1, 8); // padding, FIXED + order, no wasted bits
+        for (int i = 0; i < bestOrder; i++) {
+            bits.write(x[i], BITS_PER_SAMPLE); // warm-up samples
+        }
+        writeResidual(residuals[bestOrder], bestOrder, count, partitionOrder, useRice2);
+    }
+
+    /**
+     * Choose the Rice partition order (the Rice parameters of the partitions are left in
+     * riceParameters).
+     */
+    private int chooseRicePartitions(int[] residual, int order, int count) {
+        int bestPartitionOrder = 0;
+        long bestBits = Long.MAX_VALUE;
+        for (int partitionOrder = 0; partitionOrder <= MAX_PARTITION_ORDER; partitionOrder++) {
+            int partitionSize = count >> partitionOrder;
+            if ((count & ((1 << partitionOrder) - 1)) != 0 || partitionSize <= order) {
+                break;
+            }
+            long totalBits = estimateResidualBits(residual, order, count, partitionOrder, false);
+            if (totalBits < bestBits) {
+                bestBits = totalBits;
+                bestPartitionOrder = partitionOrder;
+            }
+        }
+        // Leave the parameters for the chosen order
+        estimateResidualBits(residual, order, count, bestPartitionOrder, false);
+        return bestPartitionOrder;
+    }
+
+    /**
+     * Estimate the size of the coded residual, setting the best Rice parameter of each
+     * partition in riceParameters.
+     */
+    private long estimateResidualBits(int[] residual, int order, int count, int partitionOrder, boolean useRice2) {
+        int partitionSize = count >> partitionOrder;
+        long totalBits = 2 + 4; // coding method and partition order
+        int start = order;
+        for (int p = 0; p < (1 << partitionOrder); p++) {
+            int end = (p + 1) * partitionSize;
+            long sum = 0;
+            for (int i = start; i < end; i++) {
+                sum += fold(residual[i]);
+            }
+            int n = end - start;
+            int bestParameter = 0;
+            long bestBits = Long.MAX_VALUE;
+            for (int k = 0; k <= MAX_RICE_PARAMETER; k++) {
+                long partitionBits = (long) n * (k + 1) + (sum >> k);
+                if (partitionBits < bestBits) {
+                    bestBits = partitionBits;
+                    bestParameter = k;
+                }
+            }
+            riceParameters[p] = bestParameter;
+            totalBits += (useRice2 || bestParameter > 14 ? 5 : 4) + bestBits;
+            start = end;
+        }
+        return totalBits;
+    }
+
+    private void writeResidual(int[] residual, int order, int count, int partitionOrder, boolean useRice2) {
+        int partitionSize = count >> partitionOrder;
+        bits.write(useRice2 ? 1 : 0, 2);
+        bits.write(partitionOrder, 4);
+        int start = order;
+        for (int p = 0; p < (1 << partitionOrder); p++) {
+            int end = (p + 1) * partitionSize;
+            int k = riceParameters[p];
+            bits.write(k, useRice2 ? 5 : 4);
+            for (int i = start; i < end; i++) {
+                int u = fold(residual[i]);
+                bits.writeUnary(u >>> k);
+                if (k > 0) {
+                    bits.write(u, k);
+                }
+            }
+            start = end;
+        }
+    }
+
+    private void writeUtf8Number(long value) {
+        if (value < 0x80) {
+            bits.write((int) value, 8);
+            return;
+        }
+        int extraBytes = 1;
+        while (extraBytes < 6 && value >= (1L << (5 * extraBytes + 6))) {
+            extraBytes++;
+        }
+        int firstByteMarker = (0xFF00 >> (extraBytes + 1)) & 0xFF;
+        bits.write(firstByteMarker | (int) (value >>> (6 * extraBytes)), 8);
+        for (int i = extraBytes - 1; i >= 0; i--) {
+            bits.write(0x80 | (int) ((value >>> (6 * i)) & 0x3F), 8);
+        }
+    }
+
+    private static int fold(int residual) {
+        return (residual << 1) ^ (residual >> 31);
+    }
+
+    private static int blockSizeCode(int count) {
+        if (count == 192) {
+            return 1;
+        }
+        for (int code = 2; code <= 5; code++) {
+            if (count == (576 << (code - 2))) {
+                return code;
+            }
+        }
+        for (int code = 8; code <= 15; code++) {
+            if (count == (256 << (code - 8))) {
+                return code;
+            }
+        }
+        return (count <= 256 ? 6 : 7);
+    }
+
+    private static int sampleRateCode(int sampleRate) {
+        switch (sampleRate) {
+        case 88200: return 1;
+        case 176400: return 2;
+        case 192000: return 3;
+        case 8000: return 4;
+        case 16000: return 5;
+        case 22050: return 6;
+        case 24000: return 7;
+        case 32000: return 8;
+        case 44100: return 9;
+        case 48000: return 10;
+        case 96000: return 11;
+        default:
+            // kHz in the header if possible, otherwise from STREAMINFO
+            return (sampleRate % 1000 == 0 && sampleRate / 1000 <= 255 ? 12 : 0);
+        }
+    }
+
+    /*
+     * CRCs
+     */
+
+    private static final int[] CRC8_TABLE = new int[256];
+    private static final int[] CRC16_TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc8 = i;
+            int crc16 = i << 8;
+            for (int b = 0; b < 8; b++) {
+                crc8 = ((crc8 & 0x80) != 0 ? (crc8 << 1) ^ 0x07 : crc8 << 1) & 0xFF;
+                crc16 = ((crc16 & 0x8000) != 0 ? (crc16 << 1) ^ 0x8005 : crc16 << 1) & 0xFFFF;
+            }
+            CRC8_TABLE[i] = crc8;
+            CRC16_TABLE[i] = crc16;
+        }
+    }
+
+    private static int crc8(byte[] data, int length) {
+        int crc = 0;
+        for (int i = 0; i < length; i++) {
+            crc = CRC8_TABLE[(crc ^ data[i]) & 0xFF];
+        }
+        return crc;
+    }
+
+    private static int crc16(byte[] data, int length) {
+        int crc = 0;
+        for (int i = 0; i < length; i++) {
+            crc = ((crc << 8) ^ CRC16_TABLE[((crc >> 8) ^ data[i]) & 0xFF]) & 0xFFFF;
+        }
+        return crc;
+    }
+
+    /**
+     * MSB first bit writer into a reusable (growable) byte array.
+     */
+    private static class BitWriter {
+        private byte[] buffer = new byte[16 * 1024];
+        private int length = 0;
+        private long accumulator = 0;
+        private int accumulatorBits = 0;
+
+        void reset() {
+            length = 0;
+            accumulator = 0;
+            accumulatorBits = 0;
+        }
+
+        /**
+         * Write the low 'count' bits of value (count 0 to 32).
+         */
+        void write(int value, int count) {
+            accumulator = (accumulator << count) | (value & ((1L << count) - 1));
+            accumulatorBits += count;
+            while (accumulatorBits >= 8) {
+                accumulatorBits -= 8;
+                if (length == buffer.length) {
+                    byte[] newBuffer = new byte[buffer.length * 2];
+                    System.arraycopy(buffer, 0, newBuffer, 0, length);
+                    buffer = newBuffer;
+                }
+                buffer[length++] = (byte) (accumulator >>> accumulatorBits);
+            }
+        }
+
+        /**
+         * Write 'value' zero bits followed by a one bit.
+         */
+        void writeUnary(int value) {
+            while (value >= 32) {
+                write(0, 32);
+                value -= 32;
+            }
+            write(1, value + 1);
+        }
+
+        void padToByte() {
+            if (accumulatorBits > 0) {
+                write(0, 8 - accumulatorBits);
+            }
+        }
+
+        /**
+         * @return the buffer (complete bytes only - valid from 0 to length())
+         */
+        byte[] buffer() {
+            return buffer;
+        }
+
+        int length() {
+            return length;
+        }
+    }
+}
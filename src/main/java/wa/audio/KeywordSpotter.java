@@ -0,0 +1,344 @@
+/**
+ * Copyright 2018 IBM Corporation. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package wa.audio;
+
+import static javax.sound.sampled.AudioSystem.getAudioInputStream;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Keyword (wake word) spotting by dynamic time warping (DTW) against recorded templates.
+ *
+ * The audio is turned into MFCC frames (every 10mS, see Mfcc) - the level of the audio is left
+ * out. Each template - a recording of the keyword, made with the same microphone - is turned
+ * into frames the same way. Each new frame extends, for every template, the best alignment
+ * (subsequence DTW) of the template with audio ending at that frame: an alignment can start
+ * at any frame, each frame advances zero, one or two template frames, and the cost is the
+ * average distance between the aligned frames. The keyword is detected when an alignment
+ * reaches the end of a template with an average distance below the threshold.
+ *
+ * The work per frame is bounded (the templates are limited in number and length) and the
+ * processing of the audio works in preallocated buffers (it does not allocate), so the
+ * spotter runs in a fixed CPU budget. Not thread safe - one stream.
+ *
+ * Audio is 16 bit signed little-endian mono PCM.
+ */
+public class KeywordSpotter {
+
+    /** Longest template (mS) */
+    public static final int MAX_TEMPLATE_MILLIS = 2000;
+    /** Most templates */
+    public static final int MAX_TEMPLATES = 8;
+
+    private static final float PRE_EMPHASIS = 0.97f;
+    // Frames after a detection before the next one
+    private static final int REFRACTORY_FRAMES = 100;
+    // A template longer than this (ratio of its frames) doesn't match
+    private static final int MAX_STRETCH = 2;
+
+    private final int sampleRate;
+    private final float threshold;
+    private final Mfcc mfcc;
+    private final List<Template> templates = new ArrayList<>();
+
+    // Streaming state
+    private final float[] frame;
+    private int frameFill = 0;
+    private float previousSample = 0;
+    private final float[] coefficients = new float[Mfcc.COEFFICIENTS];
+    private int refractory = 0;
+    private long framesProcessed = 0;
+
+    // Results
+    private String detectedKeyword = null;
+    private float detectedScore = Float.POSITIVE_INFINITY;
+    private float bestScore = Float.POSITIVE_INFINITY;
+
+    /**
+     * A keyword recording and the state of its alignment with the audio.
+     */
+    private static class Template {
+        final String name;
+        final float[][] frames;
+        // Cost and length of the best alignment ending at each template frame (previous frame and this frame)
+        float[] previousCost;
+        int[] previousLength;
+        float[] cost;
+        int[] length;
+
+        Template(String name, float[][] frames) {
+            this.name = name;
+            this.frames = frames;
+            this.previousCost = new float[frames.length];
+            this.previousLength = new int[frames.length];
+            this.cost = new float[frames.length];
+            this.length = new int[frames.length];
+            reset();
+        }
+
+        void reset() {
+            Arrays.fill(previousCost, Float.POSITIVE_INFINITY);
+            Arrays.fill(previousLength, 0);
+        }
+
+        /**
+         * Extend the alignments with a frame.
+         *
+         * @return the average distance of the best alignment of the whole template
+         */
+        float step(float[] x) {
+            int count = frames.length;
+            int maxLength = MAX_STRETCH * count;
+            for (int j = 0; j < count; j++) {
+                float d = distance(x, frames[j]);
+                // Start here (first template frame), stay on the template frame, or advance one or two
+                float bestCost = (j == 0 ? 0 : Float.POSITIVE_INFINITY);
+                int bestLength = 0;
+                float bestAverage = (j == 0 ? d : Float.POSITIVE_INFINITY);
+                for (int step = 0; step <= 2 && step <= j; step++) {
+                    float c = previousCost[j - step];
+                    int l = previousLength[j - step];
+                    float average = (c + d) / (l + 1);
+                    if (average < bestAverage && l < maxLength) {
+                        bestCost = c;
+                        bestLength = l;
+                        bestAverage = average;
+                    }
+                }
+                cost[j] = bestCost + d;
+                length[j] = bestLength + 1;
+            }
+            float[] swapCost = previousCost;
+            previousCost = cost;
+            cost = swapCost;
+            int[] swapLength = previousLength;
+            previousLength = length;
+            length = swapLength;
+            return previousCost[count - 1] / previousLength[count - 1];
+        }
+    }
+
+    /**
+     * @param sampleRate - sample rate of the audio
+     * @param threshold - the average distance (between the aligned frames) below which the keyword is detected
+     */
+    public KeywordSpotter(int sampleRate, float threshold) {
+        this.sampleRate = sampleRate;
+        this.threshold = threshold;
+        this.mfcc = new Mfcc(sampleRate);
+        this.frame = new float[mfcc.getFrameLength()];
+    }
+
+    /**
+     * @return the format of the audio
+     */
+    public AudioFormat getFormat() {
+        return new AudioFormat(sampleRate, 16, 1, true, false);
+    }
+
+    /**
+     * Add a template from a recording of the keyword.
+     *
+     * @param name - name of the keyword (reported when it is detected)
+     * @param pcm - the recording (just the keyword)
+     * @param offset - offset of the recording
+     * @param length - number of bytes
+     */
+    public void addTemplate(String name, byte[] pcm, int offset, int length) {
+        if (templates.size() >= MAX_TEMPLATES) {
+            throw new IllegalArgumentException("Too many keyword templates (maximum " + MAX_TEMPLATES + ")");
+        }
+        int samples = length / 2;
+        if ((long) samples * 1000 / sampleRate > MAX_TEMPLATE_MILLIS) {
+            throw new IllegalArgumentException(String.format("Keyword template `%s` is too long (maximum %dmS)", name, MAX_TEMPLATE_MILLIS));
+        }
+        float[] audio = new float[samples];
+        float previous = 0;
+        for (int i = 0; i < samples; i++) {
+            float sample = toSample(pcm, offset + 2 * i);
+            audio[i] = sample - PRE_EMPHASIS * previous;
+            previous = sample;
+        }
+        List<float[]> frames = new ArrayList<>();
+        for (int start = 0; start + mfcc.getFrameLength() <= samples; start += mfcc.getHopLength()) {
+            float[] features = new float[Mfcc.COEFFICIENTS];
+            mfcc.compute(audio, start, features);
+            frames.add(features);
+        }
+        if (frames.size() < 2) {
+            throw new IllegalArgumentException(String.format("Keyword template `%s` is too short", name));
+        }
+        templates.add(new Template(name, frames.toArray(new float[frames.size()][])));
+    }
+
+    /**
+     * Add a template from a recording (WAV or another format Java Sound can read) of the keyword.
+     * The recording is converted to the spotter's format. The name is the file's name.
+     *
+     * @param file - the recording (just the keyword)
+     * @throws IOException if the file can't be read
+     * @throws UnsupportedAudioFileException if the file isn't audio that can be decoded
+     */
+    public void addTemplate(File file) throws IOException, UnsupportedAudioFileException {
+        try (AudioInputStream in = getAudioInputStream(file)) {
+            AudioFormat inFormat = in.getFormat();
+            AudioFormat pcmFormat = new AudioFormat(inFormat.getSampleRate(), 16, inFormat.getChannels(), true, false);
+            try (AudioInputStream decoded = getAudioInputStream(pcmFormat, in)) {
+                byte[] data = IOUtils.toByteArray(decoded);
+                int length = data.length - (data.length % pcmFormat.getFrameSize());
+                Resampler resampler = new Resampler(pcmFormat, getFormat());
+                byte[] converted = new byte[resampler.getMaxOutputLength(length)];
+                addTemplate(file.getName(), converted, 0, resampler.convert(data, 0, length, converted, 0));
+            }
+        }
+    }
+
+    /**
+     * @return the average distance below which the keyword is detected
+     */
+    public float getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * @return the number of templates
+     */
+    public int getTemplateCount() {
+        return templates.size();
+    }
+
+    /**
+     * Process audio.
+     *
+     * @param pcm - the audio
+     * @param offset - offset of the audio
+     * @param length - number of bytes (whole samples)
+     * @return true if a keyword was detected
+     */
+    public boolean process(byte[] pcm, int offset, int length) {
+        boolean detected = false;
+        int hop = mfcc.getHopLength();
+        for (int i = 0; i + 1 < length; i += 2) {
+            float sample = toSample(pcm, offset + i);
+            frame[frameFill++] = sample - PRE_EMPHASIS * previousSample;
+            previousSample = sample;
+            if (frameFill == frame.length) {
+                detected |= processFrame();
+                System.arraycopy(frame, hop, frame, 0, frame.length - hop);
+                frameFill -= hop;
+            }
+        }
+        return detected;
+    }
+
+    /**
+     * @return the name of the last keyword detected (null if none)
+     */
+    public String getDetectedKeyword() {
+        return detectedKeyword;
+    }
+
+    /**
+     * @return the score (average distance) of the last detection
+     */
+    public float getDetectedScore() {
+        return detectedScore;
+    }
+
+    /**
+     * @return the best (lowest) score since the last reset of the best score - for choosing the threshold
+     */
+    public float getBestScore() {
+        return bestScore;
+    }
+
+    /**
+     * Reset the best score.
+     */
+    public void resetBestScore() {
+        bestScore = Float.POSITIVE_INFINITY;
+    }
+
+    /**
+     * @return the number of frames processed
+     */
+    public long getFramesProcessed() {
+        return framesProcessed;
+    }
+
+    /**
+     * Start again (forget the audio so far).
+     */
+    public void reset() {
+        frameFill = 0;
+        previousSample = 0;
+        refractory = 0;
+        for (Template template : templates) {
+            template.reset();
+        }
+    }
+
+    private boolean processFrame() {
+        framesProcessed++;
+        mfcc.compute(frame, 0, coefficients);
+        boolean detected = false;
+        for (int t = 0; t < templates.size(); t++) {
+            Template template = templates.get(t);
+            float score = template.step(coefficients);
+            if (score < bestScore) {
+                bestScore = score;
+            }
+            if (score < threshold && 0 == refractory && !detected) {
+                detected = true;
+                detectedKeyword = template.name;
+                detectedScore = score;
+            }
+        }
+        if (refractory > 0) {
+            refractory--;
+        }
+        if (detected) {
+            refractory = REFRACTORY_FRAMES;
+            for (int t = 0; t < templates.size(); t++) {
+                templates.get(t).reset();
+            }
+        }
+        return detected;
+    }
+
+    private static float distance(float[] a, float[] b) {
+        float sum = 0;
+        for (int k = 0; k < a.length; k++) {
+            float d = a[k] - b[k];
+            sum += d * d;
+        }
+        return (float) Math.sqrt(sum / a.length);
+    }
+
+    private static float toSample(byte[] pcm, int offset) {
+        return (short) ((pcm[offset] & 0xff) | (pcm[offset + 1] << 8)) / 32768f;
+    }
+}
@@ -16,16 +16,14 @@ package wa.audio;
  */
 
 import static javax.sound.sampled.AudioFormat.Encoding.PCM_SIGNED;
-import static javax.sound.sampled.AudioSystem.getAudioInputStream;
 
-import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import javax.sound.sampled.AudioFormat;
-import javax.sound.sampled.AudioInputStream;
-import javax.sound.sampled.AudioSystem;
-import javax.sound.sampled.DataLine.Info;
 import javax.sound.sampled.LineUnavailableException;
 import javax.sound.sampled.SourceDataLine;
 import javax.sound.sampled.UnsupportedAudioFileException;
@@ -47,6 +45,26 @@ public class LocalAudio {
 
     public static final String ANNOUNCE_IP = "announce-ip";
 
+    // How long to wait for the speaker to be released by the audio output
+    private static final long SPEAKER_ACQUIRE_TIMEOUT_MS = 5000;
+
+    // The prompts (all of them are preloaded)
+    private static final List<String> PROMPTS = Arrays.asList(ERROR_AUTH, ERROR_CLIENT_CREATE, ERROR_INVALID_CONFIG,
+            ERROR_NETWORK, ERROR_NO_CONFIG_FILE, ABORTING, ANNOUNCE_IP, "dot", "0", "1", "2", "3", "4", "5", "6", "7", "8", "9");
+    // The decoded prompts are about 2MB
+    private static final long PROMPT_CACHE_BYTES = 4 * 1024 * 1024;
+
+    private static final PromptCache promptCache = new PromptCache(PROMPT_CACHE_BYTES);
+
+    /**
+     * Decode the prompts (in the background) so they play without a decoding delay.
+     */
+    public static void preloadPrompts() {
+        Thread preloadThread = new Thread(() -> promptCache.preload(PROMPTS), "Prompt Preload");
+        preloadThread.setDaemon(true);
+        preloadThread.start();
+    }
+
     /**
      * Say the IP address locally. The format of the audio is:
      * <bl>
@@ -61,49 +79,74 @@ public class LocalAudio {
      * @param ip - InetAddress to announce
      */
     public static void sayIP(InetAddress ip) {
-        playFlacFile(ANNOUNCE_IP);
+        List<String> names = new ArrayList<>();
+        names.add(ANNOUNCE_IP);
         byte[] octets = ip.getAddress();
         for (int i = 0; i < octets.length; i++) {
             int number = ((int) octets[i]) & 0xff;
             char[] digits = String.valueOf(number).toCharArray();
             for (char digit : digits) {
-                playFlacFile(String.valueOf(digit));
+                names.add(String.valueOf(digit));
             }
             if (i < octets.length - 1)
-                playFlacFile("dot");
+                names.add("dot");
         }
+        playPrompts(names);
     }
 
     /**
-     * Play a 'flac' audio file given a base file name.
+     * Play a sequence of prompts as one (gapless) clip.
+     * 
+     * @param names - Base file names of the prompts
+     */
+    public static void playPrompts(List<String> names) {
+        List<PromptCache.Clip> clips = new ArrayList<>(names.size());
+        for (String name : names) {
+            try {
+                clips.add(promptCache.get(name));
+            } catch (UnsupportedAudioFileException | IOException e) {
+                LOG.error("Error trying to play: " + name + ".flac", e);
+            }
+        }
+        PromptCache.Clip joined = PromptCache.concat(clips);
+        if (null != joined) {
+            play(joined);
+        } else {
+            // Not all in the same format - play them one at a time
+            for (PromptCache.Clip clip : clips) {
+                play(clip);
+            }
+        }
+    }
+
+    /**
+     * Play a 'flac' audio file given a base file name. The file is decoded once and cached.
      * 
      * @param audioNameBase - Base file name for the flac audio file (file name without the '.flac' extension
      */
     public static void playFlacFile(String audioNameBase) {
-        String resourceName = audioNameBase + ".flac";
-        try (BufferedInputStream resourceStream = new BufferedInputStream(ClassLoader.getSystemClassLoader().getResourceAsStream(resourceName))){
-
-            final AudioInputStream in = getAudioInputStream(resourceStream);
-
-            final AudioFormat outFormat = getOutputAudioFormat(in.getFormat());
-            final Info info = new Info(SourceDataLine.class, outFormat);
-
-            try (final SourceDataLine line =
-                    (SourceDataLine) AudioSystem.getLine(info)) {
-
-                if (line != null) {
-                    line.open(outFormat);
-                    line.start();
-                    stream(getAudioInputStream(outFormat, in), line);
-                    line.drain();
-                    line.stop();
-                }
-            }
+        try {
+            play(promptCache.get(audioNameBase));
+        } catch (UnsupportedAudioFileException | IOException e) {
+            LOG.error("Error trying to play: " + audioNameBase + ".flac", e);
+        }
+    }
 
-        } catch (UnsupportedAudioFileException
-                | LineUnavailableException
-                | IOException e) {
-            LOG.error("Error trying to play: " + resourceName, e);
+    /**
+     * Play a decoded prompt (in one write).
+     */
+    private static void play(PromptCache.Clip clip) {
+        try (AudioDeviceManager.LineLease<SourceDataLine> lease =
+                AudioDeviceManager.getInstance().acquirePlayback(clip.getFormat(), SPEAKER_ACQUIRE_TIMEOUT_MS)) {
+
+            final SourceDataLine line = lease.getLine();
+            line.write(clip.getData(), 0, clip.getData().length);
+            line.drain();
+
+        } catch (LineUnavailableException e) {
+            LOG.error("Unable to play prompt audio", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 
@@ -120,11 +163,4 @@ public class LocalAudio {
         return new AudioFormat(PCM_SIGNED, rate, 16, ch, ch * 2, rate, false);
     }
 
-    private static void stream(AudioInputStream in, SourceDataLine line)
-            throws IOException {
-        final byte[] buffer = new byte[4096];
-        for (int n = 0; n != -1; n = in.read(buffer, 0, buffer.length)) {
-            line.write(buffer, 0, n);
-        }
-    }
 }
@@ -0,0 +1,216 @@
+/**
+ * Copyright 2018 IBM Corporation. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package wa.audio;
+
+/**
+ * Mel frequency cepstral coefficients (MFCC) of a frame of audio.
+ *
+ * The frame (25mS, every 10mS) is windowed (Hamming), its power spectrum computed (radix-2
+ * FFT), summed into mel spaced triangular filters and the log of the filter energies
+ * transformed (DCT-II) to the cepstral coefficients. The first coefficient (the level) is left
+ * out - the frame's log energy is returned separately.
+ *
+ * The window, FFT twiddle factors, filter bank and DCT are computed once, and `compute` works
+ * in preallocated buffers (it does not allocate). Not thread safe - one per stream.
+ */
+public class Mfcc {
+
+    /** Number of coefficients computed (c1 to c12) */
+    public static final int COEFFICIENTS = 12;
+
+    private static final int FRAME_MILLIS = 25;
+    private static final int HOP_MILLIS = 10;
+    private static final int FILTERS = 26;
+    private static final double LOW_HZ = 100;
+    private static final float MIN_ENERGY = 1e-10f;
+
+    private final int frameLength;
+    private final int hopLength;
+    private final int fftSize;
+    private final float[] window;
+    private final int[] bitReverse;
+    private final float[] cos;
+    private final float[] sin;
+    private final int[] filterStart;
+    private final float[][] filterWeights;
+    private final float[][] dct;
+
+    // Work buffers
+    private final float[] re;
+    private final float[] im;
+    private final float[] logEnergies = new float[FILTERS];
+
+    /**
+     * @param sampleRate - sample rate of the audio
+     */
+    public Mfcc(int sampleRate) {
+        this.frameLength = sampleRate * FRAME_MILLIS / 1000;
+        this.hopLength = sampleRate * HOP_MILLIS / 1000;
+        int size = Integer.highestOneBit(frameLength);
+        this.fftSize = (size < frameLength ? size << 1 : size);
+        this.re = new float[fftSize];
+        this.im = new float[fftSize];
+
+        this.window = new float[frameLength];
+        for (int i = 0; i < frameLength; i++) {
+            window[i] = (float) (0.54 - 0.46 * Math.cos(2 * Math.PI * i / (frameLength - 1)));
+        }
+
+        int bits = Integer.numberOfTrailingZeros(fftSize);
+        this.bitReverse = new int[fftSize];
+        for (int i = 0; i < fftSize; i++) {
+            bitReverse[i] = Integer.reverse(i) >>> (32 - bits);
+        }
+        this.cos = new float[fftSize / 2];
+        this.sin = new float[fftSize / 2];
+        for (int i = 0; i < fftSize / 2; i++) {
+            cos[i] = (float) Math.cos(-2 * Math.PI * i / fftSize);
+            sin[i] = (float) Math.sin(-2 * Math.PI * i / fftSize);
+        }
+
+        // Triangular filters, equally spaced on the mel scale
+        double lowMel = toMel(LOW_HZ);
+        double highMel = toMel(sampleRate / 2.0);
+        int[] bins = new int[FILTERS + 2];
+        for (int i = 0; i < bins.length; i++) {
+            double hz = fromMel(lowMel + (highMel - lowMel) * i / (FILTERS + 1));
+            bins[i] = Math.min(fftSize / 2, (int) Math.floor((fftSize + 1) * hz / sampleRate));
+        }
+        this.filterStart = new int[FILTERS];
+        this.filterWeights = new float[FILTERS][];
+        for (int f = 0; f < FILTERS; f++) {
+            int start = bins[f];
+            int center = bins[f + 1];
+            int end = bins[f + 2];
+            filterStart[f] = start;
+            filterWeights[f] = new float[end - start + 1];
+            for (int b = start; b <= end; b++) {
+                if (b <= center) {
+                    filterWeights[f][b - start] = (center == start ? 1f : (float) (b - start) / (center - start));
+                } else {
+                    filterWeights[f][b - start] = (float) (end - b) / (end - center);
+                }
+            }
+        }
+
+        this.dct = new float[COEFFICIENTS][FILTERS];
+        for (int k = 0; k < COEFFICIENTS; k++) {
+            for (int m = 0; m < FILTERS; m++) {
+                dct[k][m] = (float) (Math.sqrt(2.0 / FILTERS) * Math.cos(Math.PI * (k + 1) * (m + 0.5) / FILTERS));
+            }
+        }
+    }
+
+    /**
+     * @return the number of samples in a frame
+     */
+    public int getFrameLength() {
+        return frameLength;
+    }
+
+    /**
+     * @return the number of samples between the start of one frame and the next
+     */
+    public int getHopLength() {
+        return hopLength;
+    }
+
+    /**
+     * Compute the coefficients of a frame.
+     *
+     * @param samples - audio (-1.0 to 1.0)
+     * @param offset - offset of the frame (`getFrameLength` samples) in the audio
+     * @param coefficients - receives the `COEFFICIENTS` coefficients
+     * @return the log energy of the frame
+     */
+    public float compute(float[] samples, int offset, float[] coefficients) {
+        float energy = 0;
+        for (int i = 0; i < frameLength; i++) {
+            float sample = samples[offset + i];
+            energy += sample * sample;
+            re[i] = sample * window[i];
+        }
+        for (int i = frameLength; i < fftSize; i++) {
+            re[i] = 0;
+        }
+        for (int i = 0; i < fftSize; i++) {
+            im[i] = 0;
+        }
+        fft();
+        for (int f = 0; f < FILTERS; f++) {
+            float[] weights = filterWeights[f];
+            int start = filterStart[f];
+            float sum = 0;
+            for (int w = 0; w < weights.length; w++) {
+                int b = start + w;
+                sum += weights[w] * (re[b] * re[b] + im[b] * im[b]);
+            }
+            logEnergies[f] = (float) Math.log(Math.max(sum, MIN_ENERGY));
+        }
+        for (int k = 0; k < COEFFICIENTS; k++) {
+            float[] row = dct[k];
+            float sum = 0;
+            for (int m = 0; m < FILTERS; m++) {
+                sum += row[m] * logEnergies[m];
+            }
+            coefficients[k] = sum;
+        }
+        return (float) Math.log(Math.max(energy, MIN_ENERGY));
+    }
+
+    /**
+     * In place radix-2 FFT of (re, im).
+     */
+    private void fft() {
+        for (int i = 0; i < fftSize; i++) {
+            int j = bitReverse[i];
+            if (j > i) {
+                float t = re[i];
+                re[i] = re[j];
+                re[j] = t;
+                t = im[i];
+                im[i] = im[j];
+                im[j] = t;
+            }
+        }
+        for (int length = 2; length <= fftSize; length <<= 1) {
+            int half = length >> 1;
+            int step = fftSize / length;
+            for (int start = 0; start < fftSize; start += length) {
+                for (int k = 0; k < half; k++) {
+                    float wr = cos[k * step];
+                    float wi = sin[k * step];
+                    int a = start + k;
+                    int b = a + half;
+                    float tr = wr * re[b] - wi * im[b];
+                    float ti = wr * im[b] + wi * re[b];
+                    re[b] = re[a] - tr;
+                    im[b] = im[a] - ti;
+                    re[a] += tr;
+                    im[a] += ti;
+                }
+            }
+        }
+    }
+
+    private static double toMel(double hz) {
+        return 2595 * Math.log10(1 + hz / 700);
+    }
+
+    private static double fromMel(double mel) {
+        return 700 * (Math.pow(10, mel / 2595) - 1);
+    }
+}
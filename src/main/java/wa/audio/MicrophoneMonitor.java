@@ -0,0 +1,257 @@
+/**
+ * Copyright 2018 IBM Corporation. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package wa.audio;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.TargetDataLine;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Always open microphone with a pre-roll buffer.
+ *
+ * The microphone line is opened once and read continuously by a monitor thread into a ring
+ * buffer. Between captures only the most recent audio (the pre-roll) is kept, so when a
+ * capture starts (wake up trigger) the audio from just before the trigger is available
+ * immediately, followed by the live audio. Opening and closing the line is no longer part
+ * of each interaction, so the start of the user's speech is not clipped.
+ *
+ * One capture (consumer) at a time reads from the monitor. Listeners (for example a keyword
+ * spotter) are also given all of the audio as it is read.
+ *
+ * For full-duplex operation the monitor is given an EchoCanceller: the speaker's echo is
+ * removed from the audio as it is read from the microphone, so the pre-roll and the captures
+ * (and the voice activity detection done on them) see the near end audio while the output plays.
+ */
+public class MicrophoneMonitor {
+    // Initialize our logger
+    private static final Logger LOG = LogManager.getLogger(MicrophoneMonitor.class);
+
+    // Audio buffered while capturing (if the capture falls behind)
+    private static final int CAPTURE_BUFFER_SECONDS = 4;
+
+    private final AudioFormat format = new AudioFormat(AudioConstants.RecordSampleRate, AudioConstants.RecordSampleSizeInBits,
+            AudioConstants.RecordChannels, AudioConstants.isSigned, AudioConstants.isBigEndian);
+    private final int dataRate;
+    private final int preRollBytes;
+    private final AudioRingBuffer buffer;
+    private final EchoCanceller echoCanceller;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    private AudioDeviceManager.LineLease<TargetDataLine> microphoneLease = null;
+    private TargetDataLine microphone = null;
+    private Thread monitorThread = null;
+    private volatile boolean running = false;
+    private volatile boolean capturing = false;
+
+    /**
+     * Given all of the microphone audio (after echo cancellation), on the monitor thread. The
+     * listener has to return quickly (copy the audio) so the monitor keeps up with the microphone.
+     */
+    public interface Listener {
+        /**
+         * @param pcm - the audio (only valid during the call)
+         * @param offset - offset of the audio
+         * @param length - number of bytes
+         */
+        void audioRead(byte[] pcm, int offset, int length);
+    }
+
+    /**
+     * @param preRollMillis - amount of audio (mS) before the start of a capture to include in the capture
+     */
+    public MicrophoneMonitor(int preRollMillis) {
+        this(preRollMillis, null);
+    }
+
+    /**
+     * @param preRollMillis - amount of audio (mS) before the start of a capture to include in the capture
+     * @param echoCanceller - removes the speaker's echo from the microphone audio (null for none)
+     */
+    public MicrophoneMonitor(int preRollMillis, EchoCanceller echoCanceller) {
+        this.echoCanceller = echoCanceller;
+        int frameSize = format.getFrameSize();
+        this.dataRate = (int) format.getSampleRate() * frameSize;
+        int preRoll = (int) ((long) dataRate * preRollMillis / 1000);
+        this.preRollBytes = preRoll - (preRoll % frameSize);
+        this.buffer = new AudioRingBuffer(preRollBytes + (CAPTURE_BUFFER_SECONDS * dataRate),
+                AudioRingBuffer.OverflowPolicy.DROP_NEWEST, 0);
+    }
+
+    /**
+     * Open the microphone and start monitoring. The monitor holds the microphone (lease) until
+     * it is stopped.
+     *
+     * @throws LineUnavailableException if the microphone can't be opened
+     */
+    public synchronized void start() throws LineUnavailableException {
+        if (running) {
+            return;
+        }
+        try {
+            microphoneLease = AudioDeviceManager.getInstance().acquireCapture(format, 0);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new LineUnavailableException("Interrupted acquiring the microphone");
+        }
+        microphone = microphoneLease.getLine();
+        running = true;
+        monitorThread = new Thread(this::monitor, "Microphone Monitor");
+        monitorThread.setDaemon(true);
+        monitorThread.start();
+        LOG.info(String.format("Microphone monitor started. Pre-roll: %d bytes Echo cancellation: %s", preRollBytes,
+                (null == echoCanceller ? "off" : echoCanceller.getFilterLength() + " taps")));
+    }
+
+    /**
+     * Stop monitoring and close the microphone.
+     */
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        microphoneLease.invalidate(); // closing the line ends a blocked read
+        try {
+            monitorThread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        monitorThread = null;
+        microphoneLease.close();
+        microphoneLease = null;
+        microphone = null;
+        buffer.clear();
+        if (null != echoCanceller) {
+            echoCanceller.reset();
+        }
+        LOG.info("Microphone monitor stopped.");
+    }
+
+    /**
+     * @param listener - given all of the audio read from now on
+     */
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * @param listener - a listener that was added
+     */
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * @return true if the microphone is open and being monitored
+     */
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Start a capture. The capture reads the pre-roll audio and then the live audio.
+     *
+     * @return the amount of pre-roll audio available (bytes)
+     */
+    public int startCapture() {
+        capturing = true;
+        buffer.resetMetrics();
+        return buffer.available();
+    }
+
+    /**
+     * End the capture. The monitor goes back to keeping just the pre-roll.
+     */
+    public void endCapture() {
+        capturing = false;
+        if (buffer.getDroppedBytes() > 0) {
+            LOG.warn(String.format("Microphone monitor - %d bytes dropped during the capture", buffer.getDroppedBytes()));
+        }
+        buffer.retain(preRollBytes);
+    }
+
+    /**
+     * Read captured audio, waiting (up to the timeout) for a minimum amount of audio.
+     *
+     * @param dst - destination array
+     * @param offset - offset in the destination
+     * @param length - maximum number of bytes to read (whole frames are read)
+     * @param minimum - number of bytes to wait for (fewer are read if the wait times out)
+     * @param timeoutMillis - maximum time to wait for audio
+     * @return the number of bytes read
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public int read(byte[] dst, int offset, int length, int minimum, long timeoutMillis) throws InterruptedException {
+        int frameSize = format.getFrameSize();
+        int available = buffer.awaitData(Math.max(frameSize, Math.min(minimum, length)), timeoutMillis);
+        int count = Math.min(available, length);
+        return buffer.read(dst, offset, count - (count % frameSize));
+    }
+
+    /**
+     * @return the microphone line buffer size (bytes)
+     */
+    public int getBufferSize() {
+        TargetDataLine line = microphone;
+        return (null == line ? dataRate / 2 : line.getBufferSize());
+    }
+
+    /**
+     * @return the audio data rate (bytes per second)
+     */
+    public int getDataRate() {
+        return dataRate;
+    }
+
+    private void monitor() {
+        TargetDataLine line = microphone;
+        int frameSize = format.getFrameSize();
+        // Read in small chunks so the audio is available soon after it is captured
+        int chunkSize = Math.max(frameSize, (dataRate / 50) - ((dataRate / 50) % frameSize)); // 20mS
+        byte[] chunk = new byte[chunkSize];
+        try {
+            while (running) {
+                int bytesRead = line.read(chunk, 0, chunk.length);
+                if (bytesRead > 0) {
+                    if (null != echoCanceller) {
+                        echoCanceller.process(chunk, 0, bytesRead);
+                    }
+                    buffer.write(chunk, 0, bytesRead);
+                    if (!capturing) {
+                        buffer.retain(preRollBytes);
+                    }
+                    for (Listener listener : listeners) {
+                        listener.audioRead(chunk, 0, bytesRead);
+                    }
+                } else if (!line.isOpen()) {
+                    break;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            LOG.error("Microphone monitor stopped: " + e, e);
+        } finally {
+            running = false;
+        }
+    }
+}
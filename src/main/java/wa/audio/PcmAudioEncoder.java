@@ -0,0 +1,46 @@
+/**
+ * Copyright 2018 IBM Corporation. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package wa.audio;
+
+/**
+ * Pass through (no compression) encoder. The captured PCM is sent as is (audio/l16).
+ */
+public class PcmAudioEncoder implements AudioEncoder {
+
+    private Output output = null;
+
+    @Override
+    public String getContentType() {
+        return AudioConstants.RecordFormat
+                + "; rate=" + (int) AudioConstants.RecordSampleRate
+                + "; channels=" + AudioConstants.RecordChannels;
+    }
+
+    @Override
+    public void start(Output output) {
+        this.output = output;
+    }
+
+    @Override
+    public void encode(byte[] pcm, int offset, int length) {
+        output.write(pcm, offset, length);
+    }
+
+    @Override
+    public void finish() {
+        // Nothing is held
+    }
+}
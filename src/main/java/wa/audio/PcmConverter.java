@@ -0,0 +1,98 @@
+/**
+ * Copyright 2018 IBM Corporation. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package wa.audio;
+
+/**
+ * Conversion of decoded (float) PCM to 16 bit signed little-endian PCM.
+ *
+ * The conversion writes into a caller supplied (preallocated) buffer and does not allocate.
+ * Mono and stereo have their own loops (one pass, sequential writes) so the JIT can unroll
+ * them. Other channel counts are converted a channel at a time.
+ */
+public final class PcmConverter {
+
+    private PcmConverter() {
+    }
+
+    /**
+     * Convert and interleave float samples (-1.0 to 1.0, clipped outside that range) to 16 bit
+     * signed little-endian PCM.
+     *
+     * @param pcm - samples for each channel (pcm[channel][sample])
+     * @param index - offset of the first sample for each channel
+     * @param channels - number of channels
+     * @param count - number of samples (per channel) to convert
+     * @param out - destination (at least count * channels * 2 bytes)
+     * @param offset - offset in the destination
+     * @return the number of bytes written
+     */
+    public static int floatToPcm16LE(float[][] pcm, int[] index, int channels, int count, byte[] out, int offset) {
+        int frameSize = channels * 2;
+        if (channels == 1) {
+            return mono(pcm[0], index[0], count, out, offset);
+        }
+        if (channels == 2) {
+            return stereo(pcm[0], index[0], pcm[1], index[1], count, out, offset);
+        }
+        for (int channel = 0; channel < channels; channel++) {
+            float[] samples = pcm[channel];
+            int in = index[channel];
+            int position = offset + channel * 2;
+            for (int i = 0; i < count; i++) {
+                int value = toPcm16(samples[in + i]);
+                out[position] = (byte) value;
+                out[position + 1] = (byte) (value >> 8);
+                position += frameSize;
+            }
+        }
+        return count * frameSize;
+    }
+
+    private static int mono(float[] samples, int in, int count, byte[] out, int offset) {
+        int position = offset;
+        for (int i = 0; i < count; i++) {
+            int value = toPcm16(samples[in + i]);
+            out[position] = (byte) value;
+            out[position + 1] = (byte) (value >> 8);
+            position += 2;
+        }
+        return count * 2;
+    }
+
+    private static int stereo(float[] left, int inLeft, float[] right, int inRight, int count, byte[] out, int offset) {
+        int position = offset;
+        for (int i = 0; i < count; i++) {
+            int l = toPcm16(left[inLeft + i]);
+            int r = toPcm16(right[inRight + i]);
+            out[position] = (byte) l;
+            out[position + 1] = (byte) (l >> 8);
+            out[position + 2] = (byte) r;
+            out[position + 3] = (byte) (r >> 8);
+            position += 4;
+        }
+        return count * 4;
+    }
+
+    /**
+     * @param sample - float sample (-1.0 to 1.0)
+     * @return the sample as a 16 bit value (clipped)
+     */
+    static int toPcm16(float sample) {
+        int value = (int) (sample * 32767f);
+        // Branch-free clip (the JIT turns these into conditional moves)
+        return Math.max(-32768, Math.min(32767, value));
+    }
+}
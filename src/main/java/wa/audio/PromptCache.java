@@ -0,0 +1,232 @@
+/**
+ * Copyright 2018 IBM Corporation. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package wa.audio;
+
+import static javax.sound.sampled.AudioSystem.getAudioInputStream;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Cache of the local (FLAC) prompts, decoded to PCM in their output format (converted to a
+ * format the speaker supports if needed).
+ *
+ * A prompt is decoded the first time it is used (or when preloaded) and kept until the cache
+ * is full, when the least recently used prompts are removed.
+ */
+public class PromptCache {
+    // Initialize our logger
+    private static final Logger LOG = LogManager.getLogger(PromptCache.class);
+
+    private final long maximumBytes;
+    private final Map<String, Clip> clips = new LinkedHashMap<>(32, 0.75f, true); // access order (LRU)
+    private long cachedBytes = 0;
+
+    /**
+     * A decoded prompt.
+     */
+    public static final class Clip {
+        private final AudioFormat format;
+        private final byte[] data;
+
+        public Clip(AudioFormat format, byte[] data) {
+            this.format = format;
+            this.data = data;
+        }
+
+        /**
+         * @return the format of the audio
+         */
+        public AudioFormat getFormat() {
+            return format;
+        }
+
+        /**
+         * @return the PCM audio (do not modify)
+         */
+        public byte[] getData() {
+            return data;
+        }
+
+        /**
+         * @return the length of the audio (mS)
+         */
+        public long getDurationMillis() {
+            return (long) (data.length / format.getFrameSize() * 1000L / format.getFrameRate());
+        }
+    }
+
+    /**
+     * @param maximumBytes - maximum amount of decoded audio to keep
+     */
+    public PromptCache(long maximumBytes) {
+        this.maximumBytes = maximumBytes;
+    }
+
+    /**
+     * Get a decoded prompt (decoding it if it isn't cached).
+     *
+     * @param name - base name of the prompt (the resource name without the '.flac' extension)
+     * @return the prompt audio
+     * @throws IOException if the prompt can't be read
+     * @throws UnsupportedAudioFileException if the prompt can't be decoded
+     */
+    public Clip get(String name) throws IOException, UnsupportedAudioFileException {
+        synchronized (this) {
+            Clip clip = clips.get(name);
+            if (null != clip) {
+                return clip;
+            }
+        }
+        // Decode outside of the lock (decoding can take a while)
+        long start = System.currentTimeMillis();
+        Clip clip = load(name);
+        LOG.debug(String.format("Prompt '%s' decoded in %dms (%d bytes)", name, System.currentTimeMillis() - start, clip.getData().length));
+        put(name, clip);
+        return clip;
+    }
+
+    /**
+     * Decode prompts ahead of their use. Errors are logged.
+     *
+     * @param names - base names of the prompts
+     */
+    public void preload(List<String> names) {
+        long start = System.currentTimeMillis();
+        for (String name : names) {
+            try {
+                get(name);
+            } catch (IOException | UnsupportedAudioFileException | RuntimeException e) {
+                LOG.warn("Unable to preload prompt: " + name + " - " + e);
+            }
+        }
+        LOG.info(String.format("%d prompts preloaded in %dms (%d bytes)", names.size(), System.currentTimeMillis() - start, getCachedBytes()));
+    }
+
+    /**
+     * @return the amount of decoded audio cached (bytes)
+     */
+    public synchronized long getCachedBytes() {
+        return cachedBytes;
+    }
+
+    /**
+     * @param name - base name of a prompt
+     * @return true if the prompt is cached
+     */
+    public synchronized boolean contains(String name) {
+        return clips.containsKey(name);
+    }
+
+    /**
+     * Join clips into a single clip (so they can be played without gaps).
+     *
+     * @param parts - clips to join
+     * @return the joined clip or null if the clips are not all in the same format
+     */
+    public static Clip concat(List<Clip> parts) {
+        if (parts.isEmpty()) {
+            return null;
+        }
+        AudioFormat format = parts.get(0).getFormat();
+        int length = 0;
+        for (Clip part : parts) {
+            if (!part.getFormat().matches(format)) {
+                return null;
+            }
+            length += part.getData().length;
+        }
+        byte[] data = new byte[length];
+        int offset = 0;
+        for (Clip part : parts) {
+            System.arraycopy(part.getData(), 0, data, offset, part.getData().length);
+            offset += part.getData().length;
+        }
+        return new Clip(format, data);
+    }
+
+    /**
+     * Read and decode a prompt (FLAC resource) to PCM in its output format.
+     *
+     * @param name - base name of the prompt
+     * @return the decoded prompt
+     * @throws IOException if the prompt can't be read
+     * @throws UnsupportedAudioFileException if the prompt can't be decoded
+     */
+    protected Clip load(String name) throws IOException, UnsupportedAudioFileException {
+        String resourceName = name + ".flac";
+        InputStream resource = ClassLoader.getSystemClassLoader().getResourceAsStream(resourceName);
+        if (null == resource) {
+            throw new IOException("Prompt not found: " + resourceName);
+        }
+        try (BufferedInputStream resourceStream = new BufferedInputStream(resource)) {
+            AudioInputStream in = getAudioInputStream(resourceStream);
+            AudioFormat outFormat = LocalAudio.getOutputAudioFormat(in.getFormat());
+            try (AudioInputStream decoded = getAudioInputStream(outFormat, in)) {
+                byte[] data = IOUtils.toByteArray(decoded);
+                // Whole frames only
+                int length = data.length - (data.length % outFormat.getFrameSize());
+                return toSpeakerFormat(new Clip(outFormat, (length == data.length ? data : Arrays.copyOf(data, length))));
+            }
+        }
+    }
+
+    /**
+     * Convert a clip to a format the speaker supports (if the speaker doesn't support its format).
+     */
+    private static Clip toSpeakerFormat(Clip clip) {
+        AudioFormat speakerFormat = AudioDeviceManager.getInstance().getPlaybackFormat(clip.getFormat());
+        Resampler resampler = new Resampler(clip.getFormat(), speakerFormat);
+        if (resampler.isPassThrough()) {
+            return clip;
+        }
+        byte[] converted = new byte[resampler.getMaxOutputLength(clip.getData().length)];
+        int length = resampler.convert(clip.getData(), 0, clip.getData().length, converted, 0);
+        return new Clip(speakerFormat, Arrays.copyOf(converted, length));
+    }
+
+    private synchronized void put(String name, Clip clip) {
+        Clip previous = clips.put(name, clip);
+        if (null != previous) {
+            cachedBytes -= previous.getData().length;
+        }
+        cachedBytes += clip.getData().length;
+        // Remove the least recently used prompts (but always keep the one just added)
+        Iterator<Map.Entry<String, Clip>> entries = clips.entrySet().iterator();
+        while (cachedBytes > maximumBytes && entries.hasNext()) {
+            Map.Entry<String, Clip> entry = entries.next();
+            if (entry.getKey().equals(name)) {
+                continue;
+            }
+            cachedBytes -= entry.getValue().getData().length;
+            entries.remove();
+        }
+    }
+}
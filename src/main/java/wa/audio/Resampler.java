@@ -0,0 +1,280 @@
+/**
+ * Copyright 2018 IBM Corporation. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package wa.audio;
+
+import javax.sound.sampled.AudioFormat;
+
+/**
+ * Streaming sample rate and channel conversion of 16 bit signed little-endian PCM.
+ *
+ * Used when the playback device doesn't support the format of the audio (for example a
+ * speakerphone that only plays 48000 samples/sec). The conversion is a polyphase
+ * windowed-sinc filter: the ratio of the rates is reduced to `up/down` and the filter
+ * coefficients for each of the `up` phases are computed once (Kaiser window). When
+ * down-sampling the cutoff is lowered (and the filter lengthened) to avoid aliasing.
+ *
+ * Channels are converted first: mono is resampled once and copied to each output channel, and
+ * a different number of channels is mixed down to mono first. Otherwise each channel is
+ * resampled. The converter keeps the input it
+ * still needs between calls, so the audio can be converted in chunks of any size.
+ *
+ * Not thread safe - one converter per stream.
+ */
+public class Resampler {
+
+    // Zero crossings of the sinc on each side (at the lower of the two rates)
+    private static final int ZERO_CROSSINGS = 8;
+    // Cutoff as a fraction of the lower Nyquist frequency
+    private static final double ROLLOFF = 0.92;
+    private static final double KAISER_BETA = 8.0;
+    // Limit on the filter table (phases) - the rates in use reduce to a few hundred
+    private static final int MAX_PHASES = 4096;
+
+    private final int inChannels;
+    private final int outChannels;
+    private final int filterChannels; // channels that are resampled
+    private final int up;
+    private final int down;
+    private final int taps;
+    private final int half;
+    private final float[][] table; // [phase][tap]
+    private final boolean passThrough;
+
+    // Input (for each channel resampled) still needed, with the filter history at the start
+    private float[][] work;
+    private int workLength;
+    // Position of the next output sample: work index and phase (0 to up - 1)
+    private int index;
+    private int phase;
+
+    /**
+     * Create a converter.
+     *
+     * @param from - format of the input (16 bit signed little-endian PCM)
+     * @param to - format of the output (16 bit signed little-endian PCM)
+     */
+    public Resampler(AudioFormat from, AudioFormat to) {
+        checkFormat(from);
+        checkFormat(to);
+        this.inChannels = from.getChannels();
+        this.outChannels = to.getChannels();
+        this.filterChannels = (inChannels == outChannels ? outChannels : 1);
+        int fromRate = Math.round(from.getSampleRate());
+        int toRate = Math.round(to.getSampleRate());
+        int gcd = gcd(fromRate, toRate);
+        this.up = toRate / gcd;
+        this.down = fromRate / gcd;
+        if (up > MAX_PHASES) {
+            throw new IllegalArgumentException(String.format("Unsupported sample rate conversion: %d to %d", fromRate, toRate));
+        }
+        this.passThrough = (up == down && inChannels == outChannels);
+
+        // Lower the cutoff when down-sampling (and widen the filter to keep the same quality)
+        double scale = Math.min(1.0, (double) up / down);
+        this.half = (int) Math.ceil(ZERO_CROSSINGS / scale);
+        this.taps = 2 * half;
+        this.table = (passThrough ? null : createTable(up, taps, half, scale * ROLLOFF));
+        reset();
+    }
+
+    /**
+     * @return true if the input and output formats are the same (no conversion)
+     */
+    public boolean isPassThrough() {
+        return passThrough;
+    }
+
+    /**
+     * Discard the buffered input (for the start of a new stream).
+     */
+    public void reset() {
+        work = new float[filterChannels][Math.max(1024, taps * 2)];
+        // Start with silence as the history, so the first output is for the first input sample
+        workLength = half - 1;
+        index = half - 1;
+        phase = 0;
+    }
+
+    /**
+     * The largest number of bytes `convert` can return for an amount of input.
+     *
+     * @param inputBytes - number of input bytes
+     * @return the maximum number of output bytes
+     */
+    public int getMaxOutputLength(int inputBytes) {
+        if (passThrough) {
+            return inputBytes;
+        }
+        // At most `taps` input frames are kept between calls
+        long frames = (long) (taps + inputBytes / (2 * inChannels)) * up / down + 1;
+        return (int) frames * 2 * outChannels;
+    }
+
+    /**
+     * Convert audio. Output is produced for the input that has enough following input for the
+     * filter - the rest of the input is kept for the next call.
+     *
+     * @param in - input audio
+     * @param inOffset - offset of the input
+     * @param inLength - number of input bytes (whole frames)
+     * @param out - output buffer (at least `getMaxOutputLength(inLength)` bytes from the offset)
+     * @param outOffset - offset in the output buffer
+     * @return the number of bytes written to the output
+     */
+    public int convert(byte[] in, int inOffset, int inLength, byte[] out, int outOffset) {
+        if (passThrough) {
+            System.arraycopy(in, inOffset, out, outOffset, inLength);
+            return inLength;
+        }
+        append(in, inOffset, inLength / (2 * inChannels));
+
+        int position = outOffset;
+        while (index + half < workLength) {
+            float[] coefficients = table[phase];
+            int start = index - half + 1;
+            if (filterChannels == outChannels) {
+                for (int channel = 0; channel < outChannels; channel++) {
+                    int value = filter(coefficients, work[channel], start);
+                    out[position++] = (byte) value;
+                    out[position++] = (byte) (value >> 8);
+                }
+            } else {
+                // Mono - copy to each output channel
+                int value = filter(coefficients, work[0], start);
+                for (int channel = 0; channel < outChannels; channel++) {
+                    out[position++] = (byte) value;
+                    out[position++] = (byte) (value >> 8);
+                }
+            }
+            phase += down;
+            index += phase / up;
+            phase %= up;
+        }
+
+        // Keep the history needed for the next output
+        int discard = Math.min(index - half + 1, workLength);
+        if (discard > 0) {
+            for (int channel = 0; channel < filterChannels; channel++) {
+                System.arraycopy(work[channel], discard, work[channel], 0, workLength - discard);
+            }
+            workLength -= discard;
+            index -= discard;
+        }
+        return position - outOffset;
+    }
+
+    /**
+     * Add input frames to the work buffer, converting the channels.
+     */
+    private void append(byte[] in, int offset, int frames) {
+        if (workLength + frames > work[0].length) {
+            int capacity = Math.max(work[0].length * 2, workLength + frames);
+            for (int channel = 0; channel < filterChannels; channel++) {
+                float[] larger = new float[capacity];
+                System.arraycopy(work[channel], 0, larger, 0, workLength);
+                work[channel] = larger;
+            }
+        }
+        int frameSize = 2 * inChannels;
+        for (int frame = 0; frame < frames; frame++) {
+            int position = offset + frame * frameSize;
+            if (filterChannels == inChannels) {
+                for (int channel = 0; channel < inChannels; channel++) {
+                    work[channel][workLength] = sample(in, position + channel * 2);
+                }
+            } else {
+                // Mix down
+                float value = 0;
+                for (int channel = 0; channel < inChannels; channel++) {
+                    value += sample(in, position + channel * 2);
+                }
+                work[0][workLength] = value / inChannels;
+            }
+            workLength++;
+        }
+    }
+
+    private int filter(float[] coefficients, float[] samples, int start) {
+        float sum = 0;
+        for (int tap = 0; tap < taps; tap++) {
+            sum += coefficients[tap] * samples[start + tap];
+        }
+        return Math.max(-32768, Math.min(32767, Math.round(sum)));
+    }
+
+    private static float sample(byte[] data, int offset) {
+        return (short) ((data[offset] & 0xff) | (data[offset + 1] << 8));
+    }
+
+    /**
+     * The filter coefficients for each phase. Each phase is normalized to a gain of 1.
+     */
+    private static float[][] createTable(int phases, int taps, int half, double cutoff) {
+        float[][] table = new float[phases][taps];
+        double besselBeta = bessel0(KAISER_BETA);
+        for (int p = 0; p < phases; p++) {
+            double fraction = (double) p / phases;
+            double sum = 0;
+            double[] h = new double[taps];
+            for (int tap = 0; tap < taps; tap++) {
+                // Distance (in input samples) from the output position
+                double t = (tap - half + 1) - fraction;
+                double x = t / half;
+                double window = (Math.abs(x) >= 1.0 ? 0.0 : bessel0(KAISER_BETA * Math.sqrt(1.0 - x * x)) / besselBeta);
+                double sinc = (t == 0.0 ? 1.0 : Math.sin(Math.PI * cutoff * t) / (Math.PI * cutoff * t));
+                h[tap] = cutoff * sinc * window;
+                sum += h[tap];
+            }
+            for (int tap = 0; tap < taps; tap++) {
+                table[p][tap] = (float) (h[tap] / sum);
+            }
+        }
+        return table;
+    }
+
+    /**
+     * Zeroth order modified Bessel function of the first kind (for the Kaiser window).
+     */
+    private static double bessel0(double x) {
+        double sum = 1.0;
+        double term = 1.0;
+        double halfX = x / 2.0;
+        for (int k = 1; k < 50; k++) {
+            term *= (halfX / k) * (halfX / k);
+            sum += term;
+            if (term < sum * 1e-12) {
+                break;
+            }
+        }
+        return sum;
+    }
+
+    private static int gcd(int a, int b) {
+        while (b != 0) {
+            int t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+
+    private static void checkFormat(AudioFormat format) {
+        if (!AudioFormat.Encoding.PCM_SIGNED.equals(format.getEncoding()) || format.getSampleSizeInBits() != 16
+                || format.isBigEndian() || format.getChannels() < 1) {
+            throw new IllegalArgumentException("Only 16 bit signed little-endian PCM can be resampled: " + format);
+        }
+    }
+}
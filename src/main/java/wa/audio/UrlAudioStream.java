@@ -0,0 +1,208 @@
+/**
+ * Copyright 2018 IBM Corporation. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package wa.audio;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import okhttp3.Call;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import wa.util.SharedHttpClient;
+
+/**
+ * Input stream of (encoded) audio from a URL, read ahead on a background thread.
+ *
+ * The audio is requested with the shared HTTP client (pooled, kept alive connections). A
+ * read-ahead thread copies the response into a buffer, so network jitter doesn't stall the
+ * decoder. If the connection fails part way through and the server supports byte ranges, the
+ * request is resumed from the last byte received.
+ */
+public class UrlAudioStream extends InputStream {
+    // Initialize our logger
+    private static final Logger LOG = LogManager.getLogger(UrlAudioStream.class);
+
+    // How long the reader waits for data before checking for the end of the stream
+    private static final long DATA_WAIT_MS = 20;
+    private static final int MAX_RESUMES = 1;
+    // How long the read-ahead waits for the decoder to make room (the decoder is paced by the speaker)
+    private static final long READ_AHEAD_BLOCK_MS = 30000;
+
+    private final String url;
+    private final AudioRingBuffer buffer;
+    private final Thread readAheadThread;
+    private final long startTS = System.currentTimeMillis();
+
+    private volatile Call call = null;
+    private volatile boolean complete = false;
+    private volatile boolean closed = false;
+    private volatile IOException error = null;
+    private volatile long connectMillis = -1;
+    private volatile long bytesReceived = 0;
+    private volatile int resumes = 0;
+
+    /**
+     * Request the URL and start reading ahead.
+     *
+     * @param url - the audio URL
+     * @param readAheadBytes - size of the read-ahead buffer
+     */
+    public UrlAudioStream(String url, int readAheadBytes) {
+        this.url = url;
+        // The read-ahead waits (BLOCK) while the buffer is full - the decoder sets the pace
+        this.buffer = new AudioRingBuffer(readAheadBytes, AudioRingBuffer.OverflowPolicy.BLOCK, READ_AHEAD_BLOCK_MS);
+        this.readAheadThread = new Thread(this::readAhead, "URL Audio Read-Ahead");
+        this.readAheadThread.setDaemon(true);
+        this.readAheadThread.start();
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] single = new byte[1];
+        int count = read(single, 0, 1);
+        return (count < 0 ? -1 : single[0] & 0xff);
+    }
+
+    /**
+     * Read audio, waiting for at least one byte (or the end of the stream).
+     */
+    @Override
+    public int read(byte[] dst, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        try {
+            while (!closed) {
+                int count = buffer.read(dst, offset, length);
+                if (count > 0) {
+                    return count;
+                }
+                if (complete && buffer.available() == 0) {
+                    if (null != error) {
+                        throw error;
+                    }
+                    return -1;
+                }
+                buffer.awaitData(1, DATA_WAIT_MS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted reading URL audio", e);
+        }
+        return -1;
+    }
+
+    @Override
+    public int available() {
+        return buffer.available();
+    }
+
+    /**
+     * Stop reading (cancels the request if it is still in progress).
+     */
+    @Override
+    public void close() {
+        closed = true;
+        Call current = call;
+        if (null != current) {
+            current.cancel();
+        }
+        readAheadThread.interrupt();
+    }
+
+    /**
+     * @return the time (mS) until the response headers were received (-1 if not yet received)
+     */
+    public long getConnectMillis() {
+        return connectMillis;
+    }
+
+    /**
+     * @return the number of bytes received
+     */
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    /**
+     * @return the number of times the request was resumed after a failure
+     */
+    public int getResumes() {
+        return resumes;
+    }
+
+    /**
+     * @return the largest amount of audio (bytes) that was read ahead
+     */
+    public int getReadAheadHighWaterMark() {
+        return buffer.getHighWaterMark();
+    }
+
+    private void readAhead() {
+        boolean rangesSupported = false;
+        byte[] chunk = new byte[8 * 1024];
+        try {
+            while (!closed) {
+                Request.Builder request = new Request.Builder().url(url).get();
+                long resumeFrom = bytesReceived;
+                if (resumeFrom > 0) {
+                    request.header("Range", "bytes=" + resumeFrom + "-");
+                }
+                call = SharedHttpClient.get().newCall(request.build());
+                try (Response response = call.execute()) {
+                    if (connectMillis < 0) {
+                        connectMillis = System.currentTimeMillis() - startTS;
+                    }
+                    if (!response.isSuccessful() || (resumeFrom > 0 && response.code() != 206)) {
+                        throw new IOException(String.format("URL audio request failed (HTTP %d): %s", response.code(), url));
+                    }
+                    rangesSupported = "bytes".equalsIgnoreCase(response.header("Accept-Ranges")) || resumeFrom > 0;
+                    ResponseBody body = response.body();
+                    InputStream in = body.byteStream();
+                    int count;
+                    while (!closed && (count = in.read(chunk, 0, chunk.length)) != -1) {
+                        if (buffer.write(chunk, 0, count) < count) {
+                            LOG.warn("URL audio is not being read - stopping the read-ahead");
+                            return;
+                        }
+                        bytesReceived += count;
+                    }
+                    return;
+                } catch (IOException e) {
+                    if (closed) {
+                        return;
+                    }
+                    if (!rangesSupported || bytesReceived == 0 || resumes >= MAX_RESUMES) {
+                        throw e;
+                    }
+                    resumes++;
+                    LOG.warn(String.format("URL audio interrupted after %d bytes - resuming: %s", bytesReceived, e));
+                }
+            }
+        } catch (IOException e) {
+            LOG.error("Error reading URL audio: " + e);
+            error = e;
+        } catch (InterruptedException e) {
+            // Closed
+        } finally {
+            complete = true;
+        }
+    }
+}
@@ -0,0 +1,243 @@
+/**
+ * Copyright 2018 IBM Corporation. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package wa.audio;
+
+/**
+ * Energy and zero-crossing voice activity detector for the captured audio.
+ *
+ * The audio (16 bit signed little-endian mono PCM) is analyzed in 20mS frames. A frame is
+ * speech when its energy is well above the (tracked) background noise level, or somewhat
+ * above it with a high zero-crossing rate (unvoiced sounds like 's' and 'f' are quiet but
+ * 'noisy'). The background level starts at the level of the first frame and then follows
+ * the non-speech frames. Speech has started after 100mS of speech frames and has ended after a
+ * configurable period without speech frames.
+ *
+ * Positions are in bytes of audio processed since the detector was created (or reset).
+ *
+ * This object is not thread safe. It is intended to be used by the capture thread.
+ */
+public class VoiceActivityDetector {
+
+    private static final int FRAME_MILLIS = 20;
+    private static final int SPEECH_START_MILLIS = 100;
+    // Frames quieter than this are never speech (dBFS)
+    private static final double MIN_SPEECH_ENERGY_DB = -55;
+    // How fast the background level rises (falls are followed immediately)
+    private static final double NOISE_FLOOR_RISE = 0.05;
+    // Zero crossings per sample for unvoiced speech
+    private static final double UNVOICED_ZERO_CROSSING_RATE = 0.25;
+
+    private final int frameSamples;
+    private final int bytesPerMillisecond;
+    private final double thresholdDb;
+    private final int speechStartFrames;
+    private final int endSilenceFrames;
+    private boolean trimLeadingSilence = false;
+    private int leadInMillis = 0;
+
+    // Frame being accumulated
+    private final int[] frame;
+    private int frameCount;
+    private int pendingByte = -1;
+
+    private double noiseFloorDb;
+    private int speechRun;
+    private int silenceRun;
+    private boolean speechDetected;
+    private boolean endOfSpeech;
+    private long position;
+    private long speechStartPosition;
+    private long speechEndPosition;
+
+    /**
+     * @param sampleRate - sample rate of the audio (Hz)
+     * @param thresholdDb - how far above the background level the energy of speech is (dB)
+     * @param endSilenceMillis - time without speech that ends the speech
+     */
+    public VoiceActivityDetector(int sampleRate, double thresholdDb, int endSilenceMillis) {
+        this.frameSamples = sampleRate * FRAME_MILLIS / 1000;
+        this.bytesPerMillisecond = sampleRate * 2 / 1000;
+        this.thresholdDb = thresholdDb;
+        this.speechStartFrames = Math.max(1, SPEECH_START_MILLIS / FRAME_MILLIS);
+        this.endSilenceFrames = Math.max(1, endSilenceMillis / FRAME_MILLIS);
+        this.frame = new int[frameSamples];
+        reset();
+    }
+
+    /**
+     * Set if the silence before the speech should be trimmed (not sent to the server).
+     *
+     * @param trimLeadingSilence - true to trim the leading silence
+     * @param leadInMillis - amount of audio to keep before the speech is detected
+     */
+    public void setLeadingSilenceTrim(boolean trimLeadingSilence, int leadInMillis) {
+        this.trimLeadingSilence = trimLeadingSilence;
+        this.leadInMillis = leadInMillis;
+    }
+
+    /**
+     * @return true if the silence before the speech should be trimmed
+     */
+    public boolean isTrimLeadingSilence() {
+        return trimLeadingSilence;
+    }
+
+    /**
+     * @return the amount of audio (bytes) to keep before the speech is detected when trimming
+     */
+    public int getLeadInBytes() {
+        return leadInMillis * bytesPerMillisecond;
+    }
+
+    /**
+     * Reset for a new capture.
+     */
+    public void reset() {
+        frameCount = 0;
+        pendingByte = -1;
+        noiseFloorDb = Double.NaN;
+        speechRun = 0;
+        silenceRun = 0;
+        speechDetected = false;
+        endOfSpeech = false;
+        position = 0;
+        speechStartPosition = -1;
+        speechEndPosition = -1;
+    }
+
+    /**
+     * Analyze captured audio.
+     *
+     * @param pcm - array containing the audio
+     * @param offset - offset of the audio in the array
+     * @param length - number of bytes
+     * @return true if the end of speech has been detected
+     */
+    public boolean process(byte[] pcm, int offset, int length) {
+        int i = offset;
+        int end = offset + length;
+        if (pendingByte >= 0 && i < end) {
+            addSample((short) ((pcm[i++] << 8) | pendingByte));
+            pendingByte = -1;
+        }
+        while (i + 1 < end) {
+            addSample((short) ((pcm[i + 1] << 8) | (pcm[i] & 0xff)));
+            i += 2;
+        }
+        if (i < end) {
+            pendingByte = pcm[i] & 0xff;
+        }
+        return endOfSpeech;
+    }
+
+    /**
+     * @return true once speech has been detected
+     */
+    public boolean isSpeechDetected() {
+        return speechDetected;
+    }
+
+    /**
+     * @return true once the end of speech has been detected
+     */
+    public boolean isEndOfSpeech() {
+        return endOfSpeech;
+    }
+
+    /**
+     * @return the position (bytes) of the start of the speech, or -1 if no speech has been detected
+     */
+    public long getSpeechStartPosition() {
+        return speechStartPosition;
+    }
+
+    /**
+     * @return the position (bytes) of the end of the speech, or -1 if the end has not been detected
+     */
+    public long getSpeechEndPosition() {
+        return speechEndPosition;
+    }
+
+    /**
+     * Convert a position (or length) in bytes to milliseconds.
+     *
+     * @param bytes - position or length
+     * @return milliseconds
+     */
+    public long toMillis(long bytes) {
+        return bytes / bytesPerMillisecond;
+    }
+
+    private void addSample(int sample) {
+        frame[frameCount++] = sample;
+        if (frameCount == frameSamples) {
+            analyzeFrame();
+            frameCount = 0;
+        }
+    }
+
+    private void analyzeFrame() {
+        long sumOfSquares = 0;
+        int zeroCrossings = 0;
+        int previous = frame[0];
+        for (int i = 0; i < frameSamples; i++) {
+            int sample = frame[i];
+            sumOfSquares += (long) sample * sample;
+            if ((sample ^ previous) < 0) {
+                zeroCrossings++;
+            }
+            previous = sample;
+        }
+        double meanSquare = (double) sumOfSquares / frameSamples;
+        double energyDb = 10 * Math.log10((meanSquare + 1) / (32768.0 * 32768.0));
+        double zeroCrossingRate = (double) zeroCrossings / frameSamples;
+        if (Double.isNaN(noiseFloorDb)) {
+            // The first frame sets the initial background level
+            noiseFloorDb = energyDb;
+        }
+
+        boolean speech = (energyDb > MIN_SPEECH_ENERGY_DB)
+                && ((energyDb > noiseFloorDb + thresholdDb)
+                        || (energyDb > noiseFloorDb + (thresholdDb / 2) && zeroCrossingRate > UNVOICED_ZERO_CROSSING_RATE));
+
+        long frameStart = position;
+        position += frameSamples * 2;
+
+        if (speech) {
+            speechRun++;
+            silenceRun = 0;
+            if (!speechDetected && speechRun >= speechStartFrames) {
+                speechDetected = true;
+                speechStartPosition = frameStart - (long) (speechRun - 1) * frameSamples * 2;
+            }
+        } else {
+            speechRun = 0;
+            // Track the background level
+            if (energyDb < noiseFloorDb) {
+                noiseFloorDb = energyDb;
+            } else {
+                noiseFloorDb += (energyDb - noiseFloorDb) * NOISE_FLOOR_RISE;
+            }
+            if (speechDetected && !endOfSpeech) {
+                silenceRun++;
+                if (silenceRun >= endSilenceFrames) {
+                    endOfSpeech = true;
+                    speechEndPosition = position - (long) silenceRun * frameSamples * 2;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,438 @@
+/**
+ * Copyright 2018 IBM Corporation. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package wa.client;
+
+/**
+ * Streaming decoder for `audio_data` messages received from the server.
+ *
+ * The server sends the audio as either a numeric array (a serialized Node.js Buffer):
+ * <pre>
+ *   {"action":"audio_data","id":"...","data":{"type":"Buffer","data":[12,255,0,...]}}
+ * </pre>
+ * or as a base64 string (either directly as `data` or as `data.data`):
+ * <pre>
+ *   {"action":"audio_data","id":"...","encoding":"base64","data":"AAEC..."}
+ * </pre>
+ *
+ * The message text is scanned once and the audio bytes are written straight into a
+ * buffer that is reused from message to message. No JSON object tree is built and no
+ * per-byte objects are created.
+ *
+ * Anything that is not a well formed `audio_data` message is rejected (decode returns false)
+ * so the caller can fall back to the general (org.json) message handling.
+ *
+ * This object is not thread safe. It is intended to be used by the single thread
+ * that receives the WebSocket messages.
+ */
+public class AudioDataMessageDecoder {
+
+    private static final String ACTION_AUDIO_DATA = "audio_data";
+    private static final int INITIAL_BUFFER_SIZE = 16 * 1024;
+    private static final byte[] BASE64_VALUES = new byte[128];
+
+    static {
+        for (int i = 0; i < BASE64_VALUES.length; i++) {
+            BASE64_VALUES[i] = -1;
+        }
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        for (int i = 0; i < alphabet.length(); i++) {
+            BASE64_VALUES[alphabet.charAt(i)] = (byte) i;
+        }
+        // Also accept the URL safe alphabet
+        BASE64_VALUES['-'] = 62;
+        BASE64_VALUES['_'] = 63;
+    }
+
+    private byte[] buffer;
+    private int length;
+    private String id;
+
+    // Parse state (valid only during a call to decode)
+    private String text;
+    private int pos;
+    private boolean actionIsAudioData;
+    private boolean dataFound;
+
+    public AudioDataMessageDecoder() {
+        this(INITIAL_BUFFER_SIZE);
+    }
+
+    /**
+     * @param initialBufferSize - initial size of the (growable) audio buffer
+     */
+    public AudioDataMessageDecoder(int initialBufferSize) {
+        this.buffer = new byte[Math.max(initialBufferSize, 16)];
+    }
+
+    /**
+     * Quick check (no parsing) if a message could be an `audio_data` message.
+     *
+     * @param text - message text
+     * @return true if the message might be an `audio_data` message
+     */
+    public static boolean isAudioDataMessage(String text) {
+        return (null != text && text.indexOf(ACTION_AUDIO_DATA) > 0);
+    }
+
+    /**
+     * Decode a message.
+     *
+     * @param message - message text received from the server
+     * @return true if the message is an `audio_data` message and was decoded. The id and
+     *         the audio are then available from `getId`, `getBuffer` and `getLength`.
+     *         false if the message is not an `audio_data` message or could not be decoded.
+     */
+    public boolean decode(String message) {
+        this.text = message;
+        this.pos = 0;
+        this.length = 0;
+        this.id = null;
+        this.actionIsAudioData = false;
+        this.dataFound = false;
+        try {
+            if (null == message || !parseTopLevelObject()) {
+                return false;
+            }
+            return (actionIsAudioData && dataFound && null != id);
+        } catch (MalformedMessage | IndexOutOfBoundsException e) {
+            return false;
+        } finally {
+            this.text = null;
+        }
+    }
+
+    /**
+     * @return the audio id of the last decoded message
+     */
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * The buffer holding the audio of the last decoded message. The buffer is reused by the
+     * next call to `decode` so the content must be consumed (copied) before then.
+     *
+     * @return the audio buffer (valid from 0 to getLength())
+     */
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * @return the number of audio bytes in the buffer for the last decoded message
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /*
+     * Parsing
+     */
+
+    private static class MalformedMessage extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        MalformedMessage() {
+            super(null, null, false, false); // Used for flow control - no stack trace needed
+        }
+    }
+
+    private static final MalformedMessage MALFORMED = new MalformedMessage();
+
+    private boolean parseTopLevelObject() throws MalformedMessage {
+        skipWhitespace();
+        expect('{');
+        skipWhitespace();
+        if (peek() == '}') {
+            return false;
+        }
+        while (true) {
+            skipWhitespace();
+            int keyStart = pos + 1;
+            int keyEnd = skipString();
+            skipWhitespace();
+            expect(':');
+            skipWhitespace();
+            if (keyMatches(keyStart, keyEnd, "action")) {
+                if (peek() != '"') {
+                    return false;
+                }
+                int valueStart = pos + 1;
+                int valueEnd = skipString();
+                if (!keyMatches(valueStart, valueEnd, ACTION_AUDIO_DATA)) {
+                    // Not an audio_data message - stop now
+                    return false;
+                }
+                actionIsAudioData = true;
+            } else if (keyMatches(keyStart, keyEnd, "id")) {
+                id = parseStringValue();
+            } else if (keyMatches(keyStart, keyEnd, "data")) {
+                parseData(true);
+            } else {
+                skipValue();
+            }
+            skipWhitespace();
+            char c = next();
+            if (c == '}') {
+                return true;
+            }
+            if (c != ',') {
+                throw MALFORMED;
+            }
+        }
+    }
+
+    /**
+     * Parse the `data` value - which can be an object with a nested `data`, a numeric array,
+     * or a base64 string.
+     */
+    private void parseData(boolean allowNestedObject) throws MalformedMessage {
+        char c = peek();
+        if (c == '[') {
+            parseNumericArray();
+            dataFound = true;
+        } else if (c == '"') {
+            parseBase64String();
+            dataFound = true;
+        } else if (c == '{' && allowNestedObject) {
+            next();
+            skipWhitespace();
+            if (peek() == '}') {
+                next();
+                return;
+            }
+            while (true) {
+                skipWhitespace();
+                int keyStart = pos + 1;
+                int keyEnd = skipString();
+                skipWhitespace();
+                expect(':');
+                skipWhitespace();
+                if (keyMatches(keyStart, keyEnd, "data")) {
+                    parseData(false);
+                } else {
+                    skipValue();
+                }
+                skipWhitespace();
+                char n = next();
+                if (n == '}') {
+                    return;
+                }
+                if (n != ',') {
+                    throw MALFORMED;
+                }
+            }
+        } else {
+            skipValue();
+        }
+    }
+
+    private void parseNumericArray() throws MalformedMessage {
+        expect('[');
+        int count = 0;
+        byte[] out = buffer;
+        skipWhitespace();
+        if (peek() == ']') {
+            next();
+            length = 0;
+            return;
+        }
+        final String s = text;
+        while (true) {
+            // Inline whitespace skip and integer parse (hot loop)
+            char c = s.charAt(pos);
+            while (c == ' ' || c == '\n' || c == '\r' || c == '\t') {
+                c = s.charAt(++pos);
+            }
+            boolean negative = false;
+            if (c == '-') {
+                negative = true;
+                c = s.charAt(++pos);
+            }
+            int value = c - '0';
+            if (value < 0 || value > 9) {
+                throw MALFORMED;
+            }
+            c = s.charAt(++pos);
+            int digit;
+            while ((digit = c - '0') >= 0 && digit <= 9) {
+                value = (value * 10) + digit;
+                c = s.charAt(++pos);
+            }
+            if (count == out.length) {
+                out = grow(count + 1);
+            }
+            out[count++] = (byte) (negative ? -value : value);
+            while (c == ' ' || c == '\n' || c == '\r' || c == '\t') {
+                c = s.charAt(++pos);
+            }
+            pos++;
+            if (c == ']') {
+                break;
+            }
+            if (c != ',') {
+                throw MALFORMED;
+            }
+        }
+        length = count;
+    }
+
+    private void parseBase64String() throws MalformedMessage {
+        expect('"');
+        final String s = text;
+        // Size the buffer from the (maximum) encoded length
+        int end = s.indexOf('"', pos);
+        if (end < 0) {
+            throw MALFORMED;
+        }
+        int maxDecoded = ((end - pos) / 4 + 1) * 3;
+        byte[] out = (buffer.length < maxDecoded ? grow(maxDecoded) : buffer);
+        int count = 0;
+        int accumulator = 0;
+        int bits = 0;
+        while (true) {
+            char c = s.charAt(pos++);
+            if (c == '"') {
+                break;
+            }
+            if (c == '\\') {
+                // Only an escaped '/' is expected in base64 content
+                c = s.charAt(pos++);
+                if (c != '/') {
+                    throw MALFORMED;
+                }
+            }
+            if (c == '=' || c == '\n' || c == '\r') {
+                continue;
+            }
+            int value = (c < 128 ? BASE64_VALUES[c] : -1);
+            if (value < 0) {
+                throw MALFORMED;
+            }
+            accumulator = (accumulator << 6) | value;
+            bits += 6;
+            if (bits >= 8) {
+                bits -= 8;
+                if (count == out.length) {
+                    out = grow(count + 1);
+                }
+                out[count++] = (byte) (accumulator >> bits);
+            }
+        }
+        length = count;
+    }
+
+    private byte[] grow(int minSize) {
+        int newSize = Math.max(minSize, buffer.length * 2);
+        byte[] newBuffer = new byte[newSize];
+        System.arraycopy(buffer, 0, newBuffer, 0, buffer.length);
+        buffer = newBuffer;
+        return newBuffer;
+    }
+
+    private String parseStringValue() throws MalformedMessage {
+        if (peek() != '"') {
+            skipValue();
+            return null;
+        }
+        int start = pos + 1;
+        int end = skipString();
+        String value = text.substring(start, end);
+        if (value.indexOf('\\') >= 0) {
+            // Escaped content is not expected in an id
+            throw MALFORMED;
+        }
+        return value;
+    }
+
+    /**
+     * Skips a string (pos must be at the opening quote).
+     *
+     * @return the index of the closing quote
+     */
+    private int skipString() throws MalformedMessage {
+        expect('"');
+        final String s = text;
+        while (true) {
+            char c = s.charAt(pos++);
+            if (c == '"') {
+                return pos - 1;
+            }
+            if (c == '\\') {
+                pos++;
+            }
+        }
+    }
+
+    private void skipValue() throws MalformedMessage {
+        char c = peek();
+        if (c == '"') {
+            skipString();
+            return;
+        }
+        if (c == '{' || c == '[') {
+            int depth = 0;
+            do {
+                c = text.charAt(pos);
+                if (c == '"') {
+                    skipString();
+                    continue;
+                }
+                if (c == '{' || c == '[') {
+                    depth++;
+                } else if (c == '}' || c == ']') {
+                    depth--;
+                }
+                pos++;
+            } while (depth > 0);
+            return;
+        }
+        // number, true, false, null
+        while (true) {
+            c = text.charAt(pos);
+            if (c == ',' || c == '}' || c == ']' || c == ' ' || c == '\n' || c == '\r' || c == '\t') {
+                return;
+            }
+            pos++;
+        }
+    }
+
+    private boolean keyMatches(int start, int end, String key) {
+        return (end - start == key.length() && text.regionMatches(start, key, 0, key.length()));
+    }
+
+    private void skipWhitespace() {
+        final String s = text;
+        char c;
+        while (pos < s.length() && ((c = s.charAt(pos)) == ' ' || c == '\n' || c == '\r' || c == '\t')) {
+            pos++;
+        }
+    }
+
+    private char peek() {
+        return text.charAt(pos);
+    }
+
+    private char next() {
+        return text.charAt(pos++);
+    }
+
+    private void expect(char expected) throws MalformedMessage {
+        if (text.charAt(pos++) != expected) {
+            throw MALFORMED;
+        }
+    }
+}
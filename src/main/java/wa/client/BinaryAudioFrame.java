@@ -0,0 +1,115 @@
+/**
+ * Copyright 2018 IBM Corporation. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package wa.client;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import okio.ByteString;
+
+/**
+ * Binary (WebSocket binary message) audio data frames.
+ *
+ * Used in place of the JSON `audio_data` action (with base64 or numeric array audio) when
+ * binary audio has been negotiated with the server. Each frame carries the audio (in the
+ * negotiated content type - PCM or, for the upload, FLAC) tagged with the interaction/audio id:
+ * <pre>
+ *   +------+--------+----------------+----------------------------------------
+ *   | type | id len | id (UTF-8)     | audio (in the negotiated content type)
+ *   | 1    | 1      | 'id len' bytes | remaining bytes
+ *   +------+--------+----------------+----------------------------------------
+ * </pre>
+ * The other actions (audio_start, audio_end, ...) are still sent as JSON text messages.
+ */
+public final class BinaryAudioFrame {
+
+    /** Frame type for audio data */
+    public static final byte TYPE_AUDIO_DATA = 0x01;
+
+    private static final int HEADER_FIXED_SIZE = 2;
+    private static final int MAX_ID_LENGTH = 255;
+
+    private BinaryAudioFrame() {
+    }
+
+    /**
+     * Create an audio data frame.
+     *
+     * @param id - the interaction/audio id
+     * @param audio - buffer containing the audio
+     * @param offset - offset of the audio in the buffer
+     * @param length - number of audio bytes
+     * @return the frame
+     */
+    public static ByteString encode(String id, byte[] audio, int offset, int length) {
+        byte[] idBytes = id.getBytes(StandardCharsets.UTF_8);
+        if (idBytes.length > MAX_ID_LENGTH) {
+            throw new IllegalArgumentException("Audio id is too long for a binary audio frame: " + id);
+        }
+        int headerSize = HEADER_FIXED_SIZE + idBytes.length;
+        byte[] frame = new byte[headerSize + length];
+        frame[0] = TYPE_AUDIO_DATA;
+        frame[1] = (byte) idBytes.length;
+        System.arraycopy(idBytes, 0, frame, HEADER_FIXED_SIZE, idBytes.length);
+        System.arraycopy(audio, offset, frame, headerSize, length);
+        return ByteString.of(frame);
+    }
+
+    /**
+     * @param frame - a binary message
+     * @return true if the message is a (well formed) audio data frame
+     */
+    public static boolean isAudioData(ByteString frame) {
+        return (null != frame && frame.size() >= HEADER_FIXED_SIZE && TYPE_AUDIO_DATA == frame.getByte(0)
+                && frame.size() >= getAudioOffset(frame));
+    }
+
+    /**
+     * @param frame - an audio data frame
+     * @return the interaction/audio id
+     */
+    public static String getId(ByteString frame) {
+        return frame.substring(HEADER_FIXED_SIZE, getAudioOffset(frame)).utf8();
+    }
+
+    /**
+     * @param frame - an audio data frame
+     * @return the offset of the audio in the frame
+     */
+    public static int getAudioOffset(ByteString frame) {
+        return HEADER_FIXED_SIZE + (frame.getByte(1) & 0xff);
+    }
+
+    /**
+     * @param frame - an audio data frame
+     * @return the number of audio bytes in the frame
+     */
+    public static int getAudioLength(ByteString frame) {
+        return frame.size() - getAudioOffset(frame);
+    }
+
+    /**
+     * A (read only) view of the audio in the frame. The audio is not copied.
+     *
+     * @param frame - an audio data frame
+     * @return buffer positioned at the audio, with the audio length remaining
+     */
+    public static ByteBuffer getAudio(ByteString frame) {
+        ByteBuffer audio = frame.asByteBuffer();
+        audio.position(getAudioOffset(frame));
+        return audio;
+    }
+}
@@ -15,23 +15,21 @@ package wa.client;
  * limitations under the License.
  */
 
+import java.io.File;
 import java.io.IOException;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
-import java.net.HttpURLConnection;
 import java.net.InetAddress;
-import java.net.URL;
-import java.nio.charset.StandardCharsets;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Properties;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 
+import javax.sound.sampled.UnsupportedAudioFileException;
+
 import org.apache.commons.lang3.StringUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -45,22 +43,38 @@ import okhttp3.Response;
 import okhttp3.WebSocket;
 import okhttp3.WebSocketListener;
 import okio.ByteString;
+import wa.audio.AudioConstants;
+import wa.audio.AudioDeviceManager;
+import wa.audio.AudioEncoder;
 import wa.audio.AudioInput;
 import wa.audio.AudioOutput;
 import wa.audio.AudioPlayer;
 import wa.audio.AudioSocket;
+import wa.audio.EchoCanceller;
+import wa.audio.FlacAudioEncoder;
+import wa.audio.KeywordSpotter;
 import wa.audio.LocalAudio;
+import wa.audio.MicrophoneMonitor;
+import wa.audio.PcmAudioEncoder;
+import wa.audio.VoiceActivityDetector;
 import wa.commonLogging.CommonLogging;
-import wa.commonLogging.PerfInfoNameValue;
-import wa.commonLogging.PerfNumericNameValue;
+import wa.commonLogging.PerfRecord;
 import wa.exceptions.AuthenticationError;
 import wa.exceptions.ConnectionError;
+import wa.metrics.MetricsRegistry;
+import wa.metrics.MetricsServer;
+import wa.network.IamTokenManager;
 import wa.network.LocalNetworkInterface;
 import wa.status.StatusConsole;
 import wa.status.StatusIndicator;
 import wa.status.StatusLED;
 import wa.status.StatusPing;
+import wa.trigger.ListenBargeIn;
 import wa.util.CallStack;
+import wa.util.ActivityCounters;
+import wa.util.ActivityCounters.Activity;
+import wa.util.ActivityMeter;
+import wa.util.SharedHttpClient;
 import wa.util.Utils;
 
 public class Client extends WebSocketListener implements ThreadManager, Runnable {
@@ -70,8 +84,12 @@ public class Client extends WebSocketListener implements ThreadManager, Runnable
     private static final Logger LOG_SERVER_COMM_SEND = CommonLogging.LOG_SERVER_COMM_SEND;
 
 
-    private static final int MIN_RETRY_DELAY = 8;
-    private static final int MAX_RETRY_DELAY = 15;
+    // Fail-safe - a response (or a trigger) is allowed again if nothing is received after a capture
+    private static final long RESPONSE_TIMEOUT_MS = 45000;
+    // Time for the microphone to open for a prompt
+    private static final long PROMPT_TIMEOUT_MS = 5000;
+    // Where the IAM access token is saved (relative to the user's home directory)
+    private static final String DEFAULT_IAM_TOKEN_FILE = ".wa-audio-client/iam_token.properties";
 
     private boolean WE_SHOULD_KEEP_RUNNING = true;
 
@@ -87,6 +105,12 @@ public class Client extends WebSocketListener implements ThreadManager, Runnable
 
     private WebSocket webSocket;
 
+    // Sends the messages to the server (from its own thread)
+    private final OutboundSender outboundSender = new OutboundSender();
+
+    // Decoder for incoming audio data (only used by the WebSocket receive thread)
+    private final AudioDataMessageDecoder audioDataDecoder = new AudioDataMessageDecoder();
+
     private String iamAccessToken = null;
 
     private String skillset = null;
@@ -115,12 +139,48 @@ public class Client extends WebSocketListener implements ThreadManager, Runnable
 
     private Boolean enableResponseUrlProcessing;
 
+    // Binary audio upload - requested (configuration) and enabled (acknowledged by the server)
+    private boolean binaryAudioUploadRequested = false;
+    private volatile boolean binaryAudioUploadEnabled = false;
+    // Encoding of the captured audio sent to the server ('pcm' or 'flac')
+    private String audioUploadEncoding = "pcm";
+    // Voice activity detection on the captured audio (ends the capture at the end of speech)
+    private boolean vadEnabled = false;
+    private double vadThresholdDb = 12;
+    private int vadEndSilenceMillis = 800;
+    private boolean vadTrimLeadingSilence = false;
+    private int vadLeadInMillis = 300;
+    // Keep the microphone open, with audio from before the wake up trigger (pre-roll) included in the capture
+    private boolean alwaysOpenMic = false;
+    private int micPreRollMillis = 400;
+    // Full-duplex - the speaker's echo is removed from the (always open) microphone's audio while the output plays
+    private boolean fullDuplex = false;
+    private int aecFilterMillis = 128;
+    private int aecDelayMillis = 32;
+    private float aecStepSize = 0.5f;
+    private EchoCanceller echoCanceller = null;
+    // Full-duplex - speaking over the response (detected by a VAD) barges in
+    private boolean voiceBargeIn = true;
+    // Wake up on a keyword (spoken) - matched against recordings of the keyword (templates)
+    private boolean keywordTrigger = false;
+    private String keywordTemplates = null;
+    private float keywordThreshold = 1.2f;
+    // Metrics - served as Prometheus text on a local port (0 for none), and logged periodically (0 for never)
+    private int metricsPort = 20993;
+    private long metricsLogPeriodMillis = 60000;
+    private MetricsServer metricsServer = null;
+    // Show the audio activity (chunks captured, sent, received, played) on the console every so often (mS, 0 for never)
+    private long activityMeterMillis = 0;
+    // Ask the server to send the response audio as binary frames
+    private boolean binaryAudioDownloadRequested = false;
+
     private Boolean debug;
 
     private Constructor wakeupClassCtor;
 
-    private String currentAudioId;
-    private String previousAudioId;
+    // Interaction state (trigger, capture, response, playback, prompt)
+    private final InteractionStateMachine interactionState = new InteractionStateMachine(new InteractionActions(), RESPONSE_TIMEOUT_MS,
+            PROMPT_TIMEOUT_MS);
 
     // Client status
     private StatusIndicator indicator;
@@ -135,30 +195,45 @@ public class Client extends WebSocketListener implements ThreadManager, Runnable
     private long serverConnectionStatusLastSentTS = 0;
     final private Object serverConnectionStatusLock = new Object();
 
-    private boolean hasFailed = false;
+    private volatile boolean hasFailed = false;
+    // Held while (re)connecting - separate from the other locks so a slow connect doesn't hold up the rest of the client
+    private final Object connectLock = new Object();
+    // Decides when to (re)connect - driven by the connection callbacks
+    private ReconnectScheduler reconnectScheduler;
 
-    private Boolean wakeupTriggerAllowed = false;
     private long wakeupTriggerAllowedStatusLastSentTS = 0;
     final private Object wakeupTriggerAllowedLock = new Object();
 
     // audio url playing
     private String voiceUrl = null;
-    private boolean urlMode = false;
+    private volatile boolean urlMode = false;
+    private volatile AudioPlayer urlPlayer = null;
+    // When the last wake up trigger was received (System.nanoTime) - for the barge in latency
+    private volatile long triggerReceivedNanos = 0;
     private boolean muteThisClient = false;
 
     // Performance data (system time stamps)
-    private boolean perfDataSent = false;
-    private Long wakeupTriggerReceivedTS = null;
-    private Long transcriptReceivedTS = null;
-    private Long responseReceivedTS = null;
-    private Long textReceivedTS = null;
-    private Long audioStartReceivedTS = null;
-    private Long audioEndReceivedTS = null;
-    private Long audioPacketCount = (long) 0;
-    private Long audioDataSize = (long) 0;
-    private String performanceComment = null;
-    private String performanceTextResponse = null;
-    private String performanceTextTranscription = null;
+    private final InteractionMetrics interactionMetrics = new InteractionMetrics();
+    // Performance log records (preallocated - filled in each time they are logged)
+    private static final int PERF_TRIGGER = 0;
+    private static final int PERF_STT = 1;
+    private static final int PERF_RESP = 2;
+    private static final int PERF_TEXT = 3;
+    private static final int PERF_AUDIO_START = 4;
+    private static final int PERF_AUDIO_END = 5;
+    private static final int PERF_SPEAKER = 6;
+    private static final int PERF_FIRST_AUDIO = 7;
+    private static final int PERF_FIRST_PACKET = 8;
+    private static final int PERF_PACKETS = 9;
+    private static final int PERF_DATA = 10;
+    private static final int PERF_INFO_METHOD = 0;
+    private static final int PERF_INFO_STT = 1;
+    private static final int PERF_INFO_RESP = 2;
+    private final PerfRecord interactionPerfRecord = new PerfRecord("CLIENT",
+            new String[] { "Trigger: ", "STT: ", "Resp: ", "Text: ", "Audio> ", "Audio! ", "Speaker> ", "FirstAudio: ", "FirstPacket: ", "Packets: ", "Data: " },
+            new String[] { "Method: ", "STT: ", "RESP: " });
+    private final PerfRecord bargeInPerfRecord = new PerfRecord("BARGE-IN", new String[] { "Trigger-To-Silence(us): ", "Output-Cancel(us): " }, null);
+    private volatile String performanceComment = null;
     
     private class AuthException extends IOException {
         private static final long serialVersionUID = 1L;
@@ -168,91 +243,95 @@ public class Client extends WebSocketListener implements ThreadManager, Runnable
         }
     }
 
-    private class CleanUp implements Runnable {
-        private AudioInput audioInput;
-        private AudioOutput speaker;
-        private StatusIndicator statusIndicator;
-
-        public CleanUp(AudioInput audioInput, AudioOutput speaker, StatusIndicator statusLED) {
-            this.audioInput = audioInput;
-            this.speaker = speaker;
-            this.statusIndicator = statusLED;
-        }
-
-        @Override
-        public void run() {
-            if (currentAudioId != null) {
-                LOG.debug("Running CleanUp task");
-                currentAudioId = null;
-                this.audioInput.micClose();
-                this.statusIndicator.off();
-            }
+    /**
+     * Stop the output now - the streamed audio and a response being played from a URL.
+     *
+     * @return the time (nS) it took to silence the output
+     */
+    private long silenceOutput() {
+        long start = System.nanoTime();
+        audioOutput.cancel();
+        AudioPlayer player = urlPlayer;
+        if (null != player) {
+            urlPlayer = null;
+            player.cancel();
         }
+        return System.nanoTime() - start;
     }
 
-    private class EndOfAudioOutputTask implements Runnable {
-
-        private String id = null;
-        private boolean shouldPrompt = false;
-        private JSONObject promptSttOptions = null;
-
-        EndOfAudioOutputTask(String id, boolean shouldPrompt, JSONObject promptSttOptions) {
-            this.id = id;
-            this.shouldPrompt = shouldPrompt;
-            this.promptSttOptions = promptSttOptions;
-            LOG.debug(String.format("EndOfAudioOutputTask created with ID:%s  Should-Prompt:%b PromptSttOptions:%s", id, shouldPrompt, promptSttOptions));
-        }
+    /**
+     * Does the work for the interaction state changes (on the state machine's event thread).
+     */
+    private class InteractionActions implements InteractionStateMachine.Actions {
 
-        public void complexPromptSttOptions(JSONObject completPromptSttOptions) {
-            this.promptSttOptions = completPromptSttOptions;
+        @Override
+        public void startCapture(AudioInput.InputSource inputSource, JSONObject sttOptions) {
+            if (null != inputSource) {
+                // Triggered - cancel the output (TODO: really need to pause in case it is raise/lower volume - but for now we'll do this)
+                silenceOutput();
+                audioOutput.enable();
+                audioInput.setInputSource(inputSource);
+                startInteractionPerf();
+            } else {
+                LOG.debug("Continue conversation...");
+                audioInput.setSttOptions(sttOptions);
+            }
+            audioInput.capture();
         }
 
-        synchronized void shouldPrompt(boolean shouldPrompt) {
-            this.shouldPrompt = shouldPrompt;
-            this.promptSttOptions = null;
-            LOG.debug(String.format(" shouldPrompt being set to:%b PromptSttOptions:%s", shouldPrompt, promptSttOptions));
+        @Override
+        public void bargeIn(String audioId) {
+            // Silence the output first, then tell the server to stop sending the response
+            long silenceNanos = silenceOutput();
+            long triggerToSilenceNanos = System.nanoTime() - triggerReceivedNanos;
+            if (null != audioId) {
+                writeToServer(ClientHelpers.getClientCancelAudioAction(audioId).toString());
+            }
+            LOG.info(String.format("Barge in. Trigger-To-Silence: %.2fms (Output-Cancel: %.2fms) Cancelled-ID: %s", triggerToSilenceNanos / 1e6, silenceNanos / 1e6,
+                    audioId));
+            synchronized (bargeInPerfRecord) {
+                bargeInPerfRecord.set(0, TimeUnit.NANOSECONDS.toMicros(triggerToSilenceNanos));
+                bargeInPerfRecord.set(1, TimeUnit.NANOSECONDS.toMicros(silenceNanos));
+                CommonLogging.logPerformanceRecord(bargeInPerfRecord);
+            }
         }
 
-        synchronized void shouldPrompt(boolean shouldPrompt, JSONObject complexPromptSttOptions) {
-            this.shouldPrompt = shouldPrompt;
-            this.promptSttOptions = complexPromptSttOptions;
-            LOG.debug(String.format(" shouldPrompt being set to:%b PromptSttOptions:%s", shouldPrompt, complexPromptSttOptions));
+        @Override
+        public void stopCapture() {
+            if (audioInput.micIsOpen()) {
+                audioInput.micClose();
+            }
         }
 
-        synchronized boolean shouldPrompt() {
-            return shouldPrompt;
+        @Override
+        public void startOutput(String audioId) {
+            // Start the speaker thread, data will be written to its internal buffer on
+            // subsequent audio_data events, and blink the status LED
+            audioOutput.startAudioOutput(Client.this);
+            indicator.blink(250);
         }
 
         @Override
-        public void run() {
-            if (shouldPrompt) {
-                LOG.info(String.format(" EndOfAudioOutputTask (ID=%s) - Prompting...", id));
-                Client.this.continueConversation(id, promptSttOptions);
-            }
-            // Make sure the wakeup trigger is enabled.
-            Client.this.wakeupTriggerIsAllowed();
-            // Wipe ourself out!
-            Client.this.endOfAudioOutputTask = null;
+        public void finishOutput() {
+            // Returns at once - the output thread calls finishedPlayingOutput when it has played the rest
+            audioOutput.finish();
         }
-    }
-
-    private EndOfAudioOutputTask endOfAudioOutputTask = null;
-
-    // Scheduler for executing a fail-safe for the Client Wake Trigger enable
-    private final ScheduledExecutorService wakeTriggerEnableScheduler = Executors.newScheduledThreadPool(1);
-    private ScheduledFuture<?> wakeTriggerEnablerFuture;
 
-    private class WakeTriggerEnableFailSafe implements Runnable {
-        Client client = null;
-
-        public WakeTriggerEnableFailSafe(Client client) {
-            this.client = client;
+        @Override
+        public void stopOutput() {
+            audioOutput.stop();
         }
 
         @Override
-        public void run() {
-            LOG.debug("WakeTriggerEnableFailSafe running...");
-            client.wakeupTriggerIsAllowed();
+        public void stateChanged(InteractionStateMachine.State from, InteractionStateMachine.State to) {
+            boolean allowed = InteractionStateMachine.isTriggerAllowed(to);
+            if (allowed != InteractionStateMachine.isTriggerAllowed(from)) {
+                LOG.debug(String.format("Wakeup trigger `%s` allowed.", (allowed ? "IS NOW" : "IS NOT")));
+                SocketCommandProcessor scp = getSocketCommandProcessor();
+                if (null != scp) {
+                    scp.sendWakeupTriggerIsAllowed(allowed);
+                }
+            }
         }
     }
 
@@ -285,61 +364,30 @@ public class Client extends WebSocketListener implements ThreadManager, Runnable
         // Try to connect
         String threadName = Thread.currentThread().getName();
 
-        long reconnectDelay = MIN_RETRY_DELAY;
-        long readyStateConnectAttemps = 0;
+        // Keep the IAM access token fresh, so reconnecting doesn't wait for it
+        iamTokenManager.start();
+        // Connect now - the connection callbacks schedule the attempts that follow
+        reconnectScheduler.connectionLost();
         do {
             try {
-                // connect, and stay connected... - try to reconnect if needed
-                // If the server connection isn't in the READY state we need to be doing one of
-                // the following:
-                // (if)
-                // 1) NOT_CONNECTED: Try to connect
-                // 2) CONNECTING: Wait for timeout for connection to occur
-                // 3) CONNECTED: Wait for timeout for 'READY' state to occur
-                while (ServerConnectionStatus.READY != getServerConnectionStatus()) {
-                    // Any status but READY - we should close the microphone
-                    readyStateConnectAttemps++;
-                    try {
-                        if (this.audioInput.micIsOpen()) {
-                            LOG.info("Server connection is not ready and microphone is open. Close the microphone.");
-                            this.audioInput.micClose();
-                        }
-                    } catch (RuntimeException e) {
-                        // For now - print this so we can see why we can't connect...
-                        LOG.error("Server connection is not ready and microphone is open - Problem closing the microphone.", e);
-                    }
-                    if (ServerConnectionStatus.NOTCONNECTED == getServerConnectionStatus()) {
-                        // IAMAccessToken should be retrieved from the IAM service by providing it with
-                        // your cloud API Key (based on your IBM ID)
-                        this.iamAccessToken = getIamAccessToken(iamApiKey);
-
-                        // We need to connect...
-                        connect();
-                        Thread.sleep(1500);
-                        continue;
-                    }
-                    // Keep track of how long we've been trying to connect. If it takes too long -
-                    // start over...
-                    if (ServerConnectionStatus.CONNECTING == getServerConnectionStatus()) {
-                        if (reconnectDelay < MAX_RETRY_DELAY) {
-                            reconnectDelay++;
-                        } else {
-                            setServerConnectionStatus(ServerConnectionStatus.NOTCONNECTED);
-                        }
-                        LOG.info(String.format("Could not connect.  Re-trying attempt %d in %d seconds...", (readyStateConnectAttemps + 2), reconnectDelay));
-                        try {
-                            Thread.sleep(reconnectDelay * 1000);
-                        } catch (InterruptedException e) {
-                            // This is the main Client thread, so catch this.
-                            // For now - print this so we can see why we get it...
-                            LOG.error("Client main thread interrupt", e);
-                        }
+                // Wait for the connection to be lost (onClosed / onFailure) and the next attempt to be due
+                int attempt = reconnectScheduler.awaitAttempt();
+                // Any status but READY - we should close the microphone
+                try {
+                    if (this.audioInput.micIsOpen()) {
+                        LOG.info("Server connection is not ready and microphone is open. Close the microphone.");
+                        this.audioInput.micClose();
                     }
+                } catch (RuntimeException e) {
+                    // For now - print this so we can see why we can't connect...
+                    LOG.error("Server connection is not ready and microphone is open - Problem closing the microphone.", e);
                 }
-                // We are currently connected...
-                readyStateConnectAttemps = 0;
-                reconnectDelay = MIN_RETRY_DELAY;
-                Thread.sleep(1500);
+                LOG.info(String.format("Connecting (attempt %d)...", attempt));
+                // IAMAccessToken should be retrieved from the IAM service by providing it with
+                // your cloud API Key (based on your IBM ID)
+                this.iamAccessToken = getIamAccessToken();
+
+                connect();
             } catch (InterruptedException e) {
                 // Cannot THROW out of thread Run. Log it!
                 LOG.error(String.format("Client main thread '%s' was Interrupted!", threadName), e);
@@ -482,6 +530,7 @@ public class Client extends WebSocketListener implements ThreadManager, Runnable
     }
 
     public void onMicOpen() throws InterruptedException {
+        interactionState.captureStarted();
         getSocketCommandProcessor().sendMicrophoneOpen();
     }
 
@@ -491,17 +540,23 @@ public class Client extends WebSocketListener implements ThreadManager, Runnable
 
     public boolean finishedPlayingOutput() {
         LOG.debug("Client.finishedPlayingOutput()");
-        currentAudioId = null;
         this.indicator.off();
-        runEndOfAudioOutputTask();
+        EchoCanceller canceller = this.echoCanceller;
+        if (null != canceller) {
+            LOG.info(String.format("Echo cancellation - ERLE: %.1fdB CPU: %.1f%% of real time", canceller.getEchoReturnLossEnhancementDb(),
+                    canceller.getRealTimeFactor() * 100));
+            canceller.resetStatistics();
+        }
+        // Finish up the interaction, prompt if asked to, etc.
+        interactionState.outputFinished();
         return true;
     }
 
-    public void runEndOfAudioOutputTask() {
-        // Finish up the audio output, prompt if asked to, etc.
-        if (null != endOfAudioOutputTask) {
-            endOfAudioOutputTask.run();
-        }
+    /**
+     * The capture ended (called by the audio input).
+     */
+    public void onCaptureEnded() {
+        interactionState.captureEnded();
     }
 
     public boolean setOutputToAudioSocket() {
@@ -525,41 +580,15 @@ public class Client extends WebSocketListener implements ThreadManager, Runnable
     }
 
     /**
-     * Enables a wake up trigger to start the system listening.
+     * @return true if the response is being played
      */
-    public void wakeupTriggerIsAllowed() {
-        synchronized (wakeupTriggerAllowedLock) {
-            // Attempt to cancel a pending enabler
-            cancelWakeupTriggerEnabler();
-
-            // Close the mic if it is open
-            if (this.audioInput.micIsOpen()) {
-                this.audioInput.micClose();
-            }
-
-            wakeupTriggerAllowed = true;
-            LOG.debug("Wakeup trigger `IS NOW` allowed.");
-            getSocketCommandProcessor().sendWakeupTriggerIsAllowed(true);
-        }
-    }
-
-    /**
-     * Disables the wake up trigger. A call to wakeupTriggerIsAllawed re-enables it.
-     */
-    private void wakeupTriggerNotAllowed() {
-        synchronized (wakeupTriggerAllowedLock) {
-            LOG.debug("Wakeup trigger `IS NOT` allowed.");
-            cancelWakeupTriggerEnabler();
-            wakeupTriggerAllowed = false;
-            getSocketCommandProcessor().sendWakeupTriggerIsAllowed(false);
-        }
+    public boolean isPlayingOutput() {
+        return (InteractionStateMachine.State.PLAYING == interactionState.getState());
     }
 
     public boolean isWakeupTriggerAllowed() {
-        synchronized (wakeupTriggerAllowedLock) {
-            synchronized (serverConnectionStatusLock) {
-                return (this.wakeupTriggerAllowed && (ServerConnectionStatus.READY == this.serverConnectionStatus));
-            }
+        synchronized (serverConnectionStatusLock) {
+            return (interactionState.isTriggerAllowed() && (ServerConnectionStatus.READY == this.serverConnectionStatus));
         }
     }
 
@@ -576,44 +605,42 @@ public class Client extends WebSocketListener implements ThreadManager, Runnable
         return statusPingRate;
     }
 
-    public void scheduleWakeupTriggerEnable() {
-        synchronized (serverConnectionStatusLock) {
-            // Cancel an existing one
-            cancelWakeupTriggerEnabler();
-            WakeTriggerEnableFailSafe wakeTriggerEnableFailSafe = new WakeTriggerEnableFailSafe(this);
-            wakeTriggerEnablerFuture = wakeTriggerEnableScheduler.schedule(wakeTriggerEnableFailSafe, 45000, TimeUnit.MILLISECONDS);
-        }
-    }
-
-    private void cancelWakeupTriggerEnabler() {
-        synchronized (serverConnectionStatusLock) {
-            if (null != wakeTriggerEnablerFuture) {
-                wakeTriggerEnablerFuture.cancel(false);
-                wakeTriggerEnablerFuture = null;
-            }
-        }
-    }
-
     @Override
     public void onOpen(final WebSocket webSocket, Response response) {
         LOG.debug("onOpen");
-        this.webSocket = webSocket;
+        if (isStale(webSocket)) {
+            webSocket.cancel();
+            return;
+        }
         setServerConnectionStatus(ServerConnectionStatus.CONNECTED);
 
+        // Binary audio must be negotiated on each connection
+        binaryAudioUploadEnabled = false;
         sendAudioOptions(webSocket);
+        outboundSender.setWebSocket(webSocket);
 
         // Indicate we have connected
         setServerConnectionStatus(ServerConnectionStatus.READY);
+        reconnectScheduler.connected();
         // TODO: Play connect tone
 
-        wakeupTriggerIsAllowed();
+        sendWakeupTriggerAllowedStatus();
     }
 
     @Override
     public void onMessage(WebSocket webSocket, String text) {
         LOG_SERVER_COMM_RECEIVE.debug("onMessage...");
         LOG_SERVER_COMM_RECEIVE.trace(" >" + text);
+        if (isStale(webSocket)) {
+            // A connection that has been replaced - its audio mustn't reach the current output
+            return;
+        }
         try {
+            // Audio data is the bulk of the traffic - decode it directly (without building a JSONObject) when possible
+            if (AudioDataMessageDecoder.isAudioDataMessage(text) && audioDataDecoder.decode(text)) {
+                handleAudioData(audioDataDecoder.getId(), audioDataDecoder.getBuffer(), 0, audioDataDecoder.getLength());
+                return;
+            }
             JSONObject response = new JSONObject(text);
             handleAction(response);
         } catch (InterruptedException ie) {
@@ -626,8 +653,17 @@ public class Client extends WebSocketListener implements ThreadManager, Runnable
 
     @Override
     public void onMessage(WebSocket webSocket, ByteString bytes) {
+        LOG_SERVER_COMM_RECEIVE.debug("onMessage (binary)...");
+        if (isStale(webSocket)) {
+            return;
+        }
+        if (BinaryAudioFrame.isAudioData(bytes)) {
+            // The audio is written to the output straight from the frame
+            handleAudioData(BinaryAudioFrame.getId(bytes), BinaryAudioFrame.getAudio(bytes));
+            return;
+        }
         LOG_SERVER_COMM_RECEIVE.info("*** onMessage - Received binary data ***");
-        LOG.error("onMessage - Received binary data");
+        LOG.error(String.format("onMessage - Received unknown binary data (%d bytes)", bytes.size()));
     }
 
     @Override
@@ -639,23 +675,54 @@ public class Client extends WebSocketListener implements ThreadManager, Runnable
 
     @Override
     public void onClosed(WebSocket webSocket, int code, String reason) {
-        setServerConnectionStatus(ServerConnectionStatus.NOTCONNECTED);
         LOG.info("\nonClosed from websocket: code=" + code + " reason=" + reason);
+        if (isStale(webSocket)) {
+            return;
+        }
+        outboundSender.setWebSocket(null);
+        interactionState.disconnected();
+        setServerConnectionStatus(ServerConnectionStatus.NOTCONNECTED);
+        reconnectScheduler.connectionLost();
     }
 
     @Override
     public void onFailure(WebSocket webSocket, Throwable t, Response response) {
         LOG.error(String.format("\nonFailure from websocket: %s", t.toString()), t);
+        if (isStale(webSocket)) {
+            return;
+        }
+        outboundSender.setWebSocket(null);
+        interactionState.disconnected();
         setServerConnectionStatus(ServerConnectionStatus.NOTCONNECTED);
         this.hasFailed = true;
+        if (null != response && 401 == response.code()) {
+            // The token was rejected (revoked?) - get a new one for the next attempt
+            iamTokenManager.invalidate();
+        }
+        reconnectScheduler.connectionLost();
+    }
+
+    /**
+     * @param webSocket - the websocket of a callback
+     * @return true if it is not the current connection (an attempt that was abandoned)
+     */
+    private boolean isStale(WebSocket webSocket) {
+        // The current websocket is replaced under the connect lock
+        synchronized (connectLock) {
+            if (webSocket != this.webSocket) {
+                LOG.debug("Ignoring a callback from an earlier connection");
+                return true;
+            }
+            return false;
+        }
     }
 
-    public synchronized void notifyOfThreadStart(final Thread thread) {
+    public void notifyOfThreadStart(final Thread thread) {
         String name = thread.getName();
         LOG.info(String.format("Client thread '%s' started", name));
     }
 
-    public synchronized void notifyOfThreadStop(final Thread thread) {
+    public void notifyOfThreadStop(final Thread thread) {
         String name = Thread.currentThread().getName();
         LOG.info(String.format("Thread '%s' stopped.", name));
     }
@@ -666,11 +733,7 @@ public class Client extends WebSocketListener implements ThreadManager, Runnable
         }
     }
 
-    volatile JSONObject promptSttOptionsInResponse = null;
-    volatile boolean simplePromptInResponse = false;
-    volatile boolean shouldPrompt = false;
-
-    private synchronized void handleAction(JSONObject response) throws InterruptedException {
+    private void handleAction(JSONObject response) throws InterruptedException {
         String action = response.optString("action");
         String id;
         JSONObject data = null;
@@ -686,6 +749,12 @@ public class Client extends WebSocketListener implements ThreadManager, Runnable
         JSONObject jdata = response.optJSONObject("data");
 
         switch (action) {
+        case "stt_options":
+            // Acknowledgement of our options
+            binaryAudioUploadEnabled = (binaryAudioUploadRequested && "binary".equals(response.optString("audio")));
+            LOG.info(String.format("Audio upload: %s", (binaryAudioUploadEnabled ? "binary" : "JSON")));
+            break;
+
         case "error":
             LOG.debug("audio_handleAction_error");
             String errMsg = null;
@@ -703,13 +772,11 @@ public class Client extends WebSocketListener implements ThreadManager, Runnable
 
         case "stt_transcript":
             LOG.debug("audio_handleAction_stt_stranscript");
-            transcriptReceivedTS = System.currentTimeMillis();
             String transcript = response.optString("transcript");
+            interactionMetrics.transcriptReceived(transcript);
             LOG.info(String.format("STT transcript -> '%s' confidence -> %.2f%% transaction id -> '%s'", transcript, response.optDouble("confidence") * 100,
                     response.optString("transactionId")));
-            
-            this.performanceTextTranscription = transcript;
-            
+
             if (this.audioInput.micIsOpen()) {
                 this.audioInput.micClose();
             }
@@ -717,21 +784,19 @@ public class Client extends WebSocketListener implements ThreadManager, Runnable
 
         case "text":
             LOG.debug("audio_handleAction_text");
-            textReceivedTS = System.currentTimeMillis();
-            performanceTextResponse = response.optString("speech");
-            LOG.info(String.format("Text: \"%s\"", performanceTextResponse));
+            String textResponse = response.optString("speech");
+            interactionMetrics.textReceived(textResponse);
+            LOG.info(String.format("Text: \"%s\"", textResponse));
 
             voiceUrl = response.optString("voice");
 
             // Check for 'prompt' (if true, open mic after response playback is complete)
-            promptSttOptionsInResponse = response.optJSONObject("prompt");
-            simplePromptInResponse = response.optBoolean("prompt", false);
-            shouldPrompt = (simplePromptInResponse || (promptSttOptionsInResponse != null));
+            JSONObject promptSttOptionsInResponse = response.optJSONObject("prompt");
+            boolean simplePromptInResponse = response.optBoolean("prompt", false);
+            boolean shouldPrompt = (simplePromptInResponse || (promptSttOptionsInResponse != null));
 
             LOG.debug(String.format("prompt:%b SttOptions:%s", shouldPrompt, promptSttOptionsInResponse));
-            if (null != endOfAudioOutputTask) {
-                endOfAudioOutputTask.shouldPrompt(shouldPrompt, promptSttOptionsInResponse);
-            }
+            interactionState.prompt(shouldPrompt, promptSttOptionsInResponse);
             if (!muteThisClient) {
                 if (enableResponseUrlProcessing && voiceUrl != null && !voiceUrl.isEmpty()) {
                     LOG.debug(String.format("client will play audio response from URL: %s", voiceUrl));
@@ -739,6 +804,7 @@ public class Client extends WebSocketListener implements ThreadManager, Runnable
                     AudioPlayer player = new AudioPlayer(voiceUrl);
                     player.addListener(this);
                     player.shouldPrompt = shouldPrompt;
+                    urlPlayer = player;
                     player.start();
                 } else {
                     urlMode = false;
@@ -751,7 +817,7 @@ public class Client extends WebSocketListener implements ThreadManager, Runnable
 
         case "response":
             LOG.debug("audio_handleAction_response");
-            responseReceivedTS = System.currentTimeMillis();
+            interactionMetrics.responseReceived();
             data = response.optJSONObject("data");
             if (data == null) {
                 LOG.error("No data key in response object.");
@@ -784,8 +850,7 @@ public class Client extends WebSocketListener implements ThreadManager, Runnable
                             }
                             if ("STOP".equals(commandAction) || "MUTE".equals(commandAction)) {
                                 LOG.debug(" Server requested to stop (mute) playback");
-                                currentAudioId = null;
-                                this.audioOutput.stop();
+                                interactionState.stop();
                                 getSocketCommandProcessor().sendPlaybackStop();
                                 // Don't enable the wake up trigger. End of playback will do it.
                                 allowWakeUpTriggerAfterProcessing = false;
@@ -814,13 +879,11 @@ public class Client extends WebSocketListener implements ThreadManager, Runnable
                         }
                     }
                 }
-            } else if (null != currentAudioId && null != previousAudioId && !currentAudioId.equals(previousAudioId)) {
+            } else if (interactionState.isReplacingAudio()) {
                 // Treat any other response that doesn't have a CARD as a STOP so it can start
                 // playing the new response.
-                LOG.debug(String.format(" Server sent a different response without a CARD - treat as STOP and play new response. Current-ID: %s  Previous-ID: %s", currentAudioId,
-                        previousAudioId));
-                // Clear current audioId
-                previousAudioId = null;
+                LOG.debug(String.format(" Server sent a different response without a CARD - treat as STOP and play new response. Current-ID: %s",
+                        interactionState.getCurrentAudioId()));
 
                 // commented the next line as it was causing a bug - after 2-3 utterances the
                 // voice playbacks stops
@@ -839,101 +902,54 @@ public class Client extends WebSocketListener implements ThreadManager, Runnable
             LOG.debug(String.format("Response \"%s\"", responseText));
 
             if (allowWakeUpTriggerAfterProcessing) {
-                wakeupTriggerIsAllowed();
+                interactionState.response();
             }
             break;
 
         case "audio_start":
             LOG.debug("audio_start");
-            audioStartReceivedTS = System.currentTimeMillis();
+            interactionMetrics.audioStartReceived();
             id = response.getString("id");
-            // Keep track of the previous audio to handle barge in with a new question
-            previousAudioId = currentAudioId;
-            currentAudioId = id;
-            // If the microphone is open, it should stop
-            // capture and end. We will use AudioInput.capture() if we
-            // are asked to prompt or receive another trigger.
-            if (this.audioInput.micIsOpen()) {
-                this.audioInput.micClose();
-            }
-
-            // Start the speaker thread, data will be written
-            // to its internal buffer on subsequent audio_data
-            // events.
-            //
-            // Indicate that a wake word trigger event is allowed
-            // and blink the status LED
-            this.endOfAudioOutputTask = new EndOfAudioOutputTask(id, shouldPrompt, promptSttOptionsInResponse);
-            audioOutput.startAudioOutput(this);
-            this.indicator.blink(250);
+            // Keep track of the previous audio to handle barge in with a new question. If the
+            // microphone is open, it should stop capture and end. We will use AudioInput.capture()
+            // if we are asked to prompt or receive another trigger. The output is started for the
+            // audio_data that follows.
+            interactionState.audioStart(id);
             break;
 
         case "audio_data":
-            LOG.debug("audio_data");
-            if (urlMode) {
-                LOG.debug(" will play from url...");
-                break;
-            }
-
-            // Indicate we received data (only goes to console)
-            System.out.print('&');
-
             id = response.getString("id");
-            if (!id.equals(currentAudioId)) {
-                LOG.info("Audio that was not associated with the current interaction was dropped. Possibly a response to a previous question.");
-                return;
-            }
-
             data = response.optJSONObject("data");
-
             if (data == null) {
                 LOG.error("No data key in response object.");
                 break;
             }
 
             JSONArray bufferData = data.optJSONArray("data");
-
             if (bufferData == null) {
                 LOG.error("No buffer data array in response object.");
                 break;
             }
 
-            Iterator bufferIterator = bufferData.iterator();
             int dataLength = bufferData.length();
             byte[] speakerData = new byte[dataLength];
-
-            audioPacketCount++;
-            audioDataSize += dataLength;
-
-            int i = 0;
-
-            while (bufferIterator.hasNext()) {
-                Byte element = ((Integer) bufferIterator.next()).byteValue();
-                speakerData[i] = element;
-                i++;
+            for (int i = 0; i < dataLength; i++) {
+                speakerData[i] = (byte) bufferData.getInt(i);
             }
-            audioOutput.writeNativeBytes(speakerData);
+            handleAudioData(id, speakerData, 0, dataLength);
             break;
 
         case "audio_end":
             LOG.debug("audio_end");
-            LOG.debug(String.format("handleAction:audio_end - Prompt:%b\n %s", shouldPrompt, response));
+            LOG.debug(String.format("handleAction:audio_end - State:%s\n %s", interactionState.getState(), response));
 
-            audioEndReceivedTS = System.currentTimeMillis();
+            interactionMetrics.audioEndReceived();
             // Log our transaction performance information.
             logInteractionPerf();
 
             voiceUrl = null;
             id = response.getString("id");
-            if (!id.equals(currentAudioId)) {
-                LOG.info("Audio that was not associated with the current interaction was dropped. Possibly a response to a previous question.");
-                return;
-            }
-            if (null != endOfAudioOutputTask) {
-                endOfAudioOutputTask.complexPromptSttOptions(promptSttOptionsInResponse);
-            }
-
-            audioOutput.finish();
+            interactionState.audioEnd(id);
             break;
 
         default:
@@ -941,47 +957,222 @@ public class Client extends WebSocketListener implements ThreadManager, Runnable
         }
     }
 
-    private void continueConversation(String id, JSONObject complexPromptSttOptions) {
-        LOG.debug("Continue conversation...");
-        // Call capture now rather than waiting for another trigger.
-        wakeupTriggerNotAllowed(); // Don't allow trigger since we are prompting
-        this.audioInput.setSttOptions(complexPromptSttOptions);
-        this.audioInput.capture();
+    /**
+     * Handle the audio of an `audio_data` message.
+     *
+     * @param id - the audio id of the message
+     * @param audio - buffer containing the audio (the content is copied, so the buffer can be reused)
+     * @param offset - offset of the audio in the buffer
+     * @param length - number of audio bytes
+     */
+    private void handleAudioData(String id, byte[] audio, int offset, int length) {
+        if (acceptAudioData(id, length)) {
+            audioOutput.writeNativeBytes(audio, offset, length);
+        }
+    }
+
+    /**
+     * Handle the audio of a binary audio data frame.
+     *
+     * @param id - the audio id of the frame
+     * @param audio - buffer positioned at the audio (the content is copied)
+     */
+    private void handleAudioData(String id, ByteBuffer audio) {
+        if (acceptAudioData(id, audio.remaining())) {
+            audioOutput.writeNativeBytes(audio);
+        }
+    }
+
+    /**
+     * Check that the audio data should be played and count it.
+     *
+     * @param id - the audio id of the data
+     * @param length - number of audio bytes
+     * @return true if the audio should be written to the output
+     */
+    private boolean acceptAudioData(String id, int length) {
+        LOG.debug("audio_data");
+        if (urlMode) {
+            LOG.debug(" will play from url...");
+            return false;
+        }
+
+        // Count the data received (shown by the activity meter)
+        ActivityCounters.increment(Activity.DOWNLOAD);
+
+        if (!id.equals(interactionState.getCurrentAudioId())) {
+            LOG.info("Audio that was not associated with the current interaction was dropped. Possibly a response to a previous question.");
+            return false;
+        }
+
+        interactionMetrics.audioPacketReceived(length);
+        return true;
     }
 
-    private int writeToServerCount;
-    private int writeToServerBytes;
     private String iamApiKey;
+    private IamTokenManager iamTokenManager;
 
-    public synchronized void clearServerWriteLogging() {
-        writeToServerCount = 0;
-        writeToServerBytes = 0;
+    public void clearServerWriteLogging() {
+        outboundSender.resetStatistics();
     }
 
-    public synchronized void logFinalServerWriteStatus() {
-        int bytes = writeToServerBytes;
-        int count = writeToServerCount;
-        int average = (count > 0 ? bytes / count : 0);
-        LOG.debug(String.format("\nWrote to server. Times: %d Total Bytes: %d Avg: %d", count, bytes, average));
+    public void logFinalServerWriteStatus() {
+        long bytes = outboundSender.getSentBytes();
+        long count = outboundSender.getSentMessages();
+        long average = (count > 0 ? bytes / count : 0);
+        long millis = outboundSender.getStatisticsMillis();
+        if (bytes > 0 && millis > 0) {
+            ClientMetrics.CAPTURE_UPLOAD_THROUGHPUT.record(bytes * 1000 / millis);
+        }
+        LOG.debug(String.format("\nWrote to server. Times: %d Total Bytes: %d Avg: %d Joined: %d Dropped: %d", count, bytes, average,
+                outboundSender.getJoinedMessages(), outboundSender.getDroppedMessages()));
+        LOG.debug(String.format("Queue to send. Avg: %.1fms Max: %.1fms Backpressure: %dms", outboundSender.getAverageLatencyMillis(),
+                outboundSender.getMaxLatencyMillis(), outboundSender.getBackpressureMillis()));
     }
 
-    public synchronized void writeToServer(String s) {
-        ServerConnectionStatus scstatus = getServerConnectionStatus();
-        if ((ServerConnectionStatus.CONNECTED == scstatus || ServerConnectionStatus.READY == scstatus) && !this.hasFailed()) {
+    /**
+     * Write a (text) message to the server. The message is queued and sent by the outbound sender.
+     *
+     * @param s - the message
+     */
+    public void writeToServer(String s) {
+        if (isWritable()) {
             LOG_SERVER_COMM_SEND.debug("writeToServer...");
             LOG_SERVER_COMM_SEND.trace(" >" + s);
-            this.webSocket.send(s);
-            writeToServerCount++;
-            writeToServerBytes += s.length();
-            System.out.print('^');
+            outboundSender.sendText(s);
+        }
+    }
+
+    /**
+     * Write a binary message to the server. The message is queued and sent by the outbound sender.
+     *
+     * @param bytes - the message
+     */
+    public void writeToServer(ByteString bytes) {
+        if (isWritable()) {
+            LOG_SERVER_COMM_SEND.debug("writeToServer (binary)...");
+            outboundSender.sendBinary(bytes);
+        }
+    }
+
+    /**
+     * Write (encoded) audio data to the server - as a binary frame if that was negotiated,
+     * otherwise as an `audio_data` action. The audio is copied and queued (it is dropped rather
+     * than waiting if the queue is full). Chunks that are waiting are sent together.
+     *
+     * @param data - buffer containing the audio
+     * @param offset - offset of the audio in the buffer
+     * @param length - number of bytes
+     */
+    public void writeAudioToServer(byte[] data, int offset, int length) {
+        if (isWritable()) {
+            LOG_SERVER_COMM_SEND.debug("writeAudioToServer...");
+            outboundSender.sendAudio(ClientHelpers.getCurrentInteractionId(), isBinaryAudioUploadEnabled(), data, offset, length);
+        }
+    }
+
+    private boolean isWritable() {
+        ServerConnectionStatus scstatus = getServerConnectionStatus();
+        return (ServerConnectionStatus.CONNECTED == scstatus || ServerConnectionStatus.READY == scstatus) && !this.hasFailed();
+    }
+
+    /**
+     * Create the encoder for the captured audio (based on the 'audioUploadEncoding' configuration).
+     *
+     * @return a new encoder
+     */
+    public AudioEncoder createAudioEncoder() {
+        if ("flac".equals(audioUploadEncoding)) {
+            return new FlacAudioEncoder((int) AudioConstants.RecordSampleRate);
+        }
+        return new PcmAudioEncoder();
+    }
+
+    /**
+     * Create the voice activity detector for the captured audio (based on the 'vad' configuration).
+     *
+     * @return a new detector or null if voice activity detection is not enabled
+     */
+    public VoiceActivityDetector createVoiceActivityDetector() {
+        if (!vadEnabled) {
+            return null;
+        }
+        VoiceActivityDetector vad = new VoiceActivityDetector((int) AudioConstants.RecordSampleRate, vadThresholdDb, vadEndSilenceMillis);
+        vad.setLeadingSilenceTrim(vadTrimLeadingSilence, vadLeadInMillis);
+        return vad;
+    }
+
+    /**
+     * Create the voice activity detector for the barge in trigger (full-duplex) - the 'vad'
+     * threshold and end silence, whether or not the captures use voice activity detection.
+     *
+     * @return a new detector
+     */
+    public VoiceActivityDetector createBargeInDetector() {
+        return new VoiceActivityDetector((int) AudioConstants.RecordSampleRate, vadThresholdDb, vadEndSilenceMillis);
+    }
+
+    /**
+     * Create the keyword spotter for the keyword trigger, with the templates (recordings of the
+     * keyword) from the 'keywordTemplates' configuration - WAV files and directories of them.
+     *
+     * @return a new spotter or null if no templates could be loaded
+     */
+    public KeywordSpotter createKeywordSpotter() {
+        KeywordSpotter spotter = new KeywordSpotter((int) AudioConstants.RecordSampleRate, keywordThreshold);
+        for (String name : keywordTemplates.split(",")) {
+            File location = new File(name.trim());
+            File[] files = (location.isDirectory() ? location.listFiles((dir, file) -> file.toLowerCase().endsWith(".wav"))
+                    : new File[] { location });
+            if (null == files) {
+                continue;
+            }
+            Arrays.sort(files);
+            for (File file : files) {
+                try {
+                    spotter.addTemplate(file);
+                    LOG.info("Keyword template: " + file);
+                } catch (IOException | UnsupportedAudioFileException | IllegalArgumentException e) {
+                    LOG.error("Unable to use keyword template " + file + ": " + e);
+                }
+            }
+        }
+        return (spotter.getTemplateCount() == 0 ? null : spotter);
+    }
+
+    /**
+     * Listen to the (always open) microphone's audio.
+     *
+     * @param listener - given all of the audio read from the microphone
+     * @return false if the microphone isn't being kept open (there is no audio to listen to)
+     */
+    public boolean addMicrophoneListener(MicrophoneMonitor.Listener listener) {
+        AudioInput input = this.audioInput;
+        return (null != input && input.addMicrophoneListener(listener));
+    }
+
+    /**
+     * @param listener - a listener that was added
+     */
+    public void removeMicrophoneListener(MicrophoneMonitor.Listener listener) {
+        AudioInput input = this.audioInput;
+        if (null != input) {
+            input.removeMicrophoneListener(listener);
         }
     }
 
-    private synchronized boolean hasFailed() {
+    /**
+     * @return true if audio data should be sent to the server as binary frames (BinaryAudioFrame)
+     */
+    public boolean isBinaryAudioUploadEnabled() {
+        return binaryAudioUploadEnabled;
+    }
+
+    private boolean hasFailed() {
         return this.hasFailed;
     }
 
-    private synchronized void setHasFailed(boolean failed) {
+    private void setHasFailed(boolean failed) {
         this.hasFailed = failed;
     }
 
@@ -999,92 +1190,110 @@ public class Client extends WebSocketListener implements ThreadManager, Runnable
             CallStack from = new CallStack();
             LOG.debug("Wakeup trigger received...", from);
         }
-        if (!isWakeupTriggerAllowed()) {
+        triggerReceivedNanos = System.nanoTime();
+        if (!isWakeupTriggerAllowed() || !interactionState.trigger(inputSource)) {
             LOG.debug("Wakeup trigger not allowed - trigger ignored!");
             return false;
         }
+        return true;
+    }
 
-        // Cancel output
-        audioOutput.cancel(); // TODO: really need to pause in case it is raise/lower volume - but for now
-                              // we'll do this.
-
-        // Enable output
-        audioOutput.enable();
-
-        this.audioInput.setInputSource(inputSource);
-
-        // Clear our performance values if logging is enabled
+    /**
+     * Start the performance values for a new interaction (the previous interaction's are logged if they haven't been).
+     */
+    private void startInteractionPerf() {
         performanceComment = "Client-Interaction";
-        if (CommonLogging.isPerfomanceLogEnabled()) {
-            if (!perfDataSent) {
-                logInteractionPerf();
-            }
-            perfDataSent = false;
-            wakeupTriggerReceivedTS = System.currentTimeMillis();
-            transcriptReceivedTS = null;
-            responseReceivedTS = null;
-            textReceivedTS = null;
-            audioStartReceivedTS = null;
-            audioEndReceivedTS = null;
-            audioPacketCount = (long) 0;
-            audioDataSize = (long) 0;
-            performanceTextResponse = null;
-            performanceTextTranscription = null;
+        if (!interactionMetrics.isLogged() && 0 != interactionMetrics.getWakeupTriggerReceivedTS()) {
+            logInteractionPerf();
         }
-        wakeupTriggerNotAllowed();
-        audioInput.capture();
-
-        return true;
+        interactionMetrics.start(System.currentTimeMillis());
     }
 
     /**
      * Log the current performance parameters.
      * 
-     * This uses the global performance parameters to generate a message and log it.
+     * This fills in the (preallocated) interaction performance record and logs it. The
+     * latencies are recorded in the metrics the first time an interaction is logged.
      */
     private void logInteractionPerf() {
-        Long sttRxTime = calculateDuration(wakeupTriggerReceivedTS, transcriptReceivedTS);
-        Long respRxTime = calculateDuration(wakeupTriggerReceivedTS, responseReceivedTS);
-        Long textRxTime = calculateDuration(wakeupTriggerReceivedTS, textReceivedTS);
-        Long audioStartRxTime = calculateDuration(wakeupTriggerReceivedTS, audioStartReceivedTS);
-        Long audioEndRxTime = calculateDuration(wakeupTriggerReceivedTS, audioEndReceivedTS);
-        
-        
-        ArrayList<PerfNumericNameValue> perfNumericElements = new ArrayList<PerfNumericNameValue>();
-        perfNumericElements.add(new PerfNumericNameValue("Trigger: ", wakeupTriggerReceivedTS));
-        perfNumericElements.add(new PerfNumericNameValue("STT: ", sttRxTime));
-        perfNumericElements.add(new PerfNumericNameValue("Resp: ", respRxTime));
-        perfNumericElements.add(new PerfNumericNameValue("Text: ", textRxTime));
-        perfNumericElements.add(new PerfNumericNameValue("Audio> ", audioStartRxTime));
-        perfNumericElements.add(new PerfNumericNameValue("Audio! ", audioEndRxTime));
-        perfNumericElements.add(new PerfNumericNameValue("Packets: ", audioPacketCount));
-        perfNumericElements.add(new PerfNumericNameValue("Data: ", audioDataSize));
- 
-        ArrayList<PerfInfoNameValue> perfInfoElements = new ArrayList<PerfInfoNameValue>();
-        perfInfoElements.add(new PerfInfoNameValue("Method: ", (urlMode ? "URL" : "Stream")));
-        perfInfoElements.add(new PerfInfoNameValue("STT: ", performanceTextTranscription));
-        perfInfoElements.add(new PerfInfoNameValue("RESP: ", performanceTextResponse));
-          
-        CommonLogging.logPerformanceElements("CLIENT", performanceComment, perfNumericElements, perfInfoElements);
-        perfDataSent = true;
+        InteractionMetrics metrics = interactionMetrics;
+        long wakeupTriggerReceivedTS = metrics.getWakeupTriggerReceivedTS();
+        long audioStartReceivedTS = metrics.getAudioStartReceivedTS();
+        long sttRxTime = calculateDuration(wakeupTriggerReceivedTS, metrics.getTranscriptReceivedTS());
+        long respRxTime = calculateDuration(wakeupTriggerReceivedTS, metrics.getResponseReceivedTS());
+        long textRxTime = calculateDuration(wakeupTriggerReceivedTS, metrics.getTextReceivedTS());
+        long audioStartRxTime = calculateDuration(wakeupTriggerReceivedTS, audioStartReceivedTS);
+        long audioEndRxTime = calculateDuration(wakeupTriggerReceivedTS, metrics.getAudioEndReceivedTS());
+        // Time to first audio - only if the output was started for this interaction
+        long firstAudioWrittenTS = audioOutput.getFirstAudioWrittenTS();
+        if (0 == audioStartReceivedTS || firstAudioWrittenTS < audioStartReceivedTS) {
+            firstAudioWrittenTS = 0;
+        }
+        long speakerTime = calculateDuration(wakeupTriggerReceivedTS, firstAudioWrittenTS);
+        long firstAudioTime = calculateDuration(audioStartReceivedTS, firstAudioWrittenTS);
+        long firstPacketTime = calculateDuration(metrics.getFirstAudioPacketReceivedTS(), firstAudioWrittenTS);
+
+        if (CommonLogging.isPerfomanceLogEnabled()) {
+            PerfRecord record = interactionPerfRecord;
+            synchronized (record) {
+                record.clear();
+                record.setComment(performanceComment);
+                record.set(PERF_TRIGGER, (0 == wakeupTriggerReceivedTS ? PerfRecord.NONE : wakeupTriggerReceivedTS));
+                record.set(PERF_STT, sttRxTime);
+                record.set(PERF_RESP, respRxTime);
+                record.set(PERF_TEXT, textRxTime);
+                record.set(PERF_AUDIO_START, audioStartRxTime);
+                record.set(PERF_AUDIO_END, audioEndRxTime);
+                record.set(PERF_SPEAKER, speakerTime);
+                record.set(PERF_FIRST_AUDIO, firstAudioTime);
+                record.set(PERF_FIRST_PACKET, firstPacketTime);
+                record.set(PERF_PACKETS, metrics.getAudioPacketCount());
+                record.set(PERF_DATA, metrics.getAudioDataSize());
+                record.setInfo(PERF_INFO_METHOD, (urlMode ? "URL" : "Stream"));
+                record.setInfo(PERF_INFO_STT, metrics.getTextTranscription());
+                record.setInfo(PERF_INFO_RESP, metrics.getTextResponse());
+                CommonLogging.logPerformanceRecord(record);
+            }
+        }
+        if (metrics.markLogged()) {
+            ClientMetrics.record(ClientMetrics.TRIGGER_TO_STT, sttRxTime);
+            ClientMetrics.record(ClientMetrics.TRIGGER_TO_RESPONSE, respRxTime);
+            ClientMetrics.record(ClientMetrics.TRIGGER_TO_AUDIO_START, audioStartRxTime);
+            ClientMetrics.record(ClientMetrics.FIRST_AUDIO_TO_SPEAKER, firstPacketTime);
+        }
     }
 
     /**
-     * Calculate the duration between two timestamps taking into consideration null values.
+     * Start serving and logging the metrics (as configured).
+     */
+    private void startMetrics() {
+        ClientMetrics.register();
+        if (metricsPort > 0) {
+            try {
+                this.metricsServer = new MetricsServer(MetricsRegistry.getInstance(), metricsPort);
+                this.metricsServer.start();
+            } catch (IOException e) {
+                LOG.error("Error trying to serve the metrics on port " + metricsPort, e);
+            }
+        }
+        if (metricsLogPeriodMillis > 0) {
+            MetricsRegistry.getInstance().startSnapshotLogging(metricsLogPeriodMillis);
+        }
+    }
+
+    /**
+     * Calculate the duration between two timestamps taking into consideration values that aren't known (0).
      * 
      * @param startTS
      * @param endTS
      * 
-     * @return The difference or null if either element it null
+     * @return The difference or PerfRecord.NONE if either time stamp is 0
      */
-    private Long calculateDuration(Long startTS, Long endTS) {
-        // If either is null - return null
-        if (null == endTS || null == startTS) {
-            return null;
+    private static long calculateDuration(long startTS, long endTS) {
+        if (0 == endTS || 0 == startTS) {
+            return PerfRecord.NONE;
         }
-        long difference = endTS.longValue() - startTS.longValue();
-        
-        return new Long(difference);
+        return endTS - startTS;
     }
 
     /**
@@ -1113,6 +1322,15 @@ public class Client extends WebSocketListener implements ThreadManager, Runnable
                 }
                 // Cancel audio output
                 audioOutput.cancel();
+                if (this.metricsServer != null) {
+                    this.metricsServer.stop();
+                }
+                MetricsRegistry.getInstance().stopSnapshotLogging();
+                if (this.iamTokenManager != null) {
+                    this.iamTokenManager.stop();
+                }
+                CommonLogging.flushPerformanceRecords(1000);
+                CommonLogging.stopBinaryPerformanceLog();
             } catch (InterruptedException cancelling) {
                 // Exiting due to cancel request
             } finally {
@@ -1145,9 +1363,43 @@ public class Client extends WebSocketListener implements ThreadManager, Runnable
         commandSocketPort = Integer.parseInt(props.getProperty("cmdSocketPort", "20991"));
         audioSocketPort = Integer.parseInt(props.getProperty("audioSocketPort", "20992"));
         statusPingRate = Long.parseLong(props.getProperty("statusPingRate", "7000"));
+        metricsPort = Integer.parseInt(props.getProperty("metricsPort", "20993"));
+        metricsLogPeriodMillis = Long.parseLong(props.getProperty("metricsLogPeriodMs", "60000"));
+        activityMeterMillis = Long.parseLong(props.getProperty("activityMeterMs", "0"));
+        reconnectScheduler = new ReconnectScheduler(Long.parseLong(props.getProperty("reconnectBaseMs", "1000")),
+                Long.parseLong(props.getProperty("reconnectMaxMs", "30000")), Long.parseLong(props.getProperty("reconnectAttemptTimeoutMs", "15000")),
+                ClientMetrics.RECONNECT_TO_READY);
+        if (props.getProperty("perfBinaryLog", "false").equalsIgnoreCase("true")) {
+            File perfBinaryLogDir = new File(props.getProperty("perfBinaryLogDir", "logs"));
+            long perfBinaryLogFileBytes = 1024L * Long.parseLong(props.getProperty("perfBinaryLogFileKB", "1024"));
+            int perfBinaryLogFiles = Integer.parseInt(props.getProperty("perfBinaryLogFiles", "10"));
+            CommonLogging.startBinaryPerformanceLog(perfBinaryLogDir, perfBinaryLogFileBytes, perfBinaryLogFiles);
+        }
         debug = props.getProperty("debug", "false").equalsIgnoreCase("true");
         enableResponseUrlProcessing = props.getProperty("urltts", "true").equalsIgnoreCase("true");
         muteThisClient = props.getProperty("mute", "false").equalsIgnoreCase("true");
+        binaryAudioUploadRequested = props.getProperty("binaryAudioUpload", "false").equalsIgnoreCase("true");
+        binaryAudioDownloadRequested = props.getProperty("binaryAudioDownload", "false").equalsIgnoreCase("true");
+        audioUploadEncoding = props.getProperty("audioUploadEncoding", "pcm").trim().toLowerCase();
+        vadEnabled = props.getProperty("vad", "false").equalsIgnoreCase("true");
+        vadThresholdDb = Double.parseDouble(props.getProperty("vadThresholdDb", "12"));
+        vadEndSilenceMillis = Integer.parseInt(props.getProperty("vadEndSilenceMs", "800"));
+        vadTrimLeadingSilence = props.getProperty("vadTrimLeadingSilence", "false").equalsIgnoreCase("true");
+        vadLeadInMillis = Integer.parseInt(props.getProperty("vadLeadInMs", "300"));
+        alwaysOpenMic = props.getProperty("alwaysOpenMic", "false").equalsIgnoreCase("true");
+        micPreRollMillis = Integer.parseInt(props.getProperty("micPreRollMs", "400"));
+        fullDuplex = props.getProperty("fullDuplex", "false").equalsIgnoreCase("true");
+        aecFilterMillis = Integer.parseInt(props.getProperty("aecFilterMs", "128"));
+        aecDelayMillis = Integer.parseInt(props.getProperty("aecDelayMs", "32"));
+        aecStepSize = Float.parseFloat(props.getProperty("aecStepSize", "0.5"));
+        voiceBargeIn = props.getProperty("voiceBargeIn", "true").equalsIgnoreCase("true");
+        keywordTrigger = props.getProperty("keywordTrigger", "false").equalsIgnoreCase("true");
+        keywordTemplates = props.getProperty("keywordTemplates", "keywords");
+        keywordThreshold = Float.parseFloat(props.getProperty("keywordThreshold", "1.2"));
+        if (keywordTrigger && !alwaysOpenMic) {
+            LOG.info("The keyword trigger keeps the microphone open (alwaysOpenMic)");
+            alwaysOpenMic = true;
+        }
 
         if (LOG.isDebugEnabled()) {
             java.util.logging.Logger.getLogger(OkHttpClient.class.getName()).setLevel(Level.FINE);
@@ -1166,13 +1418,17 @@ public class Client extends WebSocketListener implements ThreadManager, Runnable
             LocalAudio.playFlacFile(LocalAudio.ERROR_INVALID_CONFIG);
             throw new Error("Missing required host, authentication or configuration information.  Check the configure.properties file.  Aborting...");
         }
+        // The token is a credential - by default it is kept outside the working directory (the config folder is checked in)
+        String iamTokenFile = props.getProperty("iamTokenFile", new File(System.getProperty("user.home"), DEFAULT_IAM_TOKEN_FILE).getPath()).trim();
+        iamTokenManager = new IamTokenManager(iamApiKey, props.getProperty("iamUrl", IamTokenManager.DEFAULT_URL),
+                (iamTokenFile.isEmpty() ? null : new File(iamTokenFile)));
 
         String defaultAudioPropertyValue = props.getProperty("useDefaultAudio", "true");
         audioOutput.setUseDefaultAudio(defaultAudioPropertyValue.equalsIgnoreCase("true"));
 
         try {
             boolean nogpio = props.getProperty("nogpio", "false").equalsIgnoreCase("true");
-            String wakeupClassname = (nogpio ? "wa.trigger.ListenKey" : "wa.trigger.ListenGpio");
+            String wakeupClassname = (keywordTrigger ? "wa.trigger.ListenKeyword" : (nogpio ? "wa.trigger.ListenKey" : "wa.trigger.ListenGpio"));
             Class<?> clazz = Class.forName(wakeupClassname);
             wakeupClassCtor = clazz.getConstructor(Client.class);
 
@@ -1182,25 +1438,56 @@ public class Client extends WebSocketListener implements ThreadManager, Runnable
                 this.indicator = new StatusLED();
             }
 
-            // Create a thread to capture GPIO or Enter-Key wake up triggers
-            Thread wakeupTriggerThread = (Thread) wakeupClassCtor.newInstance(this);
-            wakeupTriggerThread.start();
-            threads.add(wakeupTriggerThread);
             this.socketCommandProcessor = new SocketCommandProcessor(this, commandSocketPort);
             socketCommandProcessor.start();
             threads.add(socketCommandProcessor);
             this.audioSocket = new AudioSocket(this.audioSocketPort);
             this.audioSocket.start();
             threads.add(audioSocket);
+            startMetrics();
+            if (activityMeterMillis > 0) {
+                ActivityMeter activityMeter = new ActivityMeter(activityMeterMillis, System.out);
+                activityMeter.start();
+                threads.add(activityMeter);
+            }
+
+            // Open the speaker and microphone now rather than on the first interaction
+            AudioDeviceManager.getInstance().warmUp();
 
             // Setup the audio input
             this.audioInput = new AudioInput(this, audioSocket);
+            if (fullDuplex) {
+                // The microphone is kept open (with the echo removed) while the output plays, and
+                // a capture that is still running when the response starts isn't ended
+                EchoCanceller canceller = new EchoCanceller(aecFilterMillis, aecDelayMillis, aecStepSize);
+                if (this.audioInput.startMicrophoneMonitor(micPreRollMillis, canceller)) {
+                    this.echoCanceller = canceller;
+                    this.audioOutput.setEchoCanceller(canceller);
+                    this.interactionState.setCaptureDuringPlayback(true);
+                }
+            } else if (alwaysOpenMic) {
+                this.audioInput.startMicrophoneMonitor(micPreRollMillis);
+            }
 
             // Setup the speaker
             this.audioOutput.setAudioSocket(audioSocket);
 
+            // Create a thread to capture GPIO, Enter-Key or keyword wake up triggers (after the
+            // audio input is set up - the keyword trigger listens to the microphone)
+            Thread wakeupTriggerThread = (Thread) wakeupClassCtor.newInstance(this);
+            wakeupTriggerThread.start();
+            threads.add(wakeupTriggerThread);
+            if (null != this.echoCanceller && voiceBargeIn) {
+                // Full-duplex - speaking over the response barges in
+                Thread bargeInTriggerThread = new ListenBargeIn(this);
+                bargeInTriggerThread.start();
+                threads.add(bargeInTriggerThread);
+            }
+
             this.statusPingSender = new StatusPing(this);
 
+            outboundSender.start();
+
             // Done with initialization
             LOG.info("Done setting up client.");
         } catch (IllegalAccessException | InvocationTargetException | NoSuchMethodException | ClassNotFoundException e) {
@@ -1214,60 +1501,16 @@ public class Client extends WebSocketListener implements ThreadManager, Runnable
 
     }
 
-    private String getIamAccessToken(String apikey) {
-        String iamAccessToken = "";
-        String urlParameters = "apikey=" + apikey + "&grant_type=urn%3Aibm%3Aparams%3Aoauth%3Agrant-type%3Aapikey";
-        byte[] postData = urlParameters.getBytes(StandardCharsets.UTF_8);
-        int postDataLength = postData.length;
-        String request = "https://iam.bluemix.net/oidc/token";
-        URL url = null;
-        HttpURLConnection conn = null;
+    private String getIamAccessToken() {
+        // The cached token (refreshed in the background) - the IAM service is only asked when there isn't a valid one
         try {
-            url = new URL(request);
-            conn = (HttpURLConnection) url.openConnection();
-            conn.setDoOutput(true);
-            conn.setInstanceFollowRedirects(false);
-            conn.setRequestMethod("POST");
-            conn.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
-            conn.setRequestProperty("cache-control", "no-cache");
-            conn.setRequestProperty("accept", "application/json");
-            // conn.setRequestProperty( "charset", "utf-8");
-            // conn.setRequestProperty( "Content-Length", Integer.toString( postDataLength
-            // ));
-            conn.setUseCaches(false);
-            conn.getOutputStream().write(postData);
-
-            String response = org.apache.commons.io.IOUtils.toString(conn.getInputStream(), StandardCharsets.UTF_8);
-            JSONObject jsonObj = new JSONObject(response);
-            iamAccessToken = jsonObj.getString("access_token");
-        } catch (IOException e) {
-            LOG.error(String.format("Error - Could not connect to IAM endpoint or could not process token: %s", e.getMessage()), e);
-            // try to get more detailed information about the error.
-            if (null != conn) {
-                try {
-                    int responseCode = conn.getResponseCode();
-                    // TODO: Make these exceptions specific to the error
-                    switch (responseCode) {
-                    case 400:
-                        error = new AuthenticationError(responseCode, e);
-                        break;
-                    case 404:
-                        error = new AuthenticationError(responseCode, e);
-                        break;
-                    default:
-                        error = new RuntimeException(e);
-                        break;
-                    }
-                } catch (IOException e2) {
-                    error = new ConnectionError(e2.getMessage());
-                }
-            } else {
-                error = new ConnectionError(e.getMessage());
-            }
+            return iamTokenManager.getToken();
+        } catch (AuthenticationError | ConnectionError e) {
+            LOG.error(String.format("Error - Could not get an IAM access token: %s", e.getMessage()), e);
+            error = e;
             setHasFailed(true);
-            throw error;
+            throw e;
         }
-        return iamAccessToken;
     }
 
     /**
@@ -1278,19 +1521,30 @@ public class Client extends WebSocketListener implements ThreadManager, Runnable
      * @throws InterruptedException
      * @throws IOException
      */
-    private synchronized void connect() throws InterruptedException {
+    private void connect() throws InterruptedException {
+        synchronized (connectLock) {
+            connectLocked();
+        }
+    }
+
+    private void connectLocked() throws InterruptedException {
 
         ServerConnectionStatus scstatus = getServerConnectionStatus();
         boolean isConnected = (ServerConnectionStatus.CONNECTED == scstatus || ServerConnectionStatus.READY == scstatus);
         if (isConnected) {
             disconnect(1000, "Establishing new connection");
+        } else if (null != webSocket) {
+            // An earlier attempt that timed out - abandon it
+            webSocket.cancel();
         }
+        // The callbacks of the earlier connection are ignored from now on
+        webSocket = null;
         setServerConnectionStatus(ServerConnectionStatus.CONNECTING);
 
         setHasFailed(false);
 
         // Build HTTP client
-        OkHttpClient httpClient = new OkHttpClient.Builder().pingInterval(3000, TimeUnit.MILLISECONDS).readTimeout(0, TimeUnit.MILLISECONDS)
+        OkHttpClient httpClient = SharedHttpClient.get().newBuilder().pingInterval(3000, TimeUnit.MILLISECONDS).readTimeout(0, TimeUnit.MILLISECONDS)
                 .writeTimeout(3000, TimeUnit.MILLISECONDS).retryOnConnectionFailure(true).build();
 
         try {
@@ -1302,16 +1556,12 @@ public class Client extends WebSocketListener implements ThreadManager, Runnable
             		.addHeader("tenantid", tenantID)
             		.build();
 
-            // initialize the watch dog
-            Runnable cleanup = new CleanUp(this.audioInput, this.audioOutput, this.indicator);
-            // ZZZ - why is this needed?
-            // debouncer = new Debouncer<String>(cleanup, watchDogTimeout);
-
             // Create websocket connection
             webSocket = httpClient.newWebSocket(request, this);
 
         } catch (Exception e) {
             setServerConnectionStatus(ServerConnectionStatus.NOTCONNECTED);
+            reconnectScheduler.connectionLost();
             throw new RuntimeException(e);
         } finally {
             // ZZZ - Look into this!!!
@@ -1340,6 +1590,7 @@ public class Client extends WebSocketListener implements ThreadManager, Runnable
         audioInput.micClose();
         audioOutput.cancel();
 
+        outboundSender.setWebSocket(null);
         webSocket.close(webSocketCode, reason);
         // It seems 'webSocket.close' should take care of this, but just in case
         Thread.sleep(800);
@@ -1347,11 +1598,11 @@ public class Client extends WebSocketListener implements ThreadManager, Runnable
     }
 
     private void sendAudioOptions(WebSocket webSocket) {
-        String sttOptions = ClientHelpers.getClientSTTOptionsAction().toString();
+        String sttOptions = ClientHelpers.getClientSTTOptionsAction(createAudioEncoder().getContentType(), binaryAudioUploadRequested).toString();
         LOG_SERVER_COMM_SEND.info("sendAudioOptions...");
         LOG_SERVER_COMM_SEND.trace(" >" + sttOptions);
         webSocket.send(sttOptions);
-        String ttsOptions = ClientHelpers.getClientTTSOptionsAction(watsonVoice, enableResponseUrlProcessing).toString();
+        String ttsOptions = ClientHelpers.getClientTTSOptionsAction(watsonVoice, enableResponseUrlProcessing, binaryAudioDownloadRequested).toString();
         LOG_SERVER_COMM_SEND.trace(" >" + ttsOptions);
         webSocket.send(ttsOptions);
     }
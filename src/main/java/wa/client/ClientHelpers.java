@@ -49,16 +49,29 @@ public class ClientHelpers {
   }
 
   public static JSONObject getClientAudioDataAction(ByteString data) {
+    return getClientAudioDataAction(ClientHelpers.currentUUID.toString(), data);
+  }
+
+  /**
+   * @param id - the interaction/audio id the audio belongs to
+   * @param data - the audio
+   * @return the `audio_data` action
+   */
+  public static JSONObject getClientAudioDataAction(String id, ByteString data) {
     JSONObject dataAction = new JSONObject();
 
     dataAction.put("action", "audio_data");
     dataAction.put("encoding", "base64");
-    dataAction.put("id", ClientHelpers.currentUUID.toString());
+    dataAction.put("id", id);
     dataAction.put("data", data.base64());
 
     return dataAction;
   }
 
+  public static String getCurrentInteractionId() {
+    return ClientHelpers.currentUUID.toString();
+  }
+
   public static JSONObject getClientEndAudioAction() {
     JSONObject endAction = new JSONObject();
 
@@ -69,15 +82,37 @@ public class ClientHelpers {
     return endAction;
   }
 
+  /**
+   * @param id - the audio id of the response being cancelled
+   * @return the `audio_cancel` action (asks the server to stop sending the audio for the response)
+   */
+  public static JSONObject getClientCancelAudioAction(String id) {
+    JSONObject cancelAction = new JSONObject();
+
+    cancelAction.put("action", "audio_cancel");
+    cancelAction.put("id", id);
+    LOG.info(String.format("Client audio cancel action: %s", cancelAction));
+
+    return cancelAction;
+  }
+
   public static JSONObject getClientSTTOptionsAction() {
+    return getClientSTTOptionsAction(false);
+  }
+
+  public static JSONObject getClientSTTOptionsAction(boolean requestBinaryAudio) {
+    return getClientSTTOptionsAction(AudioConstants.RecordFormat
+        + "; rate="
+        + (int) AudioConstants.RecordSampleRate
+        + "; channels=" + AudioConstants.RecordChannels, requestBinaryAudio);
+  }
+
+  public static JSONObject getClientSTTOptionsAction(String contentType, boolean requestBinaryAudio) {
     JSONObject action = new JSONObject();
     JSONObject speechToTextOptions = new JSONObject();
 
     speechToTextOptions.put("engine", "watson");
-    speechToTextOptions.put("content_type", AudioConstants.RecordFormat
-        + "; rate="
-        + (int) AudioConstants.RecordSampleRate
-        + "; channels=" + AudioConstants.RecordChannels);
+    speechToTextOptions.put("content_type", contentType);
     speechToTextOptions.put("inactivity_timeout", -1);
     speechToTextOptions.put("smart_formatting", true);
     //speechToTextOptions.put("language", "zh-CN");
@@ -85,17 +120,28 @@ public class ClientHelpers {
     action.put("id", UUID.randomUUID().toString());
     action.put("action", "stt_options");
     action.put("options", speechToTextOptions);
+    if (requestBinaryAudio) {
+      // Audio data will be sent as binary frames (BinaryAudioFrame) if the server acknowledges this
+      action.put("audio", "binary");
+    }
 
     return action;
   }
 
   public static JSONObject getClientTTSOptionsAction(String voice, boolean useResponseAudioUrl) {
+    return getClientTTSOptionsAction(voice, useResponseAudioUrl, false);
+  }
+
+  public static JSONObject getClientTTSOptionsAction(String voice, boolean useResponseAudioUrl, boolean acceptBinaryAudio) {
     JSONObject action = new JSONObject();
     action.put("id", UUID.randomUUID().toString());
     action.put("action", "tts_options");
     action.put("options", getTTSOptions(voice));
     if (useResponseAudioUrl) {
         action.put("audio", "url");
+    } else if (acceptBinaryAudio) {
+        // Audio data can be sent to us as binary frames (BinaryAudioFrame)
+        action.put("audio", "binary");
     }
 
     return action;
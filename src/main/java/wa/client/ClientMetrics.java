@@ -0,0 +1,77 @@
+/**
+ * Copyright 2018 IBM Corporation. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package wa.client;
+
+import wa.commonLogging.PerfRecord;
+import wa.metrics.Histogram;
+import wa.metrics.MetricsRegistry;
+
+/**
+ * The client's latency and throughput histograms (in the MetricsRegistry).
+ *
+ * The latencies are recorded in mS (exported in seconds), once per interaction, when the
+ * interaction's performance values are logged. The upload throughput is recorded once per
+ * capture, the time to reconnect once per connection.
+ */
+final class ClientMetrics {
+
+    // Exported bucket bounds (mS)
+    private static final long[] INTERACTION_BOUNDS = { 100, 250, 500, 750, 1000, 1500, 2000, 3000, 5000, 10000 };
+    private static final long[] PLAYBACK_BOUNDS = { 10, 25, 50, 100, 250, 500, 1000, 2500 };
+    private static final long[] RECONNECT_BOUNDS = { 250, 500, 1000, 2500, 5000, 10000, 30000, 60000, 300000 };
+    // Exported bucket bounds (bytes per second) - 16kHz 16 bit PCM is 32000
+    private static final long[] THROUGHPUT_BOUNDS = { 4000, 8000, 16000, 32000, 64000, 128000, 256000 };
+    private static final long HIGHEST_MILLIS = 60000;
+    private static final long HIGHEST_RECONNECT_MILLIS = 3600000;
+    private static final long HIGHEST_BYTES_PER_SECOND = 10000000;
+
+    static final Histogram TRIGGER_TO_STT = MetricsRegistry.getInstance().histogram("wa_trigger_to_stt_seconds",
+            "Time from the wake up trigger to the transcript (STT)", 1000, INTERACTION_BOUNDS, HIGHEST_MILLIS);
+    static final Histogram TRIGGER_TO_RESPONSE = MetricsRegistry.getInstance().histogram("wa_trigger_to_response_seconds",
+            "Time from the wake up trigger to the response", 1000, INTERACTION_BOUNDS, HIGHEST_MILLIS);
+    static final Histogram TRIGGER_TO_AUDIO_START = MetricsRegistry.getInstance().histogram("wa_trigger_to_audio_start_seconds",
+            "Time from the wake up trigger to the start of the response audio", 1000, INTERACTION_BOUNDS, HIGHEST_MILLIS);
+    static final Histogram FIRST_AUDIO_TO_SPEAKER = MetricsRegistry.getInstance().histogram("wa_first_audio_to_speaker_seconds",
+            "Time from the first byte of response audio received to the first audio written to the speaker", 1000, PLAYBACK_BOUNDS,
+            HIGHEST_MILLIS);
+    static final Histogram RECONNECT_TO_READY = MetricsRegistry.getInstance().histogram("wa_reconnect_to_ready_seconds",
+            "Time from the server connection being lost (or the first connect) to READY", 1000, RECONNECT_BOUNDS, HIGHEST_RECONNECT_MILLIS);
+    static final Histogram CAPTURE_UPLOAD_THROUGHPUT = MetricsRegistry.getInstance().histogram("wa_capture_upload_bytes_per_second",
+            "Rate the captured audio was sent to the server", 1, THROUGHPUT_BOUNDS, HIGHEST_BYTES_PER_SECOND);
+
+    private ClientMetrics() {
+    }
+
+    /**
+     * Register the histograms (they are registered when the class is loaded) - so they are
+     * exported before the first values are recorded.
+     */
+    static void register() {
+        // Nothing else to do
+    }
+
+    /**
+     * Record a duration (if known).
+     *
+     * @param histogram - the histogram
+     * @param millis - the duration (mS) - PerfRecord.NONE if it isn't known
+     */
+    static void record(Histogram histogram, long millis) {
+        if (PerfRecord.NONE != millis) {
+            histogram.record(millis);
+        }
+    }
+}
@@ -0,0 +1,158 @@
+/**
+ * Copyright 2018 IBM Corporation. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package wa.client;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Performance data (system time stamps and counts) for the current interaction. A time stamp
+ * is 0 until the event is received.
+ *
+ * The values are set from different threads (the trigger, the WebSocket reader, the audio
+ * output) without a shared lock - each value is volatile or atomic. The values are only
+ * logged at the end of an interaction (or when the next one starts), so a consistent
+ * snapshot across all of them isn't needed.
+ */
+public class InteractionMetrics {
+
+    private volatile long wakeupTriggerReceivedTS = 0;
+    private volatile long transcriptReceivedTS = 0;
+    private volatile long responseReceivedTS = 0;
+    private volatile long textReceivedTS = 0;
+    private volatile long audioStartReceivedTS = 0;
+    private volatile long audioEndReceivedTS = 0;
+    private volatile long firstAudioPacketReceivedTS = 0;
+    private final AtomicLong audioPacketCount = new AtomicLong(0);
+    private final AtomicLong audioDataSize = new AtomicLong(0);
+    private volatile String textTranscription = null;
+    private volatile String textResponse = null;
+    private final AtomicBoolean logged = new AtomicBoolean(false);
+
+    /**
+     * Start a new interaction (clears the values).
+     *
+     * @param triggerTS - time the wake up trigger was received
+     */
+    public void start(long triggerTS) {
+        transcriptReceivedTS = 0;
+        responseReceivedTS = 0;
+        textReceivedTS = 0;
+        audioStartReceivedTS = 0;
+        audioEndReceivedTS = 0;
+        firstAudioPacketReceivedTS = 0;
+        audioPacketCount.set(0);
+        audioDataSize.set(0);
+        textTranscription = null;
+        textResponse = null;
+        wakeupTriggerReceivedTS = triggerTS;
+        logged.set(false);
+    }
+
+    /**
+     * Mark the values as logged.
+     *
+     * @return true if they hadn't been logged already
+     */
+    public boolean markLogged() {
+        return logged.compareAndSet(false, true);
+    }
+
+    /**
+     * @return true if the values have been logged since the interaction started
+     */
+    public boolean isLogged() {
+        return logged.get();
+    }
+
+    public void transcriptReceived(String transcription) {
+        transcriptReceivedTS = System.currentTimeMillis();
+        textTranscription = transcription;
+    }
+
+    public void responseReceived() {
+        responseReceivedTS = System.currentTimeMillis();
+    }
+
+    public void textReceived(String response) {
+        textReceivedTS = System.currentTimeMillis();
+        textResponse = response;
+    }
+
+    public void audioStartReceived() {
+        audioStartReceivedTS = System.currentTimeMillis();
+    }
+
+    public void audioEndReceived() {
+        audioEndReceivedTS = System.currentTimeMillis();
+    }
+
+    /**
+     * Count a packet of response audio.
+     *
+     * @param length - number of audio bytes
+     */
+    public void audioPacketReceived(int length) {
+        if (1 == audioPacketCount.incrementAndGet()) {
+            firstAudioPacketReceivedTS = System.currentTimeMillis();
+        }
+        audioDataSize.addAndGet(length);
+    }
+
+    public long getWakeupTriggerReceivedTS() {
+        return wakeupTriggerReceivedTS;
+    }
+
+    public long getTranscriptReceivedTS() {
+        return transcriptReceivedTS;
+    }
+
+    public long getResponseReceivedTS() {
+        return responseReceivedTS;
+    }
+
+    public long getTextReceivedTS() {
+        return textReceivedTS;
+    }
+
+    public long getAudioStartReceivedTS() {
+        return audioStartReceivedTS;
+    }
+
+    public long getAudioEndReceivedTS() {
+        return audioEndReceivedTS;
+    }
+
+    public long getFirstAudioPacketReceivedTS() {
+        return firstAudioPacketReceivedTS;
+    }
+
+    public long getAudioPacketCount() {
+        return audioPacketCount.get();
+    }
+
+    public long getAudioDataSize() {
+        return audioDataSize.get();
+    }
+
+    public String getTextTranscription() {
+        return textTranscription;
+    }
+
+    public String getTextResponse() {
+        return textResponse;
+    }
+}
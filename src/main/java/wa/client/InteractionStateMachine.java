@@ -0,0 +1,493 @@
+/**
+ * Copyright 2018 IBM Corporation. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package wa.client;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONObject;
+
+import wa.audio.AudioInput;
+
+/**
+ * The state of the current interaction (trigger, capture, response, playback, prompt).
+ *
+ * All of the inputs (the wake up trigger, the server messages, the socket commands, the audio
+ * input/output and the timers) post events to one event thread. The state is only changed on
+ * that thread, so no locks are needed, and the order the events are handled in is the order
+ * they were posted in. The state and the current audio id can be read from any thread.
+ * <pre>
+ *              trigger                 capture ended            audio_start
+ *   IDLE ---------------> CAPTURING ------------------> AWAITING_RESPONSE ---------> PLAYING
+ *    ^                       ^                            |  (response / timeout)       |
+ *    |                       | capture started            v                             |
+ *    +-----------------------+------------------------- IDLE <-- output finished ------+
+ *                            |                                   (no prompt)           |
+ *                        PROMPTING <------------------------ output finished ----------+
+ *                                                             (prompt requested)
+ * </pre>
+ * A trigger is only allowed when IDLE or PLAYING - not while a capture is in progress or its
+ * response is awaited (until the response or the response timeout), so a late response can't
+ * interrupt the next capture. A trigger while PLAYING (barge in) silences the output, drops
+ * the rest of the response's audio and starts a new capture. The work each transition needs (opening the
+ * microphone, starting the output, ...) is done through the Actions, on the event thread.
+ */
+public class InteractionStateMachine {
+    // Initialize our logger
+    private static final Logger LOG = LogManager.getLogger(InteractionStateMachine.class);
+
+    /** Time to wait for the event thread when a caller needs the result of an event */
+    private static final long RESULT_TIMEOUT_MS = 5000;
+
+    /**
+     * The interaction states.
+     */
+    public enum State {
+        IDLE, CAPTURING, AWAITING_RESPONSE, PLAYING, PROMPTING
+    }
+
+    /**
+     * What the state machine needs done. Called on the event thread.
+     */
+    public interface Actions {
+        /**
+         * Start capturing audio.
+         *
+         * @param inputSource - the input to capture from (trigger) or null (prompt)
+         * @param sttOptions - the STT options for a prompt or null
+         */
+        void startCapture(AudioInput.InputSource inputSource, JSONObject sttOptions);
+
+        /**
+         * A trigger interrupted the output (barge in) - silence it now and stop the response.
+         *
+         * @param audioId - the audio id of the response that was playing
+         */
+        void bargeIn(String audioId);
+
+        /**
+         * Stop capturing audio (close the microphone).
+         */
+        void stopCapture();
+
+        /**
+         * Start the output for a response.
+         *
+         * @param audioId - the audio id of the response
+         */
+        void startOutput(String audioId);
+
+        /**
+         * All of the response audio has been received - play out what is buffered. Must not
+         * wait for the output to be played (the event thread would be held up until it is,
+         * and a trigger couldn't barge in) - `outputFinished` is posted when it has been.
+         */
+        void finishOutput();
+
+        /**
+         * Stop the output (discard the audio that is buffered).
+         */
+        void stopOutput();
+
+        /**
+         * The state changed.
+         *
+         * @param from - the previous state
+         * @param to - the new state
+         */
+        void stateChanged(State from, State to);
+    }
+
+    private enum EventType {
+        TRIGGER, CAPTURE_STARTED, CAPTURE_ENDED, PROMPT, RESPONSE, REPLACING_AUDIO, AUDIO_START, AUDIO_END, STOP, OUTPUT_FINISHED, TIMEOUT,
+        DISCONNECTED
+    }
+
+    private static class Event {
+        final EventType type;
+        String audioId = null;
+        AudioInput.InputSource inputSource = null;
+        boolean prompt = false;
+        JSONObject sttOptions = null;
+        long timer = 0;
+
+        Event(EventType type) {
+            this.type = type;
+        }
+    }
+
+    private final Actions actions;
+    private final long responseTimeoutMillis;
+    private final long promptTimeoutMillis;
+    private final ScheduledThreadPoolExecutor eventThread;
+
+    // Changed only on the event thread
+    private volatile State state = State.IDLE;
+    private volatile String currentAudioId = null;
+    private volatile String previousAudioId = null;
+    private volatile boolean captureDuringPlayback = false;
+    private boolean promptRequested = false;
+    private JSONObject promptSttOptions = null;
+    private long timerGeneration = 0;
+    private ScheduledFuture<?> timer = null;
+
+    /**
+     * @param actions - does the work for the transitions
+     * @param responseTimeoutMillis - time to wait for a response after a capture before going IDLE
+     * @param promptTimeoutMillis - time to wait for the capture to start for a prompt before going IDLE
+     */
+    public InteractionStateMachine(Actions actions, long responseTimeoutMillis, long promptTimeoutMillis) {
+        this.actions = actions;
+        this.responseTimeoutMillis = responseTimeoutMillis;
+        this.promptTimeoutMillis = promptTimeoutMillis;
+        this.eventThread = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "Interaction State");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.eventThread.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * Keep a capture that is in progress when the response's audio starts (full-duplex) - it
+     * ends on its own (end of speech, maximum length) or with a barge in. By default the
+     * capture is ended when the audio starts.
+     *
+     * @param value - true to keep the capture
+     */
+    public void setCaptureDuringPlayback(boolean value) {
+        captureDuringPlayback = value;
+    }
+
+    /**
+     * @param state - a state
+     * @return true if a wake up trigger is allowed in the state
+     */
+    public static boolean isTriggerAllowed(State state) {
+        return (State.IDLE == state || State.PLAYING == state);
+    }
+
+    /**
+     * @return the current state
+     */
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * @return true if a wake up trigger is allowed in the current state
+     */
+    public boolean isTriggerAllowed() {
+        return isTriggerAllowed(state);
+    }
+
+    /**
+     * @return the audio id of the response being played (null if none)
+     */
+    public String getCurrentAudioId() {
+        return currentAudioId;
+    }
+
+    /**
+     * @return the audio id of the response that was played before the current one (null if none)
+     */
+    public String getPreviousAudioId() {
+        return previousAudioId;
+    }
+
+    /**
+     * A wake up trigger was received. Waits for the event to be handled.
+     *
+     * @param inputSource - the input to capture from
+     * @return true if the trigger was accepted (a capture was started)
+     */
+    public boolean trigger(AudioInput.InputSource inputSource) {
+        Event event = new Event(EventType.TRIGGER);
+        event.inputSource = inputSource;
+        return await(post(event));
+    }
+
+    /**
+     * The capture started (the microphone opened).
+     */
+    public void captureStarted() {
+        post(new Event(EventType.CAPTURE_STARTED));
+    }
+
+    /**
+     * The capture ended.
+     */
+    public void captureEnded() {
+        post(new Event(EventType.CAPTURE_ENDED));
+    }
+
+    /**
+     * The response asked (or didn't ask) for a prompt when its output finishes.
+     *
+     * @param prompt - true to prompt (capture again) after the output
+     * @param sttOptions - the STT options for the prompt (null for the defaults)
+     */
+    public void prompt(boolean prompt, JSONObject sttOptions) {
+        Event event = new Event(EventType.PROMPT);
+        event.prompt = prompt;
+        event.sttOptions = sttOptions;
+        post(event);
+    }
+
+    /**
+     * A response was received (the server is done with the capture).
+     */
+    public void response() {
+        post(new Event(EventType.RESPONSE));
+    }
+
+    /**
+     * Check whether the current audio replaced a different response (and forget that one).
+     * Waits for the event to be handled.
+     *
+     * @return true if the current audio replaced a different response
+     */
+    public boolean isReplacingAudio() {
+        return await(post(new Event(EventType.REPLACING_AUDIO)));
+    }
+
+    /**
+     * The audio for a response is starting. Waits for the event to be handled (so the output
+     * is started and the audio id is current before the audio data is handled).
+     *
+     * @param audioId - the audio id of the response
+     */
+    public void audioStart(String audioId) {
+        Event event = new Event(EventType.AUDIO_START);
+        event.audioId = audioId;
+        await(post(event));
+    }
+
+    /**
+     * All of the audio for a response has been received.
+     *
+     * @param audioId - the audio id of the response
+     */
+    public void audioEnd(String audioId) {
+        Event event = new Event(EventType.AUDIO_END);
+        event.audioId = audioId;
+        post(event);
+    }
+
+    /**
+     * Stop the current output.
+     */
+    public void stop() {
+        post(new Event(EventType.STOP));
+    }
+
+    /**
+     * The output finished playing.
+     */
+    public void outputFinished() {
+        post(new Event(EventType.OUTPUT_FINISHED));
+    }
+
+    /**
+     * The server connection was lost.
+     */
+    public void disconnected() {
+        post(new Event(EventType.DISCONNECTED));
+    }
+
+    /**
+     * Wait until the events posted so far have been handled.
+     */
+    public void sync() {
+        await(eventThread.submit(() -> true));
+    }
+
+    /**
+     * Stop the event thread.
+     */
+    public void shutdown() {
+        eventThread.shutdownNow();
+    }
+
+    private Future<Boolean> post(Event event) {
+        return eventThread.submit(() -> handle(event));
+    }
+
+    private boolean await(Future<Boolean> result) {
+        try {
+            return result.get(RESULT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            LOG.error("Interaction state event failed: " + e, e);
+        }
+        return false;
+    }
+
+    private boolean handle(Event event) {
+        State from = state;
+        switch (event.type) {
+        case TRIGGER:
+            if (!isTriggerAllowed(from)) {
+                LOG.debug(String.format("Trigger not allowed in state %s", from));
+                return false;
+            }
+            promptRequested = false;
+            promptSttOptions = null;
+            String interruptedAudioId = null;
+            if (State.PLAYING == from) {
+                // Barge in - the rest of the response's audio is dropped
+                interruptedAudioId = currentAudioId;
+                currentAudioId = null;
+            }
+            transition(State.CAPTURING);
+            if (State.PLAYING == from) {
+                actions.bargeIn(interruptedAudioId);
+            }
+            actions.startCapture(event.inputSource, null);
+            return true;
+
+        case CAPTURE_STARTED:
+            if (State.PROMPTING == from) {
+                transition(State.CAPTURING);
+            }
+            return true;
+
+        case CAPTURE_ENDED:
+            if (State.CAPTURING == from) {
+                transition(State.AWAITING_RESPONSE);
+                schedule(State.AWAITING_RESPONSE, responseTimeoutMillis);
+            }
+            return true;
+
+        case PROMPT:
+            promptRequested = event.prompt;
+            promptSttOptions = event.sttOptions;
+            return true;
+
+        case RESPONSE:
+            if (State.CAPTURING == from) {
+                actions.stopCapture();
+            } else if (State.AWAITING_RESPONSE == from) {
+                transition(State.IDLE);
+            }
+            return true;
+
+        case REPLACING_AUDIO:
+            if (null != currentAudioId && null != previousAudioId && !currentAudioId.equals(previousAudioId)) {
+                previousAudioId = null;
+                return true;
+            }
+            return false;
+
+        case AUDIO_START:
+            previousAudioId = currentAudioId;
+            currentAudioId = event.audioId;
+            if ((State.CAPTURING == from || State.PROMPTING == from) && !captureDuringPlayback) {
+                actions.stopCapture();
+            }
+            transition(State.PLAYING);
+            actions.startOutput(event.audioId);
+            return true;
+
+        case AUDIO_END:
+            if (!event.audioId.equals(currentAudioId)) {
+                LOG.info("Audio that was not associated with the current interaction was dropped. Possibly a response to a previous question.");
+                return false;
+            }
+            actions.finishOutput();
+            return true;
+
+        case STOP:
+            currentAudioId = null;
+            actions.stopOutput();
+            if (State.PLAYING == from) {
+                transition(State.IDLE);
+            }
+            return true;
+
+        case OUTPUT_FINISHED:
+            currentAudioId = null;
+            if (State.PLAYING != from) {
+                return false;
+            }
+            if (promptRequested) {
+                LOG.info("Output finished - Prompting...");
+                JSONObject sttOptions = promptSttOptions;
+                promptRequested = false;
+                promptSttOptions = null;
+                transition(State.PROMPTING);
+                schedule(State.PROMPTING, promptTimeoutMillis);
+                actions.startCapture(null, sttOptions);
+            } else {
+                transition(State.IDLE);
+            }
+            return true;
+
+        case TIMEOUT:
+            if (event.timer != timerGeneration) {
+                return false;
+            }
+            LOG.info(String.format("Interaction timed out in state %s", from));
+            transition(State.IDLE);
+            return true;
+
+        case DISCONNECTED:
+            currentAudioId = null;
+            previousAudioId = null;
+            promptRequested = false;
+            promptSttOptions = null;
+            transition(State.IDLE);
+            return true;
+
+        default:
+            return false;
+        }
+    }
+
+    private void transition(State to) {
+        // A timer only applies to the state it was set in
+        cancelTimer();
+        State from = state;
+        if (from == to) {
+            return;
+        }
+        state = to;
+        LOG.debug(String.format("Interaction state: %s -> %s", from, to));
+        actions.stateChanged(from, to);
+    }
+
+    private void schedule(State in, long delayMillis) {
+        Event event = new Event(EventType.TIMEOUT);
+        event.timer = timerGeneration;
+        timer = eventThread.schedule(() -> handle(event), delayMillis, TimeUnit.MILLISECONDS);
+        LOG.debug(String.format("Interaction timeout set for %s: %dms", in, delayMillis));
+    }
+
+    private void cancelTimer() {
+        timerGeneration++;
+        if (null != timer) {
+            timer.cancel(false);
+            timer = null;
+        }
+    }
+}
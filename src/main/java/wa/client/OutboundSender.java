@@ -0,0 +1,395 @@
+/**
+ * Copyright 2018 IBM Corporation. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package wa.client;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import okhttp3.WebSocket;
+import okio.ByteString;
+import wa.util.ActivityCounters;
+import wa.util.ActivityCounters.Activity;
+
+/**
+ * Sends the messages to the server from its own thread.
+ *
+ * The callers (the capture thread in particular) only add the message to a bounded queue, so
+ * they are never held up by the WebSocket or by other users of the Client. The sender:
+ * <ul>
+ *  <li>sends the messages in the order they were queued,
+ *  <li>joins consecutive audio chunks (for the same interaction) that are waiting into one
+ *  message (up to a maximum size),
+ *  <li>waits while the WebSocket's own outgoing queue is over a limit (so a slow network
+ *  results in larger, fewer messages rather than an unbounded WebSocket queue - OkHttp closes
+ *  the connection if that reaches 16MB),
+ *  <li>records the time from queuing to sending for each message.
+ * </ul>
+ *
+ * Audio that doesn't fit in the queue is dropped (rather than holding up the capture).
+ * Other messages wait (up to a timeout) for room in the queue.
+ */
+public class OutboundSender {
+    // Initialize our logger
+    private static final Logger LOG = LogManager.getLogger(OutboundSender.class);
+
+    private static final int DEFAULT_QUEUE_CAPACITY = 256;
+    private static final int MAX_COALESCED_AUDIO_BYTES = 16 * 1024;
+    private static final long MAX_WEBSOCKET_QUEUE_BYTES = 64 * 1024;
+    private static final long BACKPRESSURE_WAIT_MS = 5;
+    private static final long MESSAGE_WAIT_MS = 100;
+    private static final long OFFER_TIMEOUT_MS = 1000;
+
+    /**
+     * A queued message.
+     */
+    private static class Message {
+        final long queuedNanos = System.nanoTime();
+        final String text;
+        final ByteString bytes;
+
+        Message(String text, ByteString bytes) {
+            this.text = text;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * A queued chunk of audio (sent as a binary frame or an `audio_data` action).
+     */
+    private static class AudioMessage extends Message {
+        final String id;
+        final boolean binary;
+        final byte[] audio;
+
+        AudioMessage(String id, boolean binary, byte[] audio) {
+            super(null, null);
+            this.id = id;
+            this.binary = binary;
+            this.audio = audio;
+        }
+
+        boolean canJoin(AudioMessage other) {
+            return binary == other.binary && id.equals(other.id);
+        }
+    }
+
+    private final BlockingQueue<Message> queue;
+    private volatile WebSocket webSocket = null;
+    private volatile boolean running = false;
+    private Thread senderThread = null;
+
+    // Statistics (since the last reset)
+    private final AtomicLong sentMessages = new AtomicLong(0);
+    private final AtomicLong sentBytes = new AtomicLong(0);
+    private final AtomicLong joinedMessages = new AtomicLong(0);
+    private final AtomicLong droppedMessages = new AtomicLong(0);
+    private final AtomicLong totalLatencyNanos = new AtomicLong(0);
+    private final AtomicLong maxLatencyNanos = new AtomicLong(0);
+    private final AtomicLong backpressureNanos = new AtomicLong(0);
+    private volatile long statisticsStartNanos = System.nanoTime();
+
+    public OutboundSender() {
+        this(DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * @param capacity - maximum number of messages waiting to be sent
+     */
+    public OutboundSender(int capacity) {
+        this.queue = new ArrayBlockingQueue<>(capacity);
+    }
+
+    /**
+     * Start the sender thread.
+     */
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        senderThread = new Thread(this::run, "Outbound Sender");
+        senderThread.setDaemon(true);
+        senderThread.start();
+    }
+
+    /**
+     * Stop the sender thread (the messages still queued are discarded).
+     */
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        senderThread.interrupt();
+        try {
+            senderThread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        senderThread = null;
+        queue.clear();
+    }
+
+    /**
+     * @param webSocket - the WebSocket to send on (null when not connected - messages are then dropped)
+     */
+    public void setWebSocket(WebSocket webSocket) {
+        this.webSocket = webSocket;
+    }
+
+    /**
+     * Queue a text message.
+     *
+     * @param text - the message
+     * @return true if queued (false if the queue stayed full)
+     */
+    public boolean sendText(String text) {
+        return offer(new Message(text, null), OFFER_TIMEOUT_MS);
+    }
+
+    /**
+     * Queue a binary message.
+     *
+     * @param bytes - the message
+     * @return true if queued (false if the queue stayed full)
+     */
+    public boolean sendBinary(ByteString bytes) {
+        return offer(new Message(null, bytes), OFFER_TIMEOUT_MS);
+    }
+
+    /**
+     * Queue a chunk of audio (the audio is copied). Doesn't wait - the audio is dropped if the
+     * queue is full.
+     *
+     * @param id - the interaction/audio id
+     * @param binary - true to send it as a binary audio frame, false as an `audio_data` action
+     * @param audio - buffer containing the audio
+     * @param offset - offset of the audio in the buffer
+     * @param length - number of bytes
+     * @return true if queued
+     */
+    public boolean sendAudio(String id, boolean binary, byte[] audio, int offset, int length) {
+        byte[] copy = new byte[length];
+        System.arraycopy(audio, offset, copy, 0, length);
+        return offer(new AudioMessage(id, binary, copy), 0);
+    }
+
+    /**
+     * @return the number of messages waiting to be sent
+     */
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    /**
+     * Clear the statistics.
+     */
+    public void resetStatistics() {
+        sentMessages.set(0);
+        sentBytes.set(0);
+        joinedMessages.set(0);
+        droppedMessages.set(0);
+        totalLatencyNanos.set(0);
+        maxLatencyNanos.set(0);
+        backpressureNanos.set(0);
+        statisticsStartNanos = System.nanoTime();
+    }
+
+    /**
+     * @return the time (mS) since the statistics were reset
+     */
+    public long getStatisticsMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - statisticsStartNanos);
+    }
+
+    /**
+     * @return the number of messages sent (a joined message counts once)
+     */
+    public long getSentMessages() {
+        return sentMessages.get();
+    }
+
+    /**
+     * @return the number of bytes (or characters for text) sent
+     */
+    public long getSentBytes() {
+        return sentBytes.get();
+    }
+
+    /**
+     * @return the number of audio chunks that were joined to an earlier chunk
+     */
+    public long getJoinedMessages() {
+        return joinedMessages.get();
+    }
+
+    /**
+     * @return the number of messages dropped (queue full or not connected)
+     */
+    public long getDroppedMessages() {
+        return droppedMessages.get();
+    }
+
+    /**
+     * @return the average time (mS) from queuing to sending
+     */
+    public double getAverageLatencyMillis() {
+        long count = sentMessages.get() + joinedMessages.get();
+        return (count > 0 ? totalLatencyNanos.get() / 1e6 / count : 0);
+    }
+
+    /**
+     * @return the longest time (mS) from queuing to sending
+     */
+    public double getMaxLatencyMillis() {
+        return maxLatencyNanos.get() / 1e6;
+    }
+
+    /**
+     * @return the time (mS) spent waiting for the WebSocket's queue to drain
+     */
+    public long getBackpressureMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(backpressureNanos.get());
+    }
+
+    private boolean offer(Message message, long timeoutMillis) {
+        boolean queued;
+        try {
+            queued = (timeoutMillis > 0 ? queue.offer(message, timeoutMillis, TimeUnit.MILLISECONDS) : queue.offer(message));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            queued = false;
+        }
+        if (!queued) {
+            droppedMessages.incrementAndGet();
+            LOG.warn("Outbound queue is full - message dropped");
+        }
+        return queued;
+    }
+
+    private void run() {
+        try {
+            while (running) {
+                Message message = queue.poll(MESSAGE_WAIT_MS, TimeUnit.MILLISECONDS);
+                if (null == message) {
+                    continue;
+                }
+                // Let the WebSocket's queue drain (more audio can be joined in the meantime)
+                awaitWebSocketQueue();
+                try {
+                    send(message);
+                } catch (RuntimeException e) {
+                    droppedMessages.incrementAndGet();
+                    LOG.error("Error sending message to the server: " + e, e);
+                }
+            }
+        } catch (InterruptedException e) {
+            // Stopped
+        }
+    }
+
+    private void awaitWebSocketQueue() throws InterruptedException {
+        WebSocket ws = webSocket;
+        if (null == ws || ws.queueSize() <= MAX_WEBSOCKET_QUEUE_BYTES) {
+            return;
+        }
+        long start = System.nanoTime();
+        while (running && webSocket == ws && ws.queueSize() > MAX_WEBSOCKET_QUEUE_BYTES) {
+            Thread.sleep(BACKPRESSURE_WAIT_MS);
+        }
+        backpressureNanos.addAndGet(System.nanoTime() - start);
+    }
+
+    private void send(Message message) {
+        WebSocket ws = webSocket;
+        if (message instanceof AudioMessage) {
+            sendAudio(ws, (AudioMessage) message);
+            return;
+        }
+        if (null == ws) {
+            droppedMessages.incrementAndGet();
+            return;
+        }
+        if (null != message.text) {
+            ws.send(message.text);
+            sentBytes.addAndGet(message.text.length());
+        } else {
+            ws.send(message.bytes);
+            sentBytes.addAndGet(message.bytes.size());
+        }
+        recordLatency(message);
+        sentMessages.incrementAndGet();
+        ActivityCounters.increment(Activity.UPLOAD);
+    }
+
+    /**
+     * Send an audio chunk, joined with the (compatible) chunks queued after it.
+     */
+    private void sendAudio(WebSocket ws, AudioMessage first) {
+        List<AudioMessage> joined = new ArrayList<>();
+        joined.add(first);
+        int length = first.audio.length;
+        Message next;
+        while ((next = queue.peek()) instanceof AudioMessage && first.canJoin((AudioMessage) next)
+                && length + ((AudioMessage) next).audio.length <= MAX_COALESCED_AUDIO_BYTES) {
+            queue.poll(); // this is the only consumer, so this removes the message peeked
+            joined.add((AudioMessage) next);
+            length += ((AudioMessage) next).audio.length;
+        }
+        if (null == ws) {
+            droppedMessages.addAndGet(joined.size());
+            return;
+        }
+
+        byte[] audio = first.audio;
+        if (joined.size() > 1) {
+            audio = new byte[length];
+            int offset = 0;
+            for (AudioMessage chunk : joined) {
+                System.arraycopy(chunk.audio, 0, audio, offset, chunk.audio.length);
+                offset += chunk.audio.length;
+            }
+            joinedMessages.addAndGet(joined.size() - 1);
+        }
+        if (first.binary) {
+            ws.send(BinaryAudioFrame.encode(first.id, audio, 0, length));
+        } else {
+            ws.send(ClientHelpers.getClientAudioDataAction(first.id, ByteString.of(audio, 0, length)).toString());
+        }
+        sentBytes.addAndGet(length);
+        for (AudioMessage chunk : joined) {
+            recordLatency(chunk);
+        }
+        sentMessages.incrementAndGet();
+        ActivityCounters.increment(Activity.UPLOAD);
+    }
+
+    private void recordLatency(Message message) {
+        long latency = System.nanoTime() - message.queuedNanos;
+        totalLatencyNanos.addAndGet(latency);
+        long max;
+        while (latency > (max = maxLatencyNanos.get()) && !maxLatencyNanos.compareAndSet(max, latency)) {
+            // retry
+        }
+    }
+}
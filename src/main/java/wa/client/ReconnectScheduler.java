@@ -0,0 +1,185 @@
+/**
+ * Copyright 2018 IBM Corporation. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wa.client;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import wa.metrics.Histogram;
+
+/**
+ * Decides when the client (re)connects to the server.
+ *
+ * The connection callbacks report the events - `connectionLost` (onClosed, onFailure, a failed
+ * connect) and `connected` (READY) - and the client thread waits in `awaitAttempt` until the
+ * next attempt is due. Nothing polls the connection status.
+ *
+ * The first attempt after the connection is lost is made at once (most drops are a brief
+ * network blip). The attempts that follow are delayed with decorrelated jitter:
+ * <pre>
+ *   delay = min(cap, random(base, previous delay * 3))
+ * </pre>
+ * so clients that lost their connections at the same time (a server outage) don't reconnect
+ * in lockstep. An attempt that neither connects nor fails within the attempt timeout counts as
+ * failed. The backoff is only reset once a connection has stayed READY for the cap - a server
+ * that accepts connections and drops them at once is retried with backoff, not in a loop.
+ *
+ * The time from the connection being lost (or the first attempt) to READY is recorded in a
+ * histogram (mS).
+ */
+class ReconnectScheduler {
+    // Initialize our logger
+    private static final Logger LOG = LogManager.getLogger(ReconnectScheduler.class);
+
+    private final long baseMillis;
+    private final long capMillis;
+    private final long attemptTimeoutMillis;
+    private final Histogram timeToReady;
+    private final Random random;
+
+    private boolean pending = false;
+    // When the pending attempt is due (nanoTime)
+    private long dueNanos = 0;
+    // When the attempt in progress times out (nanoTime, 0 if none)
+    private long attemptDeadlineNanos = 0;
+    // When the connection was lost (nanoTime, 0 if connected)
+    private long lostNanos = 0;
+    // When the connection became READY (nanoTime, 0 if not connected)
+    private long readyNanos = 0;
+    private long previousDelayMillis = 0;
+    private int attempts = 0;
+
+    /**
+     * @param baseMillis - shortest delay between attempts (after the first) (mS)
+     * @param capMillis - longest delay between attempts (mS)
+     * @param attemptTimeoutMillis - time for an attempt to connect (mS)
+     * @param timeToReady - receives the time to READY (mS)
+     */
+    ReconnectScheduler(long baseMillis, long capMillis, long attemptTimeoutMillis, Histogram timeToReady) {
+        this(baseMillis, capMillis, attemptTimeoutMillis, timeToReady, new Random());
+    }
+
+    /* For unit testing */
+    ReconnectScheduler(long baseMillis, long capMillis, long attemptTimeoutMillis, Histogram timeToReady, Random random) {
+        if (baseMillis <= 0 || capMillis < baseMillis || attemptTimeoutMillis <= 0) {
+            throw new IllegalArgumentException(String.format("Bad reconnect delays: base %dms, cap %dms, attempt timeout %dms", baseMillis, capMillis,
+                    attemptTimeoutMillis));
+        }
+        this.baseMillis = baseMillis;
+        this.capMillis = capMillis;
+        this.attemptTimeoutMillis = attemptTimeoutMillis;
+        this.timeToReady = timeToReady;
+        this.random = random;
+    }
+
+    /**
+     * The connection was lost (or an attempt failed) - schedule an attempt (if one isn't
+     * already scheduled).
+     */
+    synchronized void connectionLost() {
+        if (pending) {
+            return;
+        }
+        long now = System.nanoTime();
+        if (0 != readyNanos) {
+            if (now - readyNanos >= TimeUnit.MILLISECONDS.toNanos(capMillis)) {
+                // It was a stable connection - start over
+                attempts = 0;
+                previousDelayMillis = 0;
+            }
+            readyNanos = 0;
+        }
+        if (0 == lostNanos) {
+            lostNanos = now;
+        }
+        attemptDeadlineNanos = 0;
+        schedule(now);
+        notifyAll();
+    }
+
+    /**
+     * The connection is READY - record the time it took.
+     */
+    synchronized void connected() {
+        long now = System.nanoTime();
+        if (0 != lostNanos) {
+            long millis = TimeUnit.NANOSECONDS.toMillis(now - lostNanos);
+            timeToReady.record(millis);
+            LOG.info(String.format("Connection READY after %dms (%d attempts)", millis, attempts));
+        }
+        pending = false;
+        attemptDeadlineNanos = 0;
+        lostNanos = 0;
+        readyNanos = now;
+        notifyAll();
+    }
+
+    /**
+     * Wait until an attempt is due.
+     *
+     * @return the number of the attempt (since the connection was lost)
+     * @throws InterruptedException if interrupted while waiting
+     */
+    synchronized int awaitAttempt() throws InterruptedException {
+        while (true) {
+            long now = System.nanoTime();
+            if (pending) {
+                if (now - dueNanos >= 0) {
+                    pending = false;
+                    attemptDeadlineNanos = now + TimeUnit.MILLISECONDS.toNanos(attemptTimeoutMillis);
+                    return ++attempts;
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, dueNanos - now);
+            } else if (0 != attemptDeadlineNanos) {
+                if (now - attemptDeadlineNanos >= 0) {
+                    LOG.info(String.format("Connection attempt %d timed out", attempts));
+                    attemptDeadlineNanos = 0;
+                    schedule(now);
+                    continue;
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, attemptDeadlineNanos - now);
+            } else {
+                wait();
+            }
+        }
+    }
+
+    /**
+     * @return the delay before the next attempt (mS) - 0 for the first attempt
+     */
+    synchronized long nextDelay() {
+        if (0 == attempts) {
+            return 0;
+        }
+        long upper = Math.max(baseMillis, previousDelayMillis) * 3;
+        long delay = Math.min(capMillis, baseMillis + (long) (random.nextDouble() * (upper - baseMillis)));
+        previousDelayMillis = delay;
+        return delay;
+    }
+
+    private void schedule(long now) {
+        long delay = nextDelay();
+        if (delay > 0) {
+            LOG.info(String.format("Re-trying the connection (attempt %d) in %dms...", attempts + 1, delay));
+        }
+        dueNanos = now + TimeUnit.MILLISECONDS.toNanos(delay);
+        pending = true;
+    }
+}
@@ -16,6 +16,7 @@
 
 package wa.commonLogging;
 
+import java.io.File;
 import java.util.Collection;
 
 import org.apache.commons.lang3.StringUtils;
@@ -36,10 +37,79 @@ public class CommonLogging {
     public static Logger LOG_SERVER_COMM_SEND = LogManager.getLogger("GLOBAL.Server.Communication.Send");
 	/** Communication loggers - when receiving */
     public static Logger LOG_SERVER_COMM_RECEIVE = LogManager.getLogger("GLOBAL.Server.Communication.Receive");
+    /** Metrics logger - periodic snapshots of the metrics (latency/throughput histograms) */
+    public static Logger LOG_METRICS = LogManager.getLogger("GLOBAL.Metrics");
     
     static {
         LOG_PERFORMANCE.info("<<STARTED>>");
     }
+
+    // Most performance records waiting to be logged
+    private static final int PERF_RECORD_CAPACITY = 64;
+
+    /**
+     * The performance record writer (started when the first record is logged).
+     */
+    private static class PerfWriterHolder {
+        static final PerfLogWriter WRITER = new PerfLogWriter(PERF_RECORD_CAPACITY, CommonLogging::isPerfomanceLogEnabled,
+                line -> LOG_PERFORMANCE.debug(line));
+    }
+
+    /**
+     * Log a performance record (if performance logging or the binary performance log is enabled).
+     *
+     * The record is copied and logged on the performance logger's thread, so the caller
+     * doesn't allocate or wait for the log - the record can be filled in again at once. If too
+     * many records are waiting the record is dropped.
+     *
+     * @param record - the record
+     */
+    public static void logPerformanceRecord(PerfRecord record) {
+        if (isPerfomanceLogEnabled() || null != PerfWriterHolder.WRITER.getBinaryLog()) {
+            PerfWriterHolder.WRITER.submit(record);
+        }
+    }
+
+    /**
+     * Also write the performance records to binary files (see PerfBinaryLog and PerfLogAnalyzer).
+     *
+     * @param directory - directory of the files
+     * @param maxFileBytes - size of a file (it is rolled when full)
+     * @param maxFiles - number of files kept (of each record identifier)
+     */
+    public static void startBinaryPerformanceLog(File directory, long maxFileBytes, int maxFiles) {
+        stopBinaryPerformanceLog();
+        PerfWriterHolder.WRITER.setBinaryLog(new PerfBinaryLog(directory, maxFileBytes, maxFiles));
+    }
+
+    /**
+     * Stop writing the binary performance log (the files are closed).
+     */
+    public static void stopBinaryPerformanceLog() {
+        PerfBinaryLog log = PerfWriterHolder.WRITER.getBinaryLog();
+        PerfWriterHolder.WRITER.setBinaryLog(null);
+        if (null != log) {
+            log.close();
+        }
+    }
+
+    /**
+     * Wait for the performance records to be logged (e.g. before exiting).
+     *
+     * @param timeoutMillis - longest time to wait (mS)
+     * @return true if all the records were logged
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public static boolean flushPerformanceRecords(long timeoutMillis) throws InterruptedException {
+        return PerfWriterHolder.WRITER.flush(timeoutMillis);
+    }
+
+    /**
+     * @return the number of performance records dropped (too many waiting to be logged)
+     */
+    public static long getDroppedPerformanceRecords() {
+        return PerfWriterHolder.WRITER.getDropped();
+    }
     
     /**
      * Log a performance message in the correct format given the input parameters.
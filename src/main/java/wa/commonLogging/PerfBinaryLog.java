@@ -0,0 +1,308 @@
+/**
+ * Copyright 2018 IBM Corporation. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wa.commonLogging;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Binary performance log - the numeric values of the performance records in compact, fixed
+ * width records, appended to memory mapped files.
+ *
+ * Each identifier (CLIENT, CAPTURE, ...) has its own files, named
+ * `<identifier>-<yyyyMMdd-HHmmss-SSS>.perf` (so they sort by time). A file is rolled when it is
+ * full (the size is set when it is created) and the oldest files are deleted. A file is:
+ * <ul>
+ *  <li> Header (HEADER_SIZE bytes): magic, record size, number of values, number of records,
+ *       then the identifier and the value names (length prefixed UTF-8) </li>
+ *  <li> Records: time stamp (mS) then the values (NONE if not known) - 8 bytes each, big-endian </li>
+ * </ul>
+ * The number of records in the header is updated after each record, so a file can be read
+ * while it is being written (or after the client stopped without closing it). The info values
+ * (text) aren't written.
+ *
+ * Written by one thread (the performance logger's). Read with `read`.
+ */
+public class PerfBinaryLog implements Closeable {
+    // Initialize our logger
+    private static final Logger LOG = LogManager.getLogger(PerfBinaryLog.class);
+
+    /** File name extension */
+    public static final String EXTENSION = ".perf";
+    /** Size of the file header */
+    public static final int HEADER_SIZE = 1024;
+
+    private static final long MAGIC = 0x5741504552463031L; // "WAPERF01"
+    private static final int RECORD_SIZE_OFFSET = 8;
+    private static final int VALUE_COUNT_OFFSET = 12;
+    private static final int RECORD_COUNT_OFFSET = 16;
+    private static final int NAMES_OFFSET = 24;
+
+    private final File directory;
+    private final long maxFileBytes;
+    private final int maxFiles;
+    private final Map<String, Segment> segments = new HashMap<>();
+    private boolean closed = false;
+
+    /**
+     * A file being written.
+     */
+    private static class Segment {
+        final String[] names;
+        final RandomAccessFile file;
+        final MappedByteBuffer buffer;
+        final int recordSize;
+        long count = 0;
+
+        Segment(String[] names, RandomAccessFile file, MappedByteBuffer buffer) {
+            this.names = names;
+            this.file = file;
+            this.buffer = buffer;
+            this.recordSize = 8 * (1 + names.length);
+        }
+
+        boolean isFull() {
+            return HEADER_SIZE + (count + 1) * recordSize > buffer.capacity();
+        }
+
+        void close() throws IOException {
+            buffer.force();
+            file.close();
+        }
+    }
+
+    /**
+     * Visits the records of a file.
+     */
+    public interface Visitor {
+        /**
+         * @param identifier - the identifier of the records
+         * @param names - the names of the values
+         */
+        void header(String identifier, String[] names);
+
+        /**
+         * @param timestamp - when the record was logged (system time stamp)
+         * @param values - the values (NONE if not known) - reused for the next record
+         */
+        void record(long timestamp, long[] values);
+    }
+
+    /**
+     * @param directory - the directory of the files (created if it doesn't exist)
+     * @param maxFileBytes - size of a file
+     * @param maxFiles - number of files of an identifier kept (the oldest are deleted)
+     */
+    public PerfBinaryLog(File directory, long maxFileBytes, int maxFiles) {
+        if (maxFileBytes < HEADER_SIZE + 8 * (1 + PerfRecord.MAX_VALUES) || maxFileBytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Binary performance log files must be at least " + (HEADER_SIZE + 8 * (1 + PerfRecord.MAX_VALUES))
+                    + " bytes and less than 2GB");
+        }
+        this.directory = directory;
+        this.maxFileBytes = maxFileBytes;
+        this.maxFiles = Math.max(1, maxFiles);
+    }
+
+    /**
+     * Append a record.
+     *
+     * @param record - the record (its time stamp and values)
+     * @throws IOException if a file can't be created
+     */
+    public synchronized void write(PerfRecord record) throws IOException {
+        if (closed) {
+            return;
+        }
+        String identifier = record.getIdentifier();
+        String[] names = record.getValueNames();
+        Segment segment = segments.get(identifier);
+        if (null == segment || segment.isFull() || (segment.names != names && !Arrays.equals(segment.names, names))) {
+            if (null != segment) {
+                segments.remove(identifier);
+                segment.close();
+            }
+            segment = create(identifier, names, record.getTimestamp());
+            segments.put(identifier, segment);
+        }
+        int position = (int) (HEADER_SIZE + segment.count * segment.recordSize);
+        segment.buffer.putLong(position, record.getTimestamp());
+        for (int i = 0; i < names.length; i++) {
+            segment.buffer.putLong(position + 8 * (i + 1), record.get(i));
+        }
+        segment.count++;
+        segment.buffer.putLong(RECORD_COUNT_OFFSET, segment.count);
+    }
+
+    /**
+     * Close the files (records written after this are ignored).
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        for (Segment segment : segments.values()) {
+            try {
+                segment.close();
+            } catch (IOException e) {
+                LOG.warn("Error closing binary performance log: " + e);
+            }
+        }
+        segments.clear();
+    }
+
+    private Segment create(String identifier, String[] names, long timestamp) throws IOException {
+        byte[] header = header(identifier, names);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Can't create the directory " + directory);
+        }
+        String name = identifier + "-" + new SimpleDateFormat("yyyyMMdd-HHmmss-SSS").format(new Date(timestamp));
+        File file = new File(directory, name + EXTENSION);
+        for (int i = 1; file.exists(); i++) {
+            file = new File(directory, name + "." + i + EXTENSION);
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, maxFileBytes);
+            buffer.put(header);
+            LOG.info("Binary performance log: " + file);
+            deleteOldFiles(identifier);
+            return new Segment(names, raf, buffer);
+        } catch (IOException | RuntimeException e) {
+            LOG.error("Error creating binary performance log " + file + ": " + e);
+            raf.close();
+            throw e;
+        }
+    }
+
+    private void deleteOldFiles(String identifier) {
+        List<File> files = listFiles(directory, identifier);
+        for (int i = 0; i < files.size() - maxFiles; i++) {
+            if (!files.get(i).delete()) {
+                LOG.warn("Could not delete old binary performance log: " + files.get(i));
+            }
+        }
+    }
+
+    private static byte[] header(String identifier, String[] names) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putLong(MAGIC);
+        header.putInt(8 * (1 + names.length));
+        header.putInt(names.length);
+        header.putLong(0);
+        try {
+            putString(header, identifier);
+            for (String name : names) {
+                putString(header, name);
+            }
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Performance value names are too long for the binary log", e);
+        }
+        return header.array();
+    }
+
+    private static void putString(ByteBuffer buffer, String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        buffer.putShort((short) bytes.length);
+        buffer.put(bytes);
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getShort()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The binary log files in a directory (oldest first).
+     *
+     * @param directory - the directory
+     * @param identifier - only the files of this identifier (null for all)
+     * @return the files
+     */
+    public static List<File> listFiles(File directory, String identifier) {
+        List<File> files = new ArrayList<>();
+        File[] all = directory.listFiles();
+        if (null != all) {
+            for (File file : all) {
+                String name = file.getName();
+                if (file.isFile() && name.endsWith(EXTENSION) && (null == identifier || name.startsWith(identifier + "-"))) {
+                    files.add(file);
+                }
+            }
+        }
+        // The names sort by time (for an identifier)
+        files.sort((a, b) -> a.getName().compareTo(b.getName()));
+        return files;
+    }
+
+    /**
+     * Read the records of a file (in one pass - the file is mapped, not loaded).
+     *
+     * @param file - the file
+     * @param visitor - receives the header and the records
+     * @return the number of records
+     * @throws IOException if the file can't be read or isn't a binary performance log
+     */
+    public static long read(File file, Visitor visitor) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            if (raf.length() < HEADER_SIZE) {
+                throw new IOException("Not a binary performance log: " + file);
+            }
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            if (MAGIC != buffer.getLong(0)) {
+                throw new IOException("Not a binary performance log: " + file);
+            }
+            int recordSize = buffer.getInt(RECORD_SIZE_OFFSET);
+            int valueCount = buffer.getInt(VALUE_COUNT_OFFSET);
+            if (valueCount < 0 || valueCount > PerfRecord.MAX_VALUES || recordSize != 8 * (1 + valueCount)) {
+                throw new IOException("Bad binary performance log header: " + file);
+            }
+            long count = Math.min(buffer.getLong(RECORD_COUNT_OFFSET), (raf.length() - HEADER_SIZE) / recordSize);
+            buffer.position(NAMES_OFFSET);
+            String identifier = getString(buffer);
+            String[] names = new String[valueCount];
+            for (int i = 0; i < valueCount; i++) {
+                names[i] = getString(buffer);
+            }
+            visitor.header(identifier, names);
+            long[] values = new long[valueCount];
+            for (long r = 0; r < count; r++) {
+                int position = (int) (HEADER_SIZE + r * recordSize);
+                for (int i = 0; i < valueCount; i++) {
+                    values[i] = buffer.getLong(position + 8 * (i + 1));
+                }
+                visitor.record(buffer.getLong(position), values);
+            }
+            return count;
+        }
+    }
+}
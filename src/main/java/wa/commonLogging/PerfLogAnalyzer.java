@@ -0,0 +1,263 @@
+/**
+ * Copyright 2018 IBM Corporation. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wa.commonLogging;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import wa.metrics.Histogram;
+
+/**
+ * Command line analyzer of binary performance logs (see PerfBinaryLog).
+ *
+ * Reads the files in one streaming pass (the records aren't kept) and reports, for each record
+ * identifier: the count, mean and percentiles of each value, the count and percentiles of one
+ * value (the column) per hour, and the records with the highest values of the column.
+ *
+ * <pre>
+ * Usage: PerfLogAnalyzer [-column name] [-slowest n] file|directory...
+ * </pre>
+ * The default column is `Speaker>` (trigger to the first response audio played) if the records
+ * have it, otherwise the first value. The percentiles are to within about 3% (Histogram).
+ */
+public class PerfLogAnalyzer {
+
+    private static final String DEFAULT_COLUMN = "Speaker>";
+    private static final int DEFAULT_SLOWEST = 10;
+    private static final long HIGHEST_VALUE = 1L << 40;
+    private static final long HOUR_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    private final String column;
+    private final int slowest;
+    private final Map<String, Statistics> statistics = new LinkedHashMap<>();
+    private Statistics current = null;
+
+    /**
+     * The statistics of the records of an identifier.
+     */
+    private class Statistics {
+        final String identifier;
+        final String[] names;
+        final Histogram[] histograms;
+        final int columnIndex;
+        final TreeMap<Long, Histogram> hours = new TreeMap<>();
+        // Lowest of the slowest at the head: timestamp then the values
+        final PriorityQueue<long[]> slowestRecords;
+        long count = 0;
+        long first = Long.MAX_VALUE;
+        long last = Long.MIN_VALUE;
+
+        Statistics(String identifier, String[] names) {
+            this.identifier = identifier;
+            this.names = names;
+            this.histograms = new Histogram[names.length];
+            for (int i = 0; i < names.length; i++) {
+                histograms[i] = newHistogram(names[i]);
+            }
+            this.columnIndex = findColumn(names);
+            this.slowestRecords = new PriorityQueue<>(Math.max(1, slowest), (a, b) -> Long.compare(a[1 + columnIndex], b[1 + columnIndex]));
+        }
+
+        void add(long timestamp, long[] values) {
+            count++;
+            first = Math.min(first, timestamp);
+            last = Math.max(last, timestamp);
+            for (int i = 0; i < values.length; i++) {
+                if (values[i] >= 0) {
+                    histograms[i].record(values[i]);
+                }
+            }
+            if (columnIndex < 0) {
+                return;
+            }
+            long value = values[columnIndex];
+            if (value < 0) {
+                return;
+            }
+            hours.computeIfAbsent(timestamp - Math.floorMod(timestamp, HOUR_MILLIS), h -> newHistogram(names[columnIndex])).record(value);
+            if (slowest > 0 && (slowestRecords.size() < slowest || value > slowestRecords.peek()[1 + columnIndex])) {
+                long[] record = new long[1 + values.length];
+                record[0] = timestamp;
+                System.arraycopy(values, 0, record, 1, values.length);
+                slowestRecords.add(record);
+                if (slowestRecords.size() > slowest) {
+                    slowestRecords.poll();
+                }
+            }
+        }
+    }
+
+    /**
+     * @param column - name of the value reported per hour and for the slowest records (null for the default)
+     * @param slowest - number of slowest records reported
+     */
+    public PerfLogAnalyzer(String column, int slowest) {
+        this.column = (null == column ? DEFAULT_COLUMN : column);
+        this.slowest = slowest;
+    }
+
+    /**
+     * Add the records of a file.
+     *
+     * @param file - a binary performance log file
+     * @return the number of records
+     * @throws IOException if the file can't be read
+     */
+    public long add(File file) throws IOException {
+        return PerfBinaryLog.read(file, new PerfBinaryLog.Visitor() {
+            @Override
+            public void header(String identifier, String[] names) {
+                current = statistics.get(identifier);
+                if (null == current || !Arrays.equals(current.names, names)) {
+                    // A different schema is reported separately
+                    String key = (null == current ? identifier : identifier + " " + Arrays.toString(names));
+                    current = statistics.computeIfAbsent(key, k -> new Statistics(identifier, names));
+                }
+            }
+
+            @Override
+            public void record(long timestamp, long[] values) {
+                current.add(timestamp, values);
+            }
+        });
+    }
+
+    /**
+     * Report the statistics.
+     *
+     * @param out - receives the report
+     */
+    public void report(PrintStream out) {
+        SimpleDateFormat time = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        SimpleDateFormat hour = new SimpleDateFormat("yyyy-MM-dd HH:00");
+        for (Statistics s : statistics.values()) {
+            out.println(String.format("%s: %d records (%s to %s)", s.identifier, s.count, (s.count > 0 ? time.format(new Date(s.first)) : "-"),
+                    (s.count > 0 ? time.format(new Date(s.last)) : "-")));
+            out.println(String.format("  %-24s %8s %10s %10s %10s %10s %10s", "Value", "Count", "Mean", "P50", "P90", "P99", "Max"));
+            for (int i = 0; i < s.names.length; i++) {
+                Histogram.Snapshot snapshot = s.histograms[i].snapshot();
+                out.println(String.format("  %-24s %8d %10.1f %10d %10d %10d %10d", trim(s.names[i]), snapshot.getCount(), snapshot.getMean(),
+                        snapshot.getValueAtPercentile(50), snapshot.getValueAtPercentile(90), snapshot.getValueAtPercentile(99), snapshot.getMax()));
+            }
+            if (s.columnIndex < 0) {
+                out.println();
+                continue;
+            }
+            String name = trim(s.names[s.columnIndex]);
+            out.println();
+            out.println(String.format("  Per hour (%s)", name));
+            out.println(String.format("  %-24s %8s %10s %10s %10s %10s", "Hour", "Count", "P50", "P90", "P99", "Max"));
+            for (Map.Entry<Long, Histogram> entry : s.hours.entrySet()) {
+                Histogram.Snapshot snapshot = entry.getValue().snapshot();
+                out.println(String.format("  %-24s %8d %10d %10d %10d %10d", hour.format(new Date(entry.getKey())), snapshot.getCount(),
+                        snapshot.getValueAtPercentile(50), snapshot.getValueAtPercentile(90), snapshot.getValueAtPercentile(99), snapshot.getMax()));
+            }
+            if (!s.slowestRecords.isEmpty()) {
+                out.println();
+                out.println(String.format("  Slowest (%s)", name));
+                StringBuilder heading = new StringBuilder(String.format("  %-24s", "Time"));
+                for (String n : s.names) {
+                    heading.append(String.format(" %12s", trim(n)));
+                }
+                out.println(heading);
+                List<long[]> records = new ArrayList<>(s.slowestRecords);
+                records.sort((a, b) -> Long.compare(b[1 + s.columnIndex], a[1 + s.columnIndex]));
+                for (long[] record : records) {
+                    StringBuilder line = new StringBuilder(String.format("  %-24s", time.format(new Date(record[0]))));
+                    for (int i = 1; i < record.length; i++) {
+                        line.append(String.format(" %12s", (PerfRecord.NONE == record[i] ? "-" : Long.toString(record[i]))));
+                    }
+                    out.println(line);
+                }
+            }
+            out.println();
+        }
+    }
+
+    private int findColumn(String[] names) {
+        for (int i = 0; i < names.length; i++) {
+            if (trim(names[i]).equalsIgnoreCase(trim(column))) {
+                return i;
+            }
+        }
+        return (names.length > 0 ? 0 : -1);
+    }
+
+    private static Histogram newHistogram(String name) {
+        return new Histogram(name, name, 1, new long[0], HIGHEST_VALUE);
+    }
+
+    /**
+     * @return the name without the trailing separator (`STT: ` is `STT`)
+     */
+    private static String trim(String name) {
+        String trimmed = name.trim();
+        return (trimmed.endsWith(":") ? trimmed.substring(0, trimmed.length() - 1).trim() : trimmed);
+    }
+
+    /**
+     * Analyze binary performance logs.
+     *
+     * @param args - [-column name] [-slowest n] file|directory...
+     */
+    public static void main(String[] args) {
+        String column = null;
+        int slowest = DEFAULT_SLOWEST;
+        List<File> files = new ArrayList<>();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if ("-column".equals(args[i]) && i + 1 < args.length) {
+                    column = args[++i];
+                } else if ("-slowest".equals(args[i]) && i + 1 < args.length) {
+                    slowest = Integer.parseInt(args[++i]);
+                } else if (args[i].startsWith("-")) {
+                    throw new IllegalArgumentException("Unknown option: " + args[i]);
+                } else {
+                    File file = new File(args[i]);
+                    files.addAll(file.isDirectory() ? PerfBinaryLog.listFiles(file, null) : Arrays.asList(file));
+                }
+            }
+            if (files.isEmpty()) {
+                throw new IllegalArgumentException("No files");
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: PerfLogAnalyzer [-column name] [-slowest n] file|directory...");
+            System.exit(1);
+        }
+        PerfLogAnalyzer analyzer = new PerfLogAnalyzer(column, slowest);
+        for (File file : files) {
+            try {
+                analyzer.add(file);
+            } catch (IOException e) {
+                System.err.println("Skipped " + file + ": " + e.getMessage());
+            }
+        }
+        analyzer.report(System.out);
+    }
+}
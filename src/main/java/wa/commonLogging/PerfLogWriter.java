@@ -0,0 +1,159 @@
+/**
+ * Copyright 2018 IBM Corporation. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wa.commonLogging;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+/**
+ * Writes performance records to the log on its own thread.
+ *
+ * A record is copied into a preallocated slot of a fixed ring (the free slots and the filled
+ * slots are two bounded queues) and the logging thread formats it into a reused StringBuilder
+ * and logs it, and writes it to the binary performance log (if there is one). The thread
+ * logging the record only copies primitives and references - it doesn't allocate or wait for
+ * the log's I/O. If the ring is full the record is dropped (and counted) rather than holding
+ * up the caller.
+ */
+class PerfLogWriter {
+
+    private final BlockingQueue<PerfRecord> free;
+    private final BlockingQueue<PerfRecord> filled;
+    private final BooleanSupplier textEnabled;
+    private final Consumer<CharSequence> sink;
+    private volatile PerfBinaryLog binaryLog = null;
+    private final StringBuilder line = new StringBuilder(512);
+    private final AtomicLong dropped = new AtomicLong(0);
+    private final Thread thread;
+
+    /**
+     * Create (and start) the writer.
+     *
+     * @param capacity - number of records that can be waiting to be logged
+     * @param textEnabled - true if the records are logged as text
+     * @param sink - logs a line (on the writer's thread - the line is reused after it returns)
+     */
+    PerfLogWriter(int capacity, BooleanSupplier textEnabled, Consumer<CharSequence> sink) {
+        this.free = new ArrayBlockingQueue<>(capacity);
+        this.filled = new ArrayBlockingQueue<>(capacity);
+        this.textEnabled = textEnabled;
+        this.sink = sink;
+        for (int i = 0; i < capacity; i++) {
+            free.add(new PerfRecord());
+        }
+        this.thread = new Thread(this::run, "Performance Logger");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Queue a record to be logged (a copy is queued).
+     *
+     * @param record - the record
+     * @return false if the ring was full and the record was dropped
+     */
+    boolean submit(PerfRecord record) {
+        PerfRecord slot = free.poll();
+        if (null == slot) {
+            dropped.incrementAndGet();
+            return false;
+        }
+        slot.copyFrom(record);
+        slot.setTimestamp(System.currentTimeMillis());
+        filled.add(slot);
+        return true;
+    }
+
+    /**
+     * Wait for the queued records to be logged.
+     *
+     * @param timeoutMillis - longest time to wait (mS)
+     * @return true if all the records were logged
+     * @throws InterruptedException if interrupted while waiting
+     */
+    boolean flush(long timeoutMillis) throws InterruptedException {
+        long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        synchronized (this) {
+            while (free.remainingCapacity() > 0) {
+                long remaining = TimeUnit.NANOSECONDS.toMillis(end - System.nanoTime());
+                if (remaining <= 0) {
+                    return false;
+                }
+                wait(remaining);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param binaryLog - the binary log the records are also written to (null for none)
+     */
+    void setBinaryLog(PerfBinaryLog binaryLog) {
+        this.binaryLog = binaryLog;
+    }
+
+    /**
+     * @return the binary log the records are also written to (null if none)
+     */
+    PerfBinaryLog getBinaryLog() {
+        return binaryLog;
+    }
+
+    /**
+     * @return the number of records dropped because the ring was full (or the line couldn't be logged)
+     */
+    long getDropped() {
+        return dropped.get();
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                PerfRecord slot = filled.take();
+                try {
+                    if (textEnabled.getAsBoolean()) {
+                        line.setLength(0);
+                        slot.formatTo(line);
+                        sink.accept(line);
+                    }
+                    PerfBinaryLog log = binaryLog;
+                    if (null != log) {
+                        log.write(slot);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    // Keep logging the records that follow
+                    dropped.incrementAndGet();
+                } finally {
+                    slot.clear();
+                    free.add(slot);
+                }
+                synchronized (this) {
+                    if (0 == free.remainingCapacity()) {
+                        notifyAll();
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            // Exiting
+        }
+    }
+}
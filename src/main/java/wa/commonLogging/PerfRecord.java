@@ -0,0 +1,213 @@
+/**
+ * Copyright 2018 IBM Corporation. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wa.commonLogging;
+
+import java.util.Arrays;
+
+/**
+ * A preallocated record for the performance log - a fixed schema (identifier, value names and
+ * info names) with primitive values.
+ *
+ * The record is created once (with the schema) and filled in each time it is logged - setting
+ * the values does not allocate (no boxing, no lists of name-values). It is logged with
+ * `CommonLogging.logPerformanceRecord`, which copies it, so it can be filled in again at once.
+ * The logged line has the same format as `CommonLogging.logPerformanceElements`.
+ *
+ * Not thread safe - fill in and log a record on one thread (or under a lock).
+ */
+public final class PerfRecord {
+
+    /** Value that isn't known (logged as blank) */
+    public static final long NONE = Long.MIN_VALUE;
+    /** Most values in a record */
+    public static final int MAX_VALUES = 16;
+    /** Most info values in a record */
+    public static final int MAX_INFOS = 8;
+
+    private static final char TAB = '\t';
+
+    private String identifier;
+    private String[] valueNames;
+    private String[] infoNames;
+    private String comment = null;
+    // When the record was logged (system time stamp) - set on the copies that are logged
+    private long timestamp = 0;
+    // Sized for any schema, so a record can be copied into any other
+    private final long[] values = new long[MAX_VALUES];
+    private final String[] infos = new String[MAX_INFOS];
+
+    /**
+     * Create a record.
+     *
+     * @param identifier - identifier written to the log after the datetime stamp
+     * @param valueNames - names of the (numeric) values (interned)
+     * @param infoNames - names of the info (text) values (interned) [can be null]
+     */
+    public PerfRecord(String identifier, String[] valueNames, String[] infoNames) {
+        String[] names = (null == infoNames ? new String[0] : infoNames);
+        if (valueNames.length > MAX_VALUES || names.length > MAX_INFOS) {
+            throw new IllegalArgumentException(String.format("A performance record has at most %d values and %d info values", MAX_VALUES, MAX_INFOS));
+        }
+        this.identifier = identifier.intern();
+        this.valueNames = intern(valueNames);
+        this.infoNames = intern(names);
+        clear();
+    }
+
+    /**
+     * An empty record (for copies).
+     */
+    PerfRecord() {
+        this.identifier = "";
+        this.valueNames = new String[0];
+        this.infoNames = new String[0];
+        clear();
+    }
+
+    /**
+     * Clear the values (and comment).
+     */
+    public void clear() {
+        comment = null;
+        Arrays.fill(values, NONE);
+        Arrays.fill(infos, null);
+    }
+
+    /**
+     * @param comment - comment written after the identifier [can be null]
+     */
+    public void setComment(String comment) {
+        this.comment = comment;
+    }
+
+    /**
+     * Set a value.
+     *
+     * @param index - index of the value (in the value names)
+     * @param value - the value (NONE if it isn't known)
+     */
+    public void set(int index, long value) {
+        if (index >= valueNames.length) {
+            throw new IndexOutOfBoundsException("No performance value " + index);
+        }
+        values[index] = value;
+    }
+
+    /**
+     * Set an info value.
+     *
+     * @param index - index of the info value (in the info names)
+     * @param info - the info [can be null]
+     */
+    public void setInfo(int index, String info) {
+        if (index >= infoNames.length) {
+            throw new IndexOutOfBoundsException("No performance info value " + index);
+        }
+        infos[index] = info;
+    }
+
+    /**
+     * @param index - index of the value
+     * @return the value (NONE if it isn't known)
+     */
+    public long get(int index) {
+        return values[index];
+    }
+
+    /**
+     * @return the identifier
+     */
+    String getIdentifier() {
+        return identifier;
+    }
+
+    /**
+     * @return the value names (not a copy)
+     */
+    String[] getValueNames() {
+        return valueNames;
+    }
+
+    /**
+     * @return when the record was logged (system time stamp, 0 if it hasn't been)
+     */
+    long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @param timestamp - when the record was logged (system time stamp)
+     */
+    void setTimestamp(long timestamp) {
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * Copy another record (schema and values) into this one.
+     *
+     * @param source - the record to copy
+     */
+    void copyFrom(PerfRecord source) {
+        identifier = source.identifier;
+        valueNames = source.valueNames;
+        infoNames = source.infoNames;
+        comment = source.comment;
+        timestamp = source.timestamp;
+        System.arraycopy(source.values, 0, values, 0, MAX_VALUES);
+        System.arraycopy(source.infos, 0, infos, 0, MAX_INFOS);
+    }
+
+    /**
+     * Write the record as a performance log line (tab separated fields: identifier, comment,
+     * then the name and value of each value and each info value).
+     *
+     * @param sb - receives the line
+     */
+    public void formatTo(StringBuilder sb) {
+        sb.append(identifier).append(TAB);
+        if (null != comment) {
+            sb.append(comment);
+        }
+        for (int i = 0; i < valueNames.length; i++) {
+            sb.append(TAB).append(valueNames[i]).append(TAB);
+            if (NONE != values[i]) {
+                sb.append(values[i]);
+            }
+        }
+        for (int i = 0; i < infoNames.length; i++) {
+            sb.append(TAB).append(infoNames[i]).append(TAB);
+            if (null != infos[i]) {
+                sb.append(infos[i]);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        formatTo(sb);
+        return sb.toString();
+    }
+
+    private static String[] intern(String[] names) {
+        String[] interned = new String[names.length];
+        for (int i = 0; i < names.length; i++) {
+            interned[i] = names[i].intern();
+        }
+        return interned;
+    }
+}
@@ -0,0 +1,238 @@
+/**
+ * Copyright 2018 IBM Corporation. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package wa.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of (non-negative, integer) values with bounded relative error (HDR style).
+ *
+ * The values are counted in log-linear buckets: values below 64 have a bucket each, and each
+ * power of 2 above that is split into 32 buckets, so a value is known to within about 3%
+ * (1/32) whatever its size. Values above the highest trackable value are counted as the
+ * highest value. The memory is fixed (about 500 counts for values up to a million).
+ *
+ * Recording is lock free (atomic counts) and can be done from any thread. The statistics
+ * (percentiles, counts at or below a value) are taken from a Snapshot - a copy of the counts.
+ */
+public class Histogram {
+
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int SUB_BUCKET_HALF = SUB_BUCKET_COUNT / 2;
+
+    private final String name;
+    private final String help;
+    private final long exportDivisor;
+    private final long[] exportBounds;
+    private final long highestTrackableValue;
+    private final AtomicLongArray counts;
+    private final AtomicLong sum = new AtomicLong(0);
+    private final AtomicLong max = new AtomicLong(0);
+
+    /**
+     * Create a histogram. Usually done through the MetricsRegistry.
+     *
+     * @param name - name of the metric (Prometheus naming - lower case, underscores, with the unit)
+     * @param help - description of the metric
+     * @param exportDivisor - divisor from the recorded values to the exported unit (1000 for mS exported as seconds)
+     * @param exportBounds - upper bounds (recorded values) of the buckets that are exported
+     * @param highestTrackableValue - the highest value that is counted (higher values are counted as this)
+     */
+    public Histogram(String name, String help, long exportDivisor, long[] exportBounds, long highestTrackableValue) {
+        if (highestTrackableValue < SUB_BUCKET_COUNT) {
+            throw new IllegalArgumentException("Highest trackable value must be at least " + SUB_BUCKET_COUNT);
+        }
+        this.name = name;
+        this.help = help;
+        this.exportDivisor = exportDivisor;
+        this.exportBounds = exportBounds.clone();
+        this.highestTrackableValue = highestTrackableValue;
+        this.counts = new AtomicLongArray(indexOf(highestTrackableValue) + 1);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getHelp() {
+        return help;
+    }
+
+    public long getExportDivisor() {
+        return exportDivisor;
+    }
+
+    public long[] getExportBounds() {
+        return exportBounds.clone();
+    }
+
+    /**
+     * Count a value.
+     *
+     * @param value - the value (negative values are counted as 0)
+     */
+    public void record(long value) {
+        long v = Math.min(Math.max(value, 0), highestTrackableValue);
+        counts.incrementAndGet(indexOf(v));
+        sum.addAndGet(v);
+        long current;
+        while (v > (current = max.get()) && !max.compareAndSet(current, v)) {
+            // retry
+        }
+    }
+
+    /**
+     * @return a copy of the counts so far
+     */
+    public Snapshot snapshot() {
+        long[] copy = new long[counts.length()];
+        for (int i = 0; i < copy.length; i++) {
+            copy[i] = counts.get(i);
+        }
+        // The sum and max are read after the counts - they can include a value recorded during the copy
+        long total = 0;
+        for (long c : copy) {
+            total += c;
+        }
+        return new Snapshot(copy, total, sum.get(), max.get());
+    }
+
+    /**
+     * The counts of a histogram at a point in time (or between two points in time).
+     */
+    public static final class Snapshot {
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+        private final long max;
+
+        Snapshot(long[] counts, long count, long sum, long max) {
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        /**
+         * @return the number of values
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * @return the sum of the values
+         */
+        public long getSum() {
+            return sum;
+        }
+
+        /**
+         * @return the highest value (0 if none)
+         */
+        public long getMax() {
+            return max;
+        }
+
+        /**
+         * @return the average value (0 if none)
+         */
+        public double getMean() {
+            return (count == 0 ? 0 : (double) sum / count);
+        }
+
+        /**
+         * @param percentile - percentile (0 to 100)
+         * @return the value at the percentile (the highest value it could be, at most the max), 0 if there are no values
+         */
+        public long getValueAtPercentile(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            long target = Math.max(1, (long) Math.ceil(count * Math.min(100, Math.max(0, percentile)) / 100));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= target) {
+                    return Math.min(highestValueOf(i), max);
+                }
+            }
+            return max;
+        }
+
+        /**
+         * @param value - a value
+         * @return the number of values at or below the value (to the accuracy of the buckets)
+         */
+        public long getCountAtOrBelow(long value) {
+            long total = 0;
+            for (int i = 0; i < counts.length && lowestValueOf(i) <= value; i++) {
+                total += counts[i];
+            }
+            return total;
+        }
+
+        /**
+         * The values counted since an earlier snapshot (of the same histogram).
+         *
+         * @param earlier - the earlier snapshot
+         * @return the difference - the max is the highest value it could be
+         */
+        public Snapshot since(Snapshot earlier) {
+            long[] difference = new long[counts.length];
+            long total = 0;
+            int highest = -1;
+            for (int i = 0; i < counts.length; i++) {
+                difference[i] = counts[i] - earlier.counts[i];
+                total += difference[i];
+                if (difference[i] > 0) {
+                    highest = i;
+                }
+            }
+            long highestValue = (highest < 0 ? 0 : Math.min(highestValueOf(highest), max));
+            return new Snapshot(difference, total, sum - earlier.sum, highestValue);
+        }
+    }
+
+    static int indexOf(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value); // at least SUB_BUCKET_BITS
+        int shift = exponent - SUB_BUCKET_BITS + 1;
+        int subBucket = (int) (value >>> shift); // SUB_BUCKET_HALF to SUB_BUCKET_COUNT - 1
+        return SUB_BUCKET_COUNT + (shift - 1) * SUB_BUCKET_HALF + (subBucket - SUB_BUCKET_HALF);
+    }
+
+    static long lowestValueOf(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = (index - SUB_BUCKET_COUNT) / SUB_BUCKET_HALF + 1;
+        long subBucket = (index - SUB_BUCKET_COUNT) % SUB_BUCKET_HALF + SUB_BUCKET_HALF;
+        return subBucket << shift;
+    }
+
+    static long highestValueOf(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = (index - SUB_BUCKET_COUNT) / SUB_BUCKET_HALF + 1;
+        return lowestValueOf(index) + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,143 @@
+/**
+ * Copyright 2018 IBM Corporation. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package wa.metrics;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import wa.commonLogging.CommonLogging;
+
+/**
+ * The metrics (histograms) of the client, by name.
+ *
+ * The metrics can be read as Prometheus text (see MetricsServer) and logged periodically
+ * (GLOBAL.Metrics) - each log line has the count and percentiles of the values recorded since
+ * the previous line (in the recorded unit, e.g. mS).
+ */
+public class MetricsRegistry {
+
+    private static final MetricsRegistry INSTANCE = new MetricsRegistry();
+
+    private final Map<String, Histogram> histograms = new ConcurrentSkipListMap<>();
+    private ScheduledExecutorService snapshotLogger = null;
+
+    /**
+     * @return the registry of the client's metrics
+     */
+    public static MetricsRegistry getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Get a histogram, creating it if it isn't registered.
+     *
+     * @param name - name of the metric (Prometheus naming - lower case, underscores, with the unit)
+     * @param help - description of the metric
+     * @param exportDivisor - divisor from the recorded values to the exported unit (1000 for mS exported as seconds)
+     * @param exportBounds - upper bounds (recorded values) of the buckets that are exported
+     * @param highestTrackableValue - the highest value that is counted (higher values are counted as this)
+     * @return the histogram
+     */
+    public Histogram histogram(String name, String help, long exportDivisor, long[] exportBounds, long highestTrackableValue) {
+        return histograms.computeIfAbsent(name, n -> new Histogram(n, help, exportDivisor, exportBounds, highestTrackableValue));
+    }
+
+    /**
+     * @return the histograms (by name)
+     */
+    public Collection<Histogram> getHistograms() {
+        return histograms.values();
+    }
+
+    /**
+     * The metrics in the Prometheus text format (version 0.0.4).
+     *
+     * @return the text
+     */
+    public String toPrometheusText() {
+        StringBuilder sb = new StringBuilder();
+        for (Histogram histogram : histograms.values()) {
+            Histogram.Snapshot snapshot = histogram.snapshot();
+            String name = histogram.getName();
+            long divisor = histogram.getExportDivisor();
+            sb.append("# HELP ").append(name).append(' ').append(histogram.getHelp()).append('\n');
+            sb.append("# TYPE ").append(name).append(" histogram\n");
+            for (long bound : histogram.getExportBounds()) {
+                sb.append(name).append("_bucket{le=\"").append(format(bound, divisor)).append("\"} ")
+                        .append(snapshot.getCountAtOrBelow(bound)).append('\n');
+            }
+            sb.append(name).append("_bucket{le=\"+Inf\"} ").append(snapshot.getCount()).append('\n');
+            sb.append(name).append("_sum ").append(format(snapshot.getSum(), divisor)).append('\n');
+            sb.append(name).append("_count ").append(snapshot.getCount()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Log a snapshot of the metrics periodically (GLOBAL.Metrics at info).
+     *
+     * @param periodMillis - time between the snapshots (mS)
+     */
+    public synchronized void startSnapshotLogging(long periodMillis) {
+        stopSnapshotLogging();
+        snapshotLogger = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "Metrics Logger");
+            t.setDaemon(true);
+            return t;
+        });
+        Map<String, Histogram.Snapshot> previous = new HashMap<>();
+        snapshotLogger.scheduleAtFixedRate(() -> logSnapshot(previous), periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop logging the snapshots.
+     */
+    public synchronized void stopSnapshotLogging() {
+        if (null != snapshotLogger) {
+            snapshotLogger.shutdownNow();
+            snapshotLogger = null;
+        }
+    }
+
+    /**
+     * Log the values recorded since the previous snapshot (metrics without new values aren't logged).
+     *
+     * @param previous - the previous snapshots (by name) - updated
+     */
+    void logSnapshot(Map<String, Histogram.Snapshot> previous) {
+        for (Histogram histogram : histograms.values()) {
+            Histogram.Snapshot snapshot = histogram.snapshot();
+            Histogram.Snapshot earlier = previous.put(histogram.getName(), snapshot);
+            Histogram.Snapshot interval = (null == earlier ? snapshot : snapshot.since(earlier));
+            if (interval.getCount() > 0 && CommonLogging.LOG_METRICS.isInfoEnabled()) {
+                CommonLogging.LOG_METRICS.info(String.format("%s\tCount:\t%d\tP50:\t%d\tP90:\t%d\tP99:\t%d\tMax:\t%d", histogram.getName(),
+                        interval.getCount(), interval.getValueAtPercentile(50), interval.getValueAtPercentile(90),
+                        interval.getValueAtPercentile(99), interval.getMax()));
+            }
+        }
+    }
+
+    private static String format(long value, long divisor) {
+        return BigDecimal.valueOf(value, 0).divide(BigDecimal.valueOf(divisor), MathContext.DECIMAL64).stripTrailingZeros().toPlainString();
+    }
+}
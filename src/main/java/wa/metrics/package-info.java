@@ -0,0 +1,4 @@
+/**
+ * Metrics (latency and throughput histograms) and their export
+ */
+package wa.metrics;
\ No newline at end of file
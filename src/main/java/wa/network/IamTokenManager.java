@@ -0,0 +1,355 @@
+/**
+ * Copyright 2018 IBM Corporation. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wa.network;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import okhttp3.FormBody;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import wa.exceptions.AuthenticationError;
+import wa.exceptions.ConnectionError;
+import wa.util.SharedHttpClient;
+
+/**
+ * The IAM access token for the API key - cached, refreshed before it expires and (optionally)
+ * kept in a file across restarts.
+ *
+ * `getToken` returns the cached token while it is valid - it only waits for the IAM service
+ * when there is no valid token (the first time, without a saved token, or after the refreshes
+ * failed). Once started, the token is refreshed in the background when 80% of its lifetime
+ * (`expires_in`) has passed. A refresh that fails is retried while the token is still valid.
+ * Concurrent requests for a new token share one request to the IAM service.
+ *
+ * The token file holds the token, when it expires and a hash of the API key (a token for a
+ * different key is not used). It is only readable by its owner (where the file system
+ * supports it).
+ */
+public class IamTokenManager {
+    // Initialize our logger
+    private static final Logger LOG = LogManager.getLogger(IamTokenManager.class);
+
+    /** The IAM token endpoint */
+    public static final String DEFAULT_URL = "https://iam.bluemix.net/oidc/token";
+
+    private static final String GRANT_TYPE = "urn:ibm:params:oauth:grant-type:apikey";
+    // Refresh when this much of the token's lifetime has passed
+    private static final double REFRESH_FRACTION = 0.8;
+    // A token is not used in its last 10% of its lifetime (at most this long)
+    private static final long EXPIRY_MARGIN_MS = 60000;
+    private static final long MIN_REFRESH_DELAY_MS = 500;
+    private static final long RETRY_DELAY_MS = 30000;
+
+    private static final String FILE_TOKEN = "access_token";
+    private static final String FILE_OBTAINED = "obtained";
+    private static final String FILE_EXPIRES = "expires";
+    private static final String FILE_KEY_HASH = "apikey_sha256";
+
+    private final String apiKey;
+    private final String url;
+    private final File tokenFile;
+    private final ScheduledExecutorService refresher = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "IAM Token Refresher");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private volatile Token token = null;
+    // The request in progress (null if none) - shared by the callers that need a new token
+    private CompletableFuture<Token> refreshing = null;
+    private ScheduledFuture<?> scheduledRefresh = null;
+    private boolean started = false;
+
+    /**
+     * An access token.
+     */
+    private static class Token {
+        final String value;
+        // System time stamps (mS)
+        final long obtained;
+        final long expires;
+
+        Token(String value, long obtained, long expires) {
+            this.value = value;
+            this.obtained = obtained;
+            this.expires = expires;
+        }
+
+        long refreshAt() {
+            return obtained + (long) ((expires - obtained) * REFRESH_FRACTION);
+        }
+
+        boolean isUsable(long now) {
+            return now < expires - Math.min(EXPIRY_MARGIN_MS, (expires - obtained) / 10);
+        }
+    }
+
+    /**
+     * Create the manager (reads the saved token, if there is one).
+     *
+     * @param apiKey - the IAM API key
+     * @param url - the IAM token endpoint (DEFAULT_URL)
+     * @param tokenFile - the file the token is kept in across restarts [can be null]
+     */
+    public IamTokenManager(String apiKey, String url, File tokenFile) {
+        this.apiKey = apiKey;
+        this.url = url;
+        this.tokenFile = tokenFile;
+        this.token = load();
+    }
+
+    /**
+     * Start refreshing the token in the background.
+     */
+    public synchronized void start() {
+        started = true;
+        Token current = token;
+        scheduleRefresh(null == current ? System.currentTimeMillis() : current.refreshAt());
+    }
+
+    /**
+     * Stop refreshing the token (it can't be started again).
+     */
+    public synchronized void stop() {
+        started = false;
+        refresher.shutdownNow();
+    }
+
+    /**
+     * Get a valid access token - the cached token, or a new one if there isn't a valid one.
+     *
+     * @return the access token
+     * @throws AuthenticationError if the IAM service rejects the API key
+     * @throws ConnectionError if the IAM service can't be reached (or its response can't be used)
+     */
+    public String getToken() {
+        Token current = token;
+        if (null != current && current.isUsable(System.currentTimeMillis())) {
+            return current.value;
+        }
+        try {
+            return refresh().join().value;
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new ConnectionError(e.getCause());
+        }
+    }
+
+    /**
+     * Drop the cached token (it was rejected) - the next `getToken` gets a new one. The saved
+     * token is deleted too, so it isn't used again after a restart.
+     */
+    public void invalidate() {
+        token = null;
+        if (null != tokenFile) {
+            try {
+                Files.deleteIfExists(tokenFile.toPath());
+            } catch (IOException e) {
+                LOG.warn(String.format("Could not delete the saved IAM access token %s: %s", tokenFile, e));
+            }
+        }
+    }
+
+    /**
+     * Get a new token - or join the request that is in progress.
+     *
+     * @return the new token (when it is received)
+     */
+    private CompletableFuture<Token> refresh() {
+        CompletableFuture<Token> result;
+        synchronized (this) {
+            if (null != refreshing) {
+                return refreshing;
+            }
+            refreshing = new CompletableFuture<>();
+            result = refreshing;
+        }
+        try {
+            Token received = request();
+            token = received;
+            save(received);
+            synchronized (this) {
+                refreshing = null;
+                scheduleRefresh(received.refreshAt());
+            }
+            result.complete(received);
+        } catch (RuntimeException e) {
+            synchronized (this) {
+                refreshing = null;
+            }
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    private synchronized void scheduleRefresh(long when) {
+        if (!started) {
+            return;
+        }
+        if (null != scheduledRefresh) {
+            scheduledRefresh.cancel(false);
+        }
+        long delay = Math.max(MIN_REFRESH_DELAY_MS, when - System.currentTimeMillis());
+        scheduledRefresh = refresher.schedule(this::backgroundRefresh, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void backgroundRefresh() {
+        try {
+            refresh().join();
+            LOG.debug("IAM access token refreshed");
+        } catch (CompletionException e) {
+            // Try again (the token is requested when needed if it expires first)
+            LOG.warn("Could not refresh the IAM access token: " + e.getCause());
+            scheduleRefresh(System.currentTimeMillis() + RETRY_DELAY_MS);
+        }
+    }
+
+    private Token request() {
+        FormBody body = new FormBody.Builder().add("grant_type", GRANT_TYPE).add("apikey", apiKey).build();
+        Request request = new Request.Builder().url(url).post(body).header("accept", "application/json").header("cache-control", "no-cache").build();
+        long start = System.currentTimeMillis();
+        try (Response response = SharedHttpClient.get().newCall(request).execute()) {
+            int code = response.code();
+            ResponseBody responseBody = response.body();
+            String text = (null == responseBody ? "" : responseBody.string());
+            switch (code) {
+            case 200:
+                break;
+            case 400:
+            case 401:
+            case 403:
+            case 404:
+                throw new AuthenticationError(code, String.format("The IAM service rejected the API key (HTTP %d): %s", code, text));
+            default:
+                throw new ConnectionError(String.format("IAM token request failed (HTTP %d): %s", code, text));
+            }
+            JSONObject json = new JSONObject(text);
+            String value = json.getString("access_token");
+            // Relative to the local time of the request (the device's clock may be off)
+            long expires = start + TimeUnit.SECONDS.toMillis(json.getLong("expires_in"));
+            LOG.info(String.format("IAM access token received in %dms (expires in %ds)", System.currentTimeMillis() - start,
+                    json.getLong("expires_in")));
+            return new Token(value, start, expires);
+        } catch (IOException e) {
+            LOG.error(String.format("Error - Could not connect to IAM endpoint: %s", e.getMessage()));
+            throw new ConnectionError(e.getMessage(), e);
+        } catch (JSONException e) {
+            throw new ConnectionError("Could not process the IAM token: " + e.getMessage(), e);
+        }
+    }
+
+    private Token load() {
+        if (null == tokenFile || !tokenFile.isFile()) {
+            return null;
+        }
+        Properties props = new Properties();
+        try (InputStream in = Files.newInputStream(tokenFile.toPath())) {
+            props.load(in);
+            if (!hash(apiKey).equals(props.getProperty(FILE_KEY_HASH))) {
+                LOG.info("The saved IAM access token is for a different API key - not used");
+                return null;
+            }
+            Token saved = new Token(props.getProperty(FILE_TOKEN), Long.parseLong(props.getProperty(FILE_OBTAINED)),
+                    Long.parseLong(props.getProperty(FILE_EXPIRES)));
+            if (null == saved.value || !saved.isUsable(System.currentTimeMillis())) {
+                return null;
+            }
+            LOG.info(String.format("Using the saved IAM access token (expires in %ds)",
+                    TimeUnit.MILLISECONDS.toSeconds(saved.expires - System.currentTimeMillis())));
+            return saved;
+        } catch (IOException | RuntimeException e) {
+            LOG.warn(String.format("Could not read the saved IAM access token %s: %s", tokenFile, e));
+            return null;
+        }
+    }
+
+    private void save(Token saved) {
+        if (null == tokenFile) {
+            return;
+        }
+        Properties props = new Properties();
+        props.setProperty(FILE_TOKEN, saved.value);
+        props.setProperty(FILE_OBTAINED, Long.toString(saved.obtained));
+        props.setProperty(FILE_EXPIRES, Long.toString(saved.expires));
+        props.setProperty(FILE_KEY_HASH, hash(apiKey));
+        Path temp = new File(tokenFile.getPath() + ".tmp").toPath();
+        try {
+            File directory = tokenFile.getAbsoluteFile().getParentFile();
+            if (null != directory && !directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Can't create the directory " + directory);
+            }
+            // Created only readable by its owner (it is never readable by anyone else)
+            Files.deleteIfExists(temp);
+            try {
+                Files.createFile(temp, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+            } catch (UnsupportedOperationException e) {
+                // Not a POSIX file system
+                Files.createFile(temp);
+            }
+            try (OutputStream out = Files.newOutputStream(temp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                props.store(out, "IAM access token");
+            }
+            Files.move(temp, tokenFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException e) {
+            LOG.warn(String.format("Could not save the IAM access token to %s: %s", tokenFile, e));
+            try {
+                Files.deleteIfExists(temp);
+            } catch (IOException e1) {
+                LOG.warn(String.format("Could not delete %s: %s", temp, e1));
+            }
+        }
+    }
+
+    private static String hash(String s) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(s.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder();
+            for (byte b : digest) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package wa.trigger;
+/**
+ * Copyright 2018 IBM Corporation. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import wa.audio.AudioConstants;
+import wa.audio.AudioInput;
+import wa.audio.AudioRingBuffer;
+import wa.audio.MicrophoneMonitor;
+import wa.audio.VoiceActivityDetector;
+import wa.client.Client;
+
+/**
+ * Barges in when the user speaks over the response (full-duplex).
+ *
+ * Listens to the (always open, echo cancelled) microphone and runs a VoiceActivityDetector on
+ * the audio while the output plays. When speech is detected it triggers a capture, as the wake
+ * up trigger would - the output is silenced and the capture includes the start of the speech
+ * (pre-roll). The audio is copied from the microphone monitor to a buffer and processed on this
+ * thread, so the detection doesn't hold up the microphone. Runs alongside the wake up trigger.
+ */
+public class ListenBargeIn extends Thread {
+    // Initialize our logger
+    private static final Logger LOG = LogManager.getLogger(ListenBargeIn.class);
+
+    // Audio buffered for the detector (if it falls behind the microphone)
+    private static final int BUFFER_SECONDS = 2;
+    // Audio processed at a time (mS)
+    private static final int CHUNK_MILLIS = 20;
+
+    private Client client;
+
+    public ListenBargeIn(Client client) {
+        super("Barge In Trigger");
+        this.client = client;
+    }
+
+    @Override
+    public void run() {
+        VoiceActivityDetector vad = client.createBargeInDetector();
+        // 16 bit mono (the detector's format)
+        int dataRate = (int) AudioConstants.RecordSampleRate * 2;
+        AudioRingBuffer buffer = new AudioRingBuffer(BUFFER_SECONDS * dataRate, AudioRingBuffer.OverflowPolicy.DROP_NEWEST, 0);
+        MicrophoneMonitor.Listener listener = (pcm, offset, length) -> {
+            try {
+                buffer.write(pcm, offset, length);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        };
+        if (!client.addMicrophoneListener(listener)) {
+            LOG.error("The microphone isn't being kept open - speaking over the response won't barge in");
+            return;
+        }
+        byte[] chunk = new byte[dataRate * CHUNK_MILLIS / 1000];
+        boolean playing = false;
+        try {
+            LOG.info("Speak over the response to barge in");
+            while (!Thread.interrupted()) {
+                int available = Math.min(buffer.awaitData(chunk.length, 1000), chunk.length);
+                int length = buffer.read(chunk, 0, available - (available % 2));
+                if (!client.isPlayingOutput()) {
+                    // Only listen while the output plays - start over with each response
+                    playing = false;
+                    continue;
+                }
+                if (!playing) {
+                    vad.reset();
+                    playing = true;
+                }
+                vad.process(chunk, 0, length);
+                if (vad.isSpeechDetected()) {
+                    LOG.info("Speech detected over the response - barge in");
+                    boolean accepted = client.onWakeupTriggerReceived(AudioInput.InputSource.MICROPHONE);
+                    if (!accepted) {
+                        LOG.info("Barge in not accepted");
+                    }
+                    playing = false;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            LOG.error("Error in Barge In Trigger: " + e, e);
+        } finally {
+            client.removeMicrophoneListener(listener);
+        }
+    }
+}
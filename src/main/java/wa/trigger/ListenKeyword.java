@@ -0,0 +1,101 @@
+package wa.trigger;
+/**
+ * Copyright 2018 IBM Corporation. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import wa.audio.AudioInput;
+import wa.audio.AudioRingBuffer;
+import wa.audio.KeywordSpotter;
+import wa.audio.MicrophoneMonitor;
+import wa.client.Client;
+
+/**
+ * Wakes up when a keyword is spoken.
+ *
+ * Listens to the (always open) microphone and runs a KeywordSpotter on the audio. The audio is
+ * copied from the microphone monitor to a buffer and processed on this thread, so the spotting
+ * doesn't hold up the microphone. The keyword templates and threshold are configured on the
+ * client (keywordTemplates, keywordThreshold).
+ */
+public class ListenKeyword extends Thread {
+    // Initialize our logger
+    private static final Logger LOG = LogManager.getLogger(ListenKeyword.class);
+
+    // Audio buffered for the spotter (if it falls behind the microphone)
+    private static final int BUFFER_SECONDS = 2;
+    // Audio processed at a time (mS)
+    private static final int CHUNK_MILLIS = 20;
+    // How often the best score is logged (debug) - to help choose the threshold
+    private static final long SCORE_LOG_MILLIS = 5000;
+
+    private Client client;
+
+    public ListenKeyword(Client client) {
+        super("Keyword Trigger");
+        this.client = client;
+    }
+
+    @Override
+    public void run() {
+        KeywordSpotter spotter = client.createKeywordSpotter();
+        if (null == spotter) {
+            LOG.error("No keyword templates could be loaded - the keyword trigger is not listening");
+            return;
+        }
+        int dataRate = (int) spotter.getFormat().getSampleRate() * spotter.getFormat().getFrameSize();
+        AudioRingBuffer buffer = new AudioRingBuffer(BUFFER_SECONDS * dataRate, AudioRingBuffer.OverflowPolicy.DROP_NEWEST, 0);
+        MicrophoneMonitor.Listener listener = (pcm, offset, length) -> {
+            try {
+                buffer.write(pcm, offset, length);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        };
+        if (!client.addMicrophoneListener(listener)) {
+            LOG.error("The microphone isn't being kept open - the keyword trigger is not listening");
+            return;
+        }
+        byte[] chunk = new byte[dataRate * CHUNK_MILLIS / 1000];
+        long nextScoreLog = System.currentTimeMillis() + SCORE_LOG_MILLIS;
+        try {
+            LOG.info(String.format("Say the keyword to wake up (%d templates)", spotter.getTemplateCount()));
+            while (!Thread.interrupted()) {
+                int available = Math.min(buffer.awaitData(chunk.length, 1000), chunk.length);
+                int length = buffer.read(chunk, 0, available - (available % 2));
+                if (length > 0 && spotter.process(chunk, 0, length)) {
+                    LOG.info(String.format("Keyword `%s` detected (score %.3f) - wake up", spotter.getDetectedKeyword(), spotter.getDetectedScore()));
+                    boolean accepted = client.onWakeupTriggerReceived(AudioInput.InputSource.MICROPHONE);
+                    if (!accepted) {
+                        LOG.info("Keyword trigger not accepted");
+                    }
+                }
+                if (LOG.isDebugEnabled() && System.currentTimeMillis() >= nextScoreLog) {
+                    LOG.debug(String.format("Keyword spotter - best score: %.3f (threshold: %.3f)", spotter.getBestScore(), spotter.getThreshold()));
+                    spotter.resetBestScore();
+                    nextScoreLog = System.currentTimeMillis() + SCORE_LOG_MILLIS;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            LOG.error("Error in Keyword Trigger: " + e, e);
+        } finally {
+            client.removeMicrophoneListener(listener);
+        }
+    }
+}
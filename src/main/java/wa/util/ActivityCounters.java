@@ -0,0 +1,103 @@
+/**
+ * Copyright 2018 IBM Corporation. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package wa.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts of the audio activity (chunks captured, sent, received, played) by stage.
+ *
+ * Counting is an atomic increment - the audio loops do no I/O for it. The counts are sampled
+ * (and shown on the console) by the ActivityMeter.
+ */
+public final class ActivityCounters {
+
+    /**
+     * The stages counted - each with the character shown for it on the console meter.
+     */
+    public enum Activity {
+        /** Audio read from the microphone */
+        MIC_READ('%'),
+        /** No audio from the microphone (waiting) */
+        MIC_IDLE('~'),
+        /** Audio read from the audio socket */
+        SOCKET_READ('<'),
+        /** Audio discarded from the audio socket (before a capture) */
+        SOCKET_DISCARD('#'),
+        /** Message sent to the server */
+        UPLOAD('^'),
+        /** Response audio received from the server */
+        DOWNLOAD('&'),
+        /** Audio written to the speaker */
+        SPEAKER_WRITE('@'),
+        /** Audio written to the audio socket */
+        SOCKET_WRITE('>');
+
+        private final char symbol;
+
+        Activity(char symbol) {
+            this.symbol = symbol;
+        }
+
+        /**
+         * @return the character shown for the activity
+         */
+        public char getSymbol() {
+            return symbol;
+        }
+    }
+
+    private static final Activity[] ACTIVITIES = Activity.values();
+    private static final AtomicLongArray COUNTS = new AtomicLongArray(ACTIVITIES.length);
+
+    private ActivityCounters() {
+    }
+
+    /**
+     * Count an activity.
+     *
+     * @param activity - the activity
+     */
+    public static void increment(Activity activity) {
+        COUNTS.incrementAndGet(activity.ordinal());
+    }
+
+    /**
+     * @param activity - the activity
+     * @return the count of the activity (since the client started)
+     */
+    public static long get(Activity activity) {
+        return COUNTS.get(activity.ordinal());
+    }
+
+    /**
+     * Read all of the counts.
+     *
+     * @param counts - receives the counts (by Activity ordinal)
+     */
+    public static void snapshot(long[] counts) {
+        for (int i = 0; i < ACTIVITIES.length; i++) {
+            counts[i] = COUNTS.get(i);
+        }
+    }
+
+    /**
+     * @return the activities (in ordinal order)
+     */
+    public static Activity[] getActivities() {
+        return ACTIVITIES.clone();
+    }
+}
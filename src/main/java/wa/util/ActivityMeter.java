@@ -0,0 +1,98 @@
+/**
+ * Copyright 2018 IBM Corporation. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package wa.util;
+
+import java.io.PrintStream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import wa.util.ActivityCounters.Activity;
+
+/**
+ * Samples the ActivityCounters periodically (on a low priority thread) and shows the activity
+ * since the last sample - on the console (if there is one) and in the log (debug).
+ *
+ * A line is written only if there was activity, e.g. `%50 ^50` - 50 chunks read from the
+ * microphone and 50 messages sent to the server (the characters are those of the Activity).
+ */
+public class ActivityMeter extends Thread {
+    // Initialize our logger
+    private static final Logger LOG = LogManager.getLogger(ActivityMeter.class);
+
+    private final long periodMillis;
+    private final PrintStream console;
+
+    /**
+     * @param periodMillis - time between the samples (mS)
+     * @param console - where the activity is shown (null for the log only)
+     */
+    public ActivityMeter(long periodMillis, PrintStream console) {
+        super("Activity Meter");
+        this.periodMillis = periodMillis;
+        this.console = console;
+        setDaemon(true);
+        setPriority(Thread.MIN_PRIORITY);
+    }
+
+    @Override
+    public void run() {
+        Activity[] activities = ActivityCounters.getActivities();
+        long[] previous = new long[activities.length];
+        long[] current = new long[activities.length];
+        long[] counts = new long[activities.length];
+        ActivityCounters.snapshot(previous);
+        try {
+            while (!Thread.interrupted()) {
+                Thread.sleep(periodMillis);
+                ActivityCounters.snapshot(current);
+                for (int i = 0; i < counts.length; i++) {
+                    counts[i] = current[i] - previous[i];
+                }
+                long[] swap = previous;
+                previous = current;
+                current = swap;
+                String line = format(activities, counts);
+                if (!line.isEmpty()) {
+                    if (null != console) {
+                        console.println(line);
+                    }
+                    LOG.debug("Activity: " + line);
+                }
+            }
+        } catch (InterruptedException e) {
+            // Exiting
+        }
+    }
+
+    /**
+     * @param activities - the activities
+     * @param counts - the count of each activity
+     * @return the activities with counts (character and count, space separated), empty if none
+     */
+    static String format(Activity[] activities, long[] counts) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < activities.length; i++) {
+            if (counts[i] > 0) {
+                if (sb.length() > 0) {
+                    sb.append(' ');
+                }
+                sb.append(activities[i].getSymbol()).append(counts[i]);
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,52 @@
+/**
+ * Copyright 2018 IBM Corporation. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package wa.util;
+
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.ConnectionPool;
+import okhttp3.OkHttpClient;
+
+/**
+ * The shared HTTP client.
+ *
+ * All of the HTTP requests (the WebSocket connection, URL audio, tokens) use clients derived
+ * (`newBuilder`) from this one, so they share one connection pool and dispatcher. Idle
+ * connections are kept alive for reuse - a response's audio URL is usually on a host that was
+ * used for the last response.
+ */
+public final class SharedHttpClient {
+
+    private static final int MAX_IDLE_CONNECTIONS = 4;
+    private static final long KEEP_ALIVE_MINUTES = 5;
+    private static final long CONNECT_TIMEOUT_MS = 5000;
+
+    private static final OkHttpClient client = new OkHttpClient.Builder()
+            .connectionPool(new ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_MINUTES, TimeUnit.MINUTES))
+            .connectTimeout(CONNECT_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+            .retryOnConnectionFailure(true)
+            .build();
+
+    private SharedHttpClient() {
+    }
+
+    /**
+     * @return the shared client (use `newBuilder` to derive a client with different settings)
+     */
+    public static OkHttpClient get() {
+        return client;
+    }
+}
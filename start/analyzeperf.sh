@@ -0,0 +1,4 @@
+#!/bin/bash
+
+# Analyze the binary performance logs (perfBinaryLog=true), e.g. ./analyzeperf.sh logs
+java -cp was-audio-client.jar wa.commonLogging.PerfLogAnalyzer "$@"
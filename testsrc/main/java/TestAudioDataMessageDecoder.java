@@ -0,0 +1,135 @@
+/**
+ * Copyright 2018 IBM Corporation. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.lang.management.ManagementFactory;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.Random;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import wa.client.AudioDataMessageDecoder;
+
+/**
+ * Manual benchmark comparing the `audio_data` decoding using org.json (the original path)
+ * with the streaming AudioDataMessageDecoder.
+ *
+ * For each frame size (4, 8 and 16 KB of audio) it reports the time per message, the
+ * audio throughput and the bytes allocated per message (when the JVM supports
+ * per-thread allocation counting).
+ */
+public class TestAudioDataMessageDecoder {
+
+    private static final int[] FRAME_SIZES = { 4 * 1024, 8 * 1024, 16 * 1024 };
+    private static final int WARMUP_ITERATIONS = 2000;
+    private static final int MEASURED_ITERATIONS = 5000;
+
+    private interface Decoder {
+        int decode(String message);
+    }
+
+    /**
+     * Run the benchmark.
+     *
+     * @param args - NONE
+     */
+    public static void main(String[] args) {
+        Random random = new Random(16000);
+        for (int frameSize : FRAME_SIZES) {
+            byte[] audio = new byte[frameSize];
+            random.nextBytes(audio);
+            String numericMessage = numericMessage(audio);
+            String base64Message = base64Message(audio);
+
+            final AudioDataMessageDecoder decoder = new AudioDataMessageDecoder();
+            run("org.json  numeric", frameSize, numericMessage, TestAudioDataMessageDecoder::decodeWithJSONObject);
+            run("streaming numeric", frameSize, numericMessage, message -> {
+                decoder.decode(message);
+                return decoder.getLength();
+            });
+            run("streaming base64 ", frameSize, base64Message, message -> {
+                decoder.decode(message);
+                return decoder.getLength();
+            });
+        }
+    }
+
+    /**
+     * The original decoding (from Client.handleAction).
+     */
+    private static int decodeWithJSONObject(String message) {
+        JSONObject response = new JSONObject(message);
+        response.getString("id");
+        JSONObject data = response.optJSONObject("data");
+        JSONArray bufferData = data.optJSONArray("data");
+        Iterator<Object> bufferIterator = bufferData.iterator();
+        byte[] speakerData = new byte[bufferData.length()];
+        int i = 0;
+        while (bufferIterator.hasNext()) {
+            Byte element = ((Integer) bufferIterator.next()).byteValue();
+            speakerData[i] = element;
+            i++;
+        }
+        return speakerData.length;
+    }
+
+    private static void run(String name, int frameSize, String message, Decoder decoder) {
+        long check = 0;
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            check += decoder.decode(message);
+        }
+        long allocatedStart = allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+            check += decoder.decode(message);
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocated = allocatedBytes() - allocatedStart;
+
+        double microsPerMessage = (elapsed / 1000.0) / MEASURED_ITERATIONS;
+        double megabytesPerSecond = ((double) frameSize * MEASURED_ITERATIONS / (1024 * 1024)) / (elapsed / 1e9);
+        String allocatedPerMessage = (allocatedStart < 0 ? "n/a" : String.valueOf(allocated / MEASURED_ITERATIONS));
+        System.out.println(String.format("%s  frame: %5d bytes  %9.1f us/msg  %8.1f MB/s  allocated: %s bytes/msg  (check %d)",
+                name, frameSize, microsPerMessage, megabytesPerSecond, allocatedPerMessage, check));
+    }
+
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    private static String numericMessage(byte[] audio) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"action\":\"audio_data\",\"id\":\"8f3c1c2e-5d7a-4b8e-9a61-0c2f6f3b9d11\",\"data\":{\"type\":\"Buffer\",\"data\":[");
+        for (int i = 0; i < audio.length; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(audio[i] & 0xff);
+        }
+        sb.append("]}}");
+        return sb.toString();
+    }
+
+    private static String base64Message(byte[] audio) {
+        return "{\"action\":\"audio_data\",\"id\":\"8f3c1c2e-5d7a-4b8e-9a61-0c2f6f3b9d11\",\"encoding\":\"base64\",\"data\":\""
+                + Base64.getEncoder().encodeToString(audio) + "\"}";
+    }
+}
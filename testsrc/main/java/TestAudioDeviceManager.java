@@ -0,0 +1,110 @@
+/**
+ * Copyright 2018 IBM Corporation. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.DataLine;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.SourceDataLine;
+import javax.sound.sampled.TargetDataLine;
+
+import wa.audio.AudioConstants;
+import wa.audio.AudioDeviceManager;
+
+/**
+ * Manual benchmark comparing the time to get a speaker/microphone line by opening a new line
+ * each time (the original per interaction behavior) with leasing the line from the
+ * AudioDeviceManager (kept open between uses).
+ *
+ * Needs audio hardware - run it on the device.
+ */
+public class TestAudioDeviceManager {
+
+    private static final int ITERATIONS = 20;
+
+    /**
+     * Run the benchmark.
+     *
+     * @param args - NONE
+     */
+    public static void main(String[] args) throws Exception {
+        AudioFormat playbackFormat = new AudioFormat(AudioConstants.PlaybackSampleRate, AudioConstants.PlaybackSampleSizeInBits,
+                AudioConstants.PlaybackChannels, AudioConstants.isSigned, AudioConstants.isBigEndian);
+        AudioFormat captureFormat = new AudioFormat(AudioConstants.RecordSampleRate, AudioConstants.RecordSampleSizeInBits,
+                AudioConstants.RecordChannels, AudioConstants.isSigned, AudioConstants.isBigEndian);
+        AudioDeviceManager manager = AudioDeviceManager.getInstance();
+
+        try {
+            report("Playback open-per-use", openPerUse(SourceDataLine.class, playbackFormat));
+            report("Playback lease        ", lease(() -> manager.acquirePlayback(playbackFormat, 1000)));
+        } catch (LineUnavailableException | IllegalArgumentException e) {
+            System.out.println("No speaker available: " + e);
+        }
+        try {
+            report("Capture  open-per-use", openPerUse(TargetDataLine.class, captureFormat));
+            report("Capture  lease        ", lease(() -> manager.acquireCapture(captureFormat, 1000)));
+        } catch (LineUnavailableException | IllegalArgumentException e) {
+            System.out.println("No microphone available: " + e);
+        }
+        manager.shutdown();
+    }
+
+    private interface Acquire {
+        AudioDeviceManager.LineLease<?> acquire() throws LineUnavailableException, InterruptedException;
+    }
+
+    private static long[] openPerUse(Class<? extends DataLine> lineClass, AudioFormat format) throws LineUnavailableException {
+        long[] times = new long[ITERATIONS];
+        DataLine.Info info = new DataLine.Info(lineClass, format);
+        for (int i = 0; i < ITERATIONS; i++) {
+            long start = System.nanoTime();
+            DataLine line = (DataLine) AudioSystem.getLine(info);
+            if (line instanceof SourceDataLine) {
+                ((SourceDataLine) line).open(format);
+            } else {
+                ((TargetDataLine) line).open(format);
+            }
+            line.start();
+            times[i] = System.nanoTime() - start;
+            line.stop();
+            line.close();
+        }
+        return times;
+    }
+
+    private static long[] lease(Acquire acquire) throws LineUnavailableException, InterruptedException {
+        long[] times = new long[ITERATIONS];
+        for (int i = 0; i < ITERATIONS; i++) {
+            long start = System.nanoTime();
+            AudioDeviceManager.LineLease<?> lease = acquire.acquire();
+            times[i] = System.nanoTime() - start;
+            lease.close();
+        }
+        return times;
+    }
+
+    private static void report(String name, long[] times) {
+        long total = 0;
+        long max = 0;
+        for (long time : times) {
+            total += time;
+            max = Math.max(max, time);
+        }
+        // The first lease opens the line - report it separately
+        System.out.println(String.format("%s  first: %7.2f ms  avg: %7.2f ms  max: %7.2f ms",
+                name, times[0] / 1e6, (total / (double) times.length) / 1e6, max / 1e6));
+    }
+}
@@ -0,0 +1,119 @@
+/**
+ * Copyright 2018 IBM Corporation. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.UUID;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+
+import org.apache.commons.io.IOUtils;
+
+import okio.ByteString;
+import wa.audio.AudioConstants;
+import wa.audio.AudioEncoder;
+import wa.audio.FlacAudioEncoder;
+import wa.audio.PcmAudioEncoder;
+import wa.client.BinaryAudioFrame;
+import wa.client.ClientHelpers;
+
+/**
+ * Manual benchmark of the upstream audio encoders.
+ *
+ * Encodes WAV files (default: the files in testsrc/data) in microphone sized chunks and
+ * reports, for each encoder, the bytes on the wire (as JSON `audio_data` actions and as
+ * binary frames) per second of speech and the encode CPU time per second of speech.
+ *
+ * Arguments: [wav-file ...]
+ */
+public class TestAudioEncoder {
+
+    // Microphone read size (0.5 seconds)
+    private static final int CHUNK_SIZE = 16000;
+    private static final int ITERATIONS = 50;
+
+    /**
+     * Run the benchmark.
+     *
+     * @param args - WAV files to encode (optional)
+     */
+    public static void main(String[] args) throws Exception {
+        File[] files;
+        if (args.length > 0) {
+            files = new File[args.length];
+            for (int i = 0; i < args.length; i++) {
+                files[i] = new File(args[i]);
+            }
+        } else {
+            files = new File("testsrc/data").listFiles((dir, name) -> name.endsWith(".wav"));
+        }
+        for (File file : files) {
+            byte[] pcm = readPcm(file);
+            double seconds = pcm.length / (AudioConstants.RecordSampleRate * 2);
+            System.out.println(String.format("%s (%.2f seconds)", file.getName(), seconds));
+            run(new PcmAudioEncoder(), pcm, seconds);
+            run(new FlacAudioEncoder((int) AudioConstants.RecordSampleRate), pcm, seconds);
+        }
+    }
+
+    private static void run(AudioEncoder encoder, byte[] pcm, double seconds) {
+        // Bytes on the wire (one pass)
+        final long[] wire = new long[3]; // encoded, JSON, binary
+        final String id = UUID.randomUUID().toString();
+        ClientHelpers.getClientStartAudioAction(null); // sets the interaction id for the JSON action
+        encoder.start((data, offset, length) -> {
+            wire[0] += length;
+            wire[1] += ClientHelpers.getClientAudioDataAction(ByteString.of(data, offset, length)).toString().length();
+            wire[2] += BinaryAudioFrame.encode(id, data, offset, length).size();
+        });
+        encode(encoder, pcm);
+
+        // Encode CPU time (no output processing)
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        encoder.start((data, offset, length) -> { });
+        for (int i = 0; i < ITERATIONS / 5; i++) {
+            encode(encoder, pcm); // warm up
+        }
+        long cpuStart = bean.getCurrentThreadCpuTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            encoder.start((data, offset, length) -> { });
+            encode(encoder, pcm);
+        }
+        double cpuMillis = (bean.getCurrentThreadCpuTime() - cpuStart) / 1e6 / ITERATIONS;
+
+        System.out.println(String.format("  %-34s encoded: %7d B/s (%5.1f%%)  JSON: %7d B/s  binary: %7d B/s  encode CPU: %6.2f ms per second of speech",
+                encoder.getContentType(), (long) (wire[0] / seconds), 100.0 * wire[0] / pcm.length,
+                (long) (wire[1] / seconds), (long) (wire[2] / seconds), cpuMillis / seconds));
+    }
+
+    private static void encode(AudioEncoder encoder, byte[] pcm) {
+        for (int i = 0; i < pcm.length; i += CHUNK_SIZE) {
+            encoder.encode(pcm, i, Math.min(CHUNK_SIZE, pcm.length - i));
+        }
+        encoder.finish();
+    }
+
+    private static byte[] readPcm(File file) throws Exception {
+        AudioFormat format = new AudioFormat(AudioConstants.RecordSampleRate, AudioConstants.RecordSampleSizeInBits,
+                AudioConstants.RecordChannels, AudioConstants.isSigned, AudioConstants.isBigEndian);
+        try (AudioInputStream in = AudioSystem.getAudioInputStream(format, AudioSystem.getAudioInputStream(file))) {
+            return IOUtils.toByteArray(in);
+        }
+    }
+}
@@ -0,0 +1,185 @@
+/**
+ * Copyright 2018 IBM Corporation. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Request;
+import okhttp3.WebSocket;
+import okio.ByteString;
+import wa.audio.AudioRingBuffer;
+import wa.client.AudioDataMessageDecoder;
+import wa.client.OutboundSender;
+
+/**
+ * Manual contention test for the Client's capture (upload) and response (download) paths.
+ *
+ * A capture thread sends a 20ms chunk of audio every 20ms while a reader thread decodes a
+ * heavy stream of (numeric JSON) `audio_data` messages into an output buffer - as fast as
+ * it can. This is run twice:
+ * <ul>
+ *  <li>shared - both paths hold the same monitor (as when `handleAction`, `handleAudioData`
+ *  and `writeToServer` were all synchronized on the Client)
+ *  <li>split - each path uses its own lock/queue (as the Client does now)
+ * </ul>
+ * For each it reports the capture jitter (how late each 20ms chunk was sent, and how long the
+ * send call took) as percentiles.
+ */
+public class TestClientContention {
+
+    private static final int CHUNK_MILLIS = 20;
+    private static final int CHUNK_BYTES = 16000 * 2 * CHUNK_MILLIS / 1000;
+    private static final int TTS_FRAME_BYTES = 16 * 1024;
+    private static final long RUN_MILLIS = 5000;
+
+    /**
+     * WebSocket that discards what is sent.
+     */
+    private static class NullWebSocket implements WebSocket {
+        @Override
+        public boolean send(String text) {
+            return true;
+        }
+
+        @Override
+        public boolean send(ByteString bytes) {
+            return true;
+        }
+
+        @Override
+        public boolean close(int code, String reason) {
+            return true;
+        }
+
+        @Override
+        public long queueSize() {
+            return 0;
+        }
+
+        @Override
+        public void cancel() {
+        }
+
+        @Override
+        public Request request() {
+            return null;
+        }
+    }
+
+    /**
+     * Run the test.
+     *
+     * @param args - NONE
+     */
+    public static void main(String[] args) throws InterruptedException {
+        String message = numericMessage(TTS_FRAME_BYTES);
+        // Warm up both paths
+        run(message, true, 1000);
+        run(message, false, 1000);
+
+        report("shared", run(message, true, RUN_MILLIS));
+        report("split ", run(message, false, RUN_MILLIS));
+    }
+
+    private static long[][] run(String message, boolean shared, long runMillis) throws InterruptedException {
+        final Object clientMonitor = new Object();
+        final Object inboundLock = (shared ? clientMonitor : new Object());
+        final Object outboundLock = (shared ? clientMonitor : null);
+        final OutboundSender sender = new OutboundSender();
+        sender.setWebSocket(new NullWebSocket());
+        sender.start();
+        final AudioRingBuffer output = new AudioRingBuffer(256 * 1024, AudioRingBuffer.OverflowPolicy.DROP_NEWEST, 0);
+        final long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(runMillis);
+
+        // The response reader
+        Thread reader = new Thread(() -> {
+            AudioDataMessageDecoder decoder = new AudioDataMessageDecoder();
+            try {
+                while (System.nanoTime() < end) {
+                    synchronized (inboundLock) {
+                        if (decoder.decode(message)) {
+                            output.write(decoder.getBuffer(), 0, decoder.getLength());
+                            output.clear();
+                        }
+                    }
+                }
+            } catch (InterruptedException e) {
+                // Done
+            }
+        }, "Reader");
+        reader.start();
+
+        // The capture (this thread)
+        int chunks = (int) (runMillis / CHUNK_MILLIS);
+        long[] late = new long[chunks];
+        long[] send = new long[chunks];
+        byte[] chunk = new byte[CHUNK_BYTES];
+        long next = System.nanoTime();
+        int count = 0;
+        while (count < chunks) {
+            next += TimeUnit.MILLISECONDS.toNanos(CHUNK_MILLIS);
+            long wait = next - System.nanoTime();
+            if (wait > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+            long start = System.nanoTime();
+            if (null != outboundLock) {
+                synchronized (outboundLock) {
+                    sender.sendAudio("contention", true, chunk, 0, chunk.length);
+                }
+            } else {
+                sender.sendAudio("contention", true, chunk, 0, chunk.length);
+            }
+            long done = System.nanoTime();
+            late[count] = done - next;
+            send[count] = done - start;
+            count++;
+        }
+        reader.join();
+        sender.stop();
+        return new long[][] { late, send };
+    }
+
+    private static void report(String name, long[][] results) {
+        System.out.println(String.format("%s  late: %s   send call: %s", name, percentiles(results[0]), percentiles(results[1])));
+    }
+
+    private static String percentiles(long[] nanos) {
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        return String.format("p50 %6.2fms  p99 %6.2fms  max %6.2fms", at(sorted, 0.50), at(sorted, 0.99), sorted[sorted.length - 1] / 1e6);
+    }
+
+    private static double at(long[] sorted, double percentile) {
+        return sorted[Math.min(sorted.length - 1, (int) (sorted.length * percentile))] / 1e6;
+    }
+
+    private static String numericMessage(int length) {
+        byte[] audio = new byte[length];
+        new Random(16000).nextBytes(audio);
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"action\":\"audio_data\",\"id\":\"contention\",\"data\":{\"type\":\"Buffer\",\"data\":[");
+        for (int i = 0; i < audio.length; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(audio[i] & 0xff);
+        }
+        sb.append("]}}");
+        return sb.toString();
+    }
+}
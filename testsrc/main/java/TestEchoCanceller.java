@@ -0,0 +1,92 @@
+/**
+ * Copyright 2018 IBM Corporation. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Random;
+
+import wa.audio.AudioConstants;
+import wa.audio.EchoCanceller;
+
+/**
+ * Manual benchmark of the EchoCanceller's CPU cost - run it on the target (e.g. a Raspberry
+ * Pi) to choose the filter length (aecFilterMs) that fits the CPU budget.
+ *
+ * For each filter length it processes 20 seconds of microphone audio (in the 20mS chunks the
+ * microphone monitor reads) with a synthetic echo of a playing reference, and reports the
+ * processing time as a percentage of real time (of one core) and the echo reduction (ERLE).
+ * The cost with nothing playing (pass through) is reported too.
+ */
+public class TestEchoCanceller {
+
+    private static final int SAMPLE_RATE = (int) AudioConstants.RecordSampleRate;
+    private static final int[] FILTER_MILLIS = { 32, 64, 128, 256 };
+    private static final int SECONDS = 20;
+    private static final int WARMUP_SECONDS = 5;
+    private static final int CHUNK_SAMPLES = SAMPLE_RATE / 50;
+
+    /**
+     * Run the benchmark.
+     *
+     * @param args - NONE
+     */
+    public static void main(String[] args) {
+        short[] reference = new short[SECONDS * SAMPLE_RATE];
+        short[] mic = new short[reference.length];
+        Random random = new Random(16000);
+        for (int i = 0; i < reference.length; i++) {
+            reference[i] = (short) (3000 * random.nextGaussian());
+        }
+        for (int i = 0; i < mic.length; i++) {
+            // Echo 20mS later, with a reflection, and some microphone noise
+            double echo = (i >= 320 ? 0.3 * reference[i - 320] : 0) - (i >= 800 ? 0.1 * reference[i - 800] : 0);
+            mic[i] = (short) (echo + 30 * random.nextGaussian());
+        }
+        System.out.println(String.format("Sample rate: %d  Processors: %d  Java: %s", SAMPLE_RATE, Runtime.getRuntime().availableProcessors(),
+                System.getProperty("java.version")));
+        for (int filterMillis : FILTER_MILLIS) {
+            run(filterMillis, reference, mic, true);
+        }
+        run(FILTER_MILLIS[0], reference, mic, false);
+    }
+
+    private static void run(int filterMillis, short[] reference, short[] mic, boolean playing) {
+        EchoCanceller canceller = new EchoCanceller(SAMPLE_RATE, filterMillis, 0, 0.5f);
+        if (playing) {
+            canceller.startReference(canceller.getFormat());
+        }
+        byte[] chunk = new byte[2 * CHUNK_SAMPLES];
+        for (int i = 0; i + CHUNK_SAMPLES <= mic.length; i += CHUNK_SAMPLES) {
+            if (i == WARMUP_SECONDS * SAMPLE_RATE) {
+                canceller.resetStatistics();
+            }
+            if (playing) {
+                toPcm(reference, i, chunk);
+                canceller.addReference(chunk, 0, chunk.length);
+            }
+            toPcm(mic, i, chunk);
+            canceller.process(chunk, 0, chunk.length);
+        }
+        System.out.println(String.format("%-11s filter: %3d mS (%4d taps)  CPU: %6.2f%% of real time  ERLE: %5.1f dB",
+                (playing ? "playing" : "not playing"), filterMillis, canceller.getFilterLength(), canceller.getRealTimeFactor() * 100,
+                canceller.getEchoReturnLossEnhancementDb()));
+    }
+
+    private static void toPcm(short[] audio, int from, byte[] pcm) {
+        for (int i = 0; i < pcm.length / 2; i++) {
+            pcm[2 * i] = (byte) audio[from + i];
+            pcm[2 * i + 1] = (byte) (audio[from + i] >> 8);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/**
+ * Copyright 2018 IBM Corporation. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+import wa.audio.AudioConstants;
+import wa.audio.KeywordSpotter;
+
+/**
+ * Manual benchmark of the KeywordSpotter - run it on the target (e.g. a Raspberry Pi) to check
+ * the keyword trigger fits the CPU budget.
+ *
+ * For 1, 4 and 8 templates (of the longest template length, the worst case) it processes a
+ * minute of audio and reports the frames processed per second, the CPU used as a percentage
+ * of real time (100 frames a second) and the bytes allocated per frame (when the JVM supports
+ * per-thread allocation counting - it should be 0).
+ */
+public class TestKeywordSpotter {
+
+    private static final int SAMPLE_RATE = (int) AudioConstants.RecordSampleRate;
+    private static final int[] TEMPLATE_COUNTS = { 1, 4, 8 };
+    private static final int SECONDS = 60;
+    private static final int CHUNK_BYTES = 640; // 20mS
+
+    /**
+     * Run the benchmark.
+     *
+     * @param args - NONE
+     */
+    public static void main(String[] args) {
+        Random random = new Random(16000);
+        byte[] audio = new byte[SECONDS * SAMPLE_RATE * 2];
+        random.nextBytes(audio);
+        byte[] template = new byte[KeywordSpotter.MAX_TEMPLATE_MILLIS * SAMPLE_RATE / 1000 * 2];
+        random.nextBytes(template);
+        System.out.println(String.format("Sample rate: %d  Processors: %d  Java: %s", SAMPLE_RATE, Runtime.getRuntime().availableProcessors(),
+                System.getProperty("java.version")));
+        for (int count : TEMPLATE_COUNTS) {
+            // Threshold 0 - never detected, so every frame does the full work
+            KeywordSpotter spotter = new KeywordSpotter(SAMPLE_RATE, 0f);
+            for (int i = 0; i < count; i++) {
+                spotter.addTemplate("template" + i, template, 0, template.length);
+            }
+            process(spotter, audio); // warm up
+            long allocatedStart = allocatedBytes();
+            long framesStart = spotter.getFramesProcessed();
+            long start = System.nanoTime();
+            process(spotter, audio);
+            long elapsed = System.nanoTime() - start;
+            long frames = spotter.getFramesProcessed() - framesStart;
+            long allocated = allocatedBytes() - allocatedStart;
+            double framesPerSecond = frames / (elapsed / 1e9);
+            String allocatedPerFrame = (allocatedStart < 0 ? "n/a" : String.format("%.2f", (double) allocated / frames));
+            System.out.println(String.format("templates: %d  frames/sec: %9.0f  CPU: %6.2f%% of real time  allocated: %s bytes/frame", count,
+                    framesPerSecond, 100 * 100 / framesPerSecond, allocatedPerFrame));
+        }
+    }
+
+    private static void process(KeywordSpotter spotter, byte[] audio) {
+        for (int i = 0; i < audio.length; i += CHUNK_BYTES) {
+            spotter.process(audio, i, Math.min(CHUNK_BYTES, audio.length - i));
+        }
+    }
+
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,111 @@
+/**
+ * Copyright 2018 IBM Corporation. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+import wa.audio.PcmConverter;
+
+/**
+ * Manual benchmark comparing the original Vorbis float PCM conversion (from
+ * AudioPlayer.decodeCurrentPacket) with the PcmConverter kernel.
+ *
+ * The input is generated (JOrbis returns blocks of up to 1024 samples per channel). For mono
+ * and stereo it reports the samples per second and the bytes allocated per block (when the
+ * JVM supports per-thread allocation counting).
+ */
+public class TestPcmConverter {
+
+    private static final int BLOCK_SAMPLES = 1024;
+    private static final int WARMUP_ITERATIONS = 20000;
+    private static final int MEASURED_ITERATIONS = 200000;
+
+    private interface Converter {
+        int convert(float[][] pcm, int[] index, int channels, int count, byte[] out);
+    }
+
+    /**
+     * Run the benchmark.
+     *
+     * @param args - NONE
+     */
+    public static void main(String[] args) {
+        Random random = new Random(22050);
+        for (int channels = 1; channels <= 2; channels++) {
+            float[][] pcm = new float[channels][BLOCK_SAMPLES];
+            for (float[] samples : pcm) {
+                for (int i = 0; i < samples.length; i++) {
+                    samples[i] = (float) (random.nextGaussian() * 0.4); // some samples clip
+                }
+            }
+            int[] index = new int[channels];
+            byte[] out = new byte[BLOCK_SAMPLES * channels * 2];
+
+            run("original ", channels, pcm, index, out, TestPcmConverter::convertOriginal);
+            run("converter", channels, pcm, index, out, (p, x, c, n, o) -> PcmConverter.floatToPcm16LE(p, x, c, n, o, 0));
+        }
+    }
+
+    /**
+     * The original conversion (from AudioPlayer.decodeCurrentPacket).
+     */
+    private static int convertOriginal(float[][] pcm, int[] index, int channels, int range, byte[] convertedBuffer) {
+        for (int i = 0; i < channels; i++) {
+            int sampleIndex = i * 2;
+            for (int j = 0; j < range; j++) {
+                int value = (int) (pcm[i][index[i] + j] * 32767);
+                if (value > 32767) {
+                    value = 32767;
+                }
+                if (value < -32768) {
+                    value = -32768;
+                }
+                if (value < 0) value = value | 32768;
+                convertedBuffer[sampleIndex] = (byte) (value);
+                convertedBuffer[sampleIndex + 1] = (byte) (value >>> 8);
+                sampleIndex += 2 * (channels);
+            }
+        }
+        return 2 * channels * range;
+    }
+
+    private static void run(String name, int channels, float[][] pcm, int[] index, byte[] out, Converter converter) {
+        long check = 0;
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            check += converter.convert(pcm, index, channels, BLOCK_SAMPLES, out) + out[i & 0xff];
+        }
+        long allocatedStart = allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+            check += converter.convert(pcm, index, channels, BLOCK_SAMPLES, out) + out[i & 0xff];
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocated = allocatedBytes() - allocatedStart;
+
+        double samplesPerSecond = ((double) BLOCK_SAMPLES * channels * MEASURED_ITERATIONS) / (elapsed / 1e9);
+        String allocatedPerBlock = (allocatedStart < 0 ? "n/a" : String.format("%.2f", (double) allocated / MEASURED_ITERATIONS));
+        System.out.println(String.format("%s  channels: %d  %8.1f Msamples/s  allocated: %s bytes/block  (check %d)",
+                name, channels, samplesPerSecond / 1e6, allocatedPerBlock, check));
+    }
+
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,78 @@
+/**
+ * Copyright 2018 IBM Corporation. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import javax.sound.sampled.AudioFormat;
+
+import wa.audio.Resampler;
+
+/**
+ * Manual benchmark of the Resampler - the processing time per second of audio for the
+ * conversions used for playback (server audio and prompts to the common device rates).
+ *
+ * The audio is converted in 4KB chunks (like the audio output) after a warm up.
+ */
+public class TestResampler {
+
+    private static final int SECONDS = 20;
+    private static final int CHUNK_SIZE = 4096;
+    private static final int WARMUP_SECONDS = 20;
+
+    /**
+     * Run the benchmark.
+     *
+     * @param args - NONE
+     */
+    public static void main(String[] args) {
+        run(16000, 1, 48000, 1);
+        run(16000, 1, 48000, 2);
+        run(16000, 1, 44100, 2);
+        run(22050, 1, 48000, 2);
+        run(22050, 1, 16000, 1);
+        run(24000, 2, 16000, 1);
+    }
+
+    private static void run(int fromRate, int fromChannels, int toRate, int toChannels) {
+        AudioFormat from = new AudioFormat(fromRate, 16, fromChannels, true, false);
+        AudioFormat to = new AudioFormat(toRate, 16, toChannels, true, false);
+        byte[] audio = new byte[fromRate * fromChannels * 2];
+        for (int i = 0; i < audio.length / 2; i++) {
+            int value = (int) (Math.sin(2 * Math.PI * 440 * (i / fromChannels) / fromRate) * 16000);
+            audio[i * 2] = (byte) value;
+            audio[i * 2 + 1] = (byte) (value >> 8);
+        }
+
+        Resampler resampler = new Resampler(from, to);
+        byte[] out = new byte[resampler.getMaxOutputLength(CHUNK_SIZE)];
+        long check = convert(resampler, audio, out, WARMUP_SECONDS);
+        long start = System.nanoTime();
+        check += convert(resampler, audio, out, SECONDS);
+        long elapsed = System.nanoTime() - start;
+
+        double millisPerSecond = (elapsed / 1e6) / SECONDS;
+        System.out.println(String.format("%5d Hz x%d -> %5d Hz x%d  %7.3f ms per second of audio  (%6.0fx real time)  (check %d)",
+                fromRate, fromChannels, toRate, toChannels, millisPerSecond, 1000 / millisPerSecond, check));
+    }
+
+    private static long convert(Resampler resampler, byte[] audio, byte[] out, int seconds) {
+        long bytes = 0;
+        for (int second = 0; second < seconds; second++) {
+            for (int offset = 0; offset < audio.length; offset += CHUNK_SIZE) {
+                bytes += resampler.convert(audio, offset, Math.min(CHUNK_SIZE, audio.length - offset), out, 0);
+            }
+        }
+        return bytes;
+    }
+}
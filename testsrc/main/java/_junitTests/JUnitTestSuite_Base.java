@@ -19,8 +19,26 @@ package _junitTests;
 import org.junit.runners.Suite;
 
 import main.DriverTest;
+import wa.audio.AudioRingBufferTest;
+import wa.audio.EchoCancellerTest;
+import wa.audio.FlacAudioEncoderTest;
+import wa.audio.KeywordSpotterTest;
 import wa.audio.LocalAudioTest;
+import wa.audio.PcmConverterTest;
+import wa.audio.PromptCacheTest;
+import wa.audio.ResamplerTest;
+import wa.audio.VoiceActivityDetectorTest;
+import wa.client.AudioDataMessageDecoderTest;
+import wa.client.BinaryAudioFrameTest;
+import wa.client.InteractionStateMachineTest;
+import wa.client.OutboundSenderTest;
+import wa.client.ReconnectSchedulerTest;
+import wa.commonLogging.PerfBinaryLogTest;
+import wa.commonLogging.PerfRecordTest;
+import wa.metrics.HistogramTest;
+import wa.network.IamTokenManagerTest;
 import wa.status.StatusIndicatorTest;
+import wa.util.ActivityMeterTest;
 
 /**
  * JUnit test suite base class to define the annotation that defines the test classes to consider.
@@ -33,8 +51,26 @@ import wa.status.StatusIndicatorTest;
  */
 @Suite.SuiteClasses({
 	DriverTest.class,
+	AudioRingBufferTest.class,
+	EchoCancellerTest.class,
+	FlacAudioEncoderTest.class,
+	KeywordSpotterTest.class,
 	LocalAudioTest.class,
+	PcmConverterTest.class,
+	PromptCacheTest.class,
+	ResamplerTest.class,
+	VoiceActivityDetectorTest.class,
+	AudioDataMessageDecoderTest.class,
+	BinaryAudioFrameTest.class,
+	InteractionStateMachineTest.class,
+	OutboundSenderTest.class,
+	ReconnectSchedulerTest.class,
+	PerfBinaryLogTest.class,
+	PerfRecordTest.class,
+	HistogramTest.class,
+	IamTokenManagerTest.class,
 	StatusIndicatorTest.class,
+	ActivityMeterTest.class,
 })
 public abstract class JUnitTestSuite_Base {
  /* Empty class - used as placeholder for the test annotations */
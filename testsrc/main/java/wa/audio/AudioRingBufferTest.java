@@ -0,0 +1,200 @@
+/**
+ * Copyright 2018 IBM Corporation. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package wa.audio;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * JUnit tests for the AudioRingBuffer.
+ */
+public class AudioRingBufferTest {
+
+	/**
+	 * Test that data written is read back in order, including across the end of the buffer.
+	 */
+	@Test
+	public void testWriteReadWrapAround() throws Exception {
+		System.out.println("AudioRingBufferTest.testWriteReadWrapAround()");
+		AudioRingBuffer ring = new AudioRingBuffer(10, AudioRingBuffer.OverflowPolicy.DROP_NEWEST, 0);
+		assertThat(ring.capacity(), is(16));
+		byte[] in = new byte[12];
+		byte[] out = new byte[12];
+		int next = 0;
+		int expected = 0;
+		for (int round = 0; round < 10; round++) {
+			for (int i = 0; i < in.length; i++) {
+				in[i] = (byte) next++;
+			}
+			assertThat(ring.write(in, 0, in.length), is(in.length));
+			assertThat(ring.available(), is(in.length));
+			assertThat(ring.read(out, 0, out.length), is(out.length));
+			for (int i = 0; i < out.length; i++) {
+				assertThat(out[i], is((byte) expected++));
+			}
+		}
+		assertThat(ring.available(), is(0));
+		assertThat(ring.read(out, 0, out.length), is(0));
+	}
+
+	/**
+	 * Test the DROP_NEWEST overflow policy and the metrics.
+	 */
+	@Test
+	public void testOverflowDropNewest() throws Exception {
+		System.out.println("AudioRingBufferTest.testOverflowDropNewest()");
+		AudioRingBuffer ring = new AudioRingBuffer(16, AudioRingBuffer.OverflowPolicy.DROP_NEWEST, 0);
+		byte[] in = new byte[24];
+		assertThat(ring.write(in, 0, in.length), is(16));
+		assertThat(ring.getDroppedBytes(), is(8L));
+		assertThat(ring.getHighWaterMark(), is(16));
+		ring.clear();
+		assertThat(ring.available(), is(0));
+		ring.resetMetrics();
+		assertThat(ring.getDroppedBytes(), is(0L));
+		assertThat(ring.getHighWaterMark(), is(0));
+	}
+
+	/**
+	 * Test that a BLOCK writer waits for the reader to make space.
+	 */
+	@Test
+	public void testBlockingWrite() throws Exception {
+		System.out.println("AudioRingBufferTest.testBlockingWrite()");
+		final AudioRingBuffer ring = new AudioRingBuffer(16, AudioRingBuffer.OverflowPolicy.BLOCK, 2000);
+		final byte[] out = new byte[8];
+		Thread reader = new Thread(() -> {
+			try {
+				Thread.sleep(100);
+			} catch (InterruptedException e) {
+				return;
+			}
+			ring.read(out, 0, out.length);
+		});
+		reader.start();
+		assertThat(ring.write(new byte[24], 0, 24), is(24));
+		reader.join();
+		assertThat(ring.available(), is(16));
+		assertTrue("Producer should have been blocked", ring.getBlockedMillis() > 0);
+	}
+
+	/**
+	 * Test that a consumer waiting for data is woken by a write and times out when idle.
+	 */
+	@Test
+	public void testAwaitData() throws Exception {
+		System.out.println("AudioRingBufferTest.testAwaitData()");
+		final AudioRingBuffer ring = new AudioRingBuffer(64, AudioRingBuffer.OverflowPolicy.DROP_NEWEST, 0);
+		// Nothing written - times out
+		assertThat(ring.awaitData(1, 50), is(0));
+
+		Thread writer = new Thread(() -> {
+			try {
+				Thread.sleep(100);
+				ring.write(new byte[4], 0, 4);
+			} catch (InterruptedException e) {
+				return;
+			}
+		});
+		writer.start();
+		long start = System.currentTimeMillis();
+		assertThat(ring.awaitData(4, 5000), is(4));
+		assertTrue("Consumer should have been woken by the write", (System.currentTimeMillis() - start) < 5000);
+		writer.join();
+
+		// Interrupted while waiting
+		Thread.currentThread().interrupt();
+		ring.clear();
+		try {
+			ring.awaitData(1, 5000);
+			fail("Expected InterruptedException");
+		} catch (InterruptedException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * Test that wakeConsumer ends a wait for data (or the next one) without data.
+	 */
+	@Test
+	public void testWakeConsumer() throws Exception {
+		System.out.println("AudioRingBufferTest.testWakeConsumer()");
+		final AudioRingBuffer ring = new AudioRingBuffer(64, AudioRingBuffer.OverflowPolicy.DROP_NEWEST, 0);
+		Thread waker = new Thread(() -> {
+			try {
+				Thread.sleep(100);
+			} catch (InterruptedException e) {
+				return;
+			}
+			ring.wakeConsumer();
+		});
+		waker.start();
+		long start = System.currentTimeMillis();
+		assertThat(ring.awaitData(1, 5000), is(0));
+		assertTrue("Consumer should have been woken", (System.currentTimeMillis() - start) < 5000);
+		waker.join();
+
+		// Woken before it waits - the next wait ends at once, the one after that waits again
+		ring.wakeConsumer();
+		start = System.currentTimeMillis();
+		assertThat(ring.awaitData(1, 5000), is(0));
+		assertTrue((System.currentTimeMillis() - start) < 5000);
+		start = System.currentTimeMillis();
+		assertThat(ring.awaitData(1, 50), is(0));
+		assertTrue((System.currentTimeMillis() - start) >= 50);
+	}
+
+	/**
+	 * Test writing from a (read only) ByteBuffer, across the end of the ring.
+	 */
+	@Test
+	public void testWriteByteBuffer() throws Exception {
+		System.out.println("AudioRingBufferTest.testWriteByteBuffer()");
+		AudioRingBuffer ring = new AudioRingBuffer(8, AudioRingBuffer.OverflowPolicy.DROP_NEWEST, 0);
+		byte[] out = new byte[8];
+		ring.write(new byte[6], 0, 6);
+		ring.read(out, 0, 6);
+
+		ByteBuffer src = ByteBuffer.wrap(new byte[] { 9, 1, 2, 3, 4, 5 }).asReadOnlyBuffer();
+		src.position(1);
+		assertThat(ring.write(src), is(5));
+		assertThat(src.remaining(), is(0));
+		assertThat(ring.read(out, 0, out.length), is(5));
+		assertThat(Arrays.copyOf(out, 5), is(new byte[] { 1, 2, 3, 4, 5 }));
+	}
+
+	/**
+	 * Test that retain keeps only the most recent bytes (as used for the microphone pre-roll).
+	 */
+	@Test
+	public void testRetain() throws Exception {
+		System.out.println("AudioRingBufferTest.testRetain()");
+		AudioRingBuffer ring = new AudioRingBuffer(16, AudioRingBuffer.OverflowPolicy.DROP_NEWEST, 0);
+		byte[] out = new byte[16];
+		ring.write(new byte[] { 1, 2, 3, 4, 5, 6 }, 0, 6);
+		ring.retain(8);
+		assertThat(ring.available(), is(6));
+		ring.retain(4);
+		assertThat(ring.available(), is(4));
+		assertThat(ring.read(out, 0, out.length), is(4));
+		assertThat(Arrays.copyOf(out, 4), is(new byte[] { 3, 4, 5, 6 }));
+	}
+}
@@ -0,0 +1,144 @@
+/**
+ * Copyright 2018 IBM Corporation. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package wa.audio;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * JUnit tests for the EchoCanceller.
+ */
+public class EchoCancellerTest {
+
+	private static final int SAMPLE_RATE = 16000;
+	private static final int CHUNK_SAMPLES = SAMPLE_RATE / 50; // 20mS, as read by the microphone monitor
+
+	/**
+	 * Test that a (synthetic) echo of the reference is removed once the filter has adapted.
+	 */
+	@Test
+	public void testEchoRemoved() {
+		System.out.println("EchoCancellerTest.testEchoRemoved()");
+		float[] reference = noise(3 * SAMPLE_RATE, 0.1f);
+		float[] mic = echo(reference);
+		EchoCanceller canceller = new EchoCanceller(SAMPLE_RATE, 32, 0, 0.5f);
+		canceller.startReference(canceller.getFormat());
+
+		run(canceller, reference, mic, 0, 2 * SAMPLE_RATE);
+		canceller.resetStatistics();
+		float[] out = run(canceller, reference, mic, 2 * SAMPLE_RATE, 3 * SAMPLE_RATE);
+		assertThat(canceller.getEchoReturnLossEnhancementDb() > 20, is(true));
+		assertThat(energyDb(out) < energyDb(Arrays.copyOfRange(mic, 2 * SAMPLE_RATE, 3 * SAMPLE_RATE)) - 20, is(true));
+	}
+
+	/**
+	 * Test that the near end is kept while the speaker is playing (double talk).
+	 */
+	@Test
+	public void testNearEndKept() {
+		System.out.println("EchoCancellerTest.testNearEndKept()");
+		float[] reference = noise(3 * SAMPLE_RATE, 0.1f);
+		float[] mic = echo(reference);
+		// The near end talks for the last second
+		float[] nearEnd = new float[mic.length];
+		for (int i = 2 * SAMPLE_RATE; i < mic.length; i++) {
+			nearEnd[i] = 0.3f * (float) Math.sin(2 * Math.PI * 440 * i / SAMPLE_RATE);
+			mic[i] += nearEnd[i];
+		}
+		EchoCanceller canceller = new EchoCanceller(SAMPLE_RATE, 32, 0, 0.5f);
+		canceller.startReference(canceller.getFormat());
+
+		run(canceller, reference, mic, 0, 2 * SAMPLE_RATE);
+		float[] out = run(canceller, reference, mic, 2 * SAMPLE_RATE, 3 * SAMPLE_RATE);
+		float[] residual = new float[out.length];
+		for (int i = 0; i < out.length; i++) {
+			residual[i] = out[i] - nearEnd[2 * SAMPLE_RATE + i];
+		}
+		// What is left of the echo is well below the near end
+		assertThat(energyDb(residual) < energyDb(Arrays.copyOfRange(nearEnd, 2 * SAMPLE_RATE, 3 * SAMPLE_RATE)) - 15, is(true));
+	}
+
+	/**
+	 * Test that the microphone audio is unchanged when nothing is playing.
+	 */
+	@Test
+	public void testPassThroughWithoutReference() {
+		System.out.println("EchoCancellerTest.testPassThroughWithoutReference()");
+		byte[] mic = new byte[4 * CHUNK_SAMPLES];
+		new Random(7).nextBytes(mic);
+		byte[] processed = mic.clone();
+		EchoCanceller canceller = new EchoCanceller(SAMPLE_RATE, 32, 16, 0.5f);
+		canceller.process(processed, 0, processed.length);
+		assertThat(processed, is(mic));
+	}
+
+	private static float[] run(EchoCanceller canceller, float[] reference, float[] mic, int from, int to) {
+		float[] out = new float[to - from];
+		byte[] chunk = new byte[2 * CHUNK_SAMPLES];
+		for (int i = from; i < to; i += CHUNK_SAMPLES) {
+			toPcm(reference, i, chunk);
+			canceller.addReference(chunk, 0, chunk.length);
+			toPcm(mic, i, chunk);
+			canceller.process(chunk, 0, chunk.length);
+			for (int j = 0; j < CHUNK_SAMPLES; j++) {
+				out[i - from + j] = (short) ((chunk[2 * j] & 0xff) | (chunk[2 * j + 1] << 8)) / 32768f;
+			}
+		}
+		return out;
+	}
+
+	/**
+	 * The reference as heard by the microphone - delayed, quieter and with a reflection.
+	 */
+	private static float[] echo(float[] reference) {
+		float[] mic = new float[reference.length];
+		for (int i = 0; i < mic.length; i++) {
+			mic[i] = (i >= 40 ? 0.3f * reference[i - 40] : 0) - (i >= 90 ? 0.1f * reference[i - 90] : 0)
+					+ (i >= 200 ? 0.05f * reference[i - 200] : 0);
+		}
+		return mic;
+	}
+
+	private static float[] noise(int samples, float level) {
+		Random random = new Random(16000);
+		float[] audio = new float[samples];
+		for (int i = 0; i < samples; i++) {
+			audio[i] = level * (float) random.nextGaussian();
+		}
+		return audio;
+	}
+
+	private static void toPcm(float[] audio, int from, byte[] pcm) {
+		for (int i = 0; i < pcm.length / 2; i++) {
+			int value = Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, Math.round(audio[from + i] * 32768f)));
+			pcm[2 * i] = (byte) value;
+			pcm[2 * i + 1] = (byte) (value >> 8);
+		}
+	}
+
+	private static double energyDb(float[] audio) {
+		double energy = 0;
+		for (float sample : audio) {
+			energy += sample * sample;
+		}
+		return 10 * Math.log10(energy / audio.length + 1e-20);
+	}
+}
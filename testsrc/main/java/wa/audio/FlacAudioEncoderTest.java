@@ -0,0 +1,110 @@
+/**
+ * Copyright 2018 IBM Corporation. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package wa.audio;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+
+import org.jflac.FLACDecoder;
+import org.jflac.PCMProcessor;
+import org.jflac.metadata.StreamInfo;
+import org.jflac.util.ByteData;
+import org.junit.Test;
+
+/**
+ * JUnit tests for the FlacAudioEncoder. The encoded audio is decoded with jflac.
+ */
+public class FlacAudioEncoderTest {
+
+	/**
+	 * Test that speech-like audio (with silence and noise) is encoded losslessly and compressed.
+	 */
+	@Test
+	public void testEncodeDecode() throws Exception {
+		System.out.println("FlacAudioEncoderTest.testEncodeDecode()");
+		byte[] pcm = testAudio();
+		// Odd sized chunks, so samples are split across calls and the last frame is partial
+		byte[] flac = encode(pcm, 1001);
+
+		assertThat(new String(flac, 0, 4, "US-ASCII"), is("fLaC"));
+		assertTrue("FLAC should be smaller than the PCM", flac.length < pcm.length);
+		assertThat(decode(flac), is(pcm));
+	}
+
+	/**
+	 * Test that the same stream is produced however the audio is split.
+	 */
+	@Test
+	public void testChunking() throws Exception {
+		System.out.println("FlacAudioEncoderTest.testChunking()");
+		byte[] pcm = testAudio();
+		assertThat(encode(pcm, 3), is(encode(pcm, pcm.length)));
+	}
+
+	private static byte[] testAudio() {
+		Random random = new Random(16000);
+		int count = 16000 + 1234;
+		byte[] pcm = new byte[count * 2];
+		for (int i = 0; i < count; i++) {
+			int sample;
+			if (i < 4000) {
+				sample = 0; // silence
+			} else if (i < 12000) {
+				sample = (int) (8000 * Math.sin(i * 2 * Math.PI * 440 / 16000)) + random.nextInt(64) - 32;
+			} else {
+				sample = random.nextInt(65536) - 32768; // white noise (verbatim)
+			}
+			pcm[i * 2] = (byte) sample;
+			pcm[i * 2 + 1] = (byte) (sample >> 8);
+		}
+		return pcm;
+	}
+
+	private static byte[] encode(byte[] pcm, int chunkSize) {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		FlacAudioEncoder encoder = new FlacAudioEncoder(16000);
+		encoder.start((data, offset, length) -> out.write(data, offset, length));
+		for (int i = 0; i < pcm.length; i += chunkSize) {
+			encoder.encode(pcm, i, Math.min(chunkSize, pcm.length - i));
+		}
+		encoder.finish();
+		return out.toByteArray();
+	}
+
+	private static byte[] decode(byte[] flac) throws Exception {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		FLACDecoder decoder = new FLACDecoder(new ByteArrayInputStream(flac));
+		decoder.addPCMProcessor(new PCMProcessor() {
+			@Override
+			public void processStreamInfo(StreamInfo streamInfo) {
+				assertThat(streamInfo.getSampleRate(), is(16000));
+				assertThat(streamInfo.getChannels(), is(1));
+				assertThat(streamInfo.getBitsPerSample(), is(16));
+			}
+
+			@Override
+			public void processPCM(ByteData pcm) {
+				out.write(pcm.getData(), 0, pcm.getLen());
+			}
+		});
+		decoder.decode();
+		return out.toByteArray();
+	}
+}
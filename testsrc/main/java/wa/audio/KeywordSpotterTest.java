@@ -0,0 +1,132 @@
+/**
+ * Copyright 2018 IBM Corporation. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package wa.audio;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * JUnit tests for the KeywordSpotter. The 'words' are synthetic (harmonic chirps) in noise.
+ */
+public class KeywordSpotterTest {
+
+	private static final int SAMPLE_RATE = 16000;
+	private static final float THRESHOLD = 1.2f;
+
+	/**
+	 * Test that the keyword is detected (once) when it is said slower and quieter than the template.
+	 */
+	@Test
+	public void testKeywordDetected() {
+		System.out.println("KeywordSpotterTest.testKeywordDetected()");
+		KeywordSpotter spotter = spotter();
+		assertThat(process(spotter, noise(1000, 2)), is(0));
+		assertThat(process(spotter, word(700, 300, 1500, 0.2, 3)), is(1));
+		assertThat(spotter.getDetectedKeyword(), is("up"));
+		assertThat(spotter.getDetectedScore() < THRESHOLD, is(true));
+		assertThat(process(spotter, noise(1000, 4)), is(0));
+	}
+
+	/**
+	 * Test that other sounds are not detected.
+	 */
+	@Test
+	public void testOtherWordsIgnored() {
+		System.out.println("KeywordSpotterTest.testOtherWordsIgnored()");
+		KeywordSpotter spotter = spotter();
+		assertThat(process(spotter, noise(1000, 5)), is(0));
+		assertThat(process(spotter, word(600, 1500, 300, 0.3, 6)), is(0));
+		assertThat(process(spotter, noise(500, 7)), is(0));
+		assertThat(process(spotter, word(600, 800, 800, 0.3, 8)), is(0));
+		assertThat(process(spotter, noise(1000, 9)), is(0));
+		assertThat(spotter.getBestScore() > THRESHOLD, is(true));
+		assertThat(spotter.getFramesProcessed() > 0, is(true));
+	}
+
+	/**
+	 * Test that templates that are too long are rejected.
+	 */
+	@Test
+	public void testTemplateTooLong() {
+		System.out.println("KeywordSpotterTest.testTemplateTooLong()");
+		byte[] template = noise(KeywordSpotter.MAX_TEMPLATE_MILLIS + 100, 10);
+		KeywordSpotter spotter = new KeywordSpotter(SAMPLE_RATE, THRESHOLD);
+		try {
+			spotter.addTemplate("long", template, 0, template.length);
+			fail("Expected IllegalArgumentException");
+		} catch (IllegalArgumentException e) {
+			assertThat(spotter.getTemplateCount(), is(0));
+		}
+	}
+
+	private static KeywordSpotter spotter() {
+		KeywordSpotter spotter = new KeywordSpotter(SAMPLE_RATE, THRESHOLD);
+		byte[] template = word(600, 300, 1500, 0.3, 1);
+		spotter.addTemplate("up", template, 0, template.length);
+		return spotter;
+	}
+
+	/**
+	 * @return the number of detections
+	 */
+	private static int process(KeywordSpotter spotter, byte[] audio) {
+		int detections = 0;
+		for (int i = 0; i < audio.length; i += 640) {
+			if (spotter.process(audio, i, Math.min(640, audio.length - i))) {
+				detections++;
+			}
+		}
+		return detections;
+	}
+
+	/**
+	 * A harmonic tone sliding from one frequency to another, in a little noise.
+	 */
+	private static byte[] word(int millis, double fromHz, double toHz, double level, long seed) {
+		Random random = new Random(seed);
+		int samples = SAMPLE_RATE * millis / 1000;
+		byte[] pcm = new byte[2 * samples];
+		double phase = 0;
+		for (int i = 0; i < samples; i++) {
+			double t = (double) i / samples;
+			phase += 2 * Math.PI * (fromHz + (toHz - fromHz) * t) / SAMPLE_RATE;
+			double sample = level * Math.sin(Math.PI * t) * (0.6 * Math.sin(phase) + 0.3 * Math.sin(2 * phase) + 0.1 * Math.sin(3 * phase))
+					+ 0.003 * random.nextGaussian();
+			toPcm(sample, pcm, 2 * i);
+		}
+		return pcm;
+	}
+
+	private static byte[] noise(int millis, long seed) {
+		Random random = new Random(seed);
+		int samples = SAMPLE_RATE * millis / 1000;
+		byte[] pcm = new byte[2 * samples];
+		for (int i = 0; i < samples; i++) {
+			toPcm(0.003 * random.nextGaussian(), pcm, 2 * i);
+		}
+		return pcm;
+	}
+
+	private static void toPcm(double sample, byte[] pcm, int offset) {
+		int value = (int) Math.round(Math.max(-1, Math.min(1, sample)) * Short.MAX_VALUE);
+		pcm[offset] = (byte) value;
+		pcm[offset + 1] = (byte) (value >> 8);
+	}
+}
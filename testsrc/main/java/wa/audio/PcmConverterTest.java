@@ -0,0 +1,73 @@
+/**
+ * Copyright 2018 IBM Corporation. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package wa.audio;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * JUnit tests for the PcmConverter.
+ */
+public class PcmConverterTest {
+
+	/**
+	 * Test the conversion of mono samples (including clipping).
+	 */
+	@Test
+	public void testMono() {
+		System.out.println("PcmConverterTest.testMono()");
+		float[][] pcm = { { 9f, 0f, 0.5f, -0.5f, 1f, -1f, 1.5f, -1.5f } };
+		int[] index = { 1 };
+		byte[] out = new byte[16];
+		int length = PcmConverter.floatToPcm16LE(pcm, index, 1, 7, out, 2);
+		assertThat(length, is(14));
+		assertThat(sample(out, 2), is(0));
+		assertThat(sample(out, 4), is(16383));
+		assertThat(sample(out, 6), is(-16383));
+		assertThat(sample(out, 8), is(32767));
+		assertThat(sample(out, 10), is(-32767));
+		assertThat(sample(out, 12), is(32767));
+		assertThat(sample(out, 14), is(-32768));
+		// Nothing written before the offset
+		assertThat(out[0], is((byte) 0));
+		assertThat(out[1], is((byte) 0));
+	}
+
+	/**
+	 * Test that stereo samples are interleaved.
+	 */
+	@Test
+	public void testStereoInterleaved() {
+		System.out.println("PcmConverterTest.testStereoInterleaved()");
+		float[][] pcm = { { 0.25f, 0.5f, 0.75f }, { 0f, -0.25f, -0.5f, -0.75f } };
+		int[] index = { 0, 1 };
+		byte[] out = new byte[12];
+		int length = PcmConverter.floatToPcm16LE(pcm, index, 2, 3, out, 0);
+		assertThat(length, is(12));
+		assertThat(sample(out, 0), is((int) (0.25f * 32767)));
+		assertThat(sample(out, 2), is((int) (-0.25f * 32767)));
+		assertThat(sample(out, 4), is((int) (0.5f * 32767)));
+		assertThat(sample(out, 6), is((int) (-0.5f * 32767)));
+		assertThat(sample(out, 8), is((int) (0.75f * 32767)));
+		assertThat(sample(out, 10), is((int) (-0.75f * 32767)));
+	}
+
+	private static int sample(byte[] data, int offset) {
+		return (short) ((data[offset] & 0xff) | (data[offset + 1] << 8));
+	}
+}
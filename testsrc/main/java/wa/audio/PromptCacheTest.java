@@ -0,0 +1,118 @@
+/**
+ * Copyright 2018 IBM Corporation. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package wa.audio;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.sound.sampled.AudioFormat;
+
+import org.junit.Test;
+
+/**
+ * JUnit tests for the PromptCache (using generated prompts rather than decoding the FLAC files).
+ */
+public class PromptCacheTest {
+
+	private static final AudioFormat FORMAT = new AudioFormat(22050, 16, 1, true, false);
+
+	/**
+	 * Cache that 'decodes' a prompt to a clip of 1000 bytes filled with the first character of the name.
+	 */
+	private static class TestPromptCache extends PromptCache {
+		final List<String> loaded = new ArrayList<>();
+
+		TestPromptCache(long maximumBytes) {
+			super(maximumBytes);
+		}
+
+		@Override
+		protected Clip load(String name) {
+			loaded.add(name);
+			byte[] data = new byte[1000];
+			Arrays.fill(data, (byte) name.charAt(0));
+			return new Clip(FORMAT, data);
+		}
+	}
+
+	/**
+	 * Test that a prompt is only decoded once.
+	 */
+	@Test
+	public void testDecodedOnce() throws Exception {
+		System.out.println("PromptCacheTest.testDecodedOnce()");
+		TestPromptCache cache = new TestPromptCache(10000);
+		PromptCache.Clip first = cache.get("1");
+		PromptCache.Clip second = cache.get("1");
+		assertThat(second, is(sameInstance(first)));
+		assertThat(cache.loaded.size(), is(1));
+		assertThat(cache.getCachedBytes(), is(1000L));
+	}
+
+	/**
+	 * Test that the least recently used prompts are removed when the cache is full.
+	 */
+	@Test
+	public void testLeastRecentlyUsedRemoved() throws Exception {
+		System.out.println("PromptCacheTest.testLeastRecentlyUsedRemoved()");
+		TestPromptCache cache = new TestPromptCache(2500);
+		cache.get("1");
+		cache.get("2");
+		cache.get("1"); // '2' is now the least recently used
+		cache.get("3");
+		assertThat(cache.contains("1"), is(true));
+		assertThat(cache.contains("2"), is(false));
+		assertThat(cache.contains("3"), is(true));
+		assertThat(cache.getCachedBytes(), is(2000L));
+	}
+
+	/**
+	 * Test that a prompt larger than the cache is still returned (and kept until the next prompt).
+	 */
+	@Test
+	public void testLargerThanCache() throws Exception {
+		System.out.println("PromptCacheTest.testLargerThanCache()");
+		TestPromptCache cache = new TestPromptCache(500);
+		PromptCache.Clip clip = cache.get("1");
+		assertThat(clip.getData().length, is(1000));
+		assertThat(cache.contains("1"), is(true));
+		cache.get("2");
+		assertThat(cache.contains("1"), is(false));
+	}
+
+	/**
+	 * Test joining clips into one (gapless) clip.
+	 */
+	@Test
+	public void testConcat() throws Exception {
+		System.out.println("PromptCacheTest.testConcat()");
+		TestPromptCache cache = new TestPromptCache(10000);
+		PromptCache.Clip joined = PromptCache.concat(Arrays.asList(cache.get("1"), cache.get("dot"), cache.get("2")));
+		assertThat(joined.getData().length, is(3000));
+		assertThat(joined.getData()[0], is((byte) '1'));
+		assertThat(joined.getData()[1000], is((byte) 'd'));
+		assertThat(joined.getData()[2999], is((byte) '2'));
+		assertThat(joined.getDurationMillis(), is(68L));
+
+		// Different formats can't be joined
+		PromptCache.Clip other = new PromptCache.Clip(new AudioFormat(16000, 16, 1, true, false), new byte[100]);
+		assertThat(PromptCache.concat(Arrays.asList(cache.get("1"), other)), is(nullValue()));
+	}
+}
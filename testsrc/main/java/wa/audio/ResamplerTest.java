@@ -0,0 +1,170 @@
+/**
+ * Copyright 2018 IBM Corporation. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package wa.audio;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+import javax.sound.sampled.AudioFormat;
+
+import org.junit.Test;
+
+/**
+ * JUnit tests for the Resampler.
+ */
+public class ResamplerTest {
+
+	/**
+	 * Test that the same format is passed through unchanged.
+	 */
+	@Test
+	public void testPassThrough() {
+		System.out.println("ResamplerTest.testPassThrough()");
+		Resampler resampler = new Resampler(format(16000, 1), format(16000, 1));
+		assertThat(resampler.isPassThrough(), is(true));
+		byte[] audio = sine(16000, 1, 1000, 0.5, 1600);
+		byte[] out = new byte[resampler.getMaxOutputLength(audio.length)];
+		int length = resampler.convert(audio, 0, audio.length, out, 0);
+		assertThat(Arrays.copyOf(out, length), is(audio));
+	}
+
+	/**
+	 * Test up-sampling (16000 to 48000) keeps the frequency and level of a tone.
+	 */
+	@Test
+	public void testUpSample() {
+		System.out.println("ResamplerTest.testUpSample()");
+		byte[] out = convert(format(16000, 1), format(48000, 1), sine(16000, 1, 1000, 0.5, 16000), 4096);
+		// About 3 times the samples (less the filter delay)
+		assertThat(Math.abs(out.length / 2 - 48000) <= 48, is(true));
+		assertTone(out, 1, 0, 48000, 1000, 0.5);
+	}
+
+	/**
+	 * Test a non-integer ratio (22050 to 16000) keeps the frequency and level of a tone.
+	 */
+	@Test
+	public void testDownSample() {
+		System.out.println("ResamplerTest.testDownSample()");
+		byte[] out = convert(format(22050, 1), format(16000, 1), sine(22050, 1, 440, 0.5, 22050), 1000);
+		assertThat(Math.abs(out.length / 2 - 16000) <= 32, is(true));
+		assertTone(out, 1, 0, 16000, 440, 0.5);
+	}
+
+	/**
+	 * Test that a tone above the output Nyquist frequency is removed (not aliased).
+	 */
+	@Test
+	public void testAntiAliasing() {
+		System.out.println("ResamplerTest.testAntiAliasing()");
+		byte[] out = convert(format(48000, 1), format(16000, 1), sine(48000, 1, 12000, 0.5, 48000), 4096);
+		assertThat(rms(out, 1, 0, 1000) < 0.5 * 0.707 * 0.01, is(true));
+	}
+
+	/**
+	 * Test mono to stereo and stereo to mono conversion.
+	 */
+	@Test
+	public void testChannels() {
+		System.out.println("ResamplerTest.testChannels()");
+		byte[] stereo = convert(format(16000, 1), format(44100, 2), sine(16000, 1, 500, 0.5, 16000), 3000);
+		assertTone(stereo, 2, 0, 44100, 500, 0.5);
+		assertTone(stereo, 2, 1, 44100, 500, 0.5);
+
+		byte[] mono = convert(format(16000, 2), format(16000, 1), sine(16000, 2, 500, 0.5, 16000), 3000);
+		assertTone(mono, 1, 0, 16000, 500, 0.5);
+	}
+
+	/**
+	 * Test that converting in chunks gives the same result as converting all of the audio at once.
+	 */
+	@Test
+	public void testStreaming() {
+		System.out.println("ResamplerTest.testStreaming()");
+		byte[] audio = sine(22050, 1, 700, 0.5, 22050);
+		byte[] whole = convert(format(22050, 1), format(48000, 1), audio, audio.length);
+		byte[] chunked = convert(format(22050, 1), format(48000, 1), audio, 202);
+		assertThat(chunked, is(whole));
+	}
+
+	private static AudioFormat format(float rate, int channels) {
+		return new AudioFormat(rate, 16, channels, true, false);
+	}
+
+	private static byte[] convert(AudioFormat from, AudioFormat to, byte[] audio, int chunkSize) {
+		Resampler resampler = new Resampler(from, to);
+		ByteArrayOutputStream result = new ByteArrayOutputStream();
+		for (int offset = 0; offset < audio.length; offset += chunkSize) {
+			int length = Math.min(chunkSize, audio.length - offset);
+			byte[] out = new byte[resampler.getMaxOutputLength(length)];
+			int count = resampler.convert(audio, offset, length, out, 0);
+			result.write(out, 0, count);
+		}
+		return result.toByteArray();
+	}
+
+	private static byte[] sine(int rate, int channels, double frequency, double amplitude, int samples) {
+		byte[] audio = new byte[samples * channels * 2];
+		for (int i = 0; i < samples; i++) {
+			int value = (int) Math.round(Math.sin(2 * Math.PI * frequency * i / rate) * amplitude * 32767);
+			for (int channel = 0; channel < channels; channel++) {
+				int offset = (i * channels + channel) * 2;
+				audio[offset] = (byte) value;
+				audio[offset + 1] = (byte) (value >> 8);
+			}
+		}
+		return audio;
+	}
+
+	private static double sample(byte[] audio, int channels, int channel, int index) {
+		int offset = (index * channels + channel) * 2;
+		return ((short) ((audio[offset] & 0xff) | (audio[offset + 1] << 8))) / 32767.0;
+	}
+
+	/**
+	 * RMS level of a channel (skipping the start, where the filter is filling).
+	 */
+	private static double rms(byte[] audio, int channels, int channel, int skip) {
+		int samples = audio.length / (2 * channels);
+		double sum = 0;
+		for (int i = skip; i < samples; i++) {
+			double value = sample(audio, channels, channel, i);
+			sum += value * value;
+		}
+		return Math.sqrt(sum / (samples - skip));
+	}
+
+	/**
+	 * Check the frequency (from the zero crossings) and level of a tone.
+	 */
+	private static void assertTone(byte[] audio, int channels, int channel, int rate, double frequency, double amplitude) {
+		int samples = audio.length / (2 * channels);
+		int skip = rate / 100;
+		int crossings = 0;
+		for (int i = skip + 1; i < samples; i++) {
+			if ((sample(audio, channels, channel, i - 1) < 0) != (sample(audio, channels, channel, i) < 0)) {
+				crossings++;
+			}
+		}
+		double measured = crossings / 2.0 / ((double) (samples - skip) / rate);
+		assertThat("frequency " + measured, Math.abs(measured - frequency) < frequency * 0.02, is(true));
+		double level = rms(audio, channels, channel, skip);
+		assertThat("level " + level, Math.abs(level - amplitude * Math.sqrt(0.5)) < 0.01, is(true));
+	}
+}
@@ -0,0 +1,83 @@
+/**
+ * Copyright 2018 IBM Corporation. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package wa.audio;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * JUnit tests for the VoiceActivityDetector.
+ */
+public class VoiceActivityDetectorTest {
+
+	private static final int SAMPLE_RATE = 16000;
+
+	/**
+	 * Test that the start and end of a tone in background noise are detected.
+	 */
+	@Test
+	public void testSpeechStartAndEnd() {
+		System.out.println("VoiceActivityDetectorTest.testSpeechStartAndEnd()");
+		// 500mS noise, 600mS 'speech', 1000mS noise
+		byte[] audio = audio(500, 600, 1000);
+		VoiceActivityDetector vad = new VoiceActivityDetector(SAMPLE_RATE, 12, 800);
+		boolean endOfSpeech = false;
+		for (int i = 0; i < audio.length && !endOfSpeech; i += 1001) {
+			endOfSpeech = vad.process(audio, i, Math.min(1001, audio.length - i));
+		}
+		assertTrue(vad.isSpeechDetected());
+		assertTrue(endOfSpeech);
+		assertThat(vad.toMillis(vad.getSpeechStartPosition()), is(500L));
+		assertThat(vad.toMillis(vad.getSpeechEndPosition()), is(1100L));
+	}
+
+	/**
+	 * Test that background noise alone is not speech.
+	 */
+	@Test
+	public void testNoSpeech() {
+		System.out.println("VoiceActivityDetectorTest.testNoSpeech()");
+		byte[] audio = audio(2000, 0, 0);
+		VoiceActivityDetector vad = new VoiceActivityDetector(SAMPLE_RATE, 12, 800);
+		assertFalse(vad.process(audio, 0, audio.length));
+		assertFalse(vad.isSpeechDetected());
+		assertThat(vad.getSpeechStartPosition(), is(-1L));
+	}
+
+	/**
+	 * Background noise with a 300Hz tone (-12dBFS) in the middle.
+	 */
+	private static byte[] audio(int noiseMillis, int toneMillis, int trailingNoiseMillis) {
+		Random random = new Random(16000);
+		int toneStart = noiseMillis * SAMPLE_RATE / 1000;
+		int toneEnd = toneStart + (toneMillis * SAMPLE_RATE / 1000);
+		int count = toneEnd + (trailingNoiseMillis * SAMPLE_RATE / 1000);
+		byte[] audio = new byte[count * 2];
+		for (int i = 0; i < count; i++) {
+			int sample = random.nextInt(200) - 100;
+			if (i >= toneStart && i < toneEnd) {
+				sample += (int) (8000 * Math.sin(i * 2 * Math.PI * 300 / SAMPLE_RATE));
+			}
+			audio[i * 2] = (byte) sample;
+			audio[i * 2 + 1] = (byte) (sample >> 8);
+		}
+		return audio;
+	}
+}
@@ -0,0 +1,97 @@
+/**
+ * Copyright 2018 IBM Corporation. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package wa.client;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Base64;
+
+import org.junit.Test;
+
+/**
+ * JUnit tests for the AudioDataMessageDecoder.
+ */
+public class AudioDataMessageDecoderTest {
+
+	private static final byte[] AUDIO = { 0, 1, 127, -128, -1, 42, 16, -16 };
+
+	/**
+	 * Test decoding the numeric array (serialized Buffer) form.
+	 */
+	@Test
+	public void testDecodeNumericArray() {
+		System.out.println("AudioDataMessageDecoderTest.testDecodeNumericArray()");
+		String message = "{\"action\":\"audio_data\",\"id\":\"abc-123\",\"data\":{\"type\":\"Buffer\",\"data\":[0,1,127,128,255,42,16,240]}}";
+		AudioDataMessageDecoder decoder = new AudioDataMessageDecoder();
+		assertTrue("Should decode", decoder.decode(message));
+		assertThat(decoder.getId(), is("abc-123"));
+		assertThat(decoder.getLength(), is(AUDIO.length));
+		assertArrayEquals(AUDIO, Arrays.copyOf(decoder.getBuffer(), decoder.getLength()));
+	}
+
+	/**
+	 * Test decoding the base64 forms (with keys in a different order and extra whitespace).
+	 */
+	@Test
+	public void testDecodeBase64() {
+		System.out.println("AudioDataMessageDecoderTest.testDecodeBase64()");
+		String encoded = Base64.getEncoder().encodeToString(AUDIO);
+		String message = "{ \"data\" : \"" + encoded + "\", \"encoding\":\"base64\", \"id\":\"xyz\", \"action\" : \"audio_data\" }";
+		AudioDataMessageDecoder decoder = new AudioDataMessageDecoder();
+		assertTrue("Should decode", decoder.decode(message));
+		assertThat(decoder.getId(), is("xyz"));
+		assertArrayEquals(AUDIO, Arrays.copyOf(decoder.getBuffer(), decoder.getLength()));
+
+		message = "{\"action\":\"audio_data\",\"id\":\"xyz\",\"data\":{\"data\":\"" + encoded + "\"}}";
+		assertTrue("Should decode nested base64", decoder.decode(message));
+		assertArrayEquals(AUDIO, Arrays.copyOf(decoder.getBuffer(), decoder.getLength()));
+	}
+
+	/**
+	 * Test that the buffer grows beyond the initial size.
+	 */
+	@Test
+	public void testDecodeLargeFrame() {
+		System.out.println("AudioDataMessageDecoderTest.testDecodeLargeFrame()");
+		byte[] audio = new byte[20000];
+		StringBuilder sb = new StringBuilder("{\"action\":\"audio_data\",\"id\":\"big\",\"data\":{\"type\":\"Buffer\",\"data\":[");
+		for (int i = 0; i < audio.length; i++) {
+			audio[i] = (byte) (i * 31);
+			sb.append(i == 0 ? "" : ",").append(audio[i] & 0xff);
+		}
+		sb.append("]}}");
+		AudioDataMessageDecoder decoder = new AudioDataMessageDecoder(64);
+		assertTrue("Should decode", decoder.decode(sb.toString()));
+		assertArrayEquals(audio, Arrays.copyOf(decoder.getBuffer(), decoder.getLength()));
+	}
+
+	/**
+	 * Test that other messages and malformed messages are rejected.
+	 */
+	@Test
+	public void testRejectOtherMessages() {
+		System.out.println("AudioDataMessageDecoderTest.testRejectOtherMessages()");
+		AudioDataMessageDecoder decoder = new AudioDataMessageDecoder();
+		assertFalse(decoder.decode("{\"action\":\"audio_start\",\"id\":\"abc\"}"));
+		assertFalse(decoder.decode("{\"action\":\"text\",\"speech\":\"audio_data\"}"));
+		assertFalse(decoder.decode("{\"action\":\"audio_data\",\"id\":\"abc\"}"));
+		assertFalse(decoder.decode("{\"action\":\"audio_data\",\"id\":\"abc\",\"data\":{\"data\":[1,2,"));
+		assertFalse(decoder.decode("{\"action\":\"audio_data\",\"id\":\"abc\",\"data\":\"not*base64\"}"));
+		assertFalse(decoder.decode("not json"));
+	}
+}
@@ -0,0 +1,65 @@
+/**
+ * Copyright 2018 IBM Corporation. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package wa.client;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import okio.ByteString;
+
+/**
+ * JUnit tests for the BinaryAudioFrame.
+ */
+public class BinaryAudioFrameTest {
+
+	private static final String ID = "8f3c1c2e-5d7a-4b8e-9a61-0c2f6f3b9d11";
+	private static final byte[] AUDIO = { 0, 1, 127, -128, -1, 42, 16, -16 };
+
+	/**
+	 * Test that an encoded frame decodes to the same id and audio.
+	 */
+	@Test
+	public void testEncodeDecode() {
+		System.out.println("BinaryAudioFrameTest.testEncodeDecode()");
+		ByteString frame = BinaryAudioFrame.encode(ID, AUDIO, 2, 4);
+		assertThat(frame.size(), is(2 + ID.length() + 4));
+		assertTrue(BinaryAudioFrame.isAudioData(frame));
+		assertThat(BinaryAudioFrame.getId(frame), is(ID));
+		assertThat(BinaryAudioFrame.getAudioLength(frame), is(4));
+
+		ByteBuffer audio = BinaryAudioFrame.getAudio(frame);
+		assertThat(audio.remaining(), is(4));
+		byte[] decoded = new byte[4];
+		audio.get(decoded);
+		assertThat(decoded, is(new byte[] { 127, -128, -1, 42 }));
+	}
+
+	/**
+	 * Test that other binary messages are not taken as audio data.
+	 */
+	@Test
+	public void testNotAudioData() {
+		System.out.println("BinaryAudioFrameTest.testNotAudioData()");
+		assertFalse(BinaryAudioFrame.isAudioData(ByteString.of(new byte[] { 0x02, 0 })));
+		assertFalse(BinaryAudioFrame.isAudioData(ByteString.of(new byte[] { BinaryAudioFrame.TYPE_AUDIO_DATA })));
+		// Id length is longer than the frame
+		assertFalse(BinaryAudioFrame.isAudioData(ByteString.of(new byte[] { BinaryAudioFrame.TYPE_AUDIO_DATA, 10, 'a' })));
+	}
+}
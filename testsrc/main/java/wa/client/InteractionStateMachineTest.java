@@ -0,0 +1,331 @@
+/**
+ * Copyright 2018 IBM Corporation. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package wa.client;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Test;
+
+import wa.audio.AudioInput;
+import wa.client.InteractionStateMachine.State;
+
+/**
+ * JUnit tests for the InteractionStateMachine.
+ */
+public class InteractionStateMachineTest {
+
+	private static final long TIMEOUT_MS = 50;
+
+	/**
+	 * Actions that record what was asked for.
+	 */
+	private static class RecordingActions implements InteractionStateMachine.Actions {
+		final List<String> actions = Collections.synchronizedList(new ArrayList<String>());
+		volatile JSONObject sttOptions = null;
+
+		@Override
+		public void startCapture(AudioInput.InputSource inputSource, JSONObject sttOptions) {
+			this.sttOptions = sttOptions;
+			actions.add("startCapture:" + inputSource + ":" + (null == sttOptions ? "default" : "options"));
+		}
+
+		@Override
+		public void bargeIn(String audioId) {
+			actions.add("bargeIn:" + audioId);
+		}
+
+		@Override
+		public void stopCapture() {
+			actions.add("stopCapture");
+		}
+
+		@Override
+		public void startOutput(String audioId) {
+			actions.add("startOutput:" + audioId);
+		}
+
+		@Override
+		public void finishOutput() {
+			actions.add("finishOutput");
+		}
+
+		@Override
+		public void stopOutput() {
+			actions.add("stopOutput");
+		}
+
+		@Override
+		public void stateChanged(State from, State to) {
+			actions.add(from + "->" + to);
+		}
+
+		List<String> take() {
+			synchronized (actions) {
+				List<String> taken = new ArrayList<>(actions);
+				actions.clear();
+				return taken;
+			}
+		}
+	}
+
+	private RecordingActions actions = new RecordingActions();
+	private InteractionStateMachine machine = new InteractionStateMachine(actions, TIMEOUT_MS, TIMEOUT_MS);
+
+	@After
+	public void tearDown() {
+		machine.shutdown();
+	}
+
+	/**
+	 * Test a complete interaction: trigger, capture, response, playback.
+	 */
+	@Test
+	public void testInteraction() {
+		System.out.println("InteractionStateMachineTest.testInteraction()");
+		assertThat(machine.getState(), is(State.IDLE));
+		assertTrue(machine.isTriggerAllowed());
+
+		assertTrue(machine.trigger(AudioInput.InputSource.MICROPHONE));
+		assertThat(machine.getState(), is(State.CAPTURING));
+		assertFalse(machine.isTriggerAllowed());
+		assertFalse(machine.trigger(AudioInput.InputSource.MICROPHONE));
+		assertThat(actions.take(), is(list("IDLE->CAPTURING", "startCapture:MICROPHONE:default")));
+
+		machine.captureEnded();
+		machine.sync();
+		assertThat(machine.getState(), is(State.AWAITING_RESPONSE));
+		assertFalse(machine.isTriggerAllowed());
+		assertFalse(machine.trigger(AudioInput.InputSource.MICROPHONE));
+
+		machine.audioStart("a");
+		assertThat(machine.getState(), is(State.PLAYING));
+		assertThat(machine.getCurrentAudioId(), is("a"));
+		machine.audioEnd("b");
+		machine.audioEnd("a");
+		machine.outputFinished();
+		machine.sync();
+		assertThat(machine.getState(), is(State.IDLE));
+		assertThat(machine.getCurrentAudioId(), is(nullValue()));
+		assertThat(actions.take(), is(list("CAPTURING->AWAITING_RESPONSE", "AWAITING_RESPONSE->PLAYING", "startOutput:a", "finishOutput", "PLAYING->IDLE")));
+	}
+
+	/**
+	 * Test that a prompt in the response starts a capture when the output finishes.
+	 */
+	@Test
+	public void testPrompt() {
+		System.out.println("InteractionStateMachineTest.testPrompt()");
+		toPlaying("a");
+		JSONObject sttOptions = new JSONObject();
+		machine.prompt(true, sttOptions);
+		machine.outputFinished();
+		machine.sync();
+		assertThat(machine.getState(), is(State.PROMPTING));
+		assertFalse(machine.isTriggerAllowed());
+		assertThat(actions.take(), is(list("PLAYING->PROMPTING", "startCapture:null:options")));
+		assertThat(actions.sttOptions, is(sameInstance(sttOptions)));
+
+		machine.captureStarted();
+		machine.sync();
+		assertThat(machine.getState(), is(State.CAPTURING));
+
+		// The prompt is only used once
+		machine.captureEnded();
+		machine.audioStart("b");
+		machine.outputFinished();
+		machine.sync();
+		assertThat(machine.getState(), is(State.IDLE));
+	}
+
+	/**
+	 * Test that a trigger while playing (barge in) interrupts the output and starts a new capture,
+	 * and that a new response stops the capture.
+	 */
+	@Test
+	public void testBargeIn() {
+		System.out.println("InteractionStateMachineTest.testBargeIn()");
+		toPlaying("a");
+		machine.prompt(true, null);
+		assertTrue(machine.trigger(AudioInput.InputSource.AUDIO_SOCKET));
+		assertThat(machine.getState(), is(State.CAPTURING));
+		assertThat(actions.take(), is(list("PLAYING->CAPTURING", "bargeIn:a", "startCapture:AUDIO_SOCKET:default")));
+
+		// The rest of the interrupted response is dropped
+		assertThat(machine.getCurrentAudioId(), is(nullValue()));
+		machine.audioEnd("a");
+		machine.sync();
+		assertThat(actions.take(), is(list()));
+
+		machine.audioStart("b");
+		assertThat(machine.getState(), is(State.PLAYING));
+		assertThat(machine.getCurrentAudioId(), is("b"));
+		assertFalse(machine.isReplacingAudio());
+		assertThat(actions.take(), is(list("stopCapture", "CAPTURING->PLAYING", "startOutput:b")));
+
+		// The trigger cleared the prompt of the earlier response
+		machine.outputFinished();
+		machine.sync();
+		assertThat(machine.getState(), is(State.IDLE));
+	}
+
+	/**
+	 * Test that a capture keeps running when the response starts (full-duplex) and that its end
+	 * doesn't change the state while the output plays.
+	 */
+	@Test
+	public void testCaptureDuringPlayback() {
+		System.out.println("InteractionStateMachineTest.testCaptureDuringPlayback()");
+		machine.setCaptureDuringPlayback(true);
+		machine.trigger(AudioInput.InputSource.MICROPHONE);
+		machine.audioStart("a");
+		assertThat(machine.getState(), is(State.PLAYING));
+		assertThat(actions.take(), is(list("IDLE->CAPTURING", "startCapture:MICROPHONE:default", "CAPTURING->PLAYING", "startOutput:a")));
+
+		machine.captureEnded();
+		machine.sync();
+		assertThat(machine.getState(), is(State.PLAYING));
+
+		// Speaking over it barges in
+		assertTrue(machine.trigger(AudioInput.InputSource.MICROPHONE));
+		assertThat(actions.take(), is(list("PLAYING->CAPTURING", "bargeIn:a", "startCapture:MICROPHONE:default")));
+	}
+
+	/**
+	 * Test that a trigger is handled at once while the output is playing out the end of a
+	 * response (finishOutput doesn't hold up the event thread) - and that the output finishing
+	 * afterwards doesn't change the new interaction.
+	 */
+	@Test
+	public void testSlowFinishOutput() throws InterruptedException {
+		System.out.println("InteractionStateMachineTest.testSlowFinishOutput()");
+		CountDownLatch finished = new CountDownLatch(1);
+		machine.shutdown();
+		actions = new RecordingActions() {
+			@Override
+			public void finishOutput() {
+				super.finishOutput();
+				// The rest of the audio takes a second to play
+				Thread output = new Thread(() -> {
+					try {
+						Thread.sleep(1000);
+					} catch (InterruptedException e) {
+						return;
+					}
+					machine.outputFinished();
+					finished.countDown();
+				});
+				output.setDaemon(true);
+				output.start();
+			}
+		};
+		machine = new InteractionStateMachine(actions, TIMEOUT_MS, TIMEOUT_MS);
+		toPlaying("a");
+		machine.audioEnd("a");
+		machine.sync();
+		assertThat(actions.take(), is(list("finishOutput")));
+
+		long start = System.currentTimeMillis();
+		assertTrue(machine.trigger(AudioInput.InputSource.MICROPHONE));
+		assertTrue(System.currentTimeMillis() - start < 500);
+		assertThat(machine.getState(), is(State.CAPTURING));
+		assertThat(actions.take(), is(list("PLAYING->CAPTURING", "bargeIn:a", "startCapture:MICROPHONE:default")));
+
+		assertTrue(finished.await(5, TimeUnit.SECONDS));
+		machine.sync();
+		assertThat(machine.getState(), is(State.CAPTURING));
+	}
+
+	/**
+	 * Test that the state goes back to IDLE if no response arrives.
+	 */
+	@Test
+	public void testResponseTimeout() throws InterruptedException {
+		System.out.println("InteractionStateMachineTest.testResponseTimeout()");
+		machine.trigger(AudioInput.InputSource.MICROPHONE);
+		machine.captureEnded();
+		machine.sync();
+		assertThat(machine.getState(), is(State.AWAITING_RESPONSE));
+		Thread.sleep(TIMEOUT_MS * 4);
+		machine.sync();
+		assertThat(machine.getState(), is(State.IDLE));
+
+		// A timeout doesn't apply once the state has changed
+		toPlaying("a");
+		Thread.sleep(TIMEOUT_MS * 4);
+		machine.sync();
+		assertThat(machine.getState(), is(State.PLAYING));
+	}
+
+	/**
+	 * Test that the state goes back to IDLE if the capture for a prompt doesn't start.
+	 */
+	@Test
+	public void testPromptTimeout() throws InterruptedException {
+		System.out.println("InteractionStateMachineTest.testPromptTimeout()");
+		toPlaying("a");
+		machine.prompt(true, null);
+		machine.outputFinished();
+		machine.sync();
+		assertThat(machine.getState(), is(State.PROMPTING));
+		Thread.sleep(TIMEOUT_MS * 4);
+		machine.sync();
+		assertThat(machine.getState(), is(State.IDLE));
+		assertTrue(machine.isTriggerAllowed());
+	}
+
+	/**
+	 * Test a stop from the server and a lost connection.
+	 */
+	@Test
+	public void testStopAndDisconnect() {
+		System.out.println("InteractionStateMachineTest.testStopAndDisconnect()");
+		toPlaying("a");
+		machine.stop();
+		machine.sync();
+		assertThat(machine.getState(), is(State.IDLE));
+		assertThat(machine.getCurrentAudioId(), is(nullValue()));
+		assertThat(actions.take(), is(list("stopOutput", "PLAYING->IDLE")));
+
+		machine.trigger(AudioInput.InputSource.MICROPHONE);
+		machine.disconnected();
+		machine.sync();
+		assertThat(machine.getState(), is(State.IDLE));
+		assertTrue(machine.isTriggerAllowed());
+	}
+
+	private void toPlaying(String audioId) {
+		machine.trigger(AudioInput.InputSource.MICROPHONE);
+		machine.captureEnded();
+		machine.audioStart(audioId);
+		assertThat(machine.getState(), is(State.PLAYING));
+		actions.take();
+	}
+
+	private static List<String> list(String... values) {
+		List<String> list = new ArrayList<>();
+		Collections.addAll(list, values);
+		return list;
+	}
+}
@@ -0,0 +1,194 @@
+/**
+ * Copyright 2018 IBM Corporation. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package wa.client;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+
+import okhttp3.Request;
+import okhttp3.WebSocket;
+import okio.ByteString;
+
+/**
+ * JUnit tests for the OutboundSender.
+ */
+public class OutboundSenderTest {
+
+	private static final String ID = "8f3c1c2e-5d7a-4b8e-9a61-0c2f6f3b9d11";
+	private static final long WAIT_MS = 2000;
+
+	/**
+	 * WebSocket that records the messages sent.
+	 */
+	private static class RecordingWebSocket implements WebSocket {
+		final List<Object> sent = new ArrayList<>();
+		volatile long queueSize = 0;
+
+		@Override
+		public synchronized boolean send(String text) {
+			sent.add(text);
+			notifyAll();
+			return true;
+		}
+
+		@Override
+		public synchronized boolean send(ByteString bytes) {
+			sent.add(bytes);
+			notifyAll();
+			return true;
+		}
+
+		@Override
+		public boolean close(int code, String reason) {
+			return true;
+		}
+
+		@Override
+		public long queueSize() {
+			return queueSize;
+		}
+
+		@Override
+		public void cancel() {
+		}
+
+		@Override
+		public Request request() {
+			return null;
+		}
+
+		synchronized List<Object> await(int count) throws InterruptedException {
+			long deadline = System.currentTimeMillis() + WAIT_MS;
+			while (sent.size() < count && System.currentTimeMillis() < deadline) {
+				wait(deadline - System.currentTimeMillis());
+			}
+			return new ArrayList<>(sent);
+		}
+	}
+
+	private OutboundSender sender;
+
+	@After
+	public void tearDown() {
+		if (null != sender) {
+			sender.stop();
+		}
+	}
+
+	/**
+	 * Test that queued audio chunks are joined, and that the messages stay in order.
+	 */
+	@Test
+	public void testJoinAndOrder() throws InterruptedException {
+		System.out.println("OutboundSenderTest.testJoinAndOrder()");
+		RecordingWebSocket webSocket = new RecordingWebSocket();
+		sender = new OutboundSender();
+		sender.setWebSocket(webSocket);
+
+		// Queue everything before starting so the chunks are waiting together
+		assertTrue(sender.sendAudio(ID, true, new byte[] { 9, 1, 2, 9 }, 1, 2));
+		assertTrue(sender.sendAudio(ID, true, new byte[] { 3, 4, 5 }, 0, 3));
+		assertTrue(sender.sendText("end"));
+		assertTrue(sender.sendAudio(ID, true, new byte[] { 6 }, 0, 1));
+		assertTrue(sender.sendAudio("other", true, new byte[] { 7 }, 0, 1));
+		sender.start();
+
+		List<Object> sent = webSocket.await(4);
+		assertThat(sent.size(), is(4));
+		ByteString joined = (ByteString) sent.get(0);
+		assertThat(BinaryAudioFrame.getId(joined), is(ID));
+		byte[] audio = new byte[BinaryAudioFrame.getAudioLength(joined)];
+		BinaryAudioFrame.getAudio(joined).get(audio);
+		assertThat(audio, is(new byte[] { 1, 2, 3, 4, 5 }));
+		assertThat(sent.get(1), is((Object) "end"));
+		assertThat(BinaryAudioFrame.getId((ByteString) sent.get(2)), is(ID));
+		assertThat(BinaryAudioFrame.getId((ByteString) sent.get(3)), is("other"));
+
+		// Let the sender finish counting the last message
+		sender.stop();
+		assertThat(sender.getSentMessages(), is(4L));
+		assertThat(sender.getJoinedMessages(), is(1L));
+		assertThat(sender.getSentBytes(), is(5L + 3 + 1 + 1));
+		assertThat(sender.getDroppedMessages(), is(0L));
+	}
+
+	/**
+	 * Test that nothing is sent while the WebSocket's queue is over the limit, and that the
+	 * wait shows in the latency and backpressure statistics.
+	 */
+	@Test
+	public void testBackpressure() throws InterruptedException {
+		System.out.println("OutboundSenderTest.testBackpressure()");
+		RecordingWebSocket webSocket = new RecordingWebSocket();
+		webSocket.queueSize = 1024 * 1024;
+		sender = new OutboundSender();
+		sender.setWebSocket(webSocket);
+		sender.start();
+
+		assertTrue(sender.sendText("hello"));
+		Thread.sleep(100);
+		assertThat(webSocket.await(0).size(), is(0));
+
+		webSocket.queueSize = 0;
+		assertThat(webSocket.await(1).size(), is(1));
+		sender.stop();
+		assertTrue(sender.getBackpressureMillis() >= 50);
+		assertTrue(sender.getMaxLatencyMillis() >= 50);
+		assertTrue(sender.getAverageLatencyMillis() >= 50);
+
+		sender.resetStatistics();
+		assertThat(sender.getSentMessages(), is(0L));
+		assertThat(sender.getBackpressureMillis(), is(0L));
+	}
+
+	/**
+	 * Test that audio is dropped (rather than waiting) when the queue is full.
+	 */
+	@Test
+	public void testAudioDroppedWhenFull() {
+		System.out.println("OutboundSenderTest.testAudioDroppedWhenFull()");
+		sender = new OutboundSender(2);
+		byte[] audio = new byte[16];
+		assertTrue(sender.sendAudio(ID, false, audio, 0, audio.length));
+		assertTrue(sender.sendAudio(ID, false, audio, 0, audio.length));
+		assertFalse(sender.sendAudio(ID, false, audio, 0, audio.length));
+		assertThat(sender.getQueueSize(), is(2));
+		assertThat(sender.getDroppedMessages(), is(1L));
+	}
+
+	/**
+	 * Test that the messages are dropped when there is no connection.
+	 */
+	@Test
+	public void testNotConnected() throws InterruptedException {
+		System.out.println("OutboundSenderTest.testNotConnected()");
+		sender = new OutboundSender();
+		sender.start();
+		assertTrue(sender.sendText("hello"));
+		long deadline = System.currentTimeMillis() + WAIT_MS;
+		while (sender.getDroppedMessages() == 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(5);
+		}
+		assertThat(sender.getDroppedMessages(), is(1L));
+		assertThat(sender.getSentMessages(), is(0L));
+	}
+}
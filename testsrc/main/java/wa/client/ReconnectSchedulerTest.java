@@ -0,0 +1,146 @@
+/**
+ * Copyright 2018 IBM Corporation. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package wa.client;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import wa.metrics.Histogram;
+
+/**
+ * JUnit tests for the ReconnectScheduler.
+ */
+public class ReconnectSchedulerTest {
+
+	private static Histogram newHistogram() {
+		return new Histogram("test_reconnect", "test", 1000, new long[0], 60000);
+	}
+
+	/**
+	 * Test that the first attempt is immediate and the delays that follow are jittered,
+	 * growing and capped.
+	 */
+	@Test
+	public void testDelays() throws InterruptedException {
+		System.out.println("ReconnectSchedulerTest.testDelays()");
+		ReconnectScheduler scheduler = new ReconnectScheduler(100, 2000, 60000, newHistogram(), new Random(1));
+		assertThat(scheduler.nextDelay(), is(0L));
+		scheduler.connectionLost();
+		assertThat(scheduler.awaitAttempt(), is(1));
+		long previous = 100;
+		boolean capped = false;
+		for (int i = 0; i < 50; i++) {
+			long delay = scheduler.nextDelay();
+			assertTrue("delay " + delay, delay >= 100 && delay <= 2000);
+			assertTrue("delay " + delay + " after " + previous, delay <= previous * 3);
+			capped |= (2000 == delay);
+			previous = delay;
+		}
+		assertTrue(capped);
+	}
+
+	/**
+	 * Test that different clients don't retry in lockstep.
+	 */
+	@Test
+	public void testJitter() throws InterruptedException {
+		System.out.println("ReconnectSchedulerTest.testJitter()");
+		ReconnectScheduler a = new ReconnectScheduler(1000, 30000, 60000, newHistogram(), new Random(1));
+		ReconnectScheduler b = new ReconnectScheduler(1000, 30000, 60000, newHistogram(), new Random(2));
+		a.connectionLost();
+		b.connectionLost();
+		a.awaitAttempt();
+		b.awaitAttempt();
+		assertThat(a.nextDelay(), is(not(b.nextDelay())));
+	}
+
+	/**
+	 * Test that an attempt is only scheduled when the connection is lost, that the time to
+	 * READY is recorded and that an attempt that times out is retried.
+	 */
+	@Test
+	public void testEvents() throws InterruptedException {
+		System.out.println("ReconnectSchedulerTest.testEvents()");
+		Histogram histogram = newHistogram();
+		ReconnectScheduler scheduler = new ReconnectScheduler(50, 100, 200, histogram, new Random(1));
+
+		scheduler.connectionLost();
+		long start = System.currentTimeMillis();
+		assertThat(scheduler.awaitAttempt(), is(1));
+		assertTrue(System.currentTimeMillis() - start < 50);
+		// A second report of the same loss doesn't schedule another attempt
+		scheduler.connectionLost();
+		assertThat(scheduler.awaitAttempt(), is(2));
+		assertTrue(System.currentTimeMillis() - start >= 50);
+
+		// The attempt times out - the next one is scheduled
+		assertThat(scheduler.awaitAttempt(), is(3));
+		assertTrue(System.currentTimeMillis() - start >= 250);
+
+		scheduler.connected();
+		assertThat(histogram.snapshot().getCount(), is(1L));
+		assertTrue(histogram.snapshot().getMax() >= 200);
+
+		// Nothing is scheduled while connected
+		Thread waiter = new Thread(() -> {
+			try {
+				scheduler.awaitAttempt();
+			} catch (InterruptedException e) {
+				// Expected
+			}
+		});
+		waiter.start();
+		waiter.join(300);
+		assertTrue(waiter.isAlive());
+		waiter.interrupt();
+		waiter.join(1000);
+		assertFalse(waiter.isAlive());
+	}
+
+	/**
+	 * Test that the backoff isn't reset by a connection that is dropped at once.
+	 */
+	@Test
+	public void testFlappingConnection() throws InterruptedException {
+		System.out.println("ReconnectSchedulerTest.testFlappingConnection()");
+		ReconnectScheduler scheduler = new ReconnectScheduler(100, 100, 60000, newHistogram(), new Random(1));
+		scheduler.connectionLost();
+		scheduler.awaitAttempt();
+		scheduler.connected();
+		scheduler.connectionLost();
+		long start = System.currentTimeMillis();
+		assertThat(scheduler.awaitAttempt(), is(2));
+		assertTrue(System.currentTimeMillis() - start >= 100);
+	}
+
+	/**
+	 * Test the delays are checked.
+	 */
+	@Test
+	public void testBadDelays() {
+		System.out.println("ReconnectSchedulerTest.testBadDelays()");
+		try {
+			new ReconnectScheduler(1000, 500, 1000, newHistogram());
+			fail("Expected IllegalArgumentException");
+		} catch (IllegalArgumentException e) {
+			assertThat(e.getMessage(), containsString("cap 500ms"));
+		}
+	}
+}
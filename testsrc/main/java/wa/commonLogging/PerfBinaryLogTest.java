@@ -0,0 +1,146 @@
+/**
+ * Copyright 2018 IBM Corporation. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package wa.commonLogging;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * JUnit tests for the PerfBinaryLog and the PerfLogAnalyzer.
+ */
+public class PerfBinaryLogTest {
+
+	private static final long START = 1528000000000L;
+	// Header and 10 records of 3 values
+	private static final long FILE_BYTES = PerfBinaryLog.HEADER_SIZE + 10 * 32;
+
+	private File directory;
+
+	@Before
+	public void setUp() throws IOException {
+		directory = Files.createTempDirectory("perf").toFile();
+	}
+
+	@After
+	public void tearDown() {
+		for (File file : directory.listFiles()) {
+			file.delete();
+		}
+		directory.delete();
+	}
+
+	/**
+	 * Test that the records are read back (timestamps, values and names), across rolled files.
+	 */
+	@Test
+	public void testWriteRead() throws IOException {
+		System.out.println("PerfBinaryLogTest.testWriteRead()");
+		PerfBinaryLog log = new PerfBinaryLog(directory, FILE_BYTES, 10);
+		PerfRecord record = new PerfRecord("CLIENT", new String[] { "STT: ", "Resp: ", "Speaker> " }, new String[] { "RESP: " });
+		for (int i = 0; i < 25; i++) {
+			record.set(0, 100 + i);
+			record.set(1, (i % 5 == 0 ? PerfRecord.NONE : 200 + i));
+			record.set(2, 1000 + 10 * i);
+			record.setTimestamp(START + i * 60000L);
+			log.write(record);
+		}
+		log.close();
+
+		List<File> files = PerfBinaryLog.listFiles(directory, "CLIENT");
+		assertThat(files.size(), is(3));
+		List<long[]> records = new ArrayList<>();
+		for (File file : files) {
+			PerfBinaryLog.read(file, new PerfBinaryLog.Visitor() {
+				@Override
+				public void header(String identifier, String[] names) {
+					assertThat(identifier, is("CLIENT"));
+					assertThat(names, is(new String[] { "STT: ", "Resp: ", "Speaker> " }));
+				}
+
+				@Override
+				public void record(long timestamp, long[] values) {
+					records.add(new long[] { timestamp, values[0], values[1], values[2] });
+				}
+			});
+		}
+		assertThat(records.size(), is(25));
+		assertThat(records.get(0), is(new long[] { START, 100, PerfRecord.NONE, 1000 }));
+		assertThat(records.get(24), is(new long[] { START + 24 * 60000L, 124, 224, 1240 }));
+	}
+
+	/**
+	 * Test that the oldest files are deleted.
+	 */
+	@Test
+	public void testMaxFiles() throws IOException {
+		System.out.println("PerfBinaryLogTest.testMaxFiles()");
+		PerfBinaryLog log = new PerfBinaryLog(directory, FILE_BYTES, 2);
+		PerfRecord record = new PerfRecord("CAPTURE", new String[] { "Saved: " }, null);
+		for (int i = 0; i < 200; i++) {
+			record.set(0, i);
+			record.setTimestamp(START + i * 1000L);
+			log.write(record);
+		}
+		log.close();
+		assertThat(PerfBinaryLog.listFiles(directory, "CAPTURE").size(), is(2));
+	}
+
+	/**
+	 * Test the analyzer's report (percentiles, per hour and the slowest).
+	 */
+	@Test
+	public void testAnalyzer() throws IOException {
+		System.out.println("PerfBinaryLogTest.testAnalyzer()");
+		PerfBinaryLog log = new PerfBinaryLog(directory, 1 << 20, 10);
+		PerfRecord record = new PerfRecord("CLIENT", new String[] { "STT: ", "Speaker> " }, null);
+		for (int i = 1; i <= 100; i++) {
+			record.set(0, i);
+			record.set(1, 10 * i);
+			// Over two hours
+			record.setTimestamp(START - (START % 3600000L) + i * 60000L);
+			log.write(record);
+		}
+		log.close();
+
+		PerfLogAnalyzer analyzer = new PerfLogAnalyzer(null, 3);
+		long count = 0;
+		for (File file : PerfBinaryLog.listFiles(directory, null)) {
+			count += analyzer.add(file);
+		}
+		assertThat(count, is(100L));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		analyzer.report(new PrintStream(out, true));
+		String report = out.toString();
+		assertThat(report, containsString("CLIENT: 100 records"));
+		assertThat(report.matches("(?s).*\\n  STT +100 +50\\.5 +50 +9[01] +99 +100\\n.*"), is(true));
+		assertThat(report, containsString("Per hour (Speaker>)"));
+		assertThat(report.matches("(?s).*\\n  \\S+ \\S+ +59 .*\\n  \\S+ \\S+ +41 .*"), is(true));
+		assertThat(report, containsString("Slowest (Speaker>)"));
+		assertThat(report.matches("(?s).*Slowest.*\\n +\\S+ \\S+ +100 +1000\\n +\\S+ \\S+ +99 +990\\n +\\S+ \\S+ +98 +980\\n.*"), is(true));
+	}
+}
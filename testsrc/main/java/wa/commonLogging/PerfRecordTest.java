@@ -0,0 +1,104 @@
+/**
+ * Copyright 2018 IBM Corporation. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package wa.commonLogging;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+/**
+ * JUnit tests for the PerfRecord and the PerfLogWriter.
+ */
+public class PerfRecordTest {
+
+	/**
+	 * Test the format of a record (the same as the name-value elements).
+	 */
+	@Test
+	public void testFormat() {
+		System.out.println("PerfRecordTest.testFormat()");
+		PerfRecord record = new PerfRecord("CLIENT", new String[] { "STT: ", "Resp: ", "Audio> " }, new String[] { "Method: ", "RESP: " });
+		record.setComment("Client-Interaction");
+		record.set(0, 850);
+		record.set(2, 1200);
+		record.setInfo(0, "Stream");
+		assertThat(record.toString(), is("CLIENT\tClient-Interaction\tSTT: \t850\tResp: \t\tAudio> \t1200\tMethod: \tStream\tRESP: \t"));
+
+		record.clear();
+		assertThat(record.get(0), is(PerfRecord.NONE));
+		assertThat(record.toString(), is("CLIENT\t\tSTT: \t\tResp: \t\tAudio> \t\tMethod: \t\tRESP: \t"));
+		try {
+			record.set(3, 1);
+			fail("Expected IndexOutOfBoundsException");
+		} catch (IndexOutOfBoundsException e) {
+			// Expected
+		}
+	}
+
+	/**
+	 * Test that the writer logs copies of the records, in order, on its own thread.
+	 */
+	@Test
+	public void testWriter() throws InterruptedException {
+		System.out.println("PerfRecordTest.testWriter()");
+		List<String> lines = Collections.synchronizedList(new ArrayList<>());
+		PerfLogWriter writer = new PerfLogWriter(4, () -> true, line -> lines.add(line.toString()));
+		PerfRecord record = new PerfRecord("TEST", new String[] { "Value: " }, null);
+		for (int i = 0; i < 3; i++) {
+			record.set(0, i);
+			assertThat(writer.submit(record), is(true));
+		}
+		record.set(0, 99);
+		assertThat(writer.flush(5000), is(true));
+		assertThat(lines.size(), is(3));
+		assertThat(lines.get(0), is("TEST\t\tValue: \t0"));
+		assertThat(lines.get(2), is("TEST\t\tValue: \t2"));
+		assertThat(writer.getDropped(), is(0L));
+	}
+
+	/**
+	 * Test that records are dropped (not waited for) when the writer falls behind.
+	 */
+	@Test
+	public void testWriterFull() throws InterruptedException {
+		System.out.println("PerfRecordTest.testWriterFull()");
+		CountDownLatch blocked = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		PerfLogWriter writer = new PerfLogWriter(2, () -> true, line -> {
+			blocked.countDown();
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		});
+		PerfRecord record = new PerfRecord("TEST", new String[] { "Value: " }, null);
+		assertThat(writer.submit(record), is(true));
+		blocked.await();
+		// One record being logged, one waiting - the next is dropped
+		assertThat(writer.submit(record), is(true));
+		assertThat(writer.submit(record), is(false));
+		assertThat(writer.getDropped(), is(1L));
+		release.countDown();
+		assertThat(writer.flush(5000), is(true));
+	}
+}
@@ -0,0 +1,114 @@
+/**
+ * Copyright 2018 IBM Corporation. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package wa.metrics;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * JUnit tests for the Histogram (and the MetricsRegistry's export).
+ */
+public class HistogramTest {
+
+	private static final long[] BOUNDS = { 100, 250, 1000 };
+
+	/**
+	 * Test that the percentiles are within the histogram's accuracy (about 3%).
+	 */
+	@Test
+	public void testPercentiles() {
+		System.out.println("HistogramTest.testPercentiles()");
+		Histogram histogram = new Histogram("test", "Test", 1000, BOUNDS, 100000);
+		for (long value = 1; value <= 10000; value++) {
+			histogram.record(value);
+		}
+		Histogram.Snapshot snapshot = histogram.snapshot();
+		assertThat(snapshot.getCount(), is(10000L));
+		assertThat(snapshot.getSum(), is(10000L * 10001 / 2));
+		assertThat(snapshot.getMax(), is(10000L));
+		assertWithin(snapshot.getValueAtPercentile(50), 5000);
+		assertWithin(snapshot.getValueAtPercentile(90), 9000);
+		assertWithin(snapshot.getValueAtPercentile(99), 9900);
+		assertThat(snapshot.getValueAtPercentile(100), is(10000L));
+		// Small values are exact
+		assertThat(snapshot.getCountAtOrBelow(50), is(50L));
+	}
+
+	/**
+	 * Test that values outside the range are counted at its ends.
+	 */
+	@Test
+	public void testOutOfRange() {
+		System.out.println("HistogramTest.testOutOfRange()");
+		Histogram histogram = new Histogram("test", "Test", 1, BOUNDS, 1000);
+		histogram.record(-5);
+		histogram.record(1000000);
+		Histogram.Snapshot snapshot = histogram.snapshot();
+		assertThat(snapshot.getCount(), is(2L));
+		assertThat(snapshot.getCountAtOrBelow(0), is(1L));
+		assertThat(snapshot.getMax(), is(1000L));
+		assertThat(snapshot.getValueAtPercentile(100), is(1000L));
+	}
+
+	/**
+	 * Test the values between two snapshots.
+	 */
+	@Test
+	public void testSince() {
+		System.out.println("HistogramTest.testSince()");
+		Histogram histogram = new Histogram("test", "Test", 1, BOUNDS, 100000);
+		for (int i = 0; i < 100; i++) {
+			histogram.record(2000);
+		}
+		Histogram.Snapshot earlier = histogram.snapshot();
+		for (int i = 0; i < 10; i++) {
+			histogram.record(10);
+		}
+		Histogram.Snapshot interval = histogram.snapshot().since(earlier);
+		assertThat(interval.getCount(), is(10L));
+		assertThat(interval.getSum(), is(100L));
+		assertThat(interval.getMax(), is(10L));
+		assertThat(interval.getValueAtPercentile(99), is(10L));
+	}
+
+	/**
+	 * Test the Prometheus text of the registry.
+	 */
+	@Test
+	public void testPrometheusText() {
+		System.out.println("HistogramTest.testPrometheusText()");
+		Histogram histogram = MetricsRegistry.getInstance().histogram("test_latency_seconds", "Test latency", 1000, BOUNDS, 60000);
+		assertThat(MetricsRegistry.getInstance().histogram("test_latency_seconds", "Test latency", 1000, BOUNDS, 60000), is(sameInstance(histogram)));
+		histogram.record(50);
+		histogram.record(200);
+		histogram.record(5000);
+		String text = MetricsRegistry.getInstance().toPrometheusText();
+		assertThat(text, containsString("# HELP test_latency_seconds Test latency\n"));
+		assertThat(text, containsString("# TYPE test_latency_seconds histogram\n"));
+		assertThat(text, containsString("test_latency_seconds_bucket{le=\"0.1\"} 1\n"));
+		assertThat(text, containsString("test_latency_seconds_bucket{le=\"0.25\"} 2\n"));
+		assertThat(text, containsString("test_latency_seconds_bucket{le=\"1\"} 2\n"));
+		assertThat(text, containsString("test_latency_seconds_bucket{le=\"+Inf\"} 3\n"));
+		assertThat(text, containsString("test_latency_seconds_sum 5.25\n"));
+		assertThat(text, containsString("test_latency_seconds_count 3\n"));
+	}
+
+	private static void assertWithin(long value, long expected) {
+		assertThat("Value " + value + " expected about " + expected, Math.abs(value - expected) <= expected * 0.035, is(true));
+	}
+}
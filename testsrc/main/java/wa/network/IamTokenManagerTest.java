@@ -0,0 +1,212 @@
+/**
+ * Copyright 2018 IBM Corporation. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package wa.network;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpServer;
+
+import wa.exceptions.AuthenticationError;
+
+/**
+ * JUnit tests for the IamTokenManager (against a local stub of the IAM token service).
+ */
+public class IamTokenManagerTest {
+
+	private HttpServer server;
+	private String url;
+	private File directory;
+	private final AtomicInteger requests = new AtomicInteger(0);
+	private volatile int status = 200;
+	private volatile long expiresIn = 3600;
+	private volatile long delayMillis = 0;
+	private volatile String body = null;
+
+	@Before
+	public void setUp() throws IOException {
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getByName(null), 0), 0);
+		server.createContext("/oidc/token", exchange -> {
+			try (InputStream in = exchange.getRequestBody()) {
+				byte[] buffer = new byte[1024];
+				int length = 0;
+				for (int n; (n = in.read(buffer, length, buffer.length - length)) > 0;) {
+					length += n;
+				}
+				body = new String(buffer, 0, length, StandardCharsets.UTF_8);
+			}
+			int n = requests.incrementAndGet();
+			try {
+				Thread.sleep(delayMillis);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			byte[] response = (200 == status ? String.format("{\"access_token\":\"token%d\",\"refresh_token\":\"x\",\"token_type\":\"Bearer\",\"expires_in\":%d}", n, expiresIn)
+					: "{\"errorCode\":\"BXNIM0415E\",\"errorMessage\":\"Provided API key could not be found\"}").getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().add("Content-Type", "application/json");
+			exchange.sendResponseHeaders(status, response.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(response);
+			}
+		});
+		server.setExecutor(java.util.concurrent.Executors.newCachedThreadPool());
+		server.start();
+		url = "http://127.0.0.1:" + server.getAddress().getPort() + "/oidc/token";
+		directory = Files.createTempDirectory("iamtoken").toFile();
+	}
+
+	@After
+	public void tearDown() {
+		server.stop(0);
+		File[] files = directory.listFiles();
+		if (null != files) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		directory.delete();
+	}
+
+	/**
+	 * Test that the token is requested once and then cached.
+	 */
+	@Test
+	public void testCache() {
+		System.out.println("IamTokenManagerTest.testCache()");
+		IamTokenManager manager = new IamTokenManager("key1", url, null);
+		assertThat(manager.getToken(), is("token1"));
+		assertThat(manager.getToken(), is("token1"));
+		assertThat(requests.get(), is(1));
+		assertThat(body, containsString("apikey=key1"));
+		assertThat(body, containsString("grant_type=urn%3Aibm%3Aparams%3Aoauth%3Agrant-type%3Aapikey"));
+
+		manager.invalidate();
+		assertThat(manager.getToken(), is("token2"));
+		assertThat(requests.get(), is(2));
+	}
+
+	/**
+	 * Test that concurrent requests for a token share one request to the service.
+	 */
+	@Test
+	public void testCoalescing() throws InterruptedException {
+		System.out.println("IamTokenManagerTest.testCoalescing()");
+		delayMillis = 300;
+		IamTokenManager manager = new IamTokenManager("key1", url, null);
+		ConcurrentLinkedQueue<String> tokens = new ConcurrentLinkedQueue<>();
+		List<Thread> threads = new ArrayList<>();
+		for (int i = 0; i < 5; i++) {
+			Thread t = new Thread(() -> tokens.add(manager.getToken()));
+			threads.add(t);
+			t.start();
+		}
+		for (Thread t : threads) {
+			t.join(5000);
+		}
+		assertThat(tokens.size(), is(5));
+		for (String token : tokens) {
+			assertThat(token, is("token1"));
+		}
+		assertThat(requests.get(), is(1));
+	}
+
+	/**
+	 * Test that the token is refreshed before it expires.
+	 */
+	@Test
+	public void testRefresh() throws InterruptedException {
+		System.out.println("IamTokenManagerTest.testRefresh()");
+		expiresIn = 2;
+		IamTokenManager manager = new IamTokenManager("key1", url, null);
+		manager.start();
+		try {
+			long end = System.currentTimeMillis() + 5000;
+			while (requests.get() < 3 && System.currentTimeMillis() < end) {
+				Thread.sleep(50);
+			}
+			// Started (no token) then refreshed at 80% of the lifetime
+			assertThat(requests.get(), is(3));
+			assertThat(manager.getToken(), is("token3"));
+		} finally {
+			manager.stop();
+		}
+	}
+
+	/**
+	 * Test that the token is kept across restarts (for the same API key).
+	 */
+	@Test
+	public void testPersistence() throws IOException {
+		System.out.println("IamTokenManagerTest.testPersistence()");
+		File file = new File(directory, "token.properties");
+		assertThat(new IamTokenManager("key1", url, file).getToken(), is("token1"));
+		assertTrue(file.isFile());
+
+		assertThat(new IamTokenManager("key1", url, file).getToken(), is("token1"));
+		assertThat(requests.get(), is(1));
+
+		// A different key doesn't use it
+		assertThat(new IamTokenManager("key2", url, file).getToken(), is("token2"));
+		assertThat(requests.get(), is(2));
+
+		// Only readable by its owner (and no temporary file is left)
+		if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+			assertThat(PosixFilePermissions.toString(Files.getPosixFilePermissions(file.toPath())), is("rw-------"));
+		}
+		assertFalse(new File(file.getPath() + ".tmp").exists());
+
+		// A rejected token isn't used after a restart
+		IamTokenManager manager = new IamTokenManager("key2", url, file);
+		manager.invalidate();
+		assertFalse(file.exists());
+		assertThat(new IamTokenManager("key2", url, file).getToken(), is("token3"));
+	}
+
+	/**
+	 * Test that a rejected API key is an AuthenticationError.
+	 */
+	@Test
+	public void testRejectedKey() {
+		System.out.println("IamTokenManagerTest.testRejectedKey()");
+		status = 400;
+		IamTokenManager manager = new IamTokenManager("bad", url, null);
+		try {
+			manager.getToken();
+			fail("Expected AuthenticationError");
+		} catch (AuthenticationError e) {
+			assertThat(e.getCode(), is(400));
+		}
+	}
+}
@@ -0,0 +1,67 @@
+/**
+ * Copyright 2018 IBM Corporation. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package wa.util;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+import org.junit.Test;
+
+import wa.util.ActivityCounters.Activity;
+
+/**
+ * JUnit tests for the ActivityCounters and the ActivityMeter.
+ */
+public class ActivityMeterTest {
+
+	/**
+	 * Test the format of the meter's line.
+	 */
+	@Test
+	public void testFormat() {
+		System.out.println("ActivityMeterTest.testFormat()");
+		Activity[] activities = ActivityCounters.getActivities();
+		long[] counts = new long[activities.length];
+		assertThat(ActivityMeter.format(activities, counts), is(""));
+		counts[Activity.MIC_READ.ordinal()] = 50;
+		counts[Activity.UPLOAD.ordinal()] = 49;
+		assertThat(ActivityMeter.format(activities, counts), is("%50 ^49"));
+	}
+
+	/**
+	 * Test that the meter shows the activity since its last sample.
+	 */
+	@Test
+	public void testMeter() throws InterruptedException {
+		System.out.println("ActivityMeterTest.testMeter()");
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ActivityMeter meter = new ActivityMeter(50, new PrintStream(out, true));
+		meter.start();
+		Thread.sleep(20);
+		long before = ActivityCounters.get(Activity.SPEAKER_WRITE);
+		for (int i = 0; i < 3; i++) {
+			ActivityCounters.increment(Activity.SPEAKER_WRITE);
+		}
+		assertThat(ActivityCounters.get(Activity.SPEAKER_WRITE), is(before + 3));
+		Thread.sleep(200);
+		meter.interrupt();
+		meter.join();
+		assertThat(out.toString().trim(), is("@3"));
+	}
+}